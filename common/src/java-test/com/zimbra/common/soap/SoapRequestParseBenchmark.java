@@ -0,0 +1,131 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+/**
+ * Compares latency and allocation of the SOAP request parsers on captured request bodies.
+ * <p>
+ * Usage: {@code java com.zimbra.common.soap.SoapRequestParseBenchmark [iterations] [request files...]}
+ * <p>
+ * Files starting with {@code <} are parsed as XML with dom4j, JAXP DOM and StAX; anything else is parsed as JSON
+ * from a String and from a stream.  With no files, the GetInfo samples next to this class are used.
+ */
+public class SoapRequestParseBenchmark {
+
+    private interface Parser {
+        Element parse(byte[] request) throws Exception;
+    }
+
+    private static final Parser DOM4J = new Parser() {
+        @Override
+        public Element parse(byte[] request) throws Exception {
+            return Element.convertDOM(W3cDomUtil.getDom4jSAXReaderWhichUsesSecureProcessing()
+                    .read(new ByteArrayInputStream(request)).getRootElement());
+        }
+    };
+
+    private static final Parser JAXP = new Parser() {
+        @Override
+        public Element parse(byte[] request) throws Exception {
+            return W3cDomUtil.parseXML(new ByteArrayInputStream(request));
+        }
+    };
+
+    private static final Parser STAX = new Parser() {
+        @Override
+        public Element parse(byte[] request) throws Exception {
+            return StaxElementParser.parseXML(new ByteArrayInputStream(request));
+        }
+    };
+
+    private static final Parser JSON_STRING = new Parser() {
+        @Override
+        public Element parse(byte[] request) throws Exception {
+            return Element.parseJSON(new String(request, "utf-8"));
+        }
+    };
+
+    private static final Parser JSON_STREAM = new Parser() {
+        @Override
+        public Element parse(byte[] request) throws Exception {
+            return Element.parseJSON(new ByteArrayInputStream(request));
+        }
+    };
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void run(String sample, String name, Parser parser, byte[] request, int iterations)
+    throws Exception {
+        // warm up
+        for (int i = 0; i < Math.min(iterations, 1000); i++) {
+            parser.parse(request);
+        }
+        long alloc = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parser.parse(request);
+        }
+        long elapsed = System.nanoTime() - start;
+        alloc = allocatedBytes() - alloc;
+        System.out.println(String.format("%-30s %-12s %8d bytes  %10.1f us/parse  %12d bytes allocated/parse",
+                sample, name, request.length, elapsed / 1000.0 / iterations, alloc / iterations));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        List<String> names = new ArrayList<String>();
+        List<byte[]> requests = new ArrayList<byte[]>();
+        if (args.length > 1) {
+            for (int i = 1; i < args.length; i++) {
+                names.add(new File(args[i]).getName());
+                requests.add(Files.toByteArray(new File(args[i])));
+            }
+        } else {
+            for (String resource : new String[] { "GetInfoRequestSOAP.xml", "GetInfoResponseSOAP.xml" }) {
+                names.add(resource);
+                requests.add(ByteStreams.toByteArray(SoapRequestParseBenchmark.class.getResourceAsStream(resource)));
+            }
+        }
+
+        for (int i = 0; i < requests.size(); i++) {
+            byte[] request = requests.get(i);
+            if (request.length > 0 && request[0] == '<') {
+                run(names.get(i), "dom4j", DOM4J, request, iterations);
+                run(names.get(i), "jaxp-dom", JAXP, request, iterations);
+                run(names.get(i), "stax", STAX, request, iterations);
+            } else {
+                run(names.get(i), "json-string", JSON_STRING, request, iterations);
+                run(names.get(i), "json-stream", JSON_STREAM, request, iterations);
+            }
+        }
+    }
+}
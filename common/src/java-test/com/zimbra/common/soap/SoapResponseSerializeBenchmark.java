@@ -0,0 +1,149 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+
+import com.zimbra.common.util.ZimbraServletOutputStream;
+
+/**
+ * Measures the heap needed to send a large SearchResponse, serialized to a byte array first as before versus
+ * streamed through {@link ZimbraServletOutputStream}.
+ * <p>
+ * Usage: {@code java -Xmn8m com.zimbra.common.soap.SoapResponseSerializeBenchmark [hits] [iterations]}
+ * <p>
+ * Peak heap comes from the memory pools, which only notice a new peak at a collection, so run with a small young
+ * generation to get a meaningful number.
+ */
+public class SoapResponseSerializeBenchmark {
+
+    /** Stands in for the servlet output stream. */
+    private static final class DiscardOutputStream extends OutputStream {
+        long size;
+
+        @Override
+        public void write(int b) {
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            size += len;
+        }
+    }
+
+    private interface Serializer {
+        long serialize(Element envelope) throws IOException;
+    }
+
+    private static final Serializer TO_UTF8 = new Serializer() {
+        @Override
+        public long serialize(Element envelope) throws IOException {
+            DiscardOutputStream os = new DiscardOutputStream();
+            os.write(envelope.toUTF8());
+            return os.size;
+        }
+    };
+
+    private static final Serializer STREAMED = new Serializer() {
+        @Override
+        public long serialize(Element envelope) throws IOException {
+            DiscardOutputStream os = new DiscardOutputStream();
+            ZimbraServletOutputStream out = new ZimbraServletOutputStream(os);
+            envelope.output(out);
+            out.flush();
+            return os.size;
+        }
+    };
+
+    static Element searchResponse(SoapProtocol proto, int hits) {
+        Element resp = proto.getFactory().createElement(MailConstants.SEARCH_RESPONSE);
+        resp.addAttribute(MailConstants.A_SORTBY, "dateDesc").addAttribute(MailConstants.A_QUERY_MORE, false);
+        for (int i = 0; i < hits; i++) {
+            Element m = resp.addNonUniqueElement(MailConstants.E_MSG);
+            m.addAttribute(MailConstants.A_ID, 1000 + i).addAttribute(MailConstants.A_CONV_ID, -(1000 + i));
+            m.addAttribute(MailConstants.A_DATE, 1470000000000L + i).addAttribute(MailConstants.A_SIZE, 4096 + i);
+            m.addAttribute(MailConstants.A_FLAGS, "u").addAttribute(MailConstants.A_FOLDER, "2");
+            Element e = m.addNonUniqueElement(MailConstants.E_EMAIL);
+            e.addAttribute(MailConstants.A_ADDRESS, "sender" + i + "@example.com");
+            e.addAttribute(MailConstants.A_PERSONAL, "Sender " + i).addAttribute(MailConstants.A_ADDRESS_TYPE, "f");
+            m.addAttribute(MailConstants.E_SUBJECT, "Re: quarterly report #" + i, Element.Disposition.CONTENT);
+            m.addAttribute(MailConstants.E_FRAG, "Here are the numbers we talked about on the call, and a few " +
+                    "more that came in this morning " + i, Element.Disposition.CONTENT);
+        }
+        return proto.soapEnvelope(resp);
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long heapUsed(boolean peak) {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                used += peak ? pool.getPeakUsage().getUsed() : pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static void resetPeak() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    private static void run(String name, Serializer serializer, Element envelope, int iterations) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            serializer.serialize(envelope);
+        }
+        System.gc();
+        long baseline = heapUsed(false);
+        resetPeak();
+        long alloc = allocatedBytes();
+        long start = System.nanoTime();
+        long size = 0;
+        for (int i = 0; i < iterations; i++) {
+            size = serializer.serialize(envelope);
+        }
+        long elapsed = System.nanoTime() - start;
+        alloc = allocatedBytes() - alloc;
+        long peak = heapUsed(true) - baseline;
+        System.out.println(String.format("%-10s %10d bytes  %8.1f ms  %12d bytes allocated  %12d bytes peak heap",
+                name, size, elapsed / 1000000.0 / iterations, alloc / iterations, peak));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int hits = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        for (SoapProtocol proto : new SoapProtocol[] { SoapProtocol.Soap12, SoapProtocol.SoapJS }) {
+            Element envelope = searchResponse(proto, hits);
+            System.out.println(proto + ", " + hits + " hits");
+            run("toUTF8", TO_UTF8, envelope, iterations);
+            run("streamed", STREAMED, envelope, iterations);
+        }
+    }
+}
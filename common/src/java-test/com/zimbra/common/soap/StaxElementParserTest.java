@@ -0,0 +1,124 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.soap;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Checks that {@link StaxElementParser} builds the same {@link Element} trees as {@link W3cDomUtil}.
+ */
+public class StaxElementParserTest {
+
+    private static byte[] resource(String name) throws IOException {
+        InputStream is = StaxElementParserTest.class.getResourceAsStream(name);
+        try {
+            return ByteStreams.toByteArray(is);
+        } finally {
+            Closeables.closeQuietly(is);
+        }
+    }
+
+    private static void assertSameAsDom(byte[] xml) throws Exception {
+        Element expected = W3cDomUtil.parseXML(new ByteArrayInputStream(xml));
+        Element actual = StaxElementParser.parseXML(new ByteArrayInputStream(xml));
+        Assert.assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void getInfoRequest() throws Exception {
+        assertSameAsDom(resource("GetInfoRequestSOAP.xml"));
+    }
+
+    @Test
+    public void getInfoResponse() throws Exception {
+        assertSameAsDom(resource("GetInfoResponseSOAP.xml"));
+    }
+
+    @Test
+    public void xhtml() throws Exception {
+        assertSameAsDom(resource("xhtml.html"));
+        assertSameAsDom(resource("wrappedXhtml.xml"));
+    }
+
+    @Test
+    public void mixedContent() throws Exception {
+        assertSameAsDom("<a><b foo=\"bar\">doo<c/>wop</b></a>".getBytes());
+        assertSameAsDom("<a><b><c/>wop</b></a>".getBytes());
+    }
+
+    @Test
+    public void namespaces() throws Exception {
+        String xml = "<soap:Envelope xmlns:soap=\"http://www.w3.org/2003/05/soap-envelope\">" +
+                "<soap:Body><GetAccountRequest xmlns=\"urn:zimbraAdmin\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"" +
+                " xsi:type=\"getAccountRequest\" applyCos=\"false\" xml:lang=\"en\">" +
+                "<account by=\"name\">user1@example.com</account><unqualified xmlns=\"\"/>" +
+                "</GetAccountRequest></soap:Body></soap:Envelope>";
+        assertSameAsDom(xml.getBytes());
+    }
+
+    @Test
+    public void textAndCdata() throws Exception {
+        assertSameAsDom("<a><content>one &amp; <![CDATA[<two>]]> three</content><empty>  </empty></a>".getBytes());
+    }
+
+    @Test
+    public void doctypeRejected() throws Exception {
+        byte[] xml = ("<!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/hosts\">]>" +
+                "<foo>&xxe;</foo>").getBytes();
+        try {
+            StaxElementParser.parseXML(new ByteArrayInputStream(xml));
+            Assert.fail("XmlParseException should have been thrown");
+        } catch (XmlParseException e) {
+        }
+    }
+
+    @Test
+    public void brokenXml() throws Exception {
+        try {
+            StaxElementParser.parseXML(new ByteArrayInputStream("<a><b></a>".getBytes()));
+            Assert.fail("XmlParseException should have been thrown");
+        } catch (XmlParseException e) {
+        }
+    }
+
+    @Test
+    public void jsonFromStream() throws Exception {
+        String js = "{\"Header\":{\"context\":{\"_jsns\":\"urn:zimbra\"}},\"Body\":{\"SendMsgRequest\":" +
+                "{\"_jsns\":\"urn:zimbraMail\",\"m\":{\"su\":\"caf\\u00e9 über\",\"e\":[{\"a\":\"a@b.c\",\"t\":\"t\"}]," +
+                "\"mp\":[{\"ct\":\"text/plain\",\"content\":{\"_content\":\"line1\\nline2\"}}]}}}}";
+        Element fromString = Element.parseJSON(js);
+        Element fromStream = Element.parseJSON(new ByteArrayInputStream(js.getBytes("utf-8")));
+        Assert.assertEquals(fromString.toString(), fromStream.toString());
+    }
+
+    @Test
+    public void jsonFromStreamErrors() throws Exception {
+        try {
+            Element.parseJSON(new ByteArrayInputStream("{\"a\":\"unterminated".getBytes("utf-8")));
+            Assert.fail("SoapParseException should have been thrown");
+        } catch (SoapParseException e) {
+        }
+    }
+}
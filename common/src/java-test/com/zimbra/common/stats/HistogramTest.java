@@ -0,0 +1,114 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void buckets() {
+        long previous = -1;
+        for (int i = 0; i < Histogram.BUCKET_COUNT - 1; i++) {
+            long highest = Histogram.bucketHighestValue(i);
+            Assert.assertTrue(highest > previous);
+            Assert.assertEquals(i, Histogram.bucketIndex(previous + 1));
+            Assert.assertEquals(i, Histogram.bucketIndex(highest));
+            // bucket width never exceeds 1/16 of its values
+            Assert.assertTrue(highest - previous - 1 <= (previous + 1) / 16);
+            previous = highest;
+        }
+        Assert.assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketIndex(Long.MAX_VALUE));
+        Assert.assertEquals(0, Histogram.bucketIndex(-5));
+    }
+
+    @Test
+    public void percentiles() {
+        Histogram histogram = new Histogram();
+        Histogram.Snapshot empty = histogram.snapshot();
+        Assert.assertEquals(0, empty.getCount());
+        Assert.assertEquals(0, empty.getValueAtPercentile(99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1000, snapshot.getCount());
+        Assert.assertEquals(1000, snapshot.getMax());
+        assertClose(500, snapshot.getValueAtPercentile(50));
+        assertClose(950, snapshot.getValueAtPercentile(95));
+        assertClose(990, snapshot.getValueAtPercentile(99));
+        Assert.assertEquals(1000, snapshot.getValueAtPercentile(100));
+        Assert.assertEquals(1, snapshot.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void since() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(5000);
+        }
+        Histogram.Snapshot first = histogram.snapshot();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(10);
+        }
+        Histogram.Snapshot delta = histogram.snapshot().since(first);
+        Assert.assertEquals(100, delta.getCount());
+        Assert.assertEquals(10, delta.getValueAtPercentile(99));
+        Assert.assertEquals(10, delta.getMax());
+    }
+
+    @Test
+    public void snapshotAndReset() {
+        Histogram histogram = new Histogram();
+        histogram.record(42);
+        Histogram.Snapshot snapshot = histogram.snapshotAndReset();
+        Assert.assertEquals(1, snapshot.getCount());
+        Assert.assertEquals(42, snapshot.getMax());
+        Assert.assertEquals(0, histogram.snapshot().getCount());
+        Assert.assertEquals(0, histogram.snapshot().getMax());
+    }
+
+    @Test
+    public void calculator() {
+        StopWatch stopWatch = new StopWatch();
+        HistogramCalculator calc = new HistogramCalculator(stopWatch, "soap_ms");
+        Assert.assertEquals(Arrays.asList("soap_ms_p50", "soap_ms_p95", "soap_ms_p99", "soap_ms_max"),
+                calc.getNames());
+        for (int i = 0; i < 99; i++) {
+            stopWatch.increment(2);
+        }
+        stopWatch.increment(3000);
+        List<Object> data = calc.getData();
+        Assert.assertEquals(2L, data.get(0));
+        Assert.assertEquals(2L, data.get(1));
+        Assert.assertEquals(2L, data.get(2));
+        Assert.assertEquals(3000L, data.get(3));
+
+        calc.reset();
+        Assert.assertEquals(Arrays.<Object>asList(0L, 0L, 0L, 0L), calc.getData());
+    }
+
+    private static void assertClose(long expected, long actual) {
+        Assert.assertTrue("expected " + expected + ", got " + actual,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+}
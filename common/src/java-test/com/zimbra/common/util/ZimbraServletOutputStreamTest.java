@@ -0,0 +1,67 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.util;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+/**
+ * Unit test for {@link ZimbraServletOutputStream}.
+ */
+public class ZimbraServletOutputStreamTest {
+
+    @Test
+    public void encodesAcrossBufferBoundaries() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(baos);
+        for (int i = 0; i < 5000; i++) {
+            // mix of 1, 2, 3 and 4 byte sequences so that surrogate pairs end up split by the buffer
+            String s = "a\u00e9\u20ac\ud83d\ude00" + i;
+            out.append(s);
+            expected.append(s);
+            out.append('x');
+            expected.append('x');
+            StringBuilder sb = new StringBuilder("<m id=\"").append(i).append("\"/>");
+            out.append(sb, 1, sb.length());
+            expected.append(sb, 1, sb.length());
+        }
+        // appends larger than the buffer
+        String big = Strings.repeat("\ud83d\ude00\u00e9", 20000);
+        out.append(big);
+        expected.append(big);
+        out.flush();
+
+        byte[] bytes = expected.toString().getBytes(Charsets.UTF_8);
+        Assert.assertArrayEquals(bytes, baos.toByteArray());
+        Assert.assertEquals(bytes.length, out.getBytesWritten());
+    }
+
+    @Test
+    public void loneSurrogate() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ZimbraServletOutputStream out = new ZimbraServletOutputStream(baos);
+        out.append("a\ud83d");
+        out.flush();
+        Assert.assertArrayEquals("a\ud83d".getBytes(Charsets.UTF_8), baos.toByteArray());
+    }
+}
@@ -179,6 +179,14 @@ public final class LC {
     public static final KnownKey zimbra_store_copy_buffer_size_kb = KnownKey.newKey(16); // KB
     public static final KnownKey zimbra_nio_file_copy_chunk_size_kb = KnownKey.newKey(512); // KB
     public static final KnownKey zimbra_blob_input_stream_buffer_size_kb = KnownKey.newKey(1); // KB
+    // memory-mapped blobs that are read more than once; 0 disables mapping.  This bounds the mappings cached, not
+    // those still referenced by open streams or awaiting garbage collection
+    public static final KnownKey zimbra_blob_mapped_cache_size_mb = KnownKey.newKey(64); // MB
+    public static final KnownKey zimbra_blob_mapped_max_blob_size_kb = KnownKey.newKey(2048); // KB
+    // blob deduplication: volumes scanned at once, threads linking duplicates, and links per second (0 is unlimited)
+    public static final KnownKey zimbra_blob_dedupe_volume_threads = KnownKey.newKey(4);
+    public static final KnownKey zimbra_blob_dedupe_link_threads = KnownKey.newKey(4);
+    public static final KnownKey zimbra_blob_dedupe_max_links_per_sec = KnownKey.newKey(0);
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
@@ -192,6 +200,13 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    // server-wide item cache budget, as a percentage of the max heap size
+    public static final KnownKey zimbra_mailbox_item_cache_budget_percent = KnownKey.newKey(10);
+    // item cache space each loaded mailbox is guaranteed, even when the budget is exhausted
+    public static final KnownKey zimbra_mailbox_item_cache_min_share_kb = KnownKey.newKey(256);
+    // message data the message cache may hold in memory before evicting
+    public static final KnownKey zimbra_message_cache_max_data_kb = KnownKey.newKey(65536);
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -202,6 +217,23 @@ public final class LC {
     public static final KnownKey zimbra_mailbox_lock_timeout = KnownKey.newKey(60); // seconds
 
     public static final KnownKey zimbra_mailbox_lock_readwrite = KnownKey.newKey(true);
+    // threads delivering change notifications to sessions; 0 means notify on the committing thread
+    public static final KnownKey zimbra_mailbox_notify_threads = KnownKey.newKey(4);
+    // change notifications a mailbox may have queued before writers wait for them to be delivered
+    public static final KnownKey zimbra_mailbox_notify_max_queued = KnownKey.newKey(200);
+    // send change notifications to other servers in the compact binary encoding rather than Java serialization; every
+    // server with sessions on the mailboxes must be able to decode it before it's enabled
+    public static final KnownKey zimbra_mailbox_notify_binary_encoding = KnownKey.newKey(false);
+    // store item metadata in an encoding whose fields are decoded on first use; every server reading the mailboxes
+    // must support it before it's enabled
+    public static final KnownKey zimbra_mailbox_indexed_metadata = KnownKey.newKey(false);
+    // items whose metadata the purge thread converts to the indexed encoding per mailbox and pass; 0 disables
+    public static final KnownKey zimbra_mailbox_indexed_metadata_batch_size = KnownKey.newKey(100);
+
+    public static final KnownKey redolog_group_commit_enabled = KnownKey.newKey(false);
+    public static final KnownKey redolog_group_commit_buffer_size_kb = KnownKey.newKey(1024); // KB
+    public static final KnownKey redolog_reader_decode_threads = KnownKey.newKey(0);
+    public static final KnownKey redolog_reader_chunk_size_kb = KnownKey.newKey(4096); // KB
 
     @Supported
     public static final KnownKey zimbra_index_threads = KnownKey.newKey(10);
@@ -224,6 +256,11 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_reader_cache_ttl = KnownKey.newKey(300);
 
+    public static final KnownKey zimbra_index_nrt_enabled = KnownKey.newKey(false);
+    public static final KnownKey zimbra_index_nrt_writer_idle_time = KnownKey.newKey(60); // seconds
+    public static final KnownKey zimbra_index_merge_threads = KnownKey.newKey(2);
+    public static final KnownKey zimbra_index_merge_max_kbps = KnownKey.newKey(0); // 0 means unlimited
+
     @Supported
     public static final KnownKey zimbra_index_deferred_items_failure_delay = KnownKey.newKey(300);
 
@@ -327,6 +364,12 @@ public final class LC {
     @Supported
     @Reloadable
     public static final KnownKey soap_response_chunked_transfer_encoding_enabled = KnownKey.newKey(true);
+
+    @Reloadable
+    public static final KnownKey soap_request_stax_parser_enabled = KnownKey.newKey(true);
+
+    @Reloadable
+    public static final KnownKey soap_response_spool_threshold_kb = KnownKey.newKey(1024);
     public static final KnownKey zimbra_servlet_output_stream_buffer_size = KnownKey.newKey(5120);
 
     public static final KnownKey rest_response_cache_control_value = KnownKey.newKey("no-store, no-cache");
@@ -505,6 +548,9 @@ public final class LC {
     public static final KnownKey ldap_cache_custom_dynamic_group_membership_maxage_ms =
             KnownKey.newKey(10 * Constants.MILLIS_PER_MINUTE);
 
+    // how long an expired entry is still served while one thread reloads it, before it's dropped
+    public static final KnownKey ldap_cache_refresh_grace_ms = KnownKey.newKey(10 * Constants.MILLIS_PER_SECOND);
+
     public static final KnownKey ldap_cache_reverseproxylookup_domain_maxsize = KnownKey.newKey(100);
     public static final KnownKey ldap_cache_reverseproxylookup_domain_maxage = KnownKey.newKey(15);
     public static final KnownKey ldap_cache_reverseproxylookup_server_maxsize = KnownKey.newKey(100);
@@ -674,6 +720,7 @@ public final class LC {
     public static final KnownKey calendar_max_desc_in_metadata = KnownKey.newKey(4096); // 4KB
     public static final KnownKey calendar_allow_invite_without_method = KnownKey.newKey(false);
     public static final KnownKey calendar_freebusy_max_days = KnownKey.newKey(366);
+    public static final KnownKey calendar_freebusy_local_threads = KnownKey.newKey(8); // 0 looks up local accounts in the request thread
     public static final KnownKey calendar_search_max_days  = KnownKey.newKey(400);
     public static final KnownKey exchange_free_busy_interval_min = KnownKey.newKey(15);
 
@@ -706,6 +753,7 @@ public final class LC {
     public static final KnownKey nio_pop3_enabled = KnownKey.newKey(true);
 
     public static final KnownKey nio_max_write_queue_size = KnownKey.newKey(10000);
+    public static final KnownKey nio_zero_copy_enabled = KnownKey.newKey(true);
 
     public static final KnownKey imap_max_request_size = KnownKey.newKey(10 * 1024);
     public static final KnownKey imap_max_nesting_in_search_request = KnownKey.newKey(100);
@@ -726,6 +774,7 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    public static final KnownKey imap_fetch_batch_size = KnownKey.newKey(500);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     public static final KnownKey pop3_write_timeout = KnownKey.newKey(10);
@@ -919,6 +968,10 @@ public final class LC {
     public static final KnownKey yauth_baseuri = KnownKey.newKey("https://login.yahoo.com/WSLogin/V1");
 
     public static final KnownKey purge_initial_sleep_ms = KnownKey.newKey(30 * Constants.MILLIS_PER_MINUTE);
+    // mailboxes purged at once, and how long purges back off while SOAP requests take longer than the limit on average
+    public static final KnownKey purge_threads = KnownKey.newKey(2);
+    public static final KnownKey purge_max_soap_latency_ms = KnownKey.newKey(1000); // 0 means no back-off
+    public static final KnownKey purge_max_backoff_ms = KnownKey.newKey(Constants.MILLIS_PER_MINUTE);
 
     public static final KnownKey conversation_max_age_ms = KnownKey.newKey(31 * Constants.MILLIS_PER_DAY);
     public static final KnownKey tombstone_max_age_ms = KnownKey.newKey(3 * Constants.MILLIS_PER_MONTH);
@@ -1077,6 +1130,8 @@ public final class LC {
 
     public static final KnownKey zimbra_lmtp_validate_messages = KnownKey.newKey(true);
     public static final KnownKey zimbra_lmtp_max_line_length = KnownKey.newKey(10240);
+    // threads delivering a message to its local recipients in parallel; 0 means deliver on the LMTP thread
+    public static final KnownKey zimbra_lmtp_delivery_threads = KnownKey.newKey(8);
 
     public static final KnownKey data_source_scheduling_enabled = KnownKey.newKey(true);
     public static final KnownKey data_source_eas_sync_email = KnownKey.newKey(true);
@@ -19,6 +19,8 @@ package com.zimbra.common.soap;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -619,7 +621,9 @@ public abstract class Element implements Cloneable {
      */
     public static Element parseJSON(InputStream is, ElementFactory factory) throws SoapParseException {
         try {
-            return parseJSON(new String(com.zimbra.common.util.ByteUtil.getContent(is, -1), "utf-8"), factory);
+            // decode straight from the stream rather than buffering the bytes and then copying them into a String
+            JSONElement.JSRequest jsr = JSONElement.JSRequest.read(is);
+            return parseJSON(jsr, SoapProtocol.SoapJS.getEnvelopeQName(), factory);
         } catch (SoapParseException e) {
             throw e;
         } catch (Exception e) {
@@ -636,10 +640,15 @@ public abstract class Element implements Cloneable {
     }
 
     public static Element parseJSON(String js, QName qn, ElementFactory factory) throws SoapParseException {
+        return parseJSON(new JSONElement.JSRequest(js), qn, factory);
+    }
+
+    private static Element parseJSON(JSONElement.JSRequest jsr, QName qn, ElementFactory factory)
+    throws SoapParseException {
         try {
-            return JSONElement.parseElement(new JSONElement.JSRequest(js), qn, factory);
+            return JSONElement.parseElement(jsr, qn, factory);
         } catch (ContainerException ce) {
-            SoapParseException spe = new SoapParseException(ce.getMessage(), js);
+            SoapParseException spe = new SoapParseException(ce.getMessage(), jsr.source());
             spe.initCause(ce);
             throw spe;
         }
@@ -1218,14 +1227,52 @@ public abstract class Element implements Cloneable {
         }
 
         private static final class JSRequest {
-            String js;  private int offset;
+            private final char[] js;  private int offset;
             private final int max;
-            JSRequest(String content)  { js = content;  max = js.length(); }
+            JSRequest(String content)  { js = content.toCharArray();  max = js.length; }
+            JSRequest(char[] content, int length)  { js = content;  max = length; }
+
+            /** Decodes the UTF-8 stream into a {@code JSRequest} and closes the stream. */
+            static JSRequest read(InputStream is) throws IOException {
+                Reader reader = new InputStreamReader(is, Charsets.UTF_8);
+                try {
+                    // UTF-8 never decodes to more chars than bytes, so a known length sizes the buffer exactly
+                    int available = is.available();
+                    char[] buf = new char[available > 0 ? available + 1 : 8192];
+                    int len = 0;
+                    for (int n; (n = reader.read(buf, len, buf.length - len)) != -1; ) {
+                        len += n;
+                        if (len == buf.length) {
+                            buf = Arrays.copyOf(buf, buf.length * 2);
+                        }
+                    }
+                    return new JSRequest(buf, len);
+                } finally {
+                    reader.close();
+                }
+            }
+
+            /** Returns the request text, for error reporting. */
+            String source() {
+                return new String(js, 0, max);
+            }
+
+            private char charAt(int index) {
+                if (index >= max)
+                    throw new StringIndexOutOfBoundsException(index);
+                return js[index];
+            }
+
+            private String substring(int begin, int end) {
+                if (end > max)
+                    throw new StringIndexOutOfBoundsException(end);
+                return new String(js, begin, end - begin);
+            }
 
             private char readEscaped() throws SoapParseException {
                 skipChar('\\');
                 char c, length;
-                switch (c = js.charAt(offset)) {
+                switch (c = charAt(offset)) {
                     case 'b':  return '\b';
                     case 't':  return '\t';
                     case 'n':  return '\n';
@@ -1236,17 +1283,17 @@ public abstract class Element implements Cloneable {
                     default:   return c;
                 }
                 try {
-                    c = (char) Integer.parseInt(js.substring(offset + 1, offset + length + 1), 16);
+                    c = (char) Integer.parseInt(substring(offset + 1, offset + length + 1), 16);
                     offset += length;
                 } catch (NumberFormatException nfe) {
-                    error("malformed escape sequence: " + js.substring(offset - 1, offset + length + 1));
+                    error("malformed escape sequence: " + substring(offset - 1, offset + length + 1));
                 }
                 return c;
             }
 
             private String readQuoted(char quote) throws SoapParseException {
                 StringBuilder sb = new StringBuilder();
-                for (char c = js.charAt(offset); c != quote; c = js.charAt(++offset)) {
+                for (char c = charAt(offset); c != quote; c = charAt(++offset)) {
                     if (c == '\n' || c == '\t' || offset >= max - 1)
                         error("unterminated string");
                     else
@@ -1258,10 +1305,10 @@ public abstract class Element implements Cloneable {
 
             private String readLiteral() throws SoapParseException {
                 StringBuilder sb = new StringBuilder();
-                for (char c = peekChar(); offset < max - 1; c = js.charAt(++offset)) {
+                for (char c = peekChar(); offset < max - 1; c = charAt(++offset)) {
                     if (c <= ' ' || ",:]}/\"[{;=#".indexOf(c) >= 0)
                         break;
-                    else if (c != '\\' || max - offset < 6 || js.charAt(offset + 1) != 'u')
+                    else if (c != '\\' || max - offset < 6 || charAt(offset + 1) != 'u')
                         sb.append(c);
                     else
                         sb.append(readEscaped());
@@ -1295,11 +1342,11 @@ public abstract class Element implements Cloneable {
             }
 
             char peekChar() throws SoapParseException {
-                skipWhitespace(); return js.charAt(offset);
+                skipWhitespace(); return charAt(offset);
             }
 
             char readChar() throws SoapParseException {
-                skipWhitespace(); return js.charAt(offset++);
+                skipWhitespace(); return charAt(offset++);
             }
 
             void skipChar() throws SoapParseException {
@@ -1316,13 +1363,13 @@ public abstract class Element implements Cloneable {
             private void skipWhitespace() throws SoapParseException {
                 if (offset >= max)
                     error("unexpected end of JSON input");
-                for (char c = js.charAt(offset); offset < max; c = js.charAt(++offset))
+                for (char c = charAt(offset); offset < max; c = charAt(++offset))
                     if (c != 0x09 && (c < 0x0A || c > 0x0D) && (c < 0x1C || c > 0x20))
                         break;
             }
 
             private void error(String cause) throws SoapParseException {
-                throw new SoapParseException(cause, js);
+                throw new SoapParseException(cause, source());
             }
         }
 
@@ -1335,7 +1382,7 @@ public abstract class Element implements Cloneable {
                                switch (jsr.readChar()) {
                                    case ':':  break;
                                    case '=':  if (jsr.peekChar() == '>')  jsr.skipChar();  break;
-                                   default:   throw new SoapParseException("missing expected ':'", jsr.js);
+                                   default:   throw new SoapParseException("missing expected ':'", jsr.source());
                                }
                                if ((value = jsr.readValue()) == null)  /* do nothing */;
                                else if (key.equals(A_CONTENT))         kvp.setValue(value.toString());
@@ -1347,7 +1394,7 @@ public abstract class Element implements Cloneable {
                                    case '}':  break;
                                    case ',':
                                    case ';':  jsr.skipChar();  break;
-                                   default:   throw new SoapParseException("missing expected ',' or ']'", jsr.js);
+                                   default:   throw new SoapParseException("missing expected ',' or ']'", jsr.source());
                                }
                            } while (jsr.peekChar() != '}');  jsr.skipChar();  break;
                 case '[':  jsr.skipChar();
@@ -1357,7 +1404,7 @@ public abstract class Element implements Cloneable {
                                    case ']':  break;
                                    case ',':
                                    case ';':  jsr.skipChar();  break;
-                                   default:   throw new SoapParseException("missing expected ',' or ']'", jsr.js);
+                                   default:   throw new SoapParseException("missing expected ',' or ']'", jsr.source());
                                }
                            };
                            jsr.skipChar();  break;
@@ -1384,7 +1431,7 @@ public abstract class Element implements Cloneable {
                 switch (jsr.readChar()) {
                     case ':':  break;
                     case '=':  if (jsr.peekChar() == '>')  jsr.skipChar();  break;
-                    default:   throw new SoapParseException("missing expected ':'", jsr.js);
+                    default:   throw new SoapParseException("missing expected ':'", jsr.source());
                 }
                 if (isAttrs) {
                     parseKeyValuePair(jsr, key, parent);
@@ -1399,7 +1446,7 @@ public abstract class Element implements Cloneable {
                                            case ']':  break;
                                            case ',':
                                            case ';':  jsr.skipChar();  break;
-                                           default:   throw new SoapParseException("missing expected ',' or ']'", jsr.js);
+                                           default:   throw new SoapParseException("missing expected ',' or ']'", jsr.source());
                                        }
                                    };
                                    jsr.skipChar();  break;
@@ -1416,7 +1463,7 @@ public abstract class Element implements Cloneable {
                     case '}':  break;
                     case ',':
                     case ';':  jsr.skipChar();  break;
-                    default:   throw new SoapParseException("missing expected ',' or '}'", jsr.js);
+                    default:   throw new SoapParseException("missing expected ',' or '}'", jsr.source());
                 }
             }
             jsr.skipChar('}');
@@ -885,6 +885,7 @@ public final class MailConstants {
     public static final String E_FREEBUSY_BUSY_TENTATIVE = "t";
     public static final String E_FREEBUSY_BUSY_UNAVAILABLE = "u";
     public static final String E_FREEBUSY_NODATA = "n";
+    public static final String E_FREEBUSY_COMMON_FREE = "commonFree";
     public static final String E_CAL_ORGANIZER = "or";
     public static final String E_CAL_ICAL = "ical";
     public static final String E_CAL_ATTENDEE = "at";
@@ -984,6 +985,7 @@ public final class MailConstants {
     public static final String A_APPT_FREEBUSY = "fb";
     public static final String A_APPT_FREEBUSY_ACTUAL = "fba";
     public static final String A_APPT_FREEBUSY_EXCLUDE_UID = "excludeUid";
+    public static final String A_APPT_FREEBUSY_MIN_FREE = "minFree";
     public static final String A_APPT_TRANSPARENCY = "transp";
     public static final String A_CAL_CLASS = "class";
     public static final String A_CAL_ALL = "all";
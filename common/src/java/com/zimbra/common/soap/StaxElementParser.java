@@ -0,0 +1,265 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.common.soap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.soap.Element.ElementFactory;
+import com.zimbra.common.util.Log;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Builds an {@link Element} tree directly from a StAX event stream, without first building a W3C DOM or dom4j tree.
+ * <p>
+ * The result is the same as {@link W3cDomUtil#parseXML(InputStream, ElementFactory)}.  Elements whose content has to
+ * be flattened to text (XHTML, or a mix of text and child elements) are rare in SOAP requests, and are handed to
+ * {@link W3cDomUtil} so they serialize exactly as before; that needs a stream that supports
+ * {@link InputStream#mark(int)}.  Streams that don't are always parsed with {@link W3cDomUtil}.
+ * <p>
+ * Note: DOCTYPE is disallowed for security reasons
+ */
+public final class StaxElementParser {
+    private static final Log LOG = ZimbraLog.misc;
+
+    private StaxElementParser() {}
+
+    /** Cache one factory per thread; factories aren't guaranteed to be thread-safe. */
+    private static final ThreadLocal<XMLInputFactory> inputFactoryTL = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+            // Prevent external entity reference attack.
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return factory;
+        }
+    };
+
+    /** Thrown when an element's content has to be flattened to text. */
+    @SuppressWarnings("serial")
+    private static final class FlattenRequired extends Exception {
+        FlattenRequired() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final FlattenRequired FLATTEN_REQUIRED = new FlattenRequired();
+
+    /** Attribute of an element whose start tag has been read. */
+    private static final class Attr {
+        final String qualifiedName;
+        final String prefix;
+        final String nsURI;
+        final String value;
+
+        Attr(String qualifiedName, String prefix, String nsURI, String value) {
+            this.qualifiedName = qualifiedName;
+            this.prefix = prefix;
+            this.nsURI = nsURI;
+            this.value = value;
+        }
+    }
+
+    /** Same order as the attributes of a W3C DOM node. */
+    private static final Comparator<Attr> ATTR_ORDER = new Comparator<Attr>() {
+        @Override
+        public int compare(Attr a1, Attr a2) {
+            return a1.qualifiedName.compareTo(a2.qualifiedName);
+        }
+    };
+
+    /** An element whose end tag hasn't been read yet. */
+    private static final class Frame {
+        final Element elt;
+        StringBuilder text;
+        boolean hasElems;
+        boolean hasText;
+
+        Frame(Element elt) {
+            this.elt = elt;
+        }
+    }
+
+    public static Element parseXML(InputStream is)
+    throws XmlParseException {
+        return parseXML(is, Element.XMLElement.mFactory);
+    }
+
+    public static Element parseXML(InputStream is, ElementFactory factory)
+    throws XmlParseException {
+        if (!is.markSupported()) {
+            return W3cDomUtil.parseXML(is, factory);
+        }
+        is.mark(Integer.MAX_VALUE);
+        try {
+            return parse(is, factory);
+        } catch (FlattenRequired e) {
+            try {
+                is.reset();
+            } catch (IOException ioe) {
+                logParseProblem(ioe);
+                throw XmlParseException.PARSE_ERROR();
+            }
+            return W3cDomUtil.parseXML(is, factory);
+        }
+    }
+
+    private static Element parse(InputStream is, ElementFactory factory)
+    throws XmlParseException, FlattenRequired {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactoryTL.get().createXMLStreamReader(is);
+            List<Frame> stack = new ArrayList<Frame>();
+            Element root = null;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.DTD:
+                    LOG.warn("Problem parsing XML - DOCTYPE is disallowed");
+                    throw XmlParseException.PARSE_ERROR();
+                case XMLStreamConstants.START_ELEMENT:
+                    if (!stack.isEmpty()) {
+                        Frame parent = stack.get(stack.size() - 1);
+                        if (parent.hasText) {
+                            throw FLATTEN_REQUIRED;
+                        }
+                        parent.hasElems = true;
+                    }
+                    stack.add(new Frame(startElement(reader, factory)));
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (!stack.isEmpty()) {
+                        addText(stack.get(stack.size() - 1), reader);
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    Frame frame = stack.remove(stack.size() - 1);
+                    if (frame.text != null) {
+                        String textContent = frame.text.toString();
+                        if (!textContent.trim().equals("")) {
+                            frame.elt.setText(textContent);
+                        }
+                    }
+                    if (stack.isEmpty()) {
+                        root = frame.elt;
+                    } else {
+                        stack.get(stack.size() - 1).elt.addElement(frame.elt);
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+            return root;
+        } catch (XMLStreamException e) {
+            /* Bug 93816 log actual problem but throw generic one to avoid information disclosure */
+            logParseProblem(e);
+            throw XmlParseException.PARSE_ERROR();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                }
+            }
+        }
+    }
+
+    private static Element startElement(XMLStreamReader reader, ElementFactory factory)
+    throws FlattenRequired {
+        String nsURI = Strings.emptyToNull(reader.getNamespaceURI());
+        if (Element.XMLElement.XHTML_NS_URI.equalsIgnoreCase(nsURI)) {
+            throw FLATTEN_REQUIRED;
+        }
+        org.dom4j.Namespace ns = nsURI == null ? null : new org.dom4j.Namespace(reader.getPrefix(), nsURI);
+        Element elt = factory.createElement(new org.dom4j.QName(reader.getLocalName(), ns));
+
+        int count = reader.getAttributeCount();
+        if (count == 0) {
+            return elt;
+        }
+        List<Attr> attrs = new ArrayList<Attr>(count);
+        for (int i = 0; i < count; i++) {
+            String prefix = Strings.emptyToNull(reader.getAttributePrefix(i));
+            String localName = reader.getAttributeLocalName(i);
+            String qualifiedName = prefix == null ? localName : prefix + ":" + localName;
+            attrs.add(new Attr(qualifiedName, prefix, reader.getAttributeNamespace(i), reader.getAttributeValue(i)));
+        }
+        if (count > 1) {
+            Collections.sort(attrs, ATTR_ORDER);
+        }
+        for (Attr attr : attrs) {
+            elt.addAttribute(attr.qualifiedName, attr.value);
+            if (!Strings.isNullOrEmpty(attr.nsURI)) {
+                // as in W3cDomUtil, namespaces are stored on the elements that use them
+                elt.setNamespace(attr.prefix, attr.nsURI);
+            }
+        }
+        return elt;
+    }
+
+    private static void addText(Frame frame, XMLStreamReader reader) throws FlattenRequired {
+        char[] chars = reader.getTextCharacters();
+        int start = reader.getTextStart();
+        int length = reader.getTextLength();
+        boolean blank = isBlank(chars, start, length);
+        if (frame.hasElems) {
+            // whitespace between child elements is dropped; anything else means mixed content
+            if (!blank) {
+                throw FLATTEN_REQUIRED;
+            }
+            return;
+        }
+        if (frame.text == null) {
+            frame.text = new StringBuilder(length);
+        }
+        frame.text.append(chars, start, length);
+        frame.hasText |= !blank;
+    }
+
+    private static boolean isBlank(char[] chars, int start, int length) {
+        for (int i = start, end = start + length; i < end; i++) {
+            if (chars[i] > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void logParseProblem(Exception e) {
+        if (LOG.isDebugEnabled()) {
+            LOG.warn("Problem parsing XML", e);
+        } else {
+            LOG.warn("Problem parsing XML - %s", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, fixed-size histogram of non-negative values, used to report latency percentiles.
+ * <p>
+ * Values below 32 get a bucket each.  Above that every power of two is split into 16 buckets, so a reported
+ * percentile is at most 1/16 (6.25%) above the real value.  Values up to 2<sup>36</sup> are told apart, which is
+ * over two years in milliseconds; anything larger lands in the last bucket.  The whole histogram is a few KB no
+ * matter how many values are recorded.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;         // buckets per power of two
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;             // values below this have their own bucket
+    private static final int MAX_BITS = 36;
+    static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_BITS - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mMax = new AtomicLong();
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        if (msb >= MAX_BITS) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = msb - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /** Returns the highest value that is recorded in the given bucket. */
+    static long bucketHighestValue(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        if (index == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value.  Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        mCounts.incrementAndGet(bucketIndex(value));
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Returns the counts recorded so far.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return new Snapshot(counts, mMax.get());
+    }
+
+    /**
+     * Returns the counts recorded so far and starts over.  Values recorded concurrently end up in either this
+     * snapshot or the next one.
+     */
+    public Snapshot snapshotAndReset() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.getAndSet(i, 0);
+        }
+        return new Snapshot(counts, mMax.getAndSet(0));
+    }
+
+    /**
+     * Immutable copy of the counts of a <tt>Histogram</tt>.
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mMax;
+
+        Snapshot(long[] counts, long max) {
+            mCounts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            mCount = count;
+            mMax = count == 0 ? 0 : max;
+        }
+
+        /**
+         * Returns the values recorded since <tt>previous</tt>, which must be an earlier {@link Histogram#snapshot()}
+         * of the same histogram.  The maximum is only known to bucket precision.
+         */
+        public Snapshot since(Snapshot previous) {
+            long[] counts = new long[BUCKET_COUNT];
+            int highest = -1;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = mCounts[i] - previous.mCounts[i];
+                if (counts[i] > 0) {
+                    highest = i;
+                }
+            }
+            return new Snapshot(counts, highest < 0 ? 0 : Math.min(bucketHighestValue(highest), mMax));
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * Returns the value below which the given percentage of the recorded values fall, or 0 if nothing was
+         * recorded.
+         *
+         * @param percentile between 0 and 100
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0.0), 100.0) / 100.0 * mCount);
+            rank = Math.max(rank, 1);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketHighestValue(i), mMax);
+                }
+            }
+            return mMax;
+        }
+    }
+}
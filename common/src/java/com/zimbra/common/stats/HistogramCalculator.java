@@ -0,0 +1,100 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.common.stats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reports the 50th, 95th and 99th percentile and the maximum of the values
+ * recorded in the wrapped <tt>Histogram</tt> between subsequent calls to
+ * {@link #reset}.  The stat names are the given prefix followed by
+ * <tt>_p50</tt>, <tt>_p95</tt>, <tt>_p99</tt> and <tt>_max</tt>.
+ */
+public class HistogramCalculator
+implements Accumulator {
+
+    private static final String[] SUFFIXES = { "_p50", "_p95", "_p99", "_max" };
+    private static final String[] LABELS = { "50th percentile", "95th percentile", "99th percentile", "maximum" };
+
+    private final Histogram mHistogram;
+    private final String mPrefix;
+    private final List<String> mNames;
+    private volatile Histogram.Snapshot mLast;
+
+    public HistogramCalculator(Histogram histogram, String prefix) {
+        mHistogram = histogram;
+        mPrefix = prefix;
+        List<String> names = new ArrayList<String>(SUFFIXES.length);
+        for (String suffix : SUFFIXES) {
+            names.add(prefix + suffix);
+        }
+        mNames = Collections.unmodifiableList(names);
+        mLast = histogram.snapshot();
+    }
+
+    public HistogramCalculator(StopWatch stopWatch, String prefix) {
+        this(stopWatch.getHistogram(), prefix);
+    }
+
+    public String getPrefix() {
+        return mPrefix;
+    }
+
+    /**
+     * Returns a description for each of the names returned by {@link #getNames()}, given a description of the
+     * recorded values.
+     */
+    public List<String> getDescriptions(String description) {
+        List<String> descriptions = new ArrayList<String>(LABELS.length);
+        for (String label : LABELS) {
+            descriptions.add(description + ", " + label);
+        }
+        return descriptions;
+    }
+
+    /**
+     * Returns the values recorded since the last call to {@link #reset}.
+     */
+    public Histogram.Snapshot getSnapshot() {
+        return mHistogram.snapshot().since(mLast);
+    }
+
+    ////////////// Accumulator implementation ///////////////////
+
+    @Override
+    public List<String> getNames() {
+        return mNames;
+    }
+
+    @Override
+    public List<Object> getData() {
+        Histogram.Snapshot snapshot = getSnapshot();
+        List<Object> data = new ArrayList<Object>(SUFFIXES.length);
+        data.add(snapshot.getValueAtPercentile(50));
+        data.add(snapshot.getValueAtPercentile(95));
+        data.add(snapshot.getValueAtPercentile(99));
+        data.add(snapshot.getMax());
+        return data;
+    }
+
+    @Override
+    public void reset() {
+        mLast = mHistogram.snapshot();
+    }
+}
@@ -20,10 +20,14 @@ package com.zimbra.common.stats;
 /**
  * A <code>Counter</code> that supports <code>start()</code>
  * and <code>stop()</code> methods for conveniently timing events.
+ * Elapsed times are also recorded in a {@link Histogram}, so
+ * that percentiles can be reported along with the average.
  */
 public class StopWatch
 extends Counter {
 
+    private final Histogram mHistogram = new Histogram();
+
     public long start() {
         return System.currentTimeMillis();
     }
@@ -33,4 +37,14 @@ extends Counter {
         increment(elapsed);
         return elapsed;
     }
-}
\ No newline at end of file
+
+    @Override
+    public void increment(long value) {
+        super.increment(value);
+        mHistogram.record(value);
+    }
+
+    public Histogram getHistogram() {
+        return mHistogram;
+    }
+}
@@ -61,7 +61,10 @@ public final class BEncoding {
         }
     }
 
-    private static StringBuilder encode(StringBuilder sb, Object object) {
+    /**
+     * Appends the encoding of a single value, which may be a map, a list, an integer or a string.
+     */
+    public static StringBuilder encode(StringBuilder sb, Object object) {
         if (object instanceof Map) {
             SortedMap<?, ?> tree = (object instanceof SortedMap ?
                     (SortedMap<?, ?>) object : new TreeMap<Object, Object>((Map<?, ?>) object));
@@ -91,6 +94,55 @@ public final class BEncoding {
         return sb;
     }
 
+    /**
+     * Returns the offset just past the encoded value starting at the given offset, without decoding it.  The value is
+     * checked as {@link #decode} would check it, so a value that's skipped without error also decodes without error.
+     */
+    public static int skip(String data, int offset) throws BEncodingException {
+        try {
+            return skipValue(data, offset);
+        } catch (BEncodingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BEncodingException(e);
+        }
+    }
+
+    private static int skipValue(String data, int offset) throws BEncodingException {
+        char c = data.charAt(offset);
+        switch (c) {
+            case 'd':
+            case 'l':
+                offset++;
+                while (data.charAt(offset) != 'e') {
+                    offset = skipValue(data, offset);
+                    if (c == 'd') {
+                        if (data.charAt(offset) == 'e') {
+                            throw new BEncodingException("missing dictionary value at " + offset);
+                        }
+                        offset = skipValue(data, offset);
+                    }
+                }
+                return offset + 1;
+
+            case 'e':
+                throw new BEncodingException("unexpected end of list or dictionary at " + offset);
+
+            case 'i':
+                int end = data.indexOf('e', offset);
+                Long.parseLong(data.substring(offset + 1, end));
+                return end + 1;
+
+            default:
+                int colon = data.indexOf(':', offset);
+                int length = Integer.parseInt(data.substring(offset, colon));
+                if (length < 0 || colon + 1 + length > data.length()) {
+                    throw new BEncodingException("invalid string length at " + offset);
+                }
+                return colon + 1 + length;
+        }
+    }
+
     private static final class Offset {
         int offset;
     }
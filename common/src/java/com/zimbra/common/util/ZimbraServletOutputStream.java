@@ -17,9 +17,16 @@
 package com.zimbra.common.util;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import javax.servlet.ServletOutputStream;
 
+import com.google.common.base.Charsets;
 import com.zimbra.common.localconfig.LC;
 
 
@@ -57,57 +64,105 @@ import com.zimbra.common.localconfig.LC;
  * This wrapper implements the append methods by converting data to UTF-8 and 
  * write to the ServletOutputStream.  This way IOexception won't be eaten(problem of doing 1), 
  * and we don't interfere with jetty's process in deciding on the transfer encoding(problem of doing 2).
+ *
+ * Appended characters are copied into a fixed char buffer and encoded into a fixed byte buffer, so
+ * serializing a large response doesn't allocate anything per append or per flush.  Any OutputStream
+ * can be wrapped, e.g. to measure a response before sending it with a Content-Length header.
  */
 
 public class ZimbraServletOutputStream implements Appendable {
 
     private static final int BUFFER_SIZE = LC.zimbra_servlet_output_stream_buffer_size.intValueWithinRange(512, 20480);
-    ServletOutputStream mOut;
-    
-    // buffer to avoid frequent toString().getBytes()
-    StringBuilder mBuffer = new StringBuilder(BUFFER_SIZE);
-    
+    private final OutputStream mOut;
+
+    // buffers to avoid frequent toString().getBytes()
+    private final char[] mChars = new char[BUFFER_SIZE];
+    private int mCount = 0;
+    private final CharsetEncoder mEncoder = Charsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer mBytes = ByteBuffer.allocate((int) (BUFFER_SIZE * mEncoder.maxBytesPerChar()));
+    private long mBytesWritten = 0;
+
     public ZimbraServletOutputStream(ServletOutputStream out) {
+        this((OutputStream) out);
+    }
+
+    public ZimbraServletOutputStream(OutputStream out) {
         mOut = out;
     }
-    
+
     public Appendable append(CharSequence csq) throws IOException {
         append(csq, 0, csq.length());
         return this;
     }
 
     public Appendable append(char c) throws IOException {
-        if (mBuffer.length() + 1 > BUFFER_SIZE)
-            flush();
-        mBuffer.append(c);
+        if (mCount == BUFFER_SIZE)
+            encode(false);
+        mChars[mCount++] = c;
         return this;
     }
 
     public Appendable append(CharSequence csq, int start, int end) throws IOException {
-        int lenToAppend = end - start;
-        
-        if (lenToAppend >= BUFFER_SIZE) {
-            // data to append itself exceeds our threshold, don't let the buffer grow(realloc)
-            flush(); // flush existing data in the buffer
-            write(csq.subSequence(start, end).toString()); // then directly flush this append data out without buffering
-        } else {
-            if (mBuffer.length() + lenToAppend > BUFFER_SIZE)
-                flush();
-            mBuffer.append(csq, start, end);
+        // data larger than the buffer goes out in buffer-sized pieces, never as one big String
+        while (start < end) {
+            if (mCount == BUFFER_SIZE)
+                encode(false);
+            int len = Math.min(end - start, BUFFER_SIZE - mCount);
+            if (csq instanceof String) {
+                ((String) csq).getChars(start, start + len, mChars, mCount);
+            } else if (csq instanceof StringBuilder) {
+                ((StringBuilder) csq).getChars(start, start + len, mChars, mCount);
+            } else {
+                for (int i = 0; i < len; i++)
+                    mChars[mCount + i] = csq.charAt(start + i);
+            }
+            mCount += len;
+            start += len;
         }
-        
         return this;
     }
-    
-    private void write(String str) throws IOException {
-        mOut.write(str.getBytes("utf-8"));
+
+    /**
+     * Encodes the buffered chars and writes them out.  Unless this is the end of the input, a high surrogate at the
+     * end of the buffer is kept back until its low surrogate has been appended.
+     */
+    private void encode(boolean endOfInput) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(mChars, 0, mCount);
+        while (true) {
+            CoderResult result = mEncoder.encode(chars, mBytes, endOfInput);
+            if (result.isOverflow()) {
+                write();
+                continue;
+            }
+            if (endOfInput) {
+                while (mEncoder.flush(mBytes).isOverflow())
+                    write();
+                mEncoder.reset();
+            }
+            break;
+        }
+        write();
+        mCount = chars.remaining();
+        if (mCount > 0)
+            System.arraycopy(mChars, chars.position(), mChars, 0, mCount);
+    }
+
+    private void write() throws IOException {
+        if (mBytes.position() > 0) {
+            mOut.write(mBytes.array(), 0, mBytes.position());
+            mBytesWritten += mBytes.position();
+            mBytes.clear();
+        }
     }
-    
+
     public void flush() throws IOException {
-        if (mBuffer.length() > 0) {
-            write(mBuffer.toString());
-            mBuffer.setLength(0);
-        }
+        if (mCount > 0)
+            encode(true);
     }
 
+    /** Returns the number of bytes written to the underlying stream so far. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
 }
@@ -90,6 +90,14 @@ public class GetFreeBusyRequest {
     @XmlAttribute(name=MailConstants.A_APPT_FREEBUSY_EXCLUDE_UID /* excludeUid */, required=false)
     private String excludeUid;
 
+    /**
+     * @zm-api-field-tag min-free-millis
+     * @zm-api-field-description If set, the response also lists the times at least this many milliseconds long
+     * during which all the users are free, to a precision of 15 minutes
+     */
+    @XmlAttribute(name=MailConstants.A_APPT_FREEBUSY_MIN_FREE /* minFree */, required=false)
+    private Long minFree;
+
     /**
      * @zm-api-field-description To view free/busy for a single folders in particular accounts, use these.
      */
@@ -116,6 +124,7 @@ public class GetFreeBusyRequest {
     public void setExcludeUid(String excludeUid) {
         this.excludeUid = excludeUid;
     }
+    public void setMinFree(Long minFree) { this.minFree = minFree; }
     public void setFreebusyUsers(Iterable <FreeBusyUserSpec> freebusyUsers) {
         this.freebusyUsers.clear();
         if (freebusyUsers != null) {
@@ -135,6 +144,7 @@ public class GetFreeBusyRequest {
     public String getId() { return id; }
     public String getName() { return name; }
     public String getExcludeUid() { return excludeUid; }
+    public Long getMinFree() { return minFree; }
     public List<FreeBusyUserSpec> getFreebusyUsers() {
         return Collections.unmodifiableList(freebusyUsers);
     }
@@ -148,6 +158,7 @@ public class GetFreeBusyRequest {
             .add("id", id)
             .add("name", name)
             .add("excludeUid", excludeUid)
+            .add("minFree", minFree)
             .add("freebusyUsers", freebusyUsers);
     }
 
@@ -27,9 +27,11 @@ import java.util.List;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlElementWrapper;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import com.zimbra.common.soap.MailConstants;
+import com.zimbra.soap.mail.type.FreeBusyFREEslot;
 import com.zimbra.soap.mail.type.FreeBusyUserInfo;
 
 @XmlAccessorType(XmlAccessType.NONE)
@@ -42,6 +44,13 @@ public class GetFreeBusyResponse {
     @XmlElement(name=MailConstants.E_FREEBUSY_USER /* usr */, required=false)
     private List<FreeBusyUserInfo> freebusyUsers = Lists.newArrayList();
 
+    /**
+     * @zm-api-field-description Times during which all the users are free, if requested with <b>minFree</b>
+     */
+    @XmlElementWrapper(name=MailConstants.E_FREEBUSY_COMMON_FREE /* commonFree */, required=false)
+    @XmlElement(name=MailConstants.E_FREEBUSY_FREE /* f */, required=false)
+    private List<FreeBusyFREEslot> commonFree;
+
     public GetFreeBusyResponse() {
     }
 
@@ -61,9 +70,18 @@ public class GetFreeBusyResponse {
         return Collections.unmodifiableList(freebusyUsers);
     }
 
+    public void setCommonFree(Iterable <FreeBusyFREEslot> commonFree) {
+        this.commonFree = commonFree == null ? null : Lists.newArrayList(commonFree);
+    }
+
+    public List<FreeBusyFREEslot> getCommonFree() {
+        return commonFree == null ? null : Collections.unmodifiableList(commonFree);
+    }
+
     public Objects.ToStringHelper addToStringInfo(Objects.ToStringHelper helper) {
         return helper
-            .add("freebusyUsers", freebusyUsers);
+            .add("freebusyUsers", freebusyUsers)
+            .add("commonFree", commonFree);
     }
 
     @Override
@@ -0,0 +1,85 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.zimbra.common.util.DateUtil;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Compares the typed getters of an {@link Account} whose values come from its COS, as hot paths like SOAP, IMAP and
+ * LMTP call them on every request, with looking up and parsing the string values on each call.
+ * <p>
+ * Usage: {@code java com.zimbra.cs.account.EntryAttrBenchmark [iterations]}
+ */
+public class EntryAttrBenchmark {
+
+    private interface Getters {
+        long get(Account acct);
+    }
+
+    private static final Getters TYPED = new Getters() {
+        @Override
+        public long get(Account acct) {
+            return acct.getPasswordMinLength() + acct.getMailQuota() + acct.getPrefMailPollingInterval() +
+                    (acct.isFeatureMailEnabled() ? 1 : 0);
+        }
+    };
+
+    private static final Getters PARSED = new Getters() {
+        @Override
+        public long get(Account acct) {
+            return Integer.parseInt(acct.getAttr(Provisioning.A_zimbraPasswordMinLength, true, true)) +
+                    Long.parseLong(acct.getAttr(Provisioning.A_zimbraMailQuota, true, true)) +
+                    DateUtil.getTimeInterval(acct.getAttr(Provisioning.A_zimbraPrefMailPollingInterval, true, true),
+                            0L) +
+                    ("TRUE".equals(acct.getAttr(Provisioning.A_zimbraFeatureMailEnabled, true, true)) ? 1 : 0);
+        }
+    };
+
+    private static void run(String name, Getters getters, Account acct, int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) { // warm up
+            sum += getters.get(acct);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sum += getters.get(acct);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-8s %8.1f ns per 4 getters (%d)", name, (double) elapsed / iterations, sum));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        MailboxTestUtil.initProvisioning();
+
+        Map<String, Object> cos = new HashMap<String, Object>();
+        cos.put(Provisioning.A_zimbraPasswordMinLength, "8");
+        cos.put(Provisioning.A_zimbraMailQuota, "104857600");
+        cos.put(Provisioning.A_zimbraPrefMailPollingInterval, "5m");
+        cos.put(Provisioning.A_zimbraFeatureMailEnabled, "TRUE");
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "test");
+        Account acct = new Account("test@zimbra.com", "test", attrs, cos, Provisioning.getInstance());
+
+        run("parsed", PARSED, acct, iterations);
+        run("typed", TYPED, acct, iterations);
+    }
+}
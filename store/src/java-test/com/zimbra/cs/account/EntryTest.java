@@ -0,0 +1,88 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for the typed getters of {@link Entry}.
+ */
+public final class EntryTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initProvisioning();
+    }
+
+    @Test
+    public void typedGetters() throws Exception {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraPasswordMinLength, "8");
+        attrs.put(Provisioning.A_zimbraMailQuota, "1KB");
+        attrs.put(Provisioning.A_zimbraPrefMailPollingInterval, "2m");
+        attrs.put(Provisioning.A_zimbraFeatureMailEnabled, "FALSE");
+        Account acct = new Account("test@zimbra.com", "test", attrs, null, Provisioning.getInstance());
+
+        for (int i = 0; i < 2; i++) {
+            Assert.assertEquals(8, acct.getPasswordMinLength());
+            Assert.assertEquals(1024L, acct.getMailQuota());
+            Assert.assertEquals(120000L, acct.getPrefMailPollingInterval());
+            Assert.assertEquals(120L, acct.getTimeIntervalSecs(Provisioning.A_zimbraPrefMailPollingInterval, 0));
+            Assert.assertFalse(acct.isFeatureMailEnabled());
+        }
+
+        // unparseable values fall back to the default every time
+        attrs.put(Provisioning.A_zimbraPasswordMinLength, "eight");
+        Assert.assertEquals(6, acct.getPasswordMinLength());
+        Assert.assertEquals(7, acct.getIntAttr(Provisioning.A_zimbraPasswordMinLength, 7));
+    }
+
+    /**
+     * Values parsed once are parsed again when the attribute maps are modified in place, as provisioning does for
+     * the defaults of accounts in a COS.
+     */
+    @Test
+    public void modifiedInPlace() throws Exception {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        Map<String, Object> defaults = new HashMap<String, Object>();
+        defaults.put(Provisioning.A_zimbraPasswordMinLength, "10");
+        Account acct = new Account("test@zimbra.com", "test", attrs, defaults, Provisioning.getInstance());
+        Assert.assertEquals(10, acct.getPasswordMinLength());
+
+        defaults.put(Provisioning.A_zimbraPasswordMinLength, "12");
+        Assert.assertEquals(12, acct.getPasswordMinLength());
+
+        attrs.put(Provisioning.A_zimbraPasswordMinLength, "14");
+        Assert.assertEquals(14, acct.getPasswordMinLength());
+
+        attrs.remove(Provisioning.A_zimbraPasswordMinLength);
+        defaults.clear();
+        Assert.assertEquals(6, acct.getPasswordMinLength());
+
+        Map<String, Object> reloaded = new HashMap<String, Object>();
+        reloaded.put(Provisioning.A_zimbraPasswordMinLength, "16");
+        acct.setAttrs(reloaded);
+        Assert.assertEquals(16, acct.getPasswordMinLength());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.account.cache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link NamedEntryCache} and {@link AccountCache}.
+ */
+public final class NamedEntryCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initProvisioning();
+    }
+
+    private static Account account(String name, String id, String... aliases) {
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraMailAlias, aliases);
+        return new Account(name, id, attrs, null, Provisioning.getInstance());
+    }
+
+    @Test
+    public void lookup() throws Exception {
+        AccountCache cache = new AccountCache(10, 0);
+        Map<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraMailAlias, "alias@zimbra.com");
+        Account acct = new Account("test@zimbra.com", "1", attrs, null, Provisioning.getInstance());
+        cache.put(acct);
+        Assert.assertSame(acct, cache.getById("1"));
+        Assert.assertSame(acct, cache.getByName("TEST@zimbra.com"));
+        Assert.assertSame(acct, cache.getByName("alias@zimbra.com"));
+        Assert.assertNull(cache.getByName("other@zimbra.com"));
+
+        // the aliases it was cached under are dropped along with it, even once they're no longer on the entry
+        attrs.put(Provisioning.A_zimbraMailAlias, "alias2@zimbra.com");
+        Account renamed = account("renamed@zimbra.com", "1", "alias2@zimbra.com");
+        cache.replace(renamed);
+        Assert.assertSame(renamed, cache.getById("1"));
+        Assert.assertSame(renamed, cache.getByName("alias2@zimbra.com"));
+        Assert.assertNull(cache.getByName("test@zimbra.com"));
+        Assert.assertNull(cache.getByName("alias@zimbra.com"));
+        Assert.assertEquals(1, cache.getSize());
+
+        cache.remove(renamed);
+        Assert.assertNull(cache.getById("1"));
+        Assert.assertNull(cache.getByName("renamed@zimbra.com"));
+        Assert.assertNull(cache.getByName("alias2@zimbra.com"));
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        AccountCache cache = new AccountCache(2, 0);
+        for (int i = 0; i < 3; i++) {
+            cache.put(account("user" + i + "@zimbra.com", Integer.toString(i), "alias" + i + "@zimbra.com"));
+        }
+        Assert.assertEquals(2, cache.getSize());
+        Assert.assertNull(cache.getById("0"));
+        Assert.assertNull(cache.getByName("user0@zimbra.com"));
+        Assert.assertNull(cache.getByName("alias0@zimbra.com"));
+        Assert.assertNotNull(cache.getByName("alias2@zimbra.com"));
+    }
+
+    /**
+     * An expired entry is handed to one caller to reload, and served to the others until it's put back.
+     */
+    @Test
+    public void refreshAhead() throws Exception {
+        NamedEntryCache<Account> cache = new NamedEntryCache<Account>(10, 1, 60000);
+        Account acct = account("test@zimbra.com", "1");
+        cache.put(acct);
+        Thread.sleep(5);
+
+        Assert.assertNull(cache.getById("1"));
+        Assert.assertSame(acct, cache.getById("1"));
+        Assert.assertSame(acct, cache.getByName("test@zimbra.com"));
+        Assert.assertEquals(1, cache.getRefreshCount());
+        Assert.assertEquals(0, cache.getRefreshCount());
+
+        Account reloaded = account("test@zimbra.com", "1");
+        cache.put(reloaded);
+        Assert.assertSame(reloaded, cache.getByName("test@zimbra.com"));
+    }
+
+    /**
+     * An expired entry nobody puts back within the grace period is dropped.
+     */
+    @Test
+    public void refreshGrace() throws Exception {
+        NamedEntryCache<Account> cache = new NamedEntryCache<Account>(10, 1, 0);
+        cache.put(account("test@zimbra.com", "1"));
+        Thread.sleep(5);
+
+        Assert.assertNull(cache.getByName("test@zimbra.com"));
+        Thread.sleep(5);
+        Assert.assertNull(cache.getById("1"));
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertNull(cache.getByName("test@zimbra.com"));
+    }
+}
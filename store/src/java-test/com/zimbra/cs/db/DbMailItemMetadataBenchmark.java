@@ -0,0 +1,88 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.util.HashMap;
+import java.util.List;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Metadata;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Compares listing a large folder with a cold item cache, which reads and decodes the metadata of every item, and
+ * rewriting the metadata of every item, with the metadata stored as the {@link Metadata#toString} encoding and in the
+ * indexed encoding of {@link Metadata#toIndexed} ({@link LC#zimbra_mailbox_indexed_metadata}).
+ * <p>
+ * Usage: {@code java com.zimbra.cs.db.DbMailItemMetadataBenchmark [messages] [iterations]}
+ */
+public class DbMailItemMetadataBenchmark {
+
+    private static void run(String name, Mailbox mbox, int[] ids, int iterations) throws Exception {
+        long list = 0, save = 0;
+        for (int i = 0; i < iterations; i++) {
+            mbox.purge(MailItem.Type.MESSAGE); // cold cache, so every item is read from the database
+            long start = System.nanoTime();
+            List<MailItem> items = mbox.getItemList(null, MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_INBOX);
+            list += System.nanoTime() - start;
+            if (items.size() != ids.length) {
+                throw new IllegalStateException(items.size() + " items listed, expected " + ids.length);
+            }
+            start = System.nanoTime();
+            mbox.setColor(null, ids, MailItem.Type.MESSAGE, (byte) (i % 2 + 1));
+            save += System.nanoTime() - start;
+        }
+        System.out.println(String.format("%-8s %8.1f ms/list  %8.0f items/s saved", name,
+                list / 1000000.0 / iterations, ids.length * iterations * 1000000000.0 / save));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        Account acct = prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        int[] ids = new int[messages];
+        for (int i = 0; i < messages; i++) {
+            byte[] raw = ("From: sender" + i + "@example.com\r\nTo: rcpt@example.com\r\nSubject: message " + i +
+                    "\r\n\r\nbody of message " + i).getBytes();
+            ids[i] = mbox.addMessage(null, new ParsedMessage(raw, false), dopt, null).getId();
+        }
+
+        LC.zimbra_mailbox_indexed_metadata.setDefault(false);
+        run("legacy", mbox, ids, 1); // warm up
+        run("legacy", mbox, ids, iterations);
+
+        LC.zimbra_mailbox_indexed_metadata.setDefault(true);
+        long start = System.nanoTime();
+        for (int lastId = 0; (lastId = mbox.convertMetadata(lastId, 1000)) > 0; ) {
+        }
+        System.out.println(String.format("converted in %.1f ms", (System.nanoTime() - start) / 1000000.0));
+        run("indexed", mbox, ids, iterations);
+    }
+}
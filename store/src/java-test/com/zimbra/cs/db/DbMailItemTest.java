@@ -41,6 +41,7 @@ import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Metadata;
 
 /**
  * Unit test for {@link DbMailItem}.
@@ -122,6 +123,35 @@ public final class DbMailItemTest {
         Assert.assertEquals(ImmutableSet.of(200, 201, 400, 401), result.get(MailItem.Type.CONTACT));
     }
 
+    @Test
+    public void convertMetadata() throws Exception {
+        String legacy = new Metadata().put(Metadata.FN_COLOR, 3).put(Metadata.FN_FRAGMENT, "frag").toString();
+        String blob = "s=43:Roland Schemers <roland.schemers@gmail.com>;";
+        DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                "(mailbox_id, id, type, index_id, date, size, flags, tags, metadata, mod_metadata, mod_content) " +
+                "VALUES(?, ?, ?, 0, 0, 0, 0, 0, ?, 0, 0)", mbox.getId(), 100, MailItem.Type.MESSAGE.toByte(), legacy);
+        DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                "(mailbox_id, id, type, index_id, date, size, flags, tags, metadata, mod_metadata, mod_content) " +
+                "VALUES(?, ?, ?, 0, 0, 0, 0, 0, ?, 0, 0)", mbox.getId(), 101, MailItem.Type.MESSAGE.toByte(), blob);
+        DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
+                "(mailbox_id, id, type, index_id, date, size, flags, tags, mod_metadata, mod_content) " +
+                "VALUES(?, ?, ?, 0, 0, 0, 0, 0, 0, 0)", mbox.getId(), 102, MailItem.Type.MESSAGE.toByte());
+        conn.commit();
+
+        Assert.assertEquals(101, mbox.convertMetadata(99, 2));
+        Assert.assertEquals(102, mbox.convertMetadata(101, 2));
+        Assert.assertEquals(-1, mbox.convertMetadata(102, 2));
+
+        String indexed = DbUtil.executeQuery(conn,
+                "SELECT metadata FROM mboxgroup1.mail_item WHERE id = ?", 100).getString(1);
+        Assert.assertEquals(Metadata.toIndexed(legacy), indexed);
+        Assert.assertEquals(legacy, new Metadata(indexed).toString());
+        Assert.assertEquals(blob, DbUtil.executeQuery(conn,
+                "SELECT metadata FROM mboxgroup1.mail_item WHERE id = ?", 101).getString(1));
+        Assert.assertNull(DbUtil.executeQuery(conn,
+                "SELECT metadata FROM mboxgroup1.mail_item WHERE id = ?", 102).getString(1));
+    }
+
     @Test
     public void setIndexIds() throws Exception {
         DbUtil.executeUpdate(conn, "INSERT INTO mboxgroup1.mail_item " +
@@ -19,6 +19,7 @@ package com.zimbra.cs.db;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -33,6 +34,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.hash.BloomFilter;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
@@ -212,6 +214,39 @@ public class DbVolumeBlobsTest {
         Assert.assertEquals(5, digests.size());
     }
 
+    @Test
+    public void duplicateDigests() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions opt = new DeliveryOptions();
+        opt.setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Volume vol = VolumeManager.getInstance().getCurrentMessageVolume();
+
+        Set<String> duplicated = new HashSet<String>();
+        List<String> unique = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            byte[] content = ("From: from" + i + "@zimbra.com\r\nTo: to1@zimbra.com").getBytes();
+            duplicated.add(mbox.addMessage(null, new ParsedMessage(content, false), opt, null).getDigest());
+            mbox.addMessage(null, new ParsedMessage(content, false), opt, null);
+            unique.add(mbox.addMessage(null, new ParsedMessage(("From: from" + i + "@zimbra.com\r\nTo: to2@zimbra.com").getBytes(), false), opt, null).getDigest());
+        }
+        for (MailboxBlobInfo info : DbMailItem.getAllBlobs(conn, mbox.getSchemaGroupId(), vol.getId(), -1, -1)) {
+            DbVolumeBlobs.addBlobReference(conn, info);
+        }
+
+        BloomFilter<CharSequence> duplicates = DbVolumeBlobs.getDuplicateDigests(conn, vol);
+        for (String digest : duplicated) {
+            Assert.assertTrue(duplicates.mightContain(digest));
+        }
+        Assert.assertEquals(10, DbVolumeBlobs.getUniqueDigests(conn, vol).size());
+
+        DbVolumeBlobs.updateProcessed(conn, vol, unique);
+        SpoolingCache<String> digests = DbVolumeBlobs.getUniqueDigests(conn, vol);
+        Assert.assertEquals(5, digests.size());
+        for (String digest : digests) {
+            Assert.assertTrue(duplicated.contains(digest));
+        }
+    }
+
     @Test
     public void dumpsterBlobs() throws Exception {
         Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
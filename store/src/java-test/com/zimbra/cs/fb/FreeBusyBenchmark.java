@@ -0,0 +1,136 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.fb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+
+/**
+ * Measures scheduling a meeting with many attendees: looking up their free/busy with a given number of
+ * {@link LC#calendar_freebusy_local_threads}, and finding the times they are all free by merging their
+ * {@link FreeBusy.IntervalList}s and with {@link FreeBusySlots}.  Run once per thread count, as the free/busy pool is
+ * sized when {@link FreeBusyQuery} is loaded.
+ * <p>
+ * Usage: {@code java com.zimbra.cs.fb.FreeBusyBenchmark [attendees] [iterations] [threads]}
+ */
+public class FreeBusyBenchmark {
+
+    private static final long HOUR = Constants.MILLIS_PER_HOUR;
+
+    /** A work week of calendars, each with a few meetings of 30 to 120 minutes a day during working hours. */
+    private static List<FreeBusy> calendars(int attendees, long start, long end) {
+        Random random = new Random(attendees);
+        List<FreeBusy> calendars = new ArrayList<FreeBusy>(attendees);
+        for (int i = 0; i < attendees; i++) {
+            FreeBusy fb = FreeBusy.emptyFreeBusy("attendee" + i, start, end);
+            for (long day = start; day < end; day += 24 * HOUR) {
+                for (int j = random.nextInt(4); j > 0; j--) {
+                    long meetingStart = day + 8 * HOUR + random.nextInt(16) * HOUR / 2;
+                    long meetingEnd = meetingStart + (1 + random.nextInt(4)) * HOUR / 2;
+                    fb.mList.addInterval(new FreeBusy.Interval(meetingStart, meetingEnd, IcalXmlStrMap.FBTYPE_BUSY));
+                }
+            }
+            calendars.add(fb);
+        }
+        return calendars;
+    }
+
+    private static int mergeIntervals(List<FreeBusy> calendars, long start, long end) {
+        FreeBusy all = FreeBusy.emptyFreeBusy("all", start, end);
+        for (FreeBusy fb : calendars) {
+            for (FreeBusy.Interval interval : fb) {
+                if (!IcalXmlStrMap.FBTYPE_FREE.equals(interval.getStatus())) {
+                    all.mList.addInterval(new FreeBusy.Interval(interval.getStart(), interval.getEnd(),
+                            interval.getStatus()));
+                }
+            }
+        }
+        int free = 0;
+        for (FreeBusy.Interval interval : all) {
+            if (IcalXmlStrMap.FBTYPE_FREE.equals(interval.getStatus()) &&
+                    interval.getEnd() - interval.getStart() >= HOUR) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    private static int mergeSlots(List<FreeBusy> calendars, long start, long end) {
+        return FreeBusySlots.findCommonFree(calendars, start, end, FreeBusySlots.DEFAULT_SLOT_MILLIS, HOUR).size();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int attendees = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        if (args.length > 2) {
+            LC.calendar_freebusy_local_threads.setDefault(Integer.parseInt(args[2]));
+        }
+        long start = 0;
+        long end = 5 * 24 * HOUR;
+
+        // finding common free times
+        List<FreeBusy> calendars = calendars(attendees, start, end);
+        mergeIntervals(calendars, start, end);
+        mergeSlots(calendars, start, end);
+        long intervals = 0, slots = 0;
+        for (int i = 0; i < iterations; i++) {
+            long t0 = System.nanoTime();
+            mergeIntervals(calendars, start, end);
+            long t1 = System.nanoTime();
+            mergeSlots(calendars, start, end);
+            slots += System.nanoTime() - t1;
+            intervals += t1 - t0;
+        }
+        System.out.println(String.format("merge %d calendars: %8.3f ms interval list, %8.3f ms slot bitmap",
+                attendees, intervals / 1000000.0 / iterations, slots / 1000000.0 / iterations));
+
+        // looking up local attendees
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        List<String> names = new ArrayList<String>(attendees);
+        for (int i = 0; i < attendees; i++) {
+            names.add("attendee" + i + "@zimbra.com");
+            prov.createAccount(names.get(i), "secret", new HashMap<String, Object>());
+        }
+        long lookups = 0;
+        for (int i = 0; i <= iterations; i++) {
+            FreeBusyQuery query = new FreeBusyQuery(null, null, System.currentTimeMillis(),
+                    System.currentTimeMillis() + 5 * 24 * HOUR, null);
+            for (String name : names) {
+                query.addEmailAddress(name, FreeBusyQuery.CALENDAR_FOLDER_ALL);
+            }
+            long t0 = System.nanoTime();
+            int results = query.getResults().size();
+            if (i > 0) { // the first query loads the mailboxes
+                lookups += System.nanoTime() - t0;
+            }
+            if (results != attendees) {
+                throw new IllegalStateException(results + " results for " + attendees + " attendees");
+            }
+        }
+        System.out.println(String.format("%d threads: %8.3f ms to look up %d local attendees",
+                LC.calendar_freebusy_local_threads.intValue(), lookups / 1000000.0 / iterations, attendees));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.fb;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+
+/**
+ * Unit test for {@link FreeBusySlots}.
+ */
+public final class FreeBusySlotsTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long SLOT = FreeBusySlots.DEFAULT_SLOT_MILLIS;
+
+    private static FreeBusy calendar(String name, long start, long end, long[][] intervals, String status) {
+        FreeBusy fb = FreeBusy.emptyFreeBusy(name, start, end);
+        for (long[] interval : intervals) {
+            fb.mList.addInterval(new FreeBusy.Interval(interval[0], interval[1], status));
+        }
+        return fb;
+    }
+
+    @Test
+    public void busySlots() {
+        FreeBusySlots slots = new FreeBusySlots(0, 8 * HOUR, SLOT);
+        slots.addBusy(HOUR + 1, HOUR + 2); // any overlap makes the whole slot busy
+        Assert.assertFalse(slots.isBusy(HOUR - 1));
+        Assert.assertTrue(slots.isBusy(HOUR));
+        Assert.assertTrue(slots.isBusy(HOUR + SLOT - 1));
+        Assert.assertFalse(slots.isBusy(HOUR + SLOT));
+
+        slots.addBusy(-HOUR, SLOT); // clamped to the range
+        Assert.assertTrue(slots.isBusy(0));
+        Assert.assertFalse(slots.isBusy(SLOT));
+        Assert.assertFalse(slots.isBusy(-1));
+    }
+
+    @Test
+    public void commonFree() {
+        long start = 0;
+        long end = 8 * HOUR;
+        FreeBusy alice = calendar("alice", start, end, new long[][] { { HOUR, 2 * HOUR }, { 5 * HOUR, 6 * HOUR } },
+                IcalXmlStrMap.FBTYPE_BUSY);
+        FreeBusy bob = calendar("bob", start, end, new long[][] { { 90 * 60 * 1000L, 3 * HOUR } },
+                IcalXmlStrMap.FBTYPE_BUSY_TENTATIVE);
+        FreeBusy carol = calendar("carol", start, end, new long[][] { { 0, 8 * HOUR } }, IcalXmlStrMap.FBTYPE_NODATA);
+
+        List<FreeBusy.Interval> free = FreeBusySlots.findCommonFree(Arrays.asList(alice, bob, carol), start, end,
+                SLOT, HOUR);
+        Assert.assertEquals(3, free.size());
+        assertInterval(0, HOUR, free.get(0));
+        assertInterval(3 * HOUR, 5 * HOUR, free.get(1));
+        assertInterval(6 * HOUR, 8 * HOUR, free.get(2));
+
+        // the hour before their meetings is too short
+        free = FreeBusySlots.findCommonFree(Arrays.asList(alice, bob), start, end, SLOT, 2 * HOUR);
+        Assert.assertEquals(2, free.size());
+        assertInterval(3 * HOUR, 5 * HOUR, free.get(0));
+        assertInterval(6 * HOUR, 8 * HOUR, free.get(1));
+    }
+
+    @Test
+    public void merge() {
+        FreeBusySlots all = new FreeBusySlots(0, 4 * HOUR, SLOT);
+        FreeBusySlots aligned = new FreeBusySlots(0, 4 * HOUR, SLOT);
+        aligned.addBusy(0, HOUR);
+        FreeBusySlots coarse = new FreeBusySlots(HOUR, 4 * HOUR, HOUR);
+        coarse.addBusy(2 * HOUR + 1, 2 * HOUR + 2);
+        all.add(aligned);
+        all.add(coarse);
+
+        List<FreeBusy.Interval> free = all.getFreeIntervals(0);
+        Assert.assertEquals(2, free.size());
+        assertInterval(HOUR, 2 * HOUR, free.get(0));
+        assertInterval(3 * HOUR, 4 * HOUR, free.get(1));
+    }
+
+    @Test
+    public void partialLastSlot() {
+        FreeBusySlots slots = new FreeBusySlots(0, HOUR + 5, SLOT);
+        List<FreeBusy.Interval> free = slots.getFreeIntervals(0);
+        Assert.assertEquals(1, free.size());
+        assertInterval(0, HOUR + 5, free.get(0));
+        Assert.assertEquals(IcalXmlStrMap.FBTYPE_FREE, free.get(0).getStatus());
+    }
+
+    private static void assertInterval(long start, long end, FreeBusy.Interval interval) {
+        Assert.assertEquals(start, interval.getStart());
+        Assert.assertEquals(end, interval.getEnd());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Reproduces the initial sync of a desktop client, {@code FETCH 1:* (FLAGS INTERNALDATE RFC822.SIZE)} on a large
+ * folder with a cold item cache, with one item lookup per message and with batched lookups.
+ * <p>
+ * Usage: {@code java com.zimbra.cs.imap.ImapFetchBenchmark [messages] [iterations]}
+ */
+public class ImapFetchBenchmark {
+
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static final class BenchmarkHandler extends ImapHandler {
+        BenchmarkHandler(ImapConfig config, OutputStream out) {
+            super(config);
+            output = out;
+        }
+
+        @Override
+        void sendLine(String line, boolean flush) throws IOException {
+            output.write(line.getBytes("utf-8"));
+            output.write(LINE_SEPARATOR_BYTES);
+        }
+
+        @Override
+        void dropConnection(boolean sendBanner) {
+        }
+
+        @Override
+        void close() {
+        }
+
+        @Override
+        void enableInactivityTimer() {
+        }
+
+        @Override
+        void completeAuthentication() {
+        }
+
+        @Override
+        boolean doSTARTTLS(String tag) {
+            return true;
+        }
+
+        @Override
+        InetSocketAddress getLocalAddress() {
+            return new InetSocketAddress(143);
+        }
+
+        @Override
+        String getRemoteIp() {
+            return "127.0.0.1";
+        }
+    }
+
+    private static void run(Mailbox mbox, BenchmarkHandler handler, CountingOutputStream out, int batchSize,
+            int iterations) throws Exception {
+        LC.imap_fetch_batch_size.setDefault(batchSize);
+        int attributes = ImapHandler.FETCH_FLAGS | ImapHandler.FETCH_INTERNALDATE | ImapHandler.FETCH_RFC822_SIZE;
+        long total = 0;
+        for (int i = 0; i < iterations; i++) {
+            mbox.purge(MailItem.Type.MESSAGE); // cold cache, as after a server restart
+            out.count = 0;
+            long start = System.nanoTime();
+            handler.fetch("A" + i, "1:*", attributes, null, false, -1, false);
+            total += System.nanoTime() - start;
+        }
+        System.out.println(String.format("batch size %5d: %8.1f ms/FETCH, %d bytes", batchSize,
+                total / 1000000.0 / iterations, out.count));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        Account acct = prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        for (int i = 0; i < messages; i++) {
+            byte[] raw = ("From: sender" + i + "@example.com\r\nSubject: message " + i + "\r\n\r\nbody " + i)
+                    .getBytes();
+            mbox.addMessage(null, new ParsedMessage(raw, false), dopt, null);
+        }
+
+        CountingOutputStream out = new CountingOutputStream();
+        BenchmarkHandler handler = new BenchmarkHandler(new ImapConfig(false), out);
+        handler.setCredentials(new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE));
+        handler.setSelectedFolder(new ImapPath("INBOX", handler.getCredentials()), (byte) 0);
+
+        run(mbox, handler, out, 500, 1); // warm up
+        run(mbox, handler, out, 1, iterations);
+        run(mbox, handler, out, 100, iterations);
+        run(mbox, handler, out, 500, iterations);
+        run(mbox, handler, out, 2000, iterations);
+    }
+}
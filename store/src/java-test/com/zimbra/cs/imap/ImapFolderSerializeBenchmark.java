@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compares encode/decode time and size of a large cached {@link ImapFolder} with Java serialization and
+ * {@link ImapFolderSerializer}.
+ * <p>
+ * Usage: {@code java com.zimbra.cs.imap.ImapFolderSerializeBenchmark [messages] [iterations]}
+ */
+public class ImapFolderSerializeBenchmark {
+
+    private interface Codec {
+        byte[] encode(ImapFolder i4folder) throws Exception;
+
+        ImapFolder decode(byte[] data) throws Exception;
+    }
+
+    private static final Codec JAVA = new Codec() {
+        @Override
+        public byte[] encode(ImapFolder i4folder) throws Exception {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(bout);
+            oout.writeObject(i4folder);
+            oout.close();
+            return bout.toByteArray();
+        }
+
+        @Override
+        public ImapFolder decode(byte[] data) throws Exception {
+            return (ImapFolder) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+        }
+    };
+
+    private static final Codec BINARY = new Codec() {
+        @Override
+        public byte[] encode(ImapFolder i4folder) {
+            return ImapFolderSerializer.encode(i4folder);
+        }
+
+        @Override
+        public ImapFolder decode(byte[] data) throws Exception {
+            return ImapFolderSerializer.decode(data);
+        }
+    };
+
+    private static void run(String name, Codec codec, ImapFolder i4folder, int iterations) throws Exception {
+        byte[] data = codec.encode(i4folder);
+        codec.decode(data); // warm up
+        long encode = 0, decode = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            data = codec.encode(i4folder);
+            encode += System.nanoTime() - start;
+            start = System.nanoTime();
+            codec.decode(data);
+            decode += System.nanoTime() - start;
+        }
+        System.out.println(String.format("%-8s %10d bytes  %8.2f ms encode  %8.2f ms decode", name, data.length,
+                encode / 1000000.0 / iterations, decode / 1000000.0 / iterations));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        ImapFlagCache tags = new ImapFlagCache();
+        String[] names = { "work", "personal", "receipts" };
+        for (int i = 0; i < names.length; i++) {
+            tags.cache(new ImapFlag(names[i], names[i], 64 + i, 0, true, true, true, 100 + i));
+        }
+        // a long-lived mailbox: ids mostly increasing, a few messages renumbered, some read, a few tagged
+        Random random = new Random(0);
+        List<ImapMessage> sequence = new ArrayList<ImapMessage>(messages);
+        int uid = 256;
+        for (int i = 0; i < messages; i++) {
+            uid += 1 + (random.nextInt(10) == 0 ? random.nextInt(50) : 0);
+            int id = random.nextInt(100) == 0 ? uid - random.nextInt(uid / 2 + 1) : uid;
+            int flags = random.nextInt(4) == 0 ? Flag.BITMASK_UNREAD : Flag.BITMASK_REPLIED;
+            String[] msgTags = random.nextInt(20) == 0 ? new String[] { names[random.nextInt(names.length)] }
+                    : new String[0];
+            sequence.add(new ImapMessage(id, MailItem.Type.MESSAGE, uid, flags, msgTags));
+        }
+        ImapFolder i4folder = new ImapFolder(2, 1, null, EnumSet.of(MailItem.Type.MESSAGE), tags, sequence);
+
+        run("java", JAVA, i4folder, iterations);
+        run("binary", BINARY, i4folder, iterations);
+    }
+}
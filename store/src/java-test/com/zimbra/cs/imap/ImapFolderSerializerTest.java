@@ -0,0 +1,116 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Unit test for {@link ImapFolderSerializer}.
+ */
+public final class ImapFolderSerializerTest {
+
+    private static ImapFolder folder() {
+        ImapFlagCache tags = new ImapFlagCache();
+        tags.cache(new ImapFlag("work", "work", 64, 0, true, true, true, 120));
+        tags.cache(new ImapFlag("to do", "todo:FLAG1", 65, 0, true, true, true, -1));
+
+        List<ImapMessage> messages = new ArrayList<ImapMessage>();
+        messages.add(new ImapMessage(257, MailItem.Type.MESSAGE, 257, Flag.BITMASK_UNREAD, null));
+        messages.add(new ImapMessage(258, MailItem.Type.CONTACT, 258, 0, new String[0]));
+        messages.add(new ImapMessage(300, MailItem.Type.MESSAGE, 1200, Flag.BITMASK_FLAGGED,
+                new String[] { "work", "to do" }));
+        ImapMessage i4msg = new ImapMessage(1201, MailItem.Type.MESSAGE, 1201, Flag.BITMASK_DELETED,
+                new String[] { "to do" });
+        i4msg.sflags |= ImapMessage.FLAG_RECENT | ImapMessage.FLAG_SPAM | ImapMessage.FLAG_EXPUNGED;
+        messages.add(i4msg);
+        return new ImapFolder(2, -123456789, "in:inbox is:unread",
+                EnumSet.of(MailItem.Type.MESSAGE, MailItem.Type.CONTACT), tags, messages);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ImapFolder expected = folder();
+        ImapFolder actual = ImapFolderSerializer.decode(ImapFolderSerializer.encode(expected));
+
+        Assert.assertEquals(2, actual.getId());
+        Assert.assertEquals(-123456789, actual.getUIDValidity());
+        Assert.assertEquals("in:inbox is:unread", actual.getQuery());
+        Assert.assertEquals(EnumSet.of(MailItem.Type.MESSAGE, MailItem.Type.CONTACT), actual.getTypeConstraint());
+
+        Assert.assertEquals(expected.getSize(), actual.getSize());
+        for (int seq = 1; seq <= expected.getSize(); seq++) {
+            ImapMessage e = expected.getBySequence(seq, true), a = actual.getBySequence(seq, true);
+            Assert.assertEquals(seq, a.sequence);
+            Assert.assertEquals(e.msgId, a.msgId);
+            Assert.assertEquals(e.imapUid, a.imapUid);
+            Assert.assertEquals(e.flags, a.flags);
+            Assert.assertEquals(e.sflags, a.sflags);
+            Assert.assertEquals(e.getType(), a.getType());
+            Assert.assertTrue(Arrays.equals(e.tags, a.tags));
+        }
+        Assert.assertNull(actual.getBySequence(1, true).tags);
+        Assert.assertEquals(0, actual.getBySequence(2, true).tags.length);
+        Assert.assertEquals(300, actual.getById(300).msgId);
+        Assert.assertNull("expunged", actual.getByImapId(1201));
+
+        ImapFlag work = actual.getTagset().getByZimbraName("work");
+        Assert.assertEquals(64, work.mId);
+        Assert.assertEquals(120, work.mModseq);
+        ImapFlag todo = actual.getTagset().getByImapName("todo:FLAG1");
+        Assert.assertEquals("to do", todo.mName);
+        Assert.assertEquals(-1, todo.mModseq);
+        Assert.assertTrue(todo.mPositive && todo.mPermanent && todo.mListed);
+        Assert.assertTrue(todo.matches(actual.getBySequence(4, true)));
+    }
+
+    @Test
+    public void plainFolder() throws Exception {
+        ImapFolder actual = ImapFolderSerializer.decode(ImapFolderSerializer.encode(new ImapFolder(5, 1, null,
+                EnumSet.of(MailItem.Type.MESSAGE), new ImapFlagCache(), new ArrayList<ImapMessage>())));
+        Assert.assertFalse(actual.isVirtual());
+        Assert.assertEquals(0, actual.getSize());
+        Assert.assertFalse(actual.getTagset().iterator().hasNext());
+    }
+
+    @Test
+    public void badData() throws Exception {
+        byte[] data = ImapFolderSerializer.encode(folder());
+        try {
+            ImapFolderSerializer.decode(Arrays.copyOf(data, data.length - 1));
+            Assert.fail("truncated");
+        } catch (IOException expected) {
+        }
+        try {
+            // Java serialization stream header
+            ImapFolderSerializer.decode(new byte[] { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 });
+            Assert.fail("old format");
+        } catch (IOException expected) {
+        }
+    }
+}
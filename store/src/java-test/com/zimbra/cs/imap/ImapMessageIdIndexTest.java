@@ -0,0 +1,73 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Unit test for {@link ImapMessageIdIndex}.
+ */
+public final class ImapMessageIdIndexTest {
+
+    @Test
+    public void putGetRemove() {
+        ImapMessageIdIndex index = new ImapMessageIdIndex(0);
+        ImapMessage m1 = new ImapMessage(300, MailItem.Type.MESSAGE, 1000, 0, null);
+        ImapMessage m2 = new ImapMessage(300, MailItem.Type.MESSAGE, 1001, 0, null);
+        index.put(300, m1);
+        Assert.assertSame(m1, index.get(300));
+        index.put(300, m2);
+        Assert.assertSame(m2, index.get(300));
+        Assert.assertEquals(1, index.size());
+        Assert.assertNull(index.get(301));
+        index.remove(301);
+        index.remove(300);
+        Assert.assertNull(index.get(300));
+        Assert.assertEquals(0, index.size());
+    }
+
+    @Test
+    public void matchesHashMap() {
+        Random random = new Random(0);
+        ImapMessageIdIndex index = new ImapMessageIdIndex(16);
+        Map<Integer, ImapMessage> expected = new HashMap<Integer, ImapMessage>();
+        for (int i = 0; i < 100000; i++) {
+            // a small key range forces long probe runs, collisions and removals from the middle of them
+            int id = 1 + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                index.remove(id);
+                expected.remove(id);
+            } else {
+                ImapMessage i4msg = new ImapMessage(id, MailItem.Type.MESSAGE, id + 1, 0, null);
+                index.put(id, i4msg);
+                expected.put(id, i4msg);
+            }
+        }
+        Assert.assertEquals(expected.size(), index.size());
+        for (int id = 1; id <= 5000; id++) {
+            Assert.assertSame(expected.get(id), index.get(id));
+        }
+    }
+}
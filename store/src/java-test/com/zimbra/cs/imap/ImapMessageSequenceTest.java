@@ -0,0 +1,121 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Unit test for {@link ImapMessageSequence}.
+ */
+public final class ImapMessageSequenceTest {
+
+    private static List<ImapMessage> messages() {
+        List<ImapMessage> messages = new ArrayList<ImapMessage>();
+        messages.add(new ImapMessage(257, MailItem.Type.MESSAGE, 257, Flag.BITMASK_UNREAD, null));
+        messages.add(new ImapMessage(258, MailItem.Type.CONTACT, 258, 0, new String[] { "work" }));
+        messages.add(new ImapMessage(300, MailItem.Type.MESSAGE, 1200, Flag.BITMASK_FLAGGED,
+                new String[] { "work" }));
+        messages.add(new ImapMessage(300, MailItem.Type.MESSAGE, 1300, 0, null));
+        return messages;
+    }
+
+    @Test
+    public void lookup() {
+        ImapMessageSequence sequence = new ImapMessageSequence(messages(), (short) 0);
+        Assert.assertEquals(4, sequence.size());
+        Assert.assertEquals(1200, sequence.getUid(2));
+        Assert.assertEquals(2, sequence.search(1200));
+        Assert.assertEquals(-4, sequence.search(1201));
+        Assert.assertEquals(-5, sequence.search(1400));
+        Assert.assertEquals("highest UID wins", 3, sequence.indexOfMovedId(300));
+        Assert.assertEquals(-1, sequence.indexOfMovedId(257));
+
+        ImapMessage i4msg = sequence.get(1);
+        Assert.assertEquals(258, i4msg.msgId);
+        Assert.assertEquals(258, i4msg.imapUid);
+        Assert.assertEquals(2, i4msg.sequence);
+        Assert.assertEquals(MailItem.Type.CONTACT, i4msg.getType());
+        Assert.assertNotSame(i4msg, sequence.get(1));
+        Assert.assertSame("tags shared", i4msg.tags, sequence.get(2).tags);
+    }
+
+    @Test
+    public void sessionFlags() {
+        List<ImapMessage> messages = messages();
+        messages.get(0).sflags |= ImapMessage.FLAG_RECENT;
+        short spam = ImapMessage.FLAG_SPAM | ImapMessage.FLAG_JUNKRECORDED;
+        ImapMessageSequence sequence = new ImapMessageSequence(messages, spam);
+        Assert.assertEquals(spam, sequence.get(0).sflags);
+        Assert.assertEquals(spam | ImapMessage.FLAG_IS_CONTACT, sequence.get(1).sflags);
+        Assert.assertFalse("\\Recent isn't shared", sequence.matches(0, messages.get(0)));
+    }
+
+    @Test
+    public void matches() {
+        List<ImapMessage> messages = messages();
+        ImapMessageSequence sequence = new ImapMessageSequence(messages, (short) 0);
+        for (int i = 0; i < messages.size(); i++) {
+            Assert.assertTrue(sequence.matches(i, messages.get(i)));
+            Assert.assertTrue(sequence.matches(i, sequence.get(i)));
+        }
+        Assert.assertFalse(sequence.matches(0, messages.get(1)));
+        Assert.assertFalse(sequence.matches(-1, messages.get(0)));
+        Assert.assertFalse(sequence.matches(4, messages.get(0)));
+
+        ImapMessage i4msg = sequence.get(2);
+        i4msg.flags |= Flag.BITMASK_DELETED;
+        Assert.assertFalse(sequence.matches(2, i4msg));
+        i4msg = sequence.get(2);
+        i4msg.tags = null;
+        Assert.assertFalse(sequence.matches(2, i4msg));
+
+        Assert.assertTrue(sequence.contentEquals(new ImapMessageSequence(messages(), (short) 0)));
+        messages.get(3).flags = Flag.BITMASK_UNREAD;
+        Assert.assertFalse(sequence.contentEquals(new ImapMessageSequence(messages, (short) 0)));
+        Assert.assertFalse(sequence.contentEquals(ImapMessageSequence.EMPTY));
+    }
+
+    @Test
+    public void folderCopies() {
+        ImapFolder i4folder = new ImapFolder(2, 1, null, EnumSet.of(MailItem.Type.MESSAGE, MailItem.Type.CONTACT),
+                new ImapFlagCache(), messages());
+        Assert.assertEquals(4, i4folder.getSize());
+
+        ImapMessage first = i4folder.getBySequence(1);
+        Assert.assertSame(first, i4folder.getByImapId(257));
+        Assert.assertSame(first, i4folder.getById(257));
+        ImapMessage moved = i4folder.getById(300);
+        Assert.assertEquals(1300, moved.imapUid);
+        Assert.assertTrue(i4folder.getAllMessages().contains(moved));
+        moved.flags |= Flag.BITMASK_DELETED;
+
+        // a new command: unchanged messages are shared again, changed ones stay
+        i4folder.trim();
+        Assert.assertNotSame(first, i4folder.getBySequence(1));
+        Assert.assertSame(moved, i4folder.getByImapId(1300));
+        Assert.assertEquals(Flag.BITMASK_DELETED, i4folder.getBySequence(4).flags);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link LuceneMergeExecutor}.
+ */
+public final class LuceneMergeExecutorTest {
+
+    private static final class NoopJob extends LuceneMergeExecutor.Job {
+        NoopJob(long bytes) {
+            super(bytes);
+        }
+
+        @Override
+        protected void merge() {
+        }
+    }
+
+    @Test
+    public void smallerFirst() throws Exception {
+        LuceneMergeExecutor.Job large = new NoopJob(100L * 1024 * 1024);
+        LuceneMergeExecutor.Job small = new NoopJob(1024);
+        Assert.assertTrue(small.compareTo(large) < 0);
+        Assert.assertTrue(large.compareTo(small) > 0);
+    }
+
+    @Test
+    public void olderFirstForSameSize() throws Exception {
+        LuceneMergeExecutor.Job first = new NoopJob(1024);
+        LuceneMergeExecutor.Job second = new NoopJob(1024);
+        Assert.assertTrue(first.compareTo(second) < 0);
+        Assert.assertEquals(0, first.compareTo(first));
+    }
+
+    /**
+     * A large merge that has waited long enough goes before small merges queued after it.
+     */
+    @Test
+    public void aging() throws Exception {
+        LuceneMergeExecutor.Job large = new NoopJob(64 * 1024); // made up for by about 64ms in the queue
+        Thread.sleep(200);
+        LuceneMergeExecutor.Job small = new NoopJob(0);
+        Assert.assertTrue(large.compareTo(small) < 0);
+    }
+}
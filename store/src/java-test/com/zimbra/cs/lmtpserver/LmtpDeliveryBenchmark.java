@@ -0,0 +1,84 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Measures the throughput of delivering a message to many local recipients at once, as for a large distribution
+ * list, with a given number of {@link LC#zimbra_lmtp_delivery_threads}.  Run once per thread count, as the delivery
+ * pool is sized when {@link ZimbraLmtpBackend} is loaded.
+ * <p>
+ * Usage: {@code java com.zimbra.cs.lmtpserver.LmtpDeliveryBenchmark [recipients] [messages] [threads]}
+ */
+public class LmtpDeliveryBenchmark {
+
+    private static LmtpEnvelope envelope(int recipients) {
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@example.com>", null, null));
+        for (int i = 0; i < recipients; i++) {
+            LmtpAddress rcpt = new LmtpAddress("<rcpt" + i + "@zimbra.com>", null, null);
+            rcpt.setOnLocalServer(true);
+            env.addLocalRecipient(rcpt);
+        }
+        return env;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int messages = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        if (args.length > 2) {
+            LC.zimbra_lmtp_delivery_threads.setDefault(Integer.parseInt(args[2]));
+        }
+
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < recipients; i++) {
+            prov.createAccount("rcpt" + i + "@zimbra.com", "secret", new HashMap<String, Object>());
+        }
+        ZimbraLmtpBackend backend = new ZimbraLmtpBackend(LmtpConfig.getInstance());
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            body.append("line ").append(i).append(" of a message sent to a large distribution list\r\n");
+        }
+        long total = 0;
+        for (int i = 0; i <= messages; i++) {
+            byte[] raw = ("From: sender@example.com\r\nTo: list@zimbra.com\r\nSubject: announcement " + i +
+                    "\r\nMessage-ID: <" + i + "@example.com>\r\n\r\n" + body).getBytes();
+            LmtpEnvelope env = envelope(recipients);
+            long start = System.nanoTime();
+            backend.deliver(env, new ByteArrayInputStream(raw), raw.length);
+            if (i > 0) { // the first message warms up the mailboxes
+                total += System.nanoTime() - start;
+            }
+            for (LmtpAddress rcpt : env.getLocalRecipients()) {
+                if (rcpt.getDeliveryStatus() != LmtpReply.DELIVERY_OK) {
+                    throw new IllegalStateException(rcpt + ": " + rcpt.getDeliveryStatus());
+                }
+            }
+        }
+        double ms = total / 1000000.0 / messages;
+        System.out.println(String.format("%d threads: %8.1f ms per 1-to-%d message, %8.0f deliveries/s",
+                LC.zimbra_lmtp_delivery_threads.intValue(), ms, recipients, recipients * 1000.0 / ms));
+    }
+}
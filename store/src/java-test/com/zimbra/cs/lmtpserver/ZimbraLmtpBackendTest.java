@@ -0,0 +1,216 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.lmtpserver;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.account.Key.AccountBy;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.filter.RuleManager;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for local delivery by {@link ZimbraLmtpBackend}.
+ */
+public final class ZimbraLmtpBackendTest {
+
+    private static final int RECIPIENTS = 6;
+
+    private static final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    private static final class RecordingCallback implements LmtpCallback {
+        private final String name;
+
+        RecordingCallback(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void afterDelivery(Account account, Mailbox mbox, String envelopeSender, String recipientEmail,
+                Message newMessage) {
+            events.add(name + ":" + recipientEmail + ":" + newMessage.getFolderId());
+        }
+
+        @Override
+        public void forwardWithoutDelivery(Account account, Mailbox mbox, String envelopeSender, String recipientEmail,
+                ParsedMessage pm) {
+        }
+    }
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            prov.createAccount(address(i), "secret", new HashMap<String, Object>());
+        }
+        ZimbraLmtpBackend.addCallback(new RecordingCallback("first"));
+        ZimbraLmtpBackend.addCallback(new RecordingCallback("second"));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        events.clear();
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Account account = account(i);
+            account.setMailQuota(0);
+            account.setPrefMessageIdDedupingEnabled(false);
+            account.setMailSieveScript("");
+            RuleManager.clearCachedRules(account);
+        }
+    }
+
+    private static String address(int i) {
+        return "rcpt" + i + "@zimbra.com";
+    }
+
+    private static Account account(int i) throws Exception {
+        return Provisioning.getInstance().get(AccountBy.name, address(i));
+    }
+
+    private static Mailbox mailbox(int i) throws Exception {
+        return MailboxManager.getInstance().getMailboxByAccount(account(i));
+    }
+
+    private static byte[] message(String messageId) {
+        return ("From: sender@example.com\r\nTo: list@zimbra.com\r\nSubject: test\r\nMessage-ID: <" + messageId +
+                ">\r\n\r\nbody\r\n").getBytes();
+    }
+
+    private static List<LmtpAddress> deliver(byte[] raw, String... recipients) throws Exception {
+        LmtpEnvelope env = new LmtpEnvelope();
+        env.setSender(new LmtpAddress("<sender@example.com>", null, null));
+        for (String recipient : recipients) {
+            LmtpAddress rcpt = new LmtpAddress("<" + recipient + ">", null, null);
+            rcpt.setOnLocalServer(true);
+            env.addLocalRecipient(rcpt);
+        }
+        new ZimbraLmtpBackend(LmtpConfig.getInstance()).deliver(env, new ByteArrayInputStream(raw), raw.length);
+        return env.getLocalRecipients();
+    }
+
+    private static String[] allRecipients() {
+        String[] recipients = new String[RECIPIENTS];
+        for (int i = 0; i < RECIPIENTS; i++) {
+            recipients[i] = address(i);
+        }
+        return recipients;
+    }
+
+    /**
+     * The blob is stored by the first delivery that succeeds, even if it isn't to the first recipient, and the
+     * deliveries after it (in parallel) link to it.
+     */
+    @Test
+    public void sharedBlobAfterFailedFirstRecipient() throws Exception {
+        byte[] raw = message("shared@example.com");
+        List<String> recipients = new ArrayList<String>();
+        recipients.add("missing@zimbra.com");
+        Collections.addAll(recipients, allRecipients());
+        List<LmtpAddress> rcpts = deliver(raw, recipients.toArray(new String[recipients.size()]));
+
+        Assert.assertEquals(LmtpReply.PERMANENT_FAILURE, rcpts.get(0).getDeliveryStatus());
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Assert.assertEquals(address(i), LmtpReply.DELIVERY_OK, rcpts.get(i + 1).getDeliveryStatus());
+            List<MailItem> msgs = mailbox(i).getItemList(null, MailItem.Type.MESSAGE, Mailbox.ID_FOLDER_INBOX);
+            Assert.assertEquals(address(i), 1, msgs.size());
+            Assert.assertArrayEquals(address(i), raw, msgs.get(0).getContent());
+        }
+    }
+
+    @Test
+    public void perRecipientFailureStatus() throws Exception {
+        account(2).setMailQuota(1);
+        List<LmtpAddress> rcpts = deliver(message("quota@example.com"), allRecipients());
+
+        LmtpReply overQuota = LmtpConfig.getInstance().isPermanentFailureWhenOverQuota() ?
+                LmtpReply.PERMANENT_FAILURE_OVER_QUOTA : LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
+        for (int i = 0; i < RECIPIENTS; i++) {
+            LmtpReply expected = i == 2 ? overQuota : LmtpReply.DELIVERY_OK;
+            Assert.assertEquals(address(i), expected, rcpts.get(i).getDeliveryStatus());
+            Assert.assertEquals(address(i), i == 2 ? 0 : 1, mailbox(i).getItemList(null, MailItem.Type.MESSAGE).size());
+        }
+    }
+
+    @Test
+    public void dedupe() throws Exception {
+        account(0).setPrefMessageIdDedupingEnabled(true);
+        byte[] raw = message("dedupe@example.com");
+        deliver(raw, allRecipients());
+        List<LmtpAddress> rcpts = deliver(raw, allRecipients());
+
+        for (int i = 0; i < RECIPIENTS; i++) {
+            Assert.assertEquals(address(i), LmtpReply.DELIVERY_OK, rcpts.get(i).getDeliveryStatus());
+            Assert.assertEquals(address(i), i == 0 ? 1 : 2, mailbox(i).getItemList(null, MailItem.Type.MESSAGE).size());
+        }
+    }
+
+    /**
+     * A failed delivery must not be remembered as delivered, so the MTA's retry isn't deduped.
+     */
+    @Test
+    public void dedupeAfterFailure() throws Exception {
+        Account account = account(1);
+        account.setPrefMessageIdDedupingEnabled(true);
+        account.setMailQuota(1);
+        byte[] raw = message("retry@example.com");
+        Assert.assertFalse(LmtpReply.DELIVERY_OK.equals(deliver(raw, address(1), address(3)).get(0).getDeliveryStatus()));
+
+        account.setMailQuota(0);
+        Assert.assertEquals(LmtpReply.DELIVERY_OK, deliver(raw, address(1)).get(0).getDeliveryStatus());
+        Assert.assertEquals(1, mailbox(1).getItemList(null, MailItem.Type.MESSAGE).size());
+    }
+
+    /**
+     * Callbacks run after the message is filed by the recipient's filter rules, in the order they were registered,
+     * once for each recipient.
+     */
+    @Test
+    public void callbacksAfterFilters() throws Exception {
+        Account account = account(3);
+        account.setMailSieveScript("require \"fileinto\";\nfileinto \"Filtered\";\n");
+        RuleManager.clearCachedRules(account);
+        deliver(message("callbacks@example.com"), allRecipients());
+
+        Folder filtered = mailbox(3).getFolderByPath(null, "/Filtered");
+        for (int i = 0; i < RECIPIENTS; i++) {
+            int folderId = i == 3 ? filtered.getId() : Mailbox.ID_FOLDER_INBOX;
+            int first = events.indexOf("first:" + address(i) + ":" + folderId);
+            int second = events.indexOf("second:" + address(i) + ":" + folderId);
+            Assert.assertTrue(address(i) + " " + events, first >= 0 && second > first);
+        }
+        Assert.assertEquals(events.toString(), 2 * RECIPIENTS, events.size());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
+
+/**
+ * Unit test for {@link IndexedMetadata}.
+ */
+public final class IndexedMetadataTest {
+
+    private static Metadata sample() {
+        Metadata meta = new Metadata();
+        meta.put(Metadata.FN_COLOR, 5);
+        meta.put(Metadata.FN_FRAGMENT, "a fragment: with a colon, and é😀");
+        meta.put(Metadata.FN_TOTAL_SIZE, 123456789012L);
+        meta.put(Metadata.FN_RAW_SUBJ, "");
+        meta.put(Metadata.FN_ATTRS, new Metadata().put("k", "v").put("n", -3));
+        meta.put(Metadata.FN_NODES, new MetadataList().add("x").add(2L));
+        meta.put("xd.custom", "d1:ai1ee");
+        return meta;
+    }
+
+    @Test
+    public void transcode() throws Exception {
+        String legacy = sample().toString();
+        String indexed = Metadata.toIndexed(legacy);
+        Assert.assertTrue(indexed, indexed.startsWith("~1"));
+        Assert.assertSame(indexed, Metadata.toIndexed(indexed));
+        Assert.assertEquals(legacy, new Metadata(indexed).toString());
+
+        Map<Object, Object> map = new HashMap<Object, Object>(new Metadata(legacy).map());
+        Assert.assertEquals(IndexedMetadata.encode(map), indexed);
+    }
+
+    @Test
+    public void lazy() throws Exception {
+        Metadata meta = new Metadata(Metadata.toIndexed(sample().toString()));
+        Assert.assertEquals(ImmutableSet.of("c", "f", "sz", "r", "a", "no", "xd.custom"), meta.keySet());
+        Assert.assertFalse(meta.containsKey(Metadata.FN_MD_VERSION));
+        Assert.assertEquals(5, meta.getInt(Metadata.FN_COLOR, 0));
+        Assert.assertEquals(123456789012L, meta.getLong(Metadata.FN_TOTAL_SIZE));
+        Assert.assertEquals("", meta.get(Metadata.FN_RAW_SUBJ));
+        Assert.assertEquals("d1:ai1ee", meta.get("xd.custom"));
+        Assert.assertEquals(-3, meta.getMap(Metadata.FN_ATTRS).getLong("n"));
+        Assert.assertEquals(Arrays.asList("x", 2L), meta.getList(Metadata.FN_NODES).asList());
+
+        meta.remove(Metadata.FN_FRAGMENT);
+        meta.put(Metadata.FN_COLOR, 7);
+        Assert.assertFalse(meta.containsKey(Metadata.FN_FRAGMENT));
+        Assert.assertEquals(7, meta.getInt(Metadata.FN_COLOR, 0));
+        Assert.assertEquals(6, meta.size());
+
+        Metadata expected = sample();
+        expected.remove(Metadata.FN_FRAGMENT);
+        expected.put(Metadata.FN_COLOR, 7);
+        Assert.assertEquals(expected.toString(), meta.toString());
+    }
+
+    @Test
+    public void stored() throws Exception {
+        Metadata meta = sample();
+        Assert.assertEquals(meta.toString(), meta.toStoredString());
+        LC.zimbra_mailbox_indexed_metadata.setDefault(true);
+        try {
+            Assert.assertEquals(Metadata.toIndexed(meta.toString()), meta.toStoredString());
+        } finally {
+            LC.zimbra_mailbox_indexed_metadata.setDefault(false);
+        }
+    }
+
+    @Test
+    public void empty() throws Exception {
+        String indexed = Metadata.toIndexed(new Metadata().toString());
+        Assert.assertEquals("~1|", indexed);
+        Metadata meta = new Metadata(indexed);
+        Assert.assertTrue(meta.isEmpty());
+        Assert.assertNull(meta.get(Metadata.FN_COLOR, null));
+    }
+
+    @Test
+    public void invalid() throws Exception {
+        for (String encoded : new String[] { "~2|", "~1", "~11:a", "~11:a4:|i1e", "~11:b3:1:a3:|i1ei2e", "~1-1:a3:|i1e",
+                "~11:a3:1:b3:|xyzi2e", "~11:a5:|d1:ae", "~11:a3:|i1x", "~11:a0:|", "~11:a4:|3:ab" }) {
+            try {
+                new Metadata(encoded);
+                Assert.fail(encoded);
+            } catch (MailServiceException e) {
+                Assert.assertEquals(encoded, MailServiceException.INVALID_METADATA, e.getCode());
+            }
+        }
+        // metadata that isn't the encoding of a map is left as it is
+        String blob = "s=43:Roland Schemers <roland.schemers@gmail.com>;";
+        Assert.assertSame(blob, Metadata.toIndexed(blob));
+        Assert.assertNull(IndexedMetadata.transcode("d1:ai1e"));
+        Assert.assertNull(IndexedMetadata.transcode("di1ei2ee"));
+        Assert.assertNull(IndexedMetadata.transcode("d1:ai1eex"));
+    }
+}
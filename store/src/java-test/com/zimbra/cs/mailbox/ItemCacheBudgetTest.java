@@ -0,0 +1,99 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link ItemCacheBudget}.
+ */
+public final class ItemCacheBudgetTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ItemCacheBudget.setBudget(Runtime.getRuntime().maxMemory() / 10, 256 * 1024);
+    }
+
+    @Test
+    public void weigh() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Message small = addMessage(mbox, "s");
+        Message large = addMessage(mbox, new String(new char[4096]).replace('\0', 'x'));
+        Assert.assertTrue(ItemCacheBudget.weigh(small) > 0);
+        Assert.assertTrue(ItemCacheBudget.weigh(large) >= ItemCacheBudget.weigh(small) + 8192);
+    }
+
+    @Test
+    public void evictsColdestWhenOverShare() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Message> msgs = new ArrayList<Message>();
+        for (int i = 0; i < 20; i++) {
+            msgs.add(addMessage(mbox, "message " + i));
+        }
+        int weight = ItemCacheBudget.weigh(msgs.get(0));
+
+        final List<Integer> evicted = new ArrayList<Integer>();
+        ItemCacheBudget.setBudget(weight * 10, 1);
+        ConcurrentLinkedHashMap<Integer, MailItem> cache = ItemCacheBudget.newCache(
+                new EvictionListener<Integer, MailItem>() {
+                    @Override
+                    public void onEviction(Integer id, MailItem item) {
+                        evicted.add(id);
+                    }
+                });
+        for (Message msg : msgs) {
+            cache.put(msg.getId(), msg);
+        }
+
+        // the cache can never hold more than the whole budget, and overflow goes least recently used first
+        Assert.assertTrue(cache.weightedSize() <= weight * 10 + weight);
+        Assert.assertFalse(evicted.isEmpty());
+        Assert.assertEquals(msgs.get(0).getId(), evicted.get(0).intValue());
+        Assert.assertTrue(cache.containsKey(msgs.get(19).getId()));
+    }
+
+    private static Message addMessage(Mailbox mbox, String subject) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        ParsedMessage pm = new ParsedMessage(("Subject: " + subject + "\r\n\r\nbody").getBytes(), false);
+        return mbox.addMessage(null, pm, dopt, null);
+    }
+}
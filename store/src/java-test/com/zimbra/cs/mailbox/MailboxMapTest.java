@@ -0,0 +1,97 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.mailbox;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link MailboxManager.MailboxMap}.
+ */
+public final class MailboxMapTest {
+
+    @Test
+    public void evictedEntryStaysCached() {
+        MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(1);
+        Object first = new Object();
+        map.put(1, first);
+        for (int i = 2; i < 100; i++) {
+            map.put(i, new Object());
+        }
+        Assert.assertTrue(map.mHardMap.size() < 99);
+        Assert.assertSame(first, map.get(1));
+        Assert.assertEquals(99, map.size());
+    }
+
+    @Test
+    public void removeAfterEviction() {
+        MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(1);
+        Object first = new Object();
+        map.put(1, first);
+        for (int i = 2; i < 100; i++) {
+            map.put(i, new Object());
+        }
+        Assert.assertSame(first, map.remove(1));
+        Assert.assertNull(map.get(1));
+        Assert.assertFalse(map.containsKey(1));
+        Assert.assertFalse(map.values().contains(first));
+    }
+
+    /**
+     * Each thread owns a range of keys (as it would own their stripe locks in {@link MailboxManager}) and keeps
+     * caching and dropping them while the other threads force hard-tier evictions.  A removed key must never be
+     * visible again.
+     */
+    @Test
+    public void evictionRacingRemove() throws Exception {
+        final MailboxManager.MailboxMap map = new MailboxManager.MailboxMap(4);
+        final int threads = 8;
+        final int keysPerThread = 16;
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int base = t * keysPerThread;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 2000; round++) {
+                            int key = base + round % keysPerThread;
+                            map.put(key, new Object());
+                            map.remove(key);
+                            if (map.get(key) != null || map.containsKey(key)) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        Assert.assertEquals(0, failures.get());
+        Assert.assertTrue(map.isEmpty());
+        Assert.assertTrue(map.mHardMap.isEmpty());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.internet.MimeMessage;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link MessageCache}.
+ */
+public final class MessageCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void concurrentLoadsShareOneMessage() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        final Message msg = mbox.addMessage(null,
+                new ParsedMessage("Subject: concurrent\r\n\r\nbody".getBytes(), false), dopt, null);
+        MessageCache.purge(msg);
+        Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final MimeMessage[] results = new MimeMessage[16];
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        results[index] = MessageCache.getMimeMessage(msg, false);
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Assert.assertNull(error.get());
+        Assert.assertTrue(MessageCache.contains(msg.getDigest()));
+        MimeMessage cached = MessageCache.getMimeMessage(msg, false);
+        for (MimeMessage mm : results) {
+            Assert.assertSame(cached, mm);
+        }
+        Assert.assertEquals("concurrent", cached.getSubject());
+    }
+
+    @Test
+    public void purge() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg = mbox.addMessage(null, new ParsedMessage("Subject: purge\r\n\r\nbody".getBytes(), false), dopt, null);
+
+        MessageCache.getMimeMessage(msg, false);
+        Assert.assertTrue(MessageCache.contains(msg.getDigest()));
+        long dataSize = MessageCache.getDataSize();
+        MessageCache.purge(msg);
+        Assert.assertFalse(MessageCache.contains(msg.getDigest()));
+        Assert.assertTrue(MessageCache.getDataSize() <= dataSize);
+    }
+
+    @Test
+    public void weighsByDataSize() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        Message msg = mbox.addMessage(null, new ParsedMessage("Subject: weight\r\n\r\nbody".getBytes(), false), dopt, null);
+        MessageCache.purge(msg);
+
+        long dataSize = MessageCache.getDataSize();
+        MessageCache.getMimeMessage(msg, false);
+        Assert.assertEquals(dataSize + msg.getSize(), MessageCache.getDataSize());
+        MessageCache.purge(msg);
+        Assert.assertEquals(dataSize, MessageCache.getDataSize());
+    }
+}
@@ -36,6 +36,7 @@ import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.db.DbPool;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.db.DbUtil;
+import com.zimbra.cs.imap.ImapMessage;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.SearchParams;
@@ -185,4 +186,51 @@ public final class MessageTest {
         // make sure post flag is not set
         Assert.assertTrue((msg.getFlagBitmask() & Flag.FlagInfo.POST.toBitmask()) == 0);
     }
+
+    @Test
+    public void imapSummary() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions opt = new DeliveryOptions();
+        opt.setFolderId(Mailbox.ID_FOLDER_INBOX);
+        String raw = "From: Sender <sender@zimbra.com>\r\nTo: test@zimbra.com\r\nSubject: caf\u00e9\r\n" +
+                "Message-ID: <1@zimbra.com>\r\nMIME-Version: 1.0\r\n" +
+                "Content-Type: multipart/mixed; boundary=\"b\"\r\n\r\n" +
+                "--b\r\nContent-Type: text/plain; charset=utf-8\r\n\r\nline 1\r\nline 2\r\n" +
+                "--b\r\nContent-Type: application/octet-stream; name=a.bin\r\n" +
+                "Content-Disposition: attachment; filename=a.bin\r\nContent-Transfer-Encoding: base64\r\n\r\n" +
+                "AAECAw==\r\n--b--\r\n";
+        Message msg = mbox.addMessage(null, new ParsedMessage(raw.getBytes("utf-8"), false), opt, null);
+
+        // computed at delivery time, and the same as computed from the blob
+        String envelope = ImapMessage.getEnvelope(msg.getMimeMessage(false));
+        String bodyStructure = ImapMessage.getBodyStructure(msg.getMimeMessage(false));
+        Assert.assertNotNull(bodyStructure);
+        Assert.assertEquals(envelope, msg.getImapEnvelope());
+        Assert.assertEquals(bodyStructure, msg.getImapBodyStructure());
+
+        mbox.purge(MailItem.Type.MESSAGE);
+        msg = mbox.getMessageById(null, msg.getId());
+        Assert.assertEquals(envelope, msg.getImapEnvelope());
+        Assert.assertEquals(bodyStructure, msg.getImapBodyStructure());
+
+        // messages added before summaries were stored are backfilled without changing MODSEQ
+        mbox.beginTransaction("imapSummary", null);
+        try {
+            mbox.getMessageById(msg.getId()).setImapSummary(null, null);
+        } finally {
+            mbox.endTransaction(true);
+        }
+        mbox.purge(MailItem.Type.MESSAGE);
+        msg = mbox.getMessageById(null, msg.getId());
+        Assert.assertNull(msg.getImapBodyStructure());
+        int modseq = msg.getModifiedSequence();
+
+        Assert.assertTrue(mbox.addImapSummary(null, msg.getId()));
+        Assert.assertFalse(mbox.addImapSummary(null, msg.getId()));
+        mbox.purge(MailItem.Type.MESSAGE);
+        msg = mbox.getMessageById(null, msg.getId());
+        Assert.assertEquals(envelope, msg.getImapEnvelope());
+        Assert.assertEquals(bodyStructure, msg.getImapBodyStructure());
+        Assert.assertEquals(modseq, msg.getModifiedSequence());
+    }
 }
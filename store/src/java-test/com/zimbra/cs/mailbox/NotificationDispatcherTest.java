@@ -0,0 +1,179 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.Session;
+
+/**
+ * Unit test for {@link NotificationDispatcher}.
+ */
+public final class NotificationDispatcherTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    /**
+     * Records the change IDs it is notified of.
+     */
+    private static final class RecordingSession extends Session {
+        final List<Integer> changeIds = new ArrayList<Integer>();
+        private final long delay;
+
+        RecordingSession(long delay) {
+            super(MockProvisioning.DEFAULT_ACCOUNT_ID, Session.Type.NULL);
+            this.delay = delay;
+        }
+
+        @Override
+        protected boolean isMailboxListener() {
+            return true;
+        }
+
+        @Override
+        protected boolean isRegisteredInCache() {
+            return false;
+        }
+
+        @Override
+        protected long getSessionIdleLifetime() {
+            return 0;
+        }
+
+        @Override
+        public void notifyPendingChanges(PendingModifications pns, int changeId, Session source) {
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (changeIds) {
+                changeIds.add(changeId);
+            }
+        }
+
+        @Override
+        protected void cleanup() {
+        }
+    }
+
+    private static void awaitDelivery(Mailbox mbox) throws InterruptedException {
+        for (int i = 0; i < 1000 && mbox.hasPendingNotifications(); i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse("notifications still pending", mbox.hasPendingNotifications());
+    }
+
+    @Test
+    public void ordering() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountById(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        List<RecordingSession> sessions = new ArrayList<RecordingSession>();
+        for (int i = 0; i < 4; i++) {
+            // a slow session makes the queue back up behind it
+            RecordingSession session = new RecordingSession(i == 0 ? 2 : 0);
+            session.register();
+            sessions.add(session);
+        }
+        int start = mbox.getLastChangeID();
+
+        final Exception[] error = new Exception[1];
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int writer = t;
+            writers.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 25; i++) {
+                            mbox.createFolder(null, "folder-" + writer + "-" + i, new Folder.FolderOptions());
+                        }
+                    } catch (Exception e) {
+                        error[0] = e;
+                    }
+                }
+            });
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Assert.assertNull(error[0]);
+        awaitDelivery(mbox);
+
+        int end = mbox.getLastChangeID();
+        for (RecordingSession session : sessions) {
+            Assert.assertTrue(session.changeIds.size() >= 100);
+            Assert.assertEquals(sessions.get(0).changeIds, session.changeIds);
+            int prev = start;
+            for (int changeId : session.changeIds) {
+                Assert.assertTrue(changeId + " after " + prev, changeId > prev);
+                prev = changeId;
+            }
+            Assert.assertEquals(end, prev);
+            session.unregister();
+        }
+    }
+
+    @Test
+    public void sourceNotifiedBeforeReturn() throws Exception {
+        Account acct = Provisioning.getInstance().getAccountById(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        RecordingSession slow = new RecordingSession(50);
+        slow.register();
+        RecordingSession source = new RecordingSession(0);
+        source.register();
+
+        OperationContext octxt = new OperationContext(acct).setSession(source);
+        for (int i = 0; i < 3; i++) {
+            mbox.createFolder(octxt, "folder" + i, new Folder.FolderOptions());
+            // the slow session is still being notified, but the writer's own session is up to date
+            synchronized (source.changeIds) {
+                Assert.assertEquals(mbox.getLastChangeID(), (int) source.changeIds.get(source.changeIds.size() - 1));
+            }
+        }
+        awaitDelivery(mbox);
+        Assert.assertEquals(source.changeIds, slow.changeIds);
+
+        slow.unregister();
+        source.unregister();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+
+/**
+ * Unit test for {@link PurgeThread}.
+ */
+public final class PurgeThreadTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        Provisioning prov = Provisioning.getInstance();
+        prov.deleteAccount(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        prov.getLocalServer().setMailPurgeSleepInterval("1ms");
+    }
+
+    @Test
+    public void backOff() throws Exception {
+        LC.purge_max_backoff_ms.setDefault(4000);
+        try {
+            PurgeThread.SoapLatencyThrottle throttle = new PurgeThread.SoapLatencyThrottle(0, 0, 0);
+            // slow requests, but not sampled yet
+            Assert.assertEquals(0, throttle.getBackOff(500, 10, 50000));
+            // twice as long each time SOAP requests average over 1s, up to the max
+            Assert.assertEquals(1000, throttle.getBackOff(1000, 10, 20000));
+            Assert.assertEquals(2000, throttle.getBackOff(2000, 20, 40000));
+            Assert.assertEquals(4000, throttle.getBackOff(3000, 30, 60000));
+            Assert.assertEquals(4000, throttle.getBackOff(4000, 40, 80000));
+            Assert.assertEquals(4000, throttle.getBackOff(4500, 50, 100000));
+            // half as long once they are fast again, or there are none
+            Assert.assertEquals(2000, throttle.getBackOff(5000, 50, 80500));
+            Assert.assertEquals(1000, throttle.getBackOff(6000, 50, 80500));
+            Assert.assertEquals(500, throttle.getBackOff(7000, 60, 81000));
+        } finally {
+            LC.purge_max_backoff_ms.setDefault(Constants.MILLIS_PER_MINUTE);
+        }
+    }
+
+    @Test
+    public void noBackOff() throws Exception {
+        LC.purge_max_soap_latency_ms.setDefault(0);
+        try {
+            PurgeThread.SoapLatencyThrottle throttle = new PurgeThread.SoapLatencyThrottle(0, 0, 0);
+            Assert.assertEquals(0, throttle.getBackOff(1000, 10, 20000));
+            Assert.assertEquals(0, throttle.getBackOff(2000, 20, 40000));
+        } finally {
+            LC.purge_max_soap_latency_ms.setDefault(1000);
+        }
+    }
+
+    @Test
+    public void cycle() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        Account acct1 = prov.createAccount("test1@zimbra.com", "secret", new HashMap<String, Object>());
+        Account acct2 = prov.createAccount("test2@zimbra.com", "secret", new HashMap<String, Object>());
+        int id1 = MailboxManager.getInstance().getMailboxByAccount(acct1).getId();
+        int id2 = MailboxManager.getInstance().getMailboxByAccount(acct2).getId();
+
+        // the mailbox that doesn't exist fails, the others are purged
+        PurgeThread.Cycle cycle = runCycle(id1, id2, 9999);
+        Assert.assertEquals(3, cycle.scheduled);
+        Assert.assertEquals(3, cycle.attempted.get());
+        Assert.assertEquals(2, cycle.purged.get());
+        Assert.assertEquals(0, cycle.rescheduled.get());
+        Assert.assertEquals(0, cycle.moved.get());
+        Assert.assertEquals(1, cycle.failed.get());
+        Assert.assertTrue(cycle.mailboxIds.isEmpty());
+    }
+
+    @Test
+    public void movedMailbox() throws Exception {
+        Account acct = Provisioning.getInstance().createAccount("test@zimbra.com", "secret",
+                new HashMap<String, Object>());
+        int id = MailboxManager.getInstance().getMailboxByAccount(acct).getId();
+        MailboxManager.getInstance().clearCache();
+        acct.setMailHost("otherhost");
+
+        PurgeThread.Cycle cycle = runCycle(id);
+        Assert.assertEquals(1, cycle.attempted.get());
+        Assert.assertEquals(0, cycle.purged.get());
+        Assert.assertEquals(1, cycle.moved.get());
+        Assert.assertEquals(0, cycle.failed.get());
+    }
+
+    @Test
+    public void staleFirst() throws Exception {
+        Provisioning prov = Provisioning.getInstance();
+        Mailbox mbox1 = MailboxManager.getInstance().getMailboxByAccount(
+                prov.createAccount("test1@zimbra.com", "secret", new HashMap<String, Object>()));
+        Mailbox mbox2 = MailboxManager.getInstance().getMailboxByAccount(
+                prov.createAccount("test2@zimbra.com", "secret", new HashMap<String, Object>()));
+        long start = System.currentTimeMillis() / 1000 * 1000;
+        Assert.assertTrue(mbox1.purgeMessages(null));
+
+        // same size, so in mailbox id order unless one wasn't purged since the last cycle started
+        PurgeThread purgeThread = new PurgeThread();
+        Set<Integer> none = Collections.emptySet();
+        Assert.assertEquals(Arrays.asList(mbox1.getId(), mbox2.getId()), purgeThread.getMailboxIds(none, 0));
+        Assert.assertEquals(Arrays.asList(mbox2.getId(), mbox1.getId()), purgeThread.getMailboxIds(none, start));
+    }
+
+    /**
+     * Runs a purge cycle over the given mailboxes, all of them overdue, on two workers.
+     */
+    private static PurgeThread.Cycle runCycle(Integer... mailboxIds) {
+        PurgeThread.Cycle cycle = new PurgeThread.Cycle(Arrays.asList(mailboxIds),
+                new HashSet<Integer>(Arrays.asList(mailboxIds)));
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        try {
+            new PurgeThread().runCycle(cycle, workers, 2);
+        } finally {
+            workers.shutdownNow();
+        }
+        return cycle;
+    }
+}
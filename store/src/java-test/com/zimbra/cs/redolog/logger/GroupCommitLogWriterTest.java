@@ -0,0 +1,189 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.CommitId;
+import com.zimbra.cs.redolog.RedoCommitCallback;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.SetActiveSyncDisabled;
+
+public class GroupCommitLogWriterTest {
+
+    private File dir;
+    private File logfile;
+    private RedoLogManager mgr;
+    private GroupCommitLogWriter writer;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDir();
+        logfile = new File(dir, "redo.log");
+        mgr = new RedoLogManager(logfile, new File(dir, "archive"), false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        FileUtil.deleteDir(dir);
+    }
+
+    private GroupCommitLogWriter open(long fsyncIntervalMS) throws Exception {
+        writer = new GroupCommitLogWriter(mgr, logfile, fsyncIntervalMS);
+        writer.open();
+        return writer;
+    }
+
+    private static RedoableOp newOp(int mailboxId, int size) {
+        RedoableOp op = new SetActiveSyncDisabled(mailboxId, 2, false);
+        // the writer only copies bytes, so any payload will do
+        op.setSerializedByteArray(new byte[size]);
+        return op;
+    }
+
+    private void log(RedoableOp op, boolean synchronous) throws Exception {
+        writer.log(op, op.getInputStream(), synchronous);
+    }
+
+    /**
+     * A commit made while an earlier one is waiting for its fsync joins the same batch, as long as it comes within
+     * the fsync interval.
+     */
+    @Test
+    public void batchesWithinInterval() throws Exception {
+        open(500);
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    log(newOp(1, 100), true);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        first.start();
+        Thread.sleep(50);
+        log(newOp(2, 100), true);
+        first.join();
+        Assert.assertEquals(1, writer.getFsyncCount());
+        Assert.assertEquals(2, writer.getLogCount());
+    }
+
+    /**
+     * Synchronous callers only return once their op is on disk.
+     */
+    @Test
+    public void synchronousAfterFsync() throws Exception {
+        open(20);
+        for (int i = 1; i <= 5; i++) {
+            log(newOp(i, 100), true);
+            Assert.assertEquals(i, writer.getFsyncCount());
+        }
+    }
+
+    /**
+     * Ops logged asynchronously, with nobody waiting on them, still reach the disk within an interval.
+     */
+    @Test
+    public void flushesAsyncOnInterval() throws Exception {
+        open(50);
+        log(newOp(1, 100), false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writer.getFsyncCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, writer.getFsyncCount());
+    }
+
+    /**
+     * A batch filling half the write buffer is fsynced without waiting out the interval.
+     */
+    @Test
+    public void flushesWhenBufferFills() throws Exception {
+        LC.redolog_group_commit_buffer_size_kb.setDefault(4);
+        try {
+            open(1000);
+        } finally {
+            LC.redolog_group_commit_buffer_size_kb.setDefault(1024);
+        }
+        long start = System.currentTimeMillis();
+        log(newOp(1, 3 * 1024), true);
+        Assert.assertTrue(System.currentTimeMillis() - start < 900);
+        Assert.assertEquals(1, writer.getFsyncCount());
+    }
+
+    /**
+     * Commit callbacks run in commit order, and only after the fsync covering the commit record.
+     */
+    @Test
+    public void callbacksInCommitOrder() throws Exception {
+        open(20);
+        final int count = 50;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Long> fsyncs = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch done = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            final int n = i;
+            RedoableOp op = newOp(1, 100);
+            op.setCommitCallback(new RedoCommitCallback() {
+                @Override
+                public void callback(CommitId cid) {
+                    order.add(n);
+                    fsyncs.add(writer.getFsyncCount());
+                    done.countDown();
+                }
+            });
+            log(op, false);
+            CommitTxn commit = new CommitTxn(op);
+            commit.setSerializedByteArray(new byte[20]);
+            log(commit, false);
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(i, order.get(i).intValue());
+            Assert.assertTrue(fsyncs.get(i) > 0);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.op.DeleteItemFromDumpster;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.RenameMailbox;
+
+public class MappedFileLogReaderTest {
+
+    private File logfile;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        logfile = File.createTempFile("redo", ".log");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        logfile.delete();
+    }
+
+    /**
+     * Writes enough ops to span several chunks, with op data that contains
+     * the op magic marker, and verifies the parallel reader returns the same
+     * ops at the same offsets as {@link FileLogReader}.
+     */
+    @Test
+    public void sameOpsAsFileLogReader() throws Exception {
+        writeLog(5000, null);
+        List<String> expected = readAll(new FileLogReader(logfile));
+        List<String> actual = readAll(new MappedFileLogReader(logfile, false, 4, 64 * 1024));
+        Assert.assertEquals(5000, expected.size());
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void skipsJunk() throws Exception {
+        writeLog(3000, "junk between ops");
+        List<String> expected = readAll(new FileLogReader(logfile));
+        List<String> actual = readAll(new MappedFileLogReader(logfile, false, 4, 64 * 1024));
+        Assert.assertEquals(3000, expected.size());
+        Assert.assertEquals(expected, actual);
+    }
+
+    @Test
+    public void truncatedLastOp() throws Exception {
+        writeLog(2000, null);
+        RandomAccessFile raf = new RandomAccessFile(logfile, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        LogReader reader = new MappedFileLogReader(logfile, true, 4, 64 * 1024);
+        reader.open();
+        int count = 0;
+        long lastPosition = 0;
+        try {
+            while (reader.getNextOp() != null) {
+                count++;
+                lastPosition = reader.position();
+            }
+            Assert.fail("expected EOF in the middle of the last op");
+        } catch (IOException e) {
+            reader.truncate(lastPosition);
+        } finally {
+            reader.close();
+        }
+        Assert.assertEquals(1999, count);
+        Assert.assertEquals(lastPosition, logfile.length());
+        Assert.assertEquals(1999, readAll(new FileLogReader(logfile)).size());
+    }
+
+    /**
+     * A corrupt element count must fail like a truncated op instead of being
+     * allocated.
+     */
+    @Test
+    public void corruptCount() throws Exception {
+        writeLog(2000, null);
+        RandomAccessFile raf = new RandomAccessFile(logfile, "rw");
+        try {
+            RedoableOp op = new DeleteItemFromDumpster(1, new int[] { 1 });
+            op.start(System.currentTimeMillis());
+            byte[] data = ByteUtil.getContent(op.getInputStream(), 0);
+            // overwrite the id count, which is followed by the single id
+            ByteBuffer.wrap(data).putInt(data.length - 8, Integer.MAX_VALUE / 4);
+            raf.seek(raf.length());
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+
+        LogReader reader = new MappedFileLogReader(logfile, false, 4, 64 * 1024);
+        reader.open();
+        int count = 0;
+        try {
+            while (reader.getNextOp() != null) {
+                count++;
+            }
+            Assert.fail("expected EOF at the corrupt op");
+        } catch (EOFException e) {
+        } finally {
+            reader.close();
+        }
+        Assert.assertEquals(2000, count);
+    }
+
+    @Test
+    public void sharedDecoderPool() throws Exception {
+        writeLog(3000, null);
+        List<String> expected = readAll(new FileLogReader(logfile));
+        ExecutorService pool = MappedFileLogReader.newDecoderPool(4);
+        try {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertEquals(expected, readAll(new MappedFileLogReader(logfile, false, pool, 4, 64 * 1024)));
+            }
+            Assert.assertFalse(pool.isShutdown());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void writeLog(int numOps, String junk) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(logfile, "rw");
+        try {
+            FileHeader header = new FileHeader("test");
+            header.write(raf);
+            raf.seek(FileHeader.HEADER_LEN);
+            for (int i = 0; i < numOps; i++) {
+                // The names contain the op magic marker to trip up speculative decoding.
+                RedoableOp op = new RenameMailbox(i + 1, "old" + RedoableOp.REDO_MAGIC + i, RedoableOp.REDO_MAGIC);
+                op.start(System.currentTimeMillis());
+                raf.write(ByteUtil.getContent(op.getInputStream(), 0));
+                if (junk != null && i % 500 == 250) {
+                    raf.write(junk.getBytes());
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private List<String> readAll(LogReader reader) throws IOException {
+        List<String> ops = new ArrayList<String>();
+        reader.open();
+        try {
+            RedoableOp op;
+            while ((op = reader.getNextOp()) != null) {
+                ops.add(reader.getLastOpStartOffset() + "-" + reader.position() + ":" + op);
+            }
+        } finally {
+            reader.close();
+        }
+        return ops;
+    }
+}
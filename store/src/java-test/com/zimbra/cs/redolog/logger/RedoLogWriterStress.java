@@ -0,0 +1,133 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.redolog.op.SetActiveSyncDisabled;
+
+/**
+ * Stress harness comparing synchronous logging throughput of
+ * {@link FileLogWriter} and {@link GroupCommitLogWriter}.  Each thread logs
+ * ops for its own mailbox, as concurrent LMTP deliveries would.  {@link GroupCommitLogWriterTest}
+ * covers the batching itself.
+ * <p>
+ * Usage: {@code java com.zimbra.cs.redolog.logger.RedoLogWriterStress [dir] [threads] [ops per thread] [op bytes]}
+ */
+public class RedoLogWriterStress {
+
+    private final File dir;
+    private final int numThreads;
+    private final int opsPerThread;
+    private final int opSize;
+
+    public RedoLogWriterStress(File dir, int numThreads, int opsPerThread, int opSize) {
+        this.dir = dir;
+        this.numThreads = numThreads;
+        this.opsPerThread = opsPerThread;
+        this.opSize = opSize;
+    }
+
+    public void run(long fsyncIntervalMS) throws Exception {
+        runWriter("FileLogWriter", fsyncIntervalMS, false);
+        runWriter("GroupCommitLogWriter", fsyncIntervalMS, true);
+    }
+
+    private void runWriter(String name, long fsyncIntervalMS, boolean groupCommit) throws Exception {
+        File logdir = new File(dir, name);
+        FileUtil.deleteDir(logdir);
+        FileUtil.ensureDirExists(logdir);
+        File logfile = new File(logdir, "redo.log");
+        RedoLogManager mgr = new RedoLogManager(logfile, new File(logdir, "archive"), false);
+
+        final LogWriter writer = groupCommit ?
+                new GroupCommitLogWriter(mgr, logfile, fsyncIntervalMS) :
+                new FileLogWriter(mgr, logfile, fsyncIntervalMS);
+        writer.open();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final RedoableOp op = newOp(i + 1);
+            threads[i] = new Thread(name + "-" + i) {
+                @Override public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < opsPerThread; n++) {
+                            writer.log(op, op.getInputStream(), true);
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        if (error.get() != null) {
+            throw new IOException(name + " failed", error.get());
+        }
+
+        long total = (long) numThreads * opsPerThread;
+        String fsyncs = writer instanceof GroupCommitLogWriter ?
+                String.valueOf(((GroupCommitLogWriter) writer).getFsyncCount()) : "n/a";
+        writer.close();
+
+        p("%-22s threads=%d ops=%d size=%dB elapsed=%dms ops/sec=%.0f fsyncs=%s",
+                name, numThreads, total, opSize, elapsed / 1000000, total * 1e9 / elapsed, fsyncs);
+        FileUtil.deleteDir(logdir);
+    }
+
+    private RedoableOp newOp(int mailboxId) {
+        RedoableOp op = new SetActiveSyncDisabled(mailboxId, 2, false);
+        // The writers only copy bytes, so a random payload of the desired size will do.
+        byte[] data = new byte[opSize];
+        new Random(mailboxId).nextBytes(data);
+        op.setSerializedByteArray(data);
+        return op;
+    }
+
+    private static void p(String fmt, Object... args) {
+        System.out.println(String.format(fmt, args));
+    }
+
+    public static void main(String[] args) throws Exception {
+        MailboxTestUtil.initServer();
+        File dir = new File(args.length > 0 ? args[0] : "/tmp/redolog-stress");
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int ops = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int size = args.length > 3 ? Integer.parseInt(args[3]) : 512;
+        RedoLogWriterStress stress = new RedoLogWriterStress(dir, threads, ops, size);
+        stress.run(0);
+        stress.run(10);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.server;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+import com.zimbra.common.util.ByteUtil;
+
+/**
+ * Measures the loopback throughput of sending a blob file through {@link NioOutputStream}, the way FETCH BODY[] and
+ * RETR used to (copying an InputStream), as a file region, and in chunks as when TLS is on.
+ * <p>
+ * Usage: {@code java com.zimbra.cs.server.NioFileTransferBenchmark [size in KB] [iterations]}
+ */
+public class NioFileTransferBenchmark {
+
+    private interface Sender {
+        void send(NioOutputStream out, File file) throws IOException;
+    }
+
+    private static final Sender STREAM = new Sender() {
+        @Override
+        public void send(NioOutputStream out, File file) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                ByteUtil.copy(in, false, out, false);
+            } finally {
+                ByteUtil.closeStream(in);
+            }
+        }
+    };
+
+    private static final Sender FILE = new Sender() {
+        @Override
+        public void send(NioOutputStream out, File file) throws IOException {
+            out.write(new FileInputStream(file), 0, file.length());
+        }
+    };
+
+    private static void run(String name, Sender sender, boolean filtered, File file, final int iterations)
+    throws Exception {
+        NioSocketAcceptor acceptor = new NioSocketAcceptor();
+        if (filtered) { // any filter outside NioServer's own rules out the file region
+            acceptor.getFilterChain().addLast("passthrough", new IoFilterAdapter());
+        }
+        final BlockingQueue<IoSession> sessions = new LinkedBlockingQueue<IoSession>();
+        acceptor.setHandler(new IoHandlerAdapter() {
+            @Override
+            public void sessionOpened(IoSession session) {
+                sessions.add(session);
+            }
+        });
+        acceptor.bind(new InetSocketAddress("127.0.0.1", 0));
+        final Socket socket = new Socket("127.0.0.1", acceptor.getLocalAddress().getPort());
+        try {
+            NioOutputStream out = new NioOutputStream(sessions.take(), 8192, 1024 * 1024, 0);
+            final long total = file.length() * iterations;
+            final IOException[] error = new IOException[1];
+            Thread client = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[65536];
+                    try {
+                        InputStream in = socket.getInputStream();
+                        for (long remaining = total; remaining > 0; ) {
+                            int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                            if (n < 0) {
+                                throw new EOFException();
+                            }
+                            remaining -= n;
+                        }
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                }
+            };
+            client.start();
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sender.send(out, file);
+            }
+            out.flush();
+            client.join();
+            long elapsed = System.nanoTime() - start;
+            if (error[0] != null) {
+                throw error[0];
+            }
+            System.out.println(String.format("%-8s %8.1f MB/s", name, total / 1048576.0 / (elapsed / 1000000000.0)));
+        } finally {
+            socket.close();
+            acceptor.dispose();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 10 * 1024;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        File file = File.createTempFile("blob", ".eml");
+        file.deleteOnExit();
+        byte[] kb = new byte[1024];
+        new Random(0).nextBytes(kb);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < size; i++) {
+                os.write(kb);
+            }
+        } finally {
+            os.close();
+        }
+
+        run("warmup", FILE, false, file, iterations);
+        run("stream", STREAM, false, file, iterations);
+        run("region", FILE, false, file, iterations);
+        run("chunked", FILE, true, file, iterations);
+    }
+}
@@ -16,14 +16,22 @@
  */
 package com.zimbra.cs.server;
 
+import java.io.File;
+import java.io.FileInputStream;
+
 import junit.framework.Assert;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.FileRegion;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.DummySession;
 import org.apache.mina.core.session.IoSession;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
 /**
  * Unit test for {@link NioOutputStream}.
  *
@@ -82,6 +90,37 @@ public final class NioOutputStreamTest {
         out.close();
     }
 
+    @Test
+    public void writeFile() throws Exception {
+        File file = File.createTempFile("nio", ".eml");
+        file.deleteOnExit();
+        Files.write("1234567890123", file, Charsets.US_ASCII);
+
+        DummySession session = new DummySession();
+        TestIoHandler handler = new TestIoHandler();
+        session.setHandler(handler);
+        NioOutputStream out = new NioOutputStream(session, 10, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        out.write("{12}");
+        out.write(new FileInputStream(file), 1, 12);
+        out.write(")");
+        out.close();
+        Assert.assertEquals(3, handler.getWriteCount());
+        Assert.assertEquals("{12}<1+12>)", handler.toString());
+
+        // a filter that may rewrite the bytes rules out the file region
+        session = new DummySession();
+        handler = new TestIoHandler();
+        session.setHandler(handler);
+        session.getFilterChain().addFirst("ssl", new IoFilterAdapter());
+        out = new NioOutputStream(session, 10, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        out.write("{12}");
+        out.write(new FileInputStream(file), 1, 12);
+        out.write(")");
+        out.close();
+        Assert.assertEquals(4, handler.getWriteCount());
+        Assert.assertEquals("{12}234567890123)", handler.toString());
+    }
+
     private static final class TestIoHandler extends IoHandlerAdapter {
         private int writes = 0;
         private StringBuilder out = new StringBuilder();
@@ -89,6 +128,12 @@ public final class NioOutputStreamTest {
         @Override
         public void messageSent(IoSession session, Object message) {
             writes++;
+            if (message instanceof FileRegion) {
+                FileRegion region = (FileRegion) message;
+                long written = region.getWrittenBytes();
+                out.append('<').append(region.getPosition() - written).append('+').append(written).append('>');
+                return;
+            }
             IoBuffer buf = (IoBuffer) message;
             while (buf.hasRemaining()) {
                 out.append((char) buf.get());
@@ -0,0 +1,163 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ChangeMeta;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+import com.zimbra.cs.session.PendingModifications.ModificationKeyMeta;
+
+/**
+ * Compares encode/decode time and size of a {@link PendingModifications} sent to the other servers with sessions on a
+ * mailbox, with Java serialization of {@link ModificationKeyMeta} and {@link ChangeMeta} maps as older servers send
+ * it, and {@link PendingModificationsSerializer}.
+ * <p>
+ * Usage: {@code java com.zimbra.cs.session.PendingModificationsSerializeBenchmark [changes] [iterations]}
+ */
+public class PendingModificationsSerializeBenchmark {
+
+    private interface Codec {
+        byte[] encode(PendingModifications pms) throws Exception;
+    }
+
+    private static final Codec JAVA = new Codec() {
+        @Override
+        public byte[] encode(PendingModifications pms) throws Exception {
+            LinkedHashMap<ModificationKeyMeta, String> metaCreated = null;
+            if (pms.created != null) {
+                metaCreated = new LinkedHashMap<ModificationKeyMeta, String>();
+                for (Map.Entry<ModificationKey, MailItem> entry : pms.created.entrySet()) {
+                    metaCreated.put(toMeta(entry.getKey()), entry.getValue().serializeUnderlyingData().toString());
+                }
+            }
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(bout);
+            oout.writeObject(pms.changedTypes);
+            oout.writeObject(metaCreated);
+            oout.writeObject(toMeta(pms.modified));
+            oout.writeObject(toMeta(pms.deleted));
+            oout.close();
+            return bout.toByteArray();
+        }
+    };
+
+    private static final Codec BINARY = new Codec() {
+        @Override
+        public byte[] encode(PendingModifications pms) throws Exception {
+            return PendingModificationsSerializer.encode(pms);
+        }
+    };
+
+    private static ModificationKeyMeta toMeta(ModificationKey key) {
+        return new ModificationKeyMeta(key.getAccountId(), key.getItemId());
+    }
+
+    private static ChangeMeta.ObjectType typeOf(Object obj) {
+        if (obj instanceof MailItem) {
+            return ChangeMeta.ObjectType.MAILITEM;
+        } else if (obj instanceof MailItem.Type) {
+            return ChangeMeta.ObjectType.MAILITEMTYPE;
+        } else if (obj instanceof Mailbox) {
+            return ChangeMeta.ObjectType.MAILBOX;
+        } else {
+            return null;
+        }
+    }
+
+    private static String metaOf(Object obj) {
+        if (obj instanceof MailItem) {
+            return ((MailItem) obj).serializeUnderlyingData().toString();
+        } else if (obj instanceof MailItem.Type) {
+            return ((MailItem.Type) obj).name();
+        } else {
+            return null;
+        }
+    }
+
+    private static Map<ModificationKeyMeta, ChangeMeta> toMeta(Map<ModificationKey, Change> changes) {
+        if (changes == null) {
+            return null;
+        }
+        Map<ModificationKeyMeta, ChangeMeta> ret = new LinkedHashMap<ModificationKeyMeta, ChangeMeta>();
+        for (Map.Entry<ModificationKey, Change> entry : changes.entrySet()) {
+            Change change = entry.getValue();
+            ret.put(toMeta(entry.getKey()), new ChangeMeta(typeOf(change.what), metaOf(change.what), change.why,
+                    typeOf(change.preModifyObj), metaOf(change.preModifyObj)));
+        }
+        return ret;
+    }
+
+    private static void run(String name, Codec codec, Mailbox mbox, PendingModifications pms, int iterations)
+            throws Exception {
+        byte[] data = codec.encode(pms);
+        PendingModifications.deserialize(mbox, data); // warm up
+        long encode = 0, decode = 0;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            data = codec.encode(pms);
+            encode += System.nanoTime() - start;
+            start = System.nanoTime();
+            PendingModifications.deserialize(mbox, data);
+            decode += System.nanoTime() - start;
+        }
+        System.out.println(String.format("%-8s %10d bytes  %8.3f ms encode  %8.3f ms decode", name, data.length,
+                encode / 1000000.0 / iterations, decode / 1000000.0 / iterations));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int changes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+
+        // a batch of folder changes: a third created, a third renamed, a third deleted
+        PendingModifications pms = new PendingModifications();
+        for (int i = 0; i < changes; i++) {
+            Folder folder = mbox.createFolder(null, "folder" + i, new Folder.FolderOptions());
+            switch (i % 3) {
+                case 0:
+                    pms.recordCreated(folder);
+                    break;
+                case 1:
+                    pms.recordModified(folder, Change.NAME, folder.snapshotItem());
+                    break;
+                default:
+                    pms.recordDeleted(MockProvisioning.DEFAULT_ACCOUNT_ID, folder.getId(), MailItem.Type.FOLDER);
+                    break;
+            }
+        }
+        pms.recordModified(mbox, Change.CONFIG);
+
+        run("java", JAVA, mbox, pms, iterations);
+        run("binary", BINARY, mbox, pms, iterations);
+    }
+}
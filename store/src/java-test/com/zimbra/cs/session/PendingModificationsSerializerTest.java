@@ -0,0 +1,195 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Tag;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ChangeMeta;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+import com.zimbra.cs.session.PendingModifications.ModificationKeyMeta;
+
+/**
+ * Unit test for {@link PendingModificationsSerializer}.
+ */
+public final class PendingModificationsSerializerTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.createFolder(null, "foo", new Folder.FolderOptions());
+        Tag tag = mbox.createTag(null, "bar", (byte) 0);
+
+        PendingModifications pms = new PendingModifications();
+        pms.recordCreated(folder);
+        pms.recordModified(tag, Change.NAME | Change.COLOR, tag.snapshotItem());
+        pms.recordModified(mbox, Change.CONFIG);
+        pms.recordDeleted(MockProvisioning.DEFAULT_ACCOUNT_ID, 1234, MailItem.Type.MESSAGE);
+
+        byte[] data = PendingModificationsSerializer.encode(pms);
+        Assert.assertTrue(PendingModificationsSerializer.isEncoded(data));
+        PendingModifications copy = PendingModifications.deserialize(mbox, data);
+
+        Assert.assertEquals(pms.changedTypes, copy.changedTypes);
+        Assert.assertEquals(pms.created.keySet(), copy.created.keySet());
+        MailItem created = copy.created.get(new ModificationKey(folder));
+        Assert.assertTrue(created instanceof Folder);
+        Assert.assertEquals("foo", created.getName());
+        Assert.assertEquals(folder.getFolderId(), ((Folder) created).getParent().getId());
+
+        Assert.assertEquals(pms.modified.keySet(), copy.modified.keySet());
+        Change tagChange = copy.modified.get(new ModificationKey(tag));
+        Assert.assertEquals(Change.NAME | Change.COLOR, tagChange.why);
+        Assert.assertEquals("bar", ((Tag) tagChange.what).getName());
+        Assert.assertEquals(tag.getId(), ((Tag) tagChange.preModifyObj).getId());
+        Change mboxChange = copy.modified.get(new ModificationKey(MockProvisioning.DEFAULT_ACCOUNT_ID, 0));
+        Assert.assertSame(mbox, mboxChange.what);
+        Assert.assertEquals(Change.CONFIG, mboxChange.why);
+        Assert.assertNull(mboxChange.preModifyObj);
+
+        Change deletion = copy.deleted.get(new ModificationKey(MockProvisioning.DEFAULT_ACCOUNT_ID, 1234));
+        Assert.assertEquals(MailItem.Type.MESSAGE, deletion.what);
+        Assert.assertNull(deletion.preModifyObj);
+    }
+
+    @Test
+    public void empty() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        PendingModifications pms = new PendingModifications();
+        pms.modified = new HashMap<ModificationKey, Change>();
+
+        PendingModifications copy = PendingModifications.deserialize(mbox, PendingModificationsSerializer.encode(pms));
+        Assert.assertTrue(copy.changedTypes.isEmpty());
+        Assert.assertNull(copy.created);
+        Assert.assertTrue(copy.modified.isEmpty());
+        Assert.assertNull(copy.deleted);
+    }
+
+    @Test
+    public void compact() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        PendingModifications pms = new PendingModifications();
+        pms.recordDeleted(MockProvisioning.DEFAULT_ACCOUNT_ID, 1234, MailItem.Type.MESSAGE);
+
+        byte[] data = PendingModificationsSerializer.encode(pms);
+        // version, 1 type, 1 account ID of 36 chars, no created or modified, 1 deletion: account index, item id in
+        // 2 bytes, type, why and no snapshot
+        Assert.assertEquals(1 + 2 + 38 + 1 + 1 + 1 + 1 + 2 + 2 + 1 + 1, data.length);
+        Change deletion = PendingModificationsSerializer.decode(mbox, data).deleted.get(
+                new ModificationKey(MockProvisioning.DEFAULT_ACCOUNT_ID, 1234));
+        Assert.assertEquals(MailItem.Type.MESSAGE, deletion.what);
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        PendingModifications pms = new PendingModifications();
+        pms.recordCreated(mbox.createFolder(null, "foo", new Folder.FolderOptions()));
+        byte[] data = PendingModificationsSerializer.encode(pms);
+        try {
+            PendingModificationsSerializer.decode(mbox, Arrays.copyOf(data, data.length - 5));
+            Assert.fail("decoded truncated data");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Change sets are sent Java-serialized unless the binary encoding is enabled, so servers predating it can decode
+     * them during a rolling upgrade.
+     */
+    @Test
+    public void encodingFlag() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        PendingModifications pms = new PendingModifications();
+        pms.recordCreated(mbox.createFolder(null, "foo", new Folder.FolderOptions()));
+
+        byte[] data = pms.getSerializedBytes();
+        Assert.assertFalse(PendingModificationsSerializer.isEncoded(data));
+        Assert.assertEquals(pms.created.keySet(), PendingModifications.deserialize(mbox, data).created.keySet());
+
+        LC.zimbra_mailbox_notify_binary_encoding.setDefault(true);
+        try {
+            Assert.assertTrue(PendingModificationsSerializer.isEncoded(pms.getSerializedBytes()));
+        } finally {
+            LC.zimbra_mailbox_notify_binary_encoding.setDefault(false);
+        }
+    }
+
+    /**
+     * Change sets from servers still sending Java-serialized maps are decoded as before.
+     */
+    @Test
+    public void legacy() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder folder = mbox.createFolder(null, "foo", new Folder.FolderOptions());
+
+        LinkedHashMap<ModificationKeyMeta, String> created = new LinkedHashMap<ModificationKeyMeta, String>();
+        created.put(new ModificationKeyMeta(MockProvisioning.DEFAULT_ACCOUNT_ID, folder.getId()),
+                folder.serializeUnderlyingData().toString());
+        Map<ModificationKeyMeta, ChangeMeta> modified = new LinkedHashMap<ModificationKeyMeta, ChangeMeta>();
+        modified.put(new ModificationKeyMeta(MockProvisioning.DEFAULT_ACCOUNT_ID, 0),
+                new ChangeMeta(ChangeMeta.ObjectType.MAILBOX, null, Change.CONFIG, null, null));
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(EnumSet.of(MailItem.Type.FOLDER));
+        oout.writeObject(created);
+        oout.writeObject(modified);
+        oout.writeObject(null);
+        oout.close();
+        byte[] data = bout.toByteArray();
+        Assert.assertFalse(PendingModificationsSerializer.isEncoded(data));
+
+        PendingModifications pms = PendingModifications.deserialize(mbox, data);
+        Assert.assertEquals(EnumSet.of(MailItem.Type.FOLDER), pms.changedTypes);
+        Assert.assertEquals("foo", pms.created.get(new ModificationKey(folder)).getName());
+        Assert.assertSame(mbox, pms.modified.get(new ModificationKey(MockProvisioning.DEFAULT_ACCOUNT_ID, 0)).what);
+        Assert.assertNull(pms.deleted);
+    }
+}
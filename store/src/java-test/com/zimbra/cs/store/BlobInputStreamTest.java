@@ -90,4 +90,34 @@ public class BlobInputStreamTest {
         Assert.assertFalse("file is gone", file.exists());
         Assert.assertNull("can't create substream after delete", bis.newStream(0, CONTENT.length));
     }
+
+    @Test
+    public void mapped() throws Exception {
+        File file = createTempFile();
+        FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
+
+        // the first read opens a file descriptor
+        BlobInputStream bis = new BlobInputStream(file, file.length());
+        Assert.assertEquals(CONTENT.length, bis.read(new byte[100]));
+        Assert.assertEquals("not mapped after one read", 0, fdc.getMappedSize());
+
+        // the blob is read again while its file descriptor is cached, so it gets mapped
+        bis = new BlobInputStream(file, file.length());
+        Assert.assertEquals('0', bis.read());
+        Assert.assertEquals("mapped on second read", CONTENT.length, fdc.getMappedSize());
+        byte[] buf = new byte[100];
+        Assert.assertEquals(9, bis.read(buf));
+        Assert.assertEquals("123456789", new String(buf, 0, 9));
+        Assert.assertEquals(-1, bis.read());
+
+        // substreams read from the mapping, even once the blob is gone from the caches
+        file.delete();
+        fdc.remove(file.getPath());
+        Assert.assertEquals("mapping dropped", 0, fdc.getMappedSize());
+        Assert.assertNull("not mapped again once removed", fdc.getMappedBuffer(file.getPath(), CONTENT.length));
+        InputStream substream = bis.newStream(2, 8);
+        Assert.assertEquals(6, substream.read(buf, 0, 100));
+        Assert.assertEquals("234567", new String(buf, 0, 6));
+        Assert.assertEquals(-1, substream.read(buf, 0, 100));
+    }
 }
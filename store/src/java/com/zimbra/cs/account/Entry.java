@@ -30,6 +30,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,6 +46,7 @@ import com.zimbra.client.ZJSONObject;
 import com.zimbra.common.account.ProvisioningConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.DateUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.AttributeManager.IDNType;
@@ -97,6 +100,7 @@ public abstract class Entry implements ToZJSONObject {
     private Map<String, Set<String>> mMultiAttrSetCache;
     private Map<String, Set<byte[]>> mMultiBinaryAttrSetCache;
     private Locale mLocale;
+    private volatile ConcurrentMap<String, ParsedAttr> mParsedAttrs;
     private final Provisioning mProvisioning;
     private AttributeManager mAttrMgr;
 
@@ -198,6 +202,99 @@ public abstract class Entry implements ToZJSONObject {
         if (mData != null)
             mData.clear();
         mLocale = null;
+        mParsedAttrs = null;
+    }
+
+    /**
+     * How the typed getters parse the string value of an attribute.  Returns
+     * <tt>null</tt> if the value can't be parsed.
+     */
+    private static enum AttrParser {
+        BOOLEAN {
+            @Override Object parse(String value) {
+                return ProvisioningConstants.TRUE.equals(value);
+            }
+        },
+        INT {
+            @Override Object parse(String value) {
+                try {
+                    return Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        },
+        LONG {
+            @Override Object parse(String value) {
+                try {
+                    if (MemoryUnitUtil.isMemoryUnit(value))
+                        return new MemoryUnitUtil(1024).convertToBytes(value);
+                    else
+                        return Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        },
+        TIME_INTERVAL {
+            @Override Object parse(String value) {
+                try {
+                    return DateUtil.getTimeInterval(value);
+                } catch (ServiceException e) {
+                    return null;
+                }
+            }
+        };
+
+        abstract Object parse(String value);
+    }
+
+    /**
+     * The parsed value of an attribute, and the string it was parsed from.
+     */
+    private static final class ParsedAttr {
+        final AttrParser parser;
+        final String raw;
+        final Object value;
+
+        ParsedAttr(AttrParser parser, String raw, Object value) {
+            this.parser = parser;
+            this.raw = raw;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Returns the parsed value of a single-valued attribute, with defaults
+     * applied, or <tt>null</tt> if it is not set or can't be parsed.
+     *
+     * The typed getters are called for the same few attributes on every
+     * request, so each value is only parsed once.  The value is still looked
+     * up every time, as the attribute maps of an entry and its defaults can be
+     * modified in place, and it is parsed again whenever it is not the same
+     * string as last time.
+     */
+    private Object getParsedAttr(String name, AttrParser parser, boolean skipEphemeralCheck) {
+        if (!skipEphemeralCheck && mAttrMgr.isEphemeral(name)) {
+            String v = getAttr(name, true, false);
+            return v == null ? null : parser.parse(v);
+        }
+        Object raw = getObject(name, true);
+        if (!(raw instanceof String)) {
+            String v = objectToString(raw);
+            return v == null ? null : parser.parse(v);
+        }
+        ConcurrentMap<String, ParsedAttr> parsedAttrs = mParsedAttrs;
+        if (parsedAttrs == null) {
+            parsedAttrs = new ConcurrentHashMap<String, ParsedAttr>(16, 0.75f, 1);
+            mParsedAttrs = parsedAttrs;
+        }
+        ParsedAttr parsed = parsedAttrs.get(name);
+        if (parsed == null || parsed.raw != raw || parsed.parser != parser) {
+            parsed = new ParsedAttr(parser, (String) raw, parser.parse((String) raw));
+            parsedAttrs.put(name, parsed);
+        }
+        return parsed.value;
     }
 
     /**
@@ -446,8 +543,8 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected boolean getBooleanAttr(String name, boolean defaultValue, boolean skipEphemeralCheck) {
-        String v = getAttr(name, true, skipEphemeralCheck);
-        return v == null ? defaultValue : ProvisioningConstants.TRUE.equals(v);
+        Boolean v = (Boolean) getParsedAttr(name, AttrParser.BOOLEAN, skipEphemeralCheck);
+        return v == null ? defaultValue : v;
     }
 
     public byte[] getBinaryAttr(String name) {
@@ -488,12 +585,8 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected int getIntAttr(String name, int defaultValue, boolean skipEphemeralCheck) {
-        String v = getAttr(name, true, skipEphemeralCheck);
-        try {
-            return v == null ? defaultValue : Integer.parseInt(v);
-        } catch (NumberFormatException e) {
-            return defaultValue;
-        }
+        Integer v = (Integer) getParsedAttr(name, AttrParser.INT, skipEphemeralCheck);
+        return v == null ? defaultValue : v;
     }
 
     public Locale getLocale() throws ServiceException {
@@ -523,15 +616,8 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected long getLongAttr(String name, long defaultValue, boolean skipEphemeralCheck) {
-        String v = getAttr(name, true, skipEphemeralCheck);
-        try {
-            if (MemoryUnitUtil.isMemoryUnit(v))
-                return new MemoryUnitUtil(1024).convertToBytes(v);
-            else
-                return v == null ? defaultValue : Long.parseLong(v);
-        } catch (NumberFormatException e) {
-            return defaultValue;
-        }
+        Long v = (Long) getParsedAttr(name, AttrParser.LONG, skipEphemeralCheck);
+        return v == null ? defaultValue : v;
     }
 
     /**
@@ -684,8 +770,8 @@ public abstract class Entry implements ToZJSONObject {
     }
 
     protected long getTimeInterval(String name, long defaultValue, boolean skipEphemeralCheck) {
-        String v = getAttr(name, true, skipEphemeralCheck);
-        return DateUtil.getTimeInterval(v, defaultValue);
+        Long v = (Long) getParsedAttr(name, AttrParser.TIME_INTERVAL, skipEphemeralCheck);
+        return v == null ? defaultValue : v;
     }
 
     /**
@@ -700,7 +786,8 @@ public abstract class Entry implements ToZJSONObject {
      * @return interval in seconds
      */
     public long getTimeIntervalSecs(String name, long defaultValue) {
-        return DateUtil.getTimeIntervalSecs(getAttr(name), defaultValue);
+        Long v = (Long) getParsedAttr(name, AttrParser.TIME_INTERVAL, false);
+        return v == null ? defaultValue : Math.round((float) v / Constants.MILLIS_PER_SECOND);
     }
 
     /**
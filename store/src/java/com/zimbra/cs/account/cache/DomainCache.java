@@ -27,26 +27,21 @@ import java.util.Map;
 
 import com.zimbra.common.util.MapUtil;
 import com.zimbra.common.account.Key.DomainBy;
-import com.zimbra.common.stats.Counter;
-import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.Domain;
 import com.zimbra.cs.account.Provisioning;
 
 /**
+ * Domains by id and name, and also by virtual hostname, foreign name and Kerberos realm, along with the keys known
+ * not to match any domain.
+ *
  * @author schemers
  **/
-public class DomainCache implements IDomainCache {
-    
-    private Map mNameCache;
-    private Map mIdCache;
-    private Map mVirtualHostnameCache;
-    private Map mForeignNameCache;
-    private Map mKrb5RealmCache;
-    
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
+public class DomainCache extends NamedEntryCache<Domain> implements IDomainCache {
+
+    private final Index<Domain> mVirtualHostnameIndex;
+    private final Index<Domain> mForeignNameIndex;
+    private final Index<Domain> mKrb5RealmIndex;
 
-    
     public enum GetFromDomainCacheOption {
         POSITIVE, // only get from positive cache
         NEGATIVE, // only get from negative cache
@@ -61,19 +56,6 @@ public class DomainCache implements IDomainCache {
      */
     private NegativeCache mNegativeCache;
 
-    static class CacheEntry {
-        long mLifetime;
-        Domain mEntry;
-        CacheEntry(Domain entry, long expires) {
-            mEntry = entry;
-            mLifetime = System.currentTimeMillis() + expires;
-        }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
-        }
-    }
-    
     public static class NonExistingDomain extends Domain {
         private NonExistingDomain() {
             super(null, null, null, null, null);
@@ -105,7 +87,7 @@ public class DomainCache implements IDomainCache {
             mNERefreshTTL = refreshTTL;
         }
         
-        private void put(DomainBy domainBy, String key) {
+        private synchronized void put(DomainBy domainBy, String key) {
             if (!mEnabled)
                 return;
             
@@ -130,7 +112,7 @@ public class DomainCache implements IDomainCache {
             }
         }
         
-        private NonExistingDomain get(DomainBy domainBy, String key) {
+        private synchronized NonExistingDomain get(DomainBy domainBy, String key) {
             if (!mEnabled)
                 return null;
             
@@ -149,7 +131,7 @@ public class DomainCache implements IDomainCache {
             return null;
         }
         
-        private void remove(DomainBy domainBy, String key) {
+        private synchronized void remove(DomainBy domainBy, String key) {
             if (!mEnabled)
                 return;
             
@@ -172,7 +154,7 @@ public class DomainCache implements IDomainCache {
             }
         }
         
-        private void clean(DomainBy domainBy, String key, Domain entry) {
+        private synchronized void clean(Domain entry) {
             mNegativeNameCache.remove(entry.getName());
             mNegativeIdCache.remove(entry.getId());
             
@@ -189,7 +171,7 @@ public class DomainCache implements IDomainCache {
                 mNegativeKrb5RealmCache.remove(krb5Realm);
         }
         
-        void clear() {
+        synchronized void clear() {
             mNegativeNameCache.clear();
             mNegativeIdCache.clear();
             mNegativeVirtualHostnameCache.clear();
@@ -204,201 +186,103 @@ public class DomainCache implements IDomainCache {
  * @param refreshTTL
  */
     public DomainCache(int maxItems, long refreshTTL, int maxItemsNegative, long refreshTTLNegative) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
-        mVirtualHostnameCache = MapUtil.newLruMap(maxItems);  
-        mForeignNameCache = MapUtil.newLruMap(maxItems); 
-        mKrb5RealmCache = MapUtil.newLruMap(maxItems);   
-        mRefreshTTL = refreshTTL;
+        super(maxItems, refreshTTL);
+        mVirtualHostnameIndex = addIndex(new Keys<Domain>() {
+            @Override
+            public String[] of(Domain entry) {
+                return toLowerCase(entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname));
+            }
+        });
+        mForeignNameIndex = addIndex(new Keys<Domain>() {
+            @Override
+            public String[] of(Domain entry) {
+                return toLowerCase(entry.getMultiAttr(Provisioning.A_zimbraForeignName));
+            }
+        });
+        mKrb5RealmIndex = addIndex(new Keys<Domain>() {
+            @Override
+            public String[] of(Domain entry) {
+                String krb5Realm = entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm);
+                return krb5Realm == null ? null : new String[] { krb5Realm };
+            }
+        });
         
         mNegativeCache = new NegativeCache(maxItemsNegative, refreshTTLNegative);
     }
 
-    @Override
-    public synchronized void clear() {
-        mNameCache.clear();
-        mIdCache.clear();
-        mVirtualHostnameCache.clear();
-        mForeignNameCache.clear();
-        mKrb5RealmCache.clear();
-        
-        mNegativeCache.clear();
-    }
-
-    @Override
-    public synchronized void remove(Domain entry) {
-        if (entry != null) {
-            mNameCache.remove(entry.getName());
-            mIdCache.remove(entry.getId());
-            
-            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);            
-            for (String vh : vhost)
-                mVirtualHostnameCache.remove(vh.toLowerCase());
-            
-            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);            
-            for (String fn : foreignName)
-                mForeignNameCache.remove(fn.toLowerCase());
-            
-            String krb5Realm = entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm);
-            if (krb5Realm != null)
-                mKrb5RealmCache.remove(krb5Realm);
+    private static String[] toLowerCase(String[] keys) {
+        String[] lower = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            lower[i] = keys[i].toLowerCase();
         }
+        return lower;
     }
-    
+
     @Override
-    public synchronized void replace(Domain entry) {
-        remove(entry);
-        put(DomainBy.id, entry.getId(), entry);
+    public void clear() {
+        super.clear();
+        mNegativeCache.clear();
     }
-    
+
     @Override
-    public synchronized void removeFromNegativeCache(DomainBy domainBy, String key) {
+    public void removeFromNegativeCache(DomainBy domainBy, String key) {
         mNegativeCache.remove(domainBy, key);
     }
     
     @Override
-    public synchronized void put(DomainBy domainBy, String key, Domain entry) {
+    public void put(Domain entry) {
         if (entry != null) {
             // clean it from the non-existing cache first
-            mNegativeCache.clean(domainBy, key, entry);
-            
-            CacheEntry cacheEntry = new CacheEntry(entry, mRefreshTTL);
-            mNameCache.put(entry.getName(), cacheEntry);
-            mIdCache.put(entry.getId(), cacheEntry);
-            
-            String vhost[] = entry.getMultiAttr(Provisioning.A_zimbraVirtualHostname);            
-            for (String vh : vhost)
-                mVirtualHostnameCache.put(vh.toLowerCase(), cacheEntry);          
-            
-            String foreignName[] = entry.getMultiAttr(Provisioning.A_zimbraForeignName);            
-            for (String fn : foreignName)
-                mForeignNameCache.put(fn.toLowerCase(), cacheEntry);  
-            
-            String krb5Realm = entry.getAttr(Provisioning.A_zimbraAuthKerberos5Realm);
-            if (krb5Realm != null)
-                mKrb5RealmCache.put(krb5Realm, cacheEntry);
-        } else {
-            mNegativeCache.put(domainBy, key);
+            mNegativeCache.clean(entry);
         }
+        super.put(entry);
     }
 
-    private Domain get(String key, Map cache) {
-        CacheEntry ce = (CacheEntry) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
-            }
+    @Override
+    public void put(DomainBy domainBy, String key, Domain entry) {
+        if (entry != null) {
+            put(entry);
         } else {
-            mHitRate.increment(0);
-            return null;
+            mNegativeCache.put(domainBy, key);
         }
     }
-    
-    @Override
-    public synchronized Domain getById(String key, GetFromDomainCacheOption option) {
-        
-        switch (option) {
-        case POSITIVE:
-            return get(key, mIdCache);
-        case NEGATIVE:
-            return mNegativeCache.get(DomainBy.id, key);
-        case BOTH:
-            Domain d = get(key, mIdCache);
-            if (d == null)
-                d = mNegativeCache.get(DomainBy.id, key);
-            return d;
-        default:
-            return null;
+
+    /**
+     * @param index the index to look the key up in, or <tt>null</tt> for the id
+     */
+    private Domain get(DomainBy domainBy, String key, Index<Domain> index, GetFromDomainCacheOption option) {
+        Domain d = null;
+        if (option == GetFromDomainCacheOption.POSITIVE || option == GetFromDomainCacheOption.BOTH) {
+            d = get(index == null ? key : key.toLowerCase(), index);
         }
-    }
-    
-    @Override
-    public synchronized Domain getByName(String key, GetFromDomainCacheOption option) {
-        
-        switch (option) {
-        case POSITIVE:
-            return get(key.toLowerCase(), mNameCache);
-        case NEGATIVE:
-            return mNegativeCache.get(DomainBy.name, key);
-        case BOTH:
-            Domain d = get(key.toLowerCase(), mNameCache);
-            if (d == null)
-                d = mNegativeCache.get(DomainBy.name, key);
-            return d;
-        default:
-            return null;
+        if (d == null && (option == GetFromDomainCacheOption.NEGATIVE || option == GetFromDomainCacheOption.BOTH)) {
+            d = mNegativeCache.get(domainBy, key);
         }
+        return d;
     }
-    
+
     @Override
-    public synchronized Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
-        
-        switch (option) {
-        case POSITIVE:
-            return get(key.toLowerCase(), mVirtualHostnameCache);
-        case NEGATIVE:
-            return mNegativeCache.get(DomainBy.virtualHostname, key);
-        case BOTH:
-            Domain d = get(key.toLowerCase(), mVirtualHostnameCache);
-            if (d == null)
-                d = mNegativeCache.get(DomainBy.virtualHostname, key);
-            return d;
-        default:
-            return null;
-        }
+    public Domain getById(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.id, key, null, option);
     }
     
     @Override
-    public synchronized Domain getByForeignName(String key, GetFromDomainCacheOption option) {
-        
-        switch (option) {
-        case POSITIVE:
-            return get(key.toLowerCase(), mForeignNameCache);
-        case NEGATIVE:
-            return mNegativeCache.get(DomainBy.foreignName, key);
-        case BOTH:
-            Domain d = get(key.toLowerCase(), mForeignNameCache);
-            if (d == null)
-                d = mNegativeCache.get(DomainBy.foreignName, key);
-            return d;
-        default:
-            return null;
-        }
+    public Domain getByName(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.name, key, mNameIndex, option);
     }
     
     @Override
-    public synchronized Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
-        
-        switch (option) {
-        case POSITIVE:
-            return get(key.toLowerCase(), mKrb5RealmCache);
-        case NEGATIVE:
-            return mNegativeCache.get(DomainBy.krb5Realm, key);
-        case BOTH:
-            Domain d = get(key.toLowerCase(), mKrb5RealmCache);
-            if (d == null)
-                d = mNegativeCache.get(DomainBy.krb5Realm, key);
-            return d;
-        default:
-            return null;
-        }
+    public Domain getByVirtualHostname(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.virtualHostname, key, mVirtualHostnameIndex, option);
     }
-
+    
     @Override
-    public synchronized int getSize() {
-        return mIdCache.size();
+    public Domain getByForeignName(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.foreignName, key, mForeignNameIndex, option);
     }
     
-    /**
-     * Returns the cache hit rate as a value between 0 and 100.<br />
-     */
     @Override
-    public synchronized double getHitRate() {
-    	 return mHitRate.getAverage();
+    public Domain getByKrb5Realm(String key, GetFromDomainCacheOption option) {
+        return get(DomainBy.krb5Realm, key, mKrb5RealmIndex, option);
     }
 }
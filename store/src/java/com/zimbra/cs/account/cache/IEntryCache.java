@@ -19,4 +19,5 @@ package com.zimbra.cs.account.cache;
 public interface IEntryCache {
     public int getSize();
     public double getHitRate();
+    public long getRefreshCount();
 }
@@ -23,86 +23,208 @@
  */
 package com.zimbra.cs.account.cache;
 
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.zimbra.common.util.MapUtil;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.HitRateCounter;
 import com.zimbra.cs.account.NamedEntry;
 
 /**
+ * Cache of entries looked up by id, by name, and by whatever other keys a subclass indexes them by.
+ * <p>
+ * Nothing locks the whole cache.  Entries are held by id in a {@link ConcurrentLinkedHashMap} bounded to the maximum
+ * number of items, least recently used first out, and by each other key in a {@link ConcurrentHashMap}.  An entry is
+ * only found by its other keys while it's still held by id, and the keys it was indexed by are remembered with it, so
+ * evicting or replacing it unindexes exactly those keys even if the entry was modified in place meanwhile.
+ * <p>
+ * Once an entry is older than the refresh TTL, the first lookup of it misses, so that its caller reloads the entry
+ * from LDAP and puts it back, while concurrent lookups keep getting the stale entry rather than all going to LDAP at
+ * once.  If no fresh entry is put within {@link LC#ldap_cache_refresh_grace_ms}, for instance because the entry is
+ * gone, the stale entry is dropped.
+ *
  * @author schemers
  **/
 public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E> {
-    
-    private Map mNameCache;
-    private Map mIdCache;
-    
-    private long mRefreshTTL;
-    private Counter mHitRate = new HitRateCounter();
-   
+
+    /**
+     * Returns the keys an entry is indexed by.
+     */
+    interface Keys<E extends NamedEntry> {
+        /** @return the keys, or <tt>null</tt> if none; <tt>null</tt> keys are skipped */
+        String[] of(E entry);
+    }
+
+    static final class Index<E extends NamedEntry> {
+        final Keys<E> mKeys;
+        final int mSlot;
+        final ConcurrentMap<String, CacheEntry<E>> mMap = new ConcurrentHashMap<String, CacheEntry<E>>();
+
+        Index(Keys<E> keys, int slot) {
+            mKeys = keys;
+            mSlot = slot;
+        }
+    }
 
     static class CacheEntry<E extends NamedEntry> {
-        long mLifetime;
-        E mEntry;
-        CacheEntry(E entry, long expires) {
+        final long mLifetime;
+        final E mEntry;
+        final String[][] mKeys; // per index, the keys this entry is indexed by
+        final AtomicLong mRefreshing = new AtomicLong(); // when a reload was handed out, or 0
+        volatile boolean mRemoved;
+
+        CacheEntry(E entry, long expires, String[][] keys) {
             mEntry = entry;
             mLifetime = System.currentTimeMillis() + expires;
+            mKeys = keys;
         }
-        
-        boolean isStale() {
-            return mLifetime < System.currentTimeMillis();
+
+        boolean isStale(long now) {
+            return mLifetime < now;
         }
     }
-    
+
+    private final ConcurrentLinkedHashMap<String, CacheEntry<E>> mIdCache;
+    private final List<Index<E>> mIndexes = new CopyOnWriteArrayList<Index<E>>();
+    final Index<E> mNameIndex;
+
+    private final long mRefreshTTL;
+    private final long mRefreshGrace;
+    private final Counter mHitRate = new HitRateCounter();
+    private final AtomicLong mRefreshes = new AtomicLong();
+
 /**
  * @param maxItems
  * @param refreshTTL
  */
     public NamedEntryCache(int maxItems, long refreshTTL) {
-        mNameCache = MapUtil.newLruMap(maxItems);
-        mIdCache = MapUtil.newLruMap(maxItems);
+        this(maxItems, refreshTTL, LC.ldap_cache_refresh_grace_ms.longValue());
+    }
+
+    /**
+     * @param maxItems maximum number of entries held
+     * @param refreshTTL how long an entry is fresh, or 0 if it never expires
+     * @param refreshGrace how long an expired entry is still served while it's being reloaded
+     */
+    public NamedEntryCache(int maxItems, long refreshTTL, long refreshGrace) {
+        mIdCache = new ConcurrentLinkedHashMap.Builder<String, CacheEntry<E>>()
+            .maximumWeightedCapacity(Math.max(maxItems, 0))
+            .listener(new EvictionListener<String, CacheEntry<E>>() {
+                @Override
+                public void onEviction(String id, CacheEntry<E> ce) {
+                    unindex(ce);
+                }
+            })
+            .build();
         mRefreshTTL = refreshTTL;
+        mRefreshGrace = refreshGrace;
+        mNameIndex = addIndex(new Keys<E>() {
+            @Override
+            public String[] of(E entry) {
+                return new String[] { entry.getName() };
+            }
+        });
+    }
+
+    /**
+     * Adds an index of the entries by other keys.  Only to be called while constructing the cache.
+     */
+    final Index<E> addIndex(Keys<E> keys) {
+        Index<E> index = new Index<E>(keys, mIndexes.size());
+        mIndexes.add(index);
+        return index;
+    }
+
+    private void unindex(CacheEntry<E> ce) {
+        ce.mRemoved = true;
+        for (Index<E> index : mIndexes) {
+            String[] keys = ce.mKeys[index.mSlot];
+            if (keys != null) {
+                for (String key : keys) {
+                    if (key != null) {
+                        index.mMap.remove(key, ce);
+                    }
+                }
+            }
+        }
     }
 
     @Override
-    public synchronized void clear() {
-        mNameCache.clear();
-        mIdCache.clear();
+    public void clear() {
+        for (Iterator<CacheEntry<E>> iter = mIdCache.values().iterator(); iter.hasNext(); ) {
+            CacheEntry<E> ce = iter.next();
+            iter.remove();
+            ce.mRemoved = true;
+        }
+        for (Index<E> index : mIndexes) {
+            index.mMap.clear();
+        }
     }
 
     @Override
-    public synchronized void remove(String name, String id) {
-        mNameCache.remove(name);
-        mIdCache.remove(id);
+    public void remove(String name, String id) {
+        if (id != null) {
+            CacheEntry<E> ce = mIdCache.remove(id);
+            if (ce != null) {
+                unindex(ce);
+            }
+        }
+        if (name != null) {
+            CacheEntry<E> ce = mNameIndex.mMap.remove(name);
+            if (ce != null) {
+                mIdCache.remove(ce.mEntry.getId(), ce);
+                unindex(ce);
+            }
+        }
     }
-    
+
     @Override
-    public synchronized void remove(E entry) {
+    public void remove(E entry) {
         if (entry != null) {
-            mNameCache.remove(entry.getName());
-            mIdCache.remove(entry.getId());
+            remove(entry.getName(), entry.getId());
         }
     }
-    
+
     @Override
-    public synchronized void put(E entry) {
-        if (entry != null) {
-            CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL);
-            mNameCache.put(entry.getName(), cacheEntry);
-            mIdCache.put(entry.getId(), cacheEntry);
+    public void put(E entry) {
+        if (entry == null || entry.getId() == null) {
+            return;
+        }
+        String[][] keys = new String[mIndexes.size()][];
+        for (Index<E> index : mIndexes) {
+            keys[index.mSlot] = index.mKeys.of(entry);
+        }
+        CacheEntry<E> cacheEntry = new CacheEntry<E>(entry, mRefreshTTL, keys);
+        for (Index<E> index : mIndexes) {
+            if (keys[index.mSlot] != null) {
+                for (String key : keys[index.mSlot]) {
+                    if (key != null) {
+                        index.mMap.put(key, cacheEntry);
+                    }
+                }
+            }
+        }
+        CacheEntry<E> old = mIdCache.put(entry.getId(), cacheEntry);
+        if (old != null) {
+            unindex(old);
         }
     }
-    
+
     @Override
-    public synchronized void replace(E entry) {
+    public void replace(E entry) {
         remove(entry);
         put(entry);
     }
 
     @Override
-    public synchronized void put(List<E> entries, boolean clear) {
+    public void put(List<E> entries, boolean clear) {
         if (entries != null) {
             if (clear) clear();
             for (E e: entries)
@@ -110,45 +232,90 @@ public class NamedEntryCache<E extends NamedEntry> implements INamedEntryCache<E
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private E get(String key, Map cache) {
-        CacheEntry<E> ce = (CacheEntry<E>) cache.get(key);
-        if (ce != null) {
-            if (mRefreshTTL != 0 && ce.isStale()) {
-                remove(ce.mEntry);
-                mHitRate.increment(0);
-                return null;
-            } else {
-                mHitRate.increment(100);
-                return ce.mEntry;
-            }
-        } else {
+    /**
+     * Returns the cache entry held under the key, without counting the lookup.
+     *
+     * @param index the index to look the key up in, or <tt>null</tt> for the id
+     */
+    final CacheEntry<E> lookup(String key, Index<E> index) {
+        if (key == null) {
+            return null;
+        } else if (index == null) {
+            return mIdCache.get(key);
+        }
+        CacheEntry<E> ce = index.mMap.get(key);
+        if (ce != null && ce.mRemoved) {
+            index.mMap.remove(key, ce);
+            return null;
+        }
+        return ce;
+    }
+
+    /**
+     * Counts a lookup that found the given cache entry, and returns its entry unless the caller is to reload it.
+     */
+    final E get(CacheEntry<E> ce) {
+        if (ce == null) {
             mHitRate.increment(0);
             return null;
         }
+        if (mRefreshTTL != 0) {
+            long now = System.currentTimeMillis();
+            if (ce.isStale(now)) {
+                long refreshing = ce.mRefreshing.get();
+                if (refreshing == 0) {
+                    if (ce.mRefreshing.compareAndSet(0, now)) {
+                        // this caller reloads the entry, the others get the stale one meanwhile
+                        mRefreshes.incrementAndGet();
+                        mHitRate.increment(0);
+                        return null;
+                    }
+                } else if (now - refreshing > mRefreshGrace) {
+                    // the entry was never reloaded, most likely because it no longer exists
+                    mIdCache.remove(ce.mEntry.getId(), ce);
+                    unindex(ce);
+                    mHitRate.increment(0);
+                    return null;
+                }
+            }
+        }
+        mHitRate.increment(100);
+        return ce.mEntry;
+    }
+
+    final E get(String key, Index<E> index) {
+        return get(lookup(key, index));
     }
-    
+
     @Override
-    public synchronized E getById(String key) {
-        return get(key, mIdCache);
+    public E getById(String key) {
+        return get(key, null);
     }
-    
+
     @Override
-    public synchronized E getByName(String key) {
-        return get(key.toLowerCase(), mNameCache);
+    public E getByName(String key) {
+        return get(key.toLowerCase(), mNameIndex);
     }
-    
+
     @Override
-    public synchronized int getSize() {
+    public int getSize() {
         return mIdCache.size();
     }
-    
-  
+
     /**
-     * Returns the cache hit rate as a value between 0 and 100.
+     * Returns the cache hit rate as a value between 0 and 100.  A stale entry served while it's being reloaded
+     * counts as a hit.
      */
     @Override
-    public synchronized double getHitRate() {
+    public double getHitRate() {
         return mHitRate.getAverage();
     }
+
+    /**
+     * Returns the number of expired entries handed out for reloading since the last call.
+     */
+    @Override
+    public long getRefreshCount() {
+        return mRefreshes.getAndSet(0);
+    }
 }
@@ -228,6 +228,9 @@ abstract class LdapCache {
 
             @Override
             public double getHitRate() { return 0; }
+
+            @Override
+            public long getRefreshCount() { return 0; }
         }
 
         static class NoopDomainCache implements IDomainCache {
@@ -265,6 +268,9 @@ abstract class LdapCache {
             @Override
             public double getHitRate() { return 0; }
 
+            @Override
+            public long getRefreshCount() { return 0; }
+
             @Override
             public int getSize() { return 0; }
 
@@ -284,6 +290,9 @@ abstract class LdapCache {
             @Override
             public double getHitRate() { return 0; }
 
+            @Override
+            public long getRefreshCount() { return 0; }
+
             @Override
             public int getSize() { return 0; }
 
@@ -76,10 +76,13 @@ public abstract class LdapProv extends Provisioning {
     
     public abstract int getAccountCacheSize();
     public abstract double getAccountCacheHitRate();
+    public abstract long getAccountCacheRefreshCount();
     public abstract int getCosCacheSize();
     public abstract double getCosCacheHitRate();
+    public abstract long getCosCacheRefreshCount();
     public abstract int getDomainCacheSize();
     public abstract double getDomainCacheHitRate();
+    public abstract long getDomainCacheRefreshCount();
     public abstract int getServerCacheSize();
     public abstract double getServerCacheHitRate();
     public abstract int getUCServiceCacheSize();
@@ -325,18 +325,27 @@ public class LdapProvisioning extends LdapProv implements CacheAwareProvisioning
     @Override
     public double getAccountCacheHitRate() { return accountCache.getHitRate(); }
 
+    @Override
+    public long getAccountCacheRefreshCount() { return accountCache.getRefreshCount(); }
+
     @Override
     public int getCosCacheSize() { return cosCache.getSize(); }
 
     @Override
     public double getCosCacheHitRate() { return cosCache.getHitRate(); }
 
+    @Override
+    public long getCosCacheRefreshCount() { return cosCache.getRefreshCount(); }
+
     @Override
     public int getDomainCacheSize() { return domainCache.getSize(); }
 
     @Override
     public double getDomainCacheHitRate() { return domainCache.getHitRate(); }
 
+    @Override
+    public long getDomainCacheRefreshCount() { return domainCache.getRefreshCount(); }
+
     @Override
     public int getServerCacheSize() { return serverCache.getSize(); }
 
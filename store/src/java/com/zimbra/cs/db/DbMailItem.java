@@ -35,6 +35,7 @@ import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -54,6 +55,7 @@ import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Constants;
 import com.zimbra.common.util.ListUtil;
@@ -186,7 +188,7 @@ public class DbMailItem {
             stmt.setString(pos++, recipients);
             stmt.setString(pos++, data.getSubject());
             stmt.setString(pos++, data.name);
-            stmt.setString(pos++, checkMetadataLength(data.metadata));
+            stmt.setString(pos++, storedMetadata(data.metadata));
             stmt.setInt(pos++, data.modMetadata);
             if (data.dateChanged > 0) {
                 stmt.setInt(pos++, data.dateChanged);
@@ -288,7 +290,7 @@ public class DbMailItem {
             }
             stmt.setInt(pos++, id);                            // IMAP_ID is initially the same as ID
             stmt.setString(pos++, locator);
-            stmt.setString(pos++, checkMetadataLength(metadata));  // METADATA
+            stmt.setString(pos++, storedMetadata(metadata));  // METADATA
             stmt.setInt(pos++, modseq);   // MOD_METADATA
             stmt.setInt(pos++, mbox.getOperationTimestamp());  // CHANGE_DATE
             stmt.setInt(pos++, mbox.getOperationChangeID());   // MOD_CONTENT
@@ -978,7 +980,7 @@ public class DbMailItem {
             int pos = 1;
             stmt.setInt(pos++, (int) (item.getDate() / 1000));
             stmt.setLong(pos++, item.getSize());
-            stmt.setString(pos++, checkMetadataLength(metadata));
+            stmt.setString(pos++, storedMetadata(metadata));
             stmt.setInt(pos++, mbox.getOperationChangeID());
             stmt.setInt(pos++, mbox.getOperationTimestamp());
             stmt.setInt(pos++, item.getSavedSequence());
@@ -1003,7 +1005,7 @@ public class DbMailItem {
             int pos = 1;
             stmt.setLong(pos++, item.getSize());
             stmt.setInt(pos++, item.getUnreadCount());
-            stmt.setString(pos++, checkMetadataLength(metadata.toString()));
+            stmt.setString(pos++, checkMetadataLength(metadata.toStoredString()));
             stmt.setInt(pos++, item.getModifiedSequence());
             if (item.getChangeDate() > 0) {
                 stmt.setInt(pos++, (int) (item.getChangeDate() / 1000));
@@ -1021,6 +1023,30 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Writes the item's metadata alone, leaving its size, counts, dates and modification sequences as they are, for
+     * derived data whose change isn't visible to clients.
+     */
+    public static void persistMetadata(MailItem item, Metadata metadata) throws ServiceException {
+        Mailbox mbox = item.getMailbox();
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(item) +
+                        " SET metadata = ?" +
+                        " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
+            int pos = 1;
+            stmt.setString(pos++, checkMetadataLength(metadata.toStoredString()));
+            pos = setMailboxId(stmt, mbox, pos);
+            stmt.setInt(pos++, item.getId());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("writing metadata for mailbox " + item.getMailboxId() + ", item " + item.getId(), e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     // need to kill the Note class sooner rather than later
     public static void saveSubject(Note note) throws ServiceException {
         Mailbox mbox = note.getMailbox();
@@ -1132,7 +1158,7 @@ public class DbMailItem {
             stmt.setString(pos++, item.getSortRecipients());
             stmt.setString(pos++, item.getSortSubject());
             stmt.setString(pos++, name);
-            stmt.setString(pos++, checkMetadataLength(metadata.toString()));
+            stmt.setString(pos++, checkMetadataLength(metadata.toStoredString()));
             stmt.setInt(pos++, mailbox.getOperationChangeID());
             stmt.setInt(pos++, mailbox.getOperationTimestamp());
             stmt.setInt(pos++, item.getSavedSequence());
@@ -4812,6 +4838,19 @@ public class DbMailItem {
         return result;
     }
 
+    /**
+     * Returns the metadata of an item as it's stored in the item tables: converted to the indexed encoding of
+     * {@link Metadata#toIndexed} when {@link LC#zimbra_mailbox_indexed_metadata} is set, and checked by
+     * {@link #checkMetadataLength}.  Callers that have the {@link Metadata} rather than its encoding use
+     * {@link Metadata#toStoredString} instead, which doesn't encode it twice.
+     */
+    private static String storedMetadata(String metadata) throws ServiceException {
+        if (LC.zimbra_mailbox_indexed_metadata.booleanValue()) {
+            metadata = Metadata.toIndexed(metadata);
+        }
+        return checkMetadataLength(metadata);
+    }
+
     public static String encodeMetadata(String metadata) throws ServiceException {
         if (Db.supports(Db.Capability.NON_BMP_CHARACTERS) || !StringUtil.containsSurrogates(metadata)) {
             return metadata;
@@ -5165,6 +5204,65 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Rewrites the metadata of a batch of items in the mail_item table in the indexed encoding of
+     * {@link Metadata#toIndexed}, in order of item id.  Values are copied as they are, not decoded.  Rows already in
+     * the indexed encoding are skipped, so it's safe to repeat.  The caller must hold the mailbox lock in a
+     * transaction, as other writes to the metadata (folder counts, for one) don't change <tt>mod_metadata</tt>.
+     *
+     * @param afterId convert items with ids above this one
+     * @return the id of the last item in the batch, or -1 if there are no items above <tt>afterId</tt>
+     * @see Mailbox#convertMetadata
+     */
+    public static int convertMetadata(Mailbox mbox, int afterId, int batchSize) throws ServiceException {
+        assert mbox.lock.isWriteLockedByCurrentThread();
+        String table = getMailItemTableName(mbox, false);
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            Map<Integer, String> converted = new LinkedHashMap<Integer, String>();
+            int lastId = -1;
+            try {
+                stmt = conn.prepareStatement("SELECT id, metadata FROM " + table +
+                        " WHERE " + IN_THIS_MAILBOX_AND + "id > ? ORDER BY id LIMIT ?");
+                int pos = setMailboxId(stmt, mbox, 1);
+                stmt.setInt(pos++, afterId);
+                stmt.setInt(pos, batchSize);
+                rs = stmt.executeQuery();
+                while (rs.next()) {
+                    lastId = rs.getInt(1);
+                    String metadata = decodeMetadata(rs.getString(2));
+                    String indexed = Metadata.toIndexed(metadata);
+                    if (indexed != metadata) { // the same string if already indexed or not a map
+                        converted.put(lastId, indexed);
+                    }
+                }
+            } finally {
+                conn.closeQuietly(rs);
+                conn.closeQuietly(stmt);
+            }
+            for (Map.Entry<Integer, String> entry : converted.entrySet()) {
+                stmt = conn.prepareStatement("UPDATE " + table + " SET metadata = ?" +
+                        " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
+                try {
+                    int pos = 1;
+                    stmt.setString(pos++, checkMetadataLength(entry.getValue()));
+                    pos = setMailboxId(stmt, mbox, pos);
+                    stmt.setInt(pos, entry.getKey());
+                    stmt.executeUpdate();
+                } finally {
+                    conn.closeQuietly(stmt);
+                }
+            }
+            ZimbraLog.mailbox.debug("converted metadata of %d items with ids %d to %d", converted.size(), afterId + 1,
+                    lastId);
+            return lastId;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("converting metadata of items after " + afterId, e);
+        }
+    }
+
     /**
      * Finds mail items with deleted flag (\Deleted)
      *
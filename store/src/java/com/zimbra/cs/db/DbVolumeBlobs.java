@@ -21,8 +21,12 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.cs.db.DbPool.DbConnection;
 import com.zimbra.cs.mailbox.MailItem;
@@ -112,6 +116,37 @@ public final class DbVolumeBlobs {
         }
     }
 
+    /**
+     * Marks the blobs with the given digests on the volume as processed, in batches.
+     */
+    public static void updateProcessed(DbConnection conn, Volume vol, Collection<String> digests) throws ServiceException {
+        if (digests.isEmpty()) {
+            return;
+        }
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("UPDATE " + TB_VOLUME_BLOBS + " SET " + CN_PROCESSED + " = ? WHERE " +
+                    CN_VOLUME_ID + " = ? AND " + CN_DIGEST + " = ?");
+            int batchSize = 500;
+            int count = 0;
+            for (String digest : digests) {
+                int pos = 1;
+                stmt.setBoolean(pos++, true);
+                stmt.setShort(pos++, vol.getId());
+                stmt.setString(pos++, digest);
+                stmt.addBatch();
+                if (++count % batchSize == 0) {
+                    stmt.executeBatch();
+                }
+            }
+            stmt.executeBatch();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("unable to update processed", e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static List<BlobReference> getBlobReferences(DbConnection conn, String digest, Volume volume) throws ServiceException {
         PreparedStatement stmt = null;
         ResultSet rs = null;
@@ -190,6 +225,43 @@ public final class DbVolumeBlobs {
         }
     }
 
+    /**
+     * Scans the digests of all the blobs on the volume, processed or not, into a filter that contains every digest
+     * referenced more than once.  A digest the filter doesn't contain has a single blob on the volume, so there is
+     * nothing to link it to; a digest it does contain most likely has more.
+     */
+    public static BloomFilter<CharSequence> getDuplicateDigests(DbConnection conn, Volume vol) throws ServiceException {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT COUNT(*) FROM " + TB_VOLUME_BLOBS + " WHERE " + CN_VOLUME_ID + " = ?");
+            stmt.setShort(1, vol.getId());
+            rs = stmt.executeQuery();
+            int count = rs.next() ? rs.getInt(1) : 0;
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+
+            // about a byte per blob for each filter
+            BloomFilter<CharSequence> seen = BloomFilter.create(Funnels.stringFunnel(), Math.max(count, 1), 0.03);
+            BloomFilter<CharSequence> duplicates = BloomFilter.create(Funnels.stringFunnel(), Math.max(count / 2, 1), 0.03);
+            stmt = conn.prepareStatement("SELECT " + CN_DIGEST + " FROM " + TB_VOLUME_BLOBS + " WHERE " + CN_VOLUME_ID + " = ?");
+            stmt.setShort(1, vol.getId());
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                String digest = rs.getString(1);
+                if (digest != null && !seen.put(digest)) {
+                    duplicates.put(digest);
+                }
+            }
+            return duplicates;
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("unable to query blob digests", e);
+        } finally {
+            DbPool.closeResults(rs);
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static void deleteBlobRef(DbConnection conn, long id) throws ServiceException {
         PreparedStatement stmt = null;
         ResultSet rs = null;
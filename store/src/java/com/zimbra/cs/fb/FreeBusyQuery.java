@@ -19,11 +19,22 @@ package com.zimbra.cs.fb;
 import java.util.Collection;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
+import com.zimbra.common.soap.MailConstants;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.GuestAccount;
@@ -39,6 +50,9 @@ import com.zimbra.soap.ZimbraSoapContext;
 
 public class FreeBusyQuery {
     public static final int CALENDAR_FOLDER_ALL = -1;
+
+    /** Looks up the free/busy of local accounts, so that a request for many attendees isn't served one at a time. */
+    private static final ThreadPoolExecutor LOCAL_EXECUTOR = createLocalExecutor();
 	
 	private Account mRequestor;
 	private long mStart;
@@ -112,7 +126,76 @@ public class FreeBusyQuery {
     	return null;
     }
     
+    private static ThreadPoolExecutor createLocalExecutor() {
+        int threads = LC.calendar_freebusy_local_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("FreeBusy-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private FreeBusy getLocalFreeBusy(String id, Account acct, int folder) throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        OperationContext octxt = null;
+        if (mCtxt != null && mCtxt.getAuthToken() != null)
+            octxt = new OperationContext(mCtxt.getAuthToken());
+        else if (mRequestor != null)
+            octxt = new OperationContext(mRequestor);
+        else
+            octxt = new OperationContext(GuestAccount.ANONYMOUS_ACCT);
+        Appointment exAppt = null;
+        if (mExApptUid != null) {
+            CalendarItem ci = mbox.getCalendarItemByUid(octxt, mExApptUid);
+            if (ci instanceof Appointment)
+                exAppt = (Appointment) ci;
+        }
+        return mbox.getFreeBusy(octxt, id, mStart, mEnd, folder, exAppt);
+    }
+
+    /**
+     * Runs the local lookups on the free/busy pool, and waits for their results.  The request thread runs any
+     * lookup the pool hasn't started yet itself, so a busy pool never makes a request slower than looking up its
+     * accounts one at a time.
+     */
+    private void runLocalLookups(List<String> ids, List<FutureTask<FreeBusy>> lookups, ArrayList<FreeBusy> local) {
+        if (LOCAL_EXECUTOR != null && lookups.size() > 1) {
+            try {
+                for (FutureTask<FreeBusy> lookup : lookups) {
+                    LOCAL_EXECUTOR.execute(lookup);
+                }
+            } catch (RejectedExecutionException e) {
+                ZimbraLog.fb.warn("free/busy pool is not accepting lookups; running them in the request thread");
+            }
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < lookups.size(); i++) {
+            FutureTask<FreeBusy> lookup = lookups.get(i);
+            lookup.run(); // does nothing if the pool already ran it or is running it
+            try {
+                while (true) {
+                    try {
+                        local.add(lookup.get());
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                ZimbraLog.fb.error("cannot get free/busy for "+ids.get(i), e.getCause());
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void prepareRequests(ArrayList<FreeBusy> local, RemoteFreeBusyProvider remote, ArrayList<String> external) {
+        List<String> localIds = new ArrayList<String>();
+        List<FutureTask<FreeBusy>> localLookups = new ArrayList<FutureTask<FreeBusy>>();
     	for (String id : mTargets.keySet()) {
     		Account acct = mTargets.get(id);
     		try {
@@ -124,21 +207,16 @@ public class FreeBusyQuery {
     		    int folder = mTargetFolder.get(id);
     		
         		if (Provisioning.onLocalServer(acct)) {
-        		    Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
-        		    OperationContext octxt = null;
-        		    if (mCtxt != null && mCtxt.getAuthToken() != null)
-        		        octxt = new OperationContext(mCtxt.getAuthToken());
-        		    else if (mRequestor != null)
-        		        octxt = new OperationContext(mRequestor);
-        		    else
-        		        octxt = new OperationContext(GuestAccount.ANONYMOUS_ACCT);
-                    Appointment exAppt = null;
-                    if (mExApptUid != null) {
-                        CalendarItem ci = mbox.getCalendarItemByUid(octxt, mExApptUid);
-                        if (ci instanceof Appointment)
-                            exAppt = (Appointment) ci;
-                    }
-        		    local.add(mbox.getFreeBusy(octxt, id, mStart, mEnd, folder, exAppt));
+        		    final String fbId = id;
+        		    final Account fbAcct = acct;
+        		    final int fbFolder = folder;
+        		    localIds.add(id);
+        		    localLookups.add(new FutureTask<FreeBusy>(new Callable<FreeBusy>() {
+        		        @Override
+        		        public FreeBusy call() throws ServiceException {
+        		            return getLocalFreeBusy(fbId, fbAcct, fbFolder);
+        		        }
+        		    }));
         		} else {
         			remote.addFreeBusyRequest(mRequestor, acct, id, mStart, mEnd, folder);
         		}
@@ -146,6 +224,7 @@ public class FreeBusyQuery {
                 ZimbraLog.fb.error("cannot get free/busy for "+id, e);
     		}
     	}
+        runLocalLookups(localIds, localLookups, local);
     }
     
     private int getHopcount() {        
@@ -171,6 +250,26 @@ public class FreeBusyQuery {
     	    fbList.addAll(FreeBusyProvider.getRemoteFreeBusy(mRequestor, external, mStart, mEnd, CALENDAR_FOLDER_ALL, getHopcount()));	
     	return fbList;
     }
+
+    /**
+     * Adds the free/busy of all the targets to the response, followed by the times at least <tt>minDuration</tt> long
+     * during which they are all free, to a precision of <tt>slotMillis</tt>.  Unlike {@link #getResults(Element)},
+     * the free/busy of targets on other servers is parsed rather than copied, so that it can be merged.
+     *
+     * @see FreeBusySlots
+     */
+    public void getResults(Element response, long slotMillis, long minDuration) {
+        Collection<FreeBusy> fbList = getResults();
+        for (FreeBusy fb : fbList) {
+            ToXML.encodeFreeBusy(response, fb);
+        }
+        Element common = response.addElement(MailConstants.E_FREEBUSY_COMMON_FREE);
+        for (FreeBusy.Interval free : FreeBusySlots.findCommonFree(fbList, mStart, mEnd, slotMillis, minDuration)) {
+            common.addElement(MailConstants.E_FREEBUSY_FREE)
+                .addAttribute(MailConstants.A_CAL_START_TIME, free.getStart())
+                .addAttribute(MailConstants.A_CAL_END_TIME, free.getEnd());
+        }
+    }
     
 	public void getResults(Element response) {
     	RemoteFreeBusyProvider remote = new RemoteFreeBusyProvider(mReq, mCtxt, mStart, mEnd, mExApptUid);
@@ -0,0 +1,159 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.fb;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+import com.zimbra.common.util.Constants;
+import com.zimbra.cs.mailbox.calendar.IcalXmlStrMap;
+
+/**
+ * Busy time of one or more calendars over a time range, as a bitmap with one bit per fixed-length slot.  Merging the
+ * free/busy of many attendees is then a bitwise OR, and the times they are all free are the runs of clear bits.
+ * <p>
+ * A slot is busy if a busy, tentative or out of office interval overlaps any part of it.  Intervals with no data don't
+ * make a slot busy, so that attendees whose free/busy is unknown don't rule out every time.
+ */
+public class FreeBusySlots {
+
+    public static final long DEFAULT_SLOT_MILLIS = 15 * Constants.MILLIS_PER_MINUTE;
+
+    private final long mStart;
+    private final long mEnd;
+    private final long mSlotMillis;
+    private final int mSlots;
+    private final BitSet mBusy;
+
+    /**
+     * Creates a bitmap of the range from <tt>start</tt> to <tt>end</tt>, all free.
+     */
+    public FreeBusySlots(long start, long end, long slotMillis) {
+        if (end <= start || slotMillis <= 0) {
+            throw new IllegalArgumentException("invalid range " + start + "-" + end + " or slot " + slotMillis);
+        }
+        long slots = (end - start + slotMillis - 1) / slotMillis;
+        if (slots > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many slots: " + slots);
+        }
+        mStart = start;
+        mEnd = end;
+        mSlotMillis = slotMillis;
+        mSlots = (int) slots;
+        mBusy = new BitSet(mSlots);
+    }
+
+    public long getStart() {
+        return mStart;
+    }
+
+    public long getEnd() {
+        return mEnd;
+    }
+
+    public long getSlotMillis() {
+        return mSlotMillis;
+    }
+
+    private static boolean isBusy(String status) {
+        return IcalXmlStrMap.FBTYPE_BUSY.equals(status) || IcalXmlStrMap.FBTYPE_BUSY_TENTATIVE.equals(status) ||
+                IcalXmlStrMap.FBTYPE_BUSY_UNAVAILABLE.equals(status);
+    }
+
+    /**
+     * Marks the slots overlapping the time from <tt>start</tt> to <tt>end</tt> busy.
+     */
+    public void addBusy(long start, long end) {
+        start = Math.max(start, mStart);
+        end = Math.min(end, mEnd);
+        if (end <= start) {
+            return;
+        }
+        int first = (int) ((start - mStart) / mSlotMillis);
+        int last = (int) ((end - mStart - 1) / mSlotMillis);
+        mBusy.set(first, last + 1);
+    }
+
+    /**
+     * Marks the slots during which the calendar is busy.
+     */
+    public void add(FreeBusy fb) {
+        for (FreeBusy.Interval interval : fb) {
+            if (isBusy(interval.getStatus())) {
+                addBusy(interval.getStart(), interval.getEnd());
+            }
+        }
+    }
+
+    /**
+     * Marks the slots busy in the other bitmap busy here too.
+     */
+    public void add(FreeBusySlots other) {
+        if (other.mStart == mStart && other.mSlotMillis == mSlotMillis) {
+            mBusy.or(other.mBusy);
+            return;
+        }
+        for (int i = other.mBusy.nextSetBit(0); i >= 0; ) {
+            int end = other.mBusy.nextClearBit(i);
+            addBusy(other.mStart + i * other.mSlotMillis, other.mStart + end * other.mSlotMillis);
+            i = other.mBusy.nextSetBit(end);
+        }
+    }
+
+    public boolean isBusy(long time) {
+        if (time < mStart || time >= mEnd) {
+            return false;
+        }
+        return mBusy.get((int) ((time - mStart) / mSlotMillis));
+    }
+
+    /**
+     * Returns the free intervals at least <tt>minDuration</tt> long, in order.  Intervals start and end on slot
+     * boundaries, except that the last one ends at the end of the range.
+     */
+    public List<FreeBusy.Interval> getFreeIntervals(long minDuration) {
+        List<FreeBusy.Interval> free = new ArrayList<FreeBusy.Interval>();
+        for (int i = mBusy.nextClearBit(0); i < mSlots; ) {
+            int end = mBusy.nextSetBit(i);
+            if (end < 0) {
+                end = mSlots;
+            }
+            long startTime = mStart + i * mSlotMillis;
+            long endTime = Math.min(mStart + end * mSlotMillis, mEnd);
+            if (endTime - startTime >= minDuration) {
+                free.add(new FreeBusy.Interval(startTime, endTime, IcalXmlStrMap.FBTYPE_FREE));
+            }
+            i = mBusy.nextClearBit(end);
+        }
+        return free;
+    }
+
+    /**
+     * Returns the times at least <tt>minDuration</tt> long between <tt>start</tt> and <tt>end</tt> during which all
+     * the calendars are free, to a precision of <tt>slotMillis</tt>.
+     */
+    public static List<FreeBusy.Interval> findCommonFree(Collection<FreeBusy> calendars, long start, long end,
+            long slotMillis, long minDuration) {
+        FreeBusySlots slots = new FreeBusySlots(start, end, slotMillis);
+        for (FreeBusy fb : calendars) {
+            slots.add(fb);
+        }
+        return slots.getFreeIntervals(minDuration);
+    }
+}
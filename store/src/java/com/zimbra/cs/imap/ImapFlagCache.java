@@ -65,6 +65,14 @@ public class ImapFlagCache implements Iterable<ImapFlagCache.ImapFlag>, java.io.
             mListed = listed;  mModseq    = -1;
         }
 
+        ImapFlag(String name, String imapName, int id, long bitmask, boolean positive, boolean permanent,
+                boolean listed, int modseq) {
+            mId   = id;            mBitmask   = bitmask;
+            mName = name;          mImapName  = imapName;
+            mPositive = positive;  mPermanent = permanent;
+            mListed = listed;      mModseq    = modseq;
+        }
+
         private String normalize(String name, int id) {
             StringBuilder sb = new StringBuilder(name.length());
             for (int i = 0; i < name.length(); i++) {
@@ -21,11 +21,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -57,7 +54,7 @@ import com.zimbra.cs.session.Session;
  */
 public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Serializable {
     // Update serialVersionUID when changing any instance members. Otherwise serialization won't work correctly.
-    private static final long serialVersionUID = 3845968507901145794L;
+    private static final long serialVersionUID = -6210418853771196402L;
     static final byte SELECT_READONLY  = 0x01;
     static final byte SELECT_CONDSTORE = 0x02;
 
@@ -66,14 +63,21 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
     private transient ImapSession session;
     private transient ImapPath path;
     private transient SessionData sessionData;
-    private transient Map<Integer, ImapMessage> messageIds;
+    private transient ImapMessageIdIndex messageIds;
     private transient ImapFlagCache flags;
 
     private final int folderId;
     private final int uidValidity;
     private String query;
     private Set<MailItem.Type> typeConstraint = ImapHandler.ITEM_TYPES;
-    private final List<ImapMessage> sequence = new ArrayList<ImapMessage>();
+    // the messages as of when the folder was loaded or last expunged, shared read-only with the other sessions that
+    //   have the folder selected
+    private volatile ImapMessageSequence base = ImapMessageSequence.EMPTY;
+    // this session's own copies of messages in base, by IMAP UID: the ones looked up since the last trim(), and the
+    //   ones that differ from base or that the session data still refers to
+    private ImapMessageIdIndex retained = new ImapMessageIdIndex(16);
+    // messages added to the folder since base was built, in UID order
+    private final List<ImapMessage> added = new ArrayList<ImapMessage>();
     private final ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
 
     // below this point are session-specific attributes of the folder SELECT state
@@ -123,10 +127,54 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         this.tags = new ImapFlagCache();
     }
 
+    /** Rebuilds a paged-out ImapFolder from its cached state.  The session
+     *  state is attached later by {@link #restore(ImapSession, SessionData)}.
+     * @param messages  The folder's messages, in sequence order.
+     * @see ImapFolderSerializer */
+    ImapFolder(int folderId, int uidValidity, String query, Set<MailItem.Type> typeConstraint, ImapFlagCache tags,
+            List<ImapMessage> messages) {
+        this.folderId = folderId;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.tags = tags;
+        rebuild(messages);
+    }
+
+    /** Fills a newly-created ImapFolder with its messages.  Messages
+     *  <b>must</b> be in increasing IMAP UID order.
+     * @param i4list        The folder's messages.
+     * @param recentCutoff  The highest IMAP UID that is not \Recent. */
+    synchronized void load(List<ImapMessage> i4list, int recentCutoff) {
+        short defaultFlags = getDefaultSessionFlags();
+        List<ImapMessage> messages = new ArrayList<ImapMessage>(i4list.size());
+        for (ImapMessage i4msg : i4list) {
+            i4msg.sflags |= defaultFlags;
+            if (i4msg.imapUid > recentCutoff) {
+                i4msg.sflags |= ImapMessage.FLAG_RECENT;
+                SessionData sdata = sessionData;
+                if (sdata != null) {
+                    sdata.recentCount++;
+                }
+            }
+            int last = messages.size() - 1;
+            if (last >= 0 && messages.get(last).imapUid == i4msg.imapUid) {
+                //should never occur, log so we can learn more if it does
+                ZimbraLog.imap.warn("duplicate UID %s %s added to sequence", i4msg, messages.get(last));
+                messages.set(last, i4msg);
+            } else {
+                messages.add(i4msg);
+            }
+            // update the tag cache to include only the tags in the folder
+            updateTagCache(i4msg);
+        }
+        rebuild(messages);
+    }
+
     void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
-            sdata.lastSize = sequence.size();
+            sdata.lastSize = getSize();
         }
     }
 
@@ -180,7 +228,7 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
      *  included in this count. */
     @Override
     public int getSize() {
-        return sequence.size();
+        return base.size() + added.size();
     }
 
     /** Returns the number of messages in the folder that are considered
@@ -263,9 +311,17 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         return sdata == null ? false : sdata.writable;
     }
 
+    /** Passes each of the folder's messages, in sequence order, to
+     *  <tt>func</tt>.  Unlike the messages returned by the lookup methods,
+     *  these may be temporary copies, so changes to them are lost. */
     public synchronized void traverse(Function<ImapMessage, Void> func) {
         int prevUid = -1;
-        for (Iterator<ImapMessage> it = sequence.iterator(); it.hasNext();) {
+        for (int index = 0, size = base.size(); index < size; index++) {
+            ImapMessage i4msg = message(index);
+            prevUid = i4msg.imapUid;
+            func.apply(i4msg);
+        }
+        for (Iterator<ImapMessage> it = added.iterator(); it.hasNext();) {
             ImapMessage i4msg = it.next();
             if (i4msg.imapUid == prevUid) {
                 ZimbraLog.imap.warn("duplicate UID %d in cached folder %d", prevUid, folderId);
@@ -305,9 +361,132 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         return zfolder.getContentSequence();
     }
 
+    /** Returns the ImapMessageSequence holding the messages this folder
+     *  shares with the other sessions that have it selected. */
+    ImapMessageSequence getSharedSequence() {
+        return base;
+    }
+
+    /** Returns the message at the 0-based <tt>index</tt> in the folder's
+     *  message list: this session's own copy if it has one, otherwise a
+     *  temporary copy of the shared message. */
+    private ImapMessage message(int index) {
+        ImapMessageSequence shared = base;
+        int size = shared.size();
+        if (index >= size) {
+            return added.get(index - size);
+        }
+        ImapMessage i4msg = retained.get(shared.getUid(index));
+        return i4msg != null ? i4msg : shared.get(index);
+    }
+
+    /** Makes a message returned by {@link #message(int)} this session's own
+     *  copy, so that looking it up again returns the same object and changes
+     *  to it stick.  Copies that don't differ from the shared message are
+     *  dropped again by {@link #trim()}. */
+    private ImapMessage retain(ImapMessage i4msg) {
+        if (i4msg.sequence <= base.size() && retained.get(i4msg.imapUid) == null) {
+            retained.put(i4msg.imapUid, i4msg);
+        }
+        return i4msg;
+    }
+
+    /** Returns all the folder's messages, in sequence order. */
+    private List<ImapMessage> messages() {
+        int size = getSize();
+        List<ImapMessage> messages = new ArrayList<ImapMessage>(size);
+        for (int index = 0; index < size; index++) {
+            messages.add(message(index));
+        }
+        return messages;
+    }
+
+    /** Replaces the shared messages with the given ones and drops the
+     *  folder's copies of messages that no longer differ from them and that
+     *  the session data doesn't refer to.  If another session has the folder
+     *  selected with the same messages, its ImapMessageSequence is shared.
+     * @param messages  All the folder's messages, in increasing IMAP UID
+     *                  order and without duplicates. */
+    private void rebuild(List<ImapMessage> messages) {
+        ImapMessageSequence built = new ImapMessageSequence(messages, getDefaultSessionFlags());
+        ImapMessageIdIndex own = new ImapMessageIdIndex(16);
+        for (int index = 0; index < messages.size(); index++) {
+            ImapMessage i4msg = messages.get(index);
+            if (!built.matches(index, i4msg) || isReferenced(i4msg)) {
+                own.put(i4msg.imapUid, i4msg);
+            }
+        }
+        for (int index = 0; index < messages.size(); index++) {
+            messages.get(index).sequence = index + 1;
+        }
+        base = share(built);
+        retained = own;
+        added.clear();
+        messageIds = null;
+    }
+
+    /** Returns the ImapMessageSequence of another session that has this
+     *  folder selected with the same messages, or <tt>built</tt> if there is
+     *  none.  Paged-out sessions aren't considered. */
+    private ImapMessageSequence share(ImapMessageSequence built) {
+        Mailbox mbox = mailbox;
+        if (mbox == null || built.size() == 0) {
+            return built;
+        }
+        for (Session s : mbox.getListeners(Session.Type.IMAP)) {
+            ImapSession i4session = (ImapSession) s;
+            if (i4session.getFolderId() == folderId) {
+                ImapMessageSequence other = i4session.getSharedSequence();
+                if (other != null && built.contentEquals(other)) {
+                    return other;
+                }
+            }
+        }
+        return built;
+    }
+
+    /** Returns whether the session data refers to the ImapMessage. */
+    private boolean isReferenced(ImapMessage i4msg) {
+        SessionData sdata = sessionData;
+        if (sdata == null) {
+            return false;
+        }
+        return sdata.dirtyMessages.containsKey(i4msg.imapUid) ||
+                (sdata.savedSearchResults != null && sdata.savedSearchResults.contains(i4msg));
+    }
+
+    /** Drops this session's copies of shared messages that are in the same
+     *  state as the shared ones and that the session data doesn't refer to,
+     *  typically the ones the last command looked up.  Called before each
+     *  command, as commands don't hold on to messages between them. */
+    synchronized void trim() {
+        if (retained.size() == 0) {
+            return;
+        }
+        ImapMessageSequence shared = base;
+        List<ImapMessage> own = new ArrayList<ImapMessage>();
+        for (ImapMessage i4msg : retained.values()) {
+            if (!shared.matches(i4msg.sequence - 1, i4msg) || isReferenced(i4msg)) {
+                own.add(i4msg);
+            }
+        }
+        if (own.size() < retained.size()) {
+            retained = new ImapMessageIdIndex(own.size());
+            for (ImapMessage i4msg : own) {
+                retained.put(i4msg.imapUid, i4msg);
+            }
+        }
+    }
+
+    /** Returns the session flags every message in the folder starts out
+     *  with. */
+    private short getDefaultSessionFlags() {
+        return (short) (folderId == Mailbox.ID_FOLDER_SPAM ? ImapMessage.FLAG_SPAM | ImapMessage.FLAG_JUNKRECORDED : 0);
+    }
+
     /** Retrieves the index of the ImapMessage with the given IMAP UID in the
-     *  folder's {@link #sequence} message list.  This retrieval is done via
-     *  binary search rather than direct lookup.
+     *  folder's message list.  This retrieval is done via binary search
+     *  rather than direct lookup.
      * @return index of the search key, if it is contained in the list;
      *         otherwise, <tt>(-(<i>insertion point</i>) - 1)</tt>.  The
      *         <i>insertion point</i> is defined as the point at which the
@@ -318,73 +497,85 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
      *         and only if the key is found.
      * @see Collections#binarySearch(List, Object) */
     private int uidSearch(int uid) {
-        int low = 0, high = getSize() - 1;
+        int size = base.size();
+        int index = base.search(uid);
+        if (index != -(size + 1)) {
+            return index;
+        }
+        // higher than all the shared messages, so look among the ones added since
+        int low = 0, high = added.size() - 1;
         while (low <= high) {
             int mid = (low + high) >> 1;
-            int targetUid = sequence.get(mid).imapUid;
+            int targetUid = added.get(mid).imapUid;
             if (targetUid < uid) {
                 low = mid + 1;
             } else if (targetUid > uid) {
                 high = mid - 1;
             } else {
-                return mid;  // key found
+                return size + mid;  // key found
             }
         }
-        return -(low + 1);  // key not found
+        return -(size + low + 1);  // key not found
     }
 
     /** Returns the ImapMessage with the given Zimbra item ID from the
-     *  folder's {@link #sequence} message list. */
+     *  folder's message list. */
     synchronized ImapMessage getById(int id) {
         if (id <= 0 || getSize() == 0) {
             return null;
         }
         // leverage the fact that by default, the message's item id and its IMAP uid are identical
         int seq = uidSearch(id);
-        if (seq >= 0 && seq < sequence.size()) {
-            ImapMessage i4msg = sequence.get(seq);
+        if (seq >= 0) {
+            ImapMessage i4msg = message(seq);
             // slightly tricky: must check if message is expunged in order to catch the case of
             //   using the web client to move the message out of the folder and back in before
             //   the IMAP server can tell the client about the EXPUNGE from the first move
-            if (i4msg != null && i4msg.msgId == id && !i4msg.isExpunged()) {
-                return checkRemoved(i4msg);
+            if (i4msg.msgId == id && !i4msg.isExpunged()) {
+                return retain(i4msg);
             }
         }
 
-        // if item id and IMAP uid differ, the message goes in the "mMessageIds" map
+        // if item id and IMAP uid differ, the added message goes in the "messageIds" map
         if (messageIds == null) {
             // lookup miss means we need to generate the item-id-to-imap-message mapping
-            messageIds = new HashMap<Integer, ImapMessage>();
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
+            messageIds = new ImapMessageIdIndex(16);
+            for (ImapMessage i4msg : added) {
+                if (i4msg.msgId != i4msg.imapUid) {
                     messageIds.put(i4msg.msgId, i4msg);
                 }
             }
         }
-        return checkRemoved(messageIds.get(Integer.valueOf(id)));
+        ImapMessage i4msg = messageIds.get(id);
+        if (i4msg == null) {
+            // the shared messages index their own item ids
+            int index = base.indexOfMovedId(id);
+            i4msg = index < 0 ? null : retain(message(index));
+        }
+        return checkRemoved(i4msg);
     }
 
     /** Returns the ImapMessage with the given IMAP UID from the folder's
-     *  {@link #sequence} message list. */
-    ImapMessage getByImapId(int uid) {
+     *  message list. */
+    synchronized ImapMessage getByImapId(int uid) {
         return uid > 0 ? getBySequence(uidSearch(uid) + 1) : null;
     }
 
     /** Returns the ImapMessage with the given 1-based sequence number in the
-     *  folder's {@link #sequence} message list. */
+     *  folder's message list. */
     ImapMessage getBySequence(int seq) {
         return getBySequence(seq, false);
     }
 
     /** Returns the ImapMessage with the given 1-based sequence number in the
-     *  folder's {@link #sequence} message list. */
-    ImapMessage getBySequence(int seq, boolean includeExpunged) {
-        ImapMessage i4msg = seq > 0 && seq <= getSize() ? sequence.get(seq - 1) : null;
+     *  folder's message list. */
+    synchronized ImapMessage getBySequence(int seq, boolean includeExpunged) {
+        ImapMessage i4msg = seq > 0 && seq <= getSize() ? retain(message(seq - 1)) : null;
         return includeExpunged ? i4msg : checkRemoved(i4msg);
     }
 
-    /** Returns the last ImapMessage in the folder's {@link #sequence}
-     *  message list.  This message corresponds to the "*" IMAP UID. */
+    /** Returns the last ImapMessage in the folder's message list.  This
+     *  message corresponds to the "*" IMAP UID. */
     private ImapMessage getLastMessage() {
         return getBySequence(getSize());
     }
@@ -397,14 +588,12 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
 
     /** Adds the message to the folder.  Messages <b>must</b> be added in
      *  increasing IMAP UID order.  Added messages are appended to the end of
-     *  the folder's {@link #sequence} message list and inserted into the
-     *  {@link #mMessageIds} hash (if the latter hash has been instantiated).
+     *  the folder's message list and inserted into the {@link #messageIds}
+     *  hash (if the latter hash has been instantiated).
      * @return true if message cached successfully without modification false if a renumber was required. */
     synchronized boolean cache(ImapMessage i4msg, boolean recent) {
         // provide the information missing from the DB search
-        if (folderId == Mailbox.ID_FOLDER_SPAM) {
-            i4msg.sflags |= ImapMessage.FLAG_SPAM | ImapMessage.FLAG_JUNKRECORDED;
-        }
+        i4msg.sflags |= getDefaultSessionFlags();
         if (recent) {
             i4msg.sflags |= ImapMessage.FLAG_RECENT;
             SessionData sdata = sessionData;
@@ -413,8 +602,9 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
             }
         }
         // update the folder information
+        int size = getSize();
         ImapMessage last = null;
-        if (sequence.size() > 0 && (last = sequence.get(sequence.size() - 1)).imapUid > i4msg.imapUid) {
+        if (size > 0 && (last = message(size - 1)).imapUid > i4msg.imapUid) {
             ZimbraLog.imap.debug("adding out of order UID. prev: %s current: %s", last, i4msg);
             if (!insertOutOfOrder(i4msg)) {
                 return false;
@@ -422,12 +612,19 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         } else if (last != null && last.imapUid == i4msg.imapUid) {
             //should never occur, log so we can learn more if it does
             ZimbraLog.imap.warn("duplicate UID %s %s added to sequence", i4msg, last, new Exception());
-            sequence.set(sequence.size() - 1, i4msg);
-            setIndex(i4msg, sequence.size());
+            if (added.isEmpty()) {
+                List<ImapMessage> messages = messages();
+                messages.set(size - 1, i4msg);
+                rebuild(messages);
+                retain(i4msg);
+            } else {
+                added.set(added.size() - 1, i4msg);
+                setIndex(i4msg, size);
+            }
         } else {
             //normal case, last item has lower UID so just add to the end
-            sequence.add(i4msg);
-            setIndex(i4msg, sequence.size());
+            added.add(i4msg);
+            setIndex(i4msg, size + 1);
         }
         // update the tag cache to include only the tags in the folder
         updateTagCache(i4msg);
@@ -435,16 +632,12 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
     }
 
     private boolean insertOutOfOrder(ImapMessage i4msg) {
-        LinkedList<ImapMessage> shifted = new LinkedList<ImapMessage>();
-        int idx  = sequence.size() - 1;
+        int idx  = getSize() - 1;
         while (idx > -1) {
-            ImapMessage prev = sequence.get(idx);
+            ImapMessage prev = message(idx);
             if (prev.imapUid <= i4msg.imapUid) {
                 break;
             } else if (prev.isAdded()) {
-                shifted.addFirst(prev);
-                //add to beginning so iteration below starts with lowest UID
-                //this is necessary to ensure that messageIds map holds the highest UID for a given msgId
                 idx--;
             } else {
                 ZimbraLog.imap.warn("message added out of order occurs before message which is already visible to client. Must renumber %s", i4msg);
@@ -458,25 +651,42 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
             }
         }
         idx++;
-        sequence.add(idx, i4msg);
-        setIndex(i4msg, idx + 1);
-        for (ImapMessage shiftedMsg : shifted) {
-            setIndex(shiftedMsg, shiftedMsg.sequence + 1);
+        int size = base.size();
+        if (idx < size) {
+            // shared messages are never moved, so build new ones
+            List<ImapMessage> messages = messages();
+            messages.add(idx, i4msg);
+            rebuild(messages);
+            retain(i4msg);
+            return true;
+        }
+        added.add(idx - size, i4msg);
+        //iteration starts with lowest UID
+        //this is necessary to ensure that messageIds map holds the highest UID for a given msgId
+        for (int i = idx - size; i < added.size(); i++) {
+            setIndex(added.get(i), size + i + 1);
         }
         return true;
     }
 
     void updateTagCache(ImapMessage i4msg) {
         if (!ArrayUtil.isEmpty(i4msg.tags)) {
-            for (String tag : i4msg.tags) {
-                if (tags.getByZimbraName(tag) == null) {
+            String[] msgTags = i4msg.tags;
+            for (int i = 0; i < msgTags.length; i++) {
+                String tag = msgTags[i];
+                ImapFlag i4flag = tags.getByZimbraName(tag);
+                if (i4flag == null) {
                     try {
-                        tags.cache(new ImapFlag(mailbox.getTagByName(null, tag)));
+                        i4flag = tags.cache(new ImapFlag(mailbox.getTagByName(null, tag)));
                         setTagsDirty(true);
                     } catch (ServiceException e) {
                         ZimbraLog.imap.warn("could not fetch listed tag: %s", tag, e);
                     }
                 }
+                // every message loaded from the DB has its own copy of each tag name; share the cached one
+                if (i4flag != null && i4flag.mName.equals(tag)) {
+                    msgTags[i] = i4flag.mName;
+                }
             }
         }
     }
@@ -485,16 +695,16 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         i4msg.sequence = position;
         if (messageIds != null) {
             if (i4msg.msgId != i4msg.imapUid) {
-                messageIds.put(Integer.valueOf(i4msg.msgId), i4msg);
+                messageIds.put(i4msg.msgId, i4msg);
             } else {
-                messageIds.remove(Integer.valueOf(i4msg.msgId));
+                messageIds.remove(i4msg.msgId);
             }
         }
     }
 
     /** Cleans up all references to an ImapMessage from all the folder's data
-     *  structures other than {@link #sequence}.  The {@link #sequence}
-     *  cleanup must be done separately. */
+     *  structures other than the message list.  The message list cleanup
+     *  must be done separately. */
     private void uncache(ImapMessage i4msg) {
         if (messageIds != null) {
             messageIds.remove(i4msg.msgId);
@@ -539,8 +749,10 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
             return;
         }
 
-        for (ImapMessage i4msg : sequence) {
-            if (i4msg != null && i4flag.matches(i4msg)) {
+        for (int index = 0, size = getSize(); index < size; index++) {
+            ImapMessage i4msg = message(index);
+            if (i4flag.matches(i4msg)) {
+                retain(i4msg);
                 dirtyMessage(i4msg, modseq);
 
                 List<String> tags = Lists.newArrayList(i4msg.tags);
@@ -691,19 +903,19 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
 
     synchronized ImapMessageSet getAllMessages() {
         ImapMessageSet result = new ImapMessageSet();
-        if (getSize() > 0) {
-            result.addAll(sequence);
-            result.remove(null);
+        for (int index = 0, size = getSize(); index < size; index++) {
+            result.add(retain(message(index)));
         }
         return result;
     }
 
     synchronized ImapMessageSet getFlaggedMessages(ImapFlag i4flag) {
         ImapMessageSet result = new ImapMessageSet();
-        if (i4flag != null && getSize() > 0) {
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4flag.matches(i4msg)) {
-                    result.add(i4msg);
+        if (i4flag != null) {
+            for (int index = 0, size = getSize(); index < size; index++) {
+                ImapMessage i4msg = message(index);
+                if (i4flag.matches(i4msg)) {
+                    result.add(retain(i4msg));
                 }
             }
         }
@@ -1045,36 +1257,50 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
     }
 
     synchronized List<Integer> collapseExpunged(boolean byUID) {
-        if (getSize() == 0) {
+        if (!hasExpungedMessages()) {
             return Collections.emptyList();
         }
         ZimbraLog.imap.debug("  ** iterating (collapseExpunged)");
 
-        boolean trimmed = false;
         int seq = 1;
         List<Integer> removed = new ArrayList<Integer>();
-        for (ListIterator<ImapMessage> lit = sequence.listIterator(); lit.hasNext(); seq++) {
-            ImapMessage i4msg = lit.next();
+        List<ImapMessage> remaining = new ArrayList<ImapMessage>(getSize());
+        for (ImapMessage i4msg : messages()) {
             if (i4msg.isExpunged()) {
                 ZimbraLog.imap.debug("  ** removing: %s", i4msg);
-                // uncache() removes pointers to the message from mMessageIds;
-                //   if the message appears again in sequence, it *must* be later and the
-                //   subsequent call to setIndex() will correctly update the mMessageIds mapping
+                // uncache() removes pointers to the message from messageIds;
+                //   the rebuild below discards messageIds anyway
                 uncache(i4msg);
-                lit.remove();
                 // note that we can't send expunge notifications for messages the client doesn't know about yet...
                 if (!i4msg.isAdded()) {
                     removed.add(byUID ? i4msg.imapUid : seq);
                 }
-                seq--;
-                trimmed = true;
-            } else if (trimmed) {
-                setIndex(i4msg, seq);
+            } else {
+                remaining.add(i4msg);
+                seq++;
             }
         }
+        // the other sessions on the folder will generally expunge the same messages and end up sharing the result
+        rebuild(remaining);
         return removed;
     }
 
+    /** Returns whether any message in the folder is marked expunged.  Only
+     *  this session's own copies and the added messages can be. */
+    private boolean hasExpungedMessages() {
+        for (ImapMessage i4msg : added) {
+            if (i4msg.isExpunged()) {
+                return true;
+            }
+        }
+        for (ImapMessage i4msg : retained.values()) {
+            if (i4msg.isExpunged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     void restore(ImapSession sess, SessionData sdata) throws ImapSessionClosedException, ServiceException {
         session = sess;
         mailbox = session.getMailbox();
@@ -1085,6 +1311,7 @@ public final class ImapFolder implements ImapSession.ImapFolderData, java.io.Ser
         flags = ImapFlagCache.getSystemFlags(mailbox);
         // FIXME: NOT RESTORING sequence.msg.sflags PROPERLY -- need to serialize it!!!
         sessionData = sdata;
+        base = share(base);
     }
 
     @Override
@@ -88,6 +88,7 @@ import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.MailServiceException.NoSuchItemException;
 import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mailbox.Mountpoint;
 import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.mailbox.SearchFolder;
@@ -357,6 +358,11 @@ abstract class ImapHandler {
             throw new ImapThrottledException("too many requests from remote ip");
         }
 
+        ImapSession i4selected = selectedFolder;
+        if (i4selected != null) {
+            i4selected.trimFolder();
+        }
+
         if (isIdle()) {
             boolean clean = false;
             try {
@@ -3720,136 +3726,171 @@ abstract class ImapHandler {
         } finally {
             mbox.lock.release();
         }
+        boolean loadItems = !fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) ||
+                (attributes & ~FETCH_FROM_CACHE) != 0;
+        int batchSize = Math.max(LC.imap_fetch_batch_size.intValue(), 1);
+        List<ImapMessage> batch = new ArrayList<ImapMessage>(Math.min(batchSize, i4set.size()));
+        Map<Integer, MailItem> prefetched = new HashMap<Integer, MailItem>();
+        PrintStream result = new PrintStream(output, false, Charsets.UTF_8.name());
         ReentrantLock lock = null;
         try {
-            for (ImapMessage i4msg : i4set) {
-                PrintStream result = new PrintStream(output, false, Charsets.UTF_8.name());
-                try {
-                    result.print("* " + i4msg.sequence + " FETCH (");
-
-                    if (i4msg.isExpunged()) {
-                        fetchStub(i4msg, i4folder, attributes, parts, fullMessage, result);
-                        continue;
+            for (Iterator<ImapMessage> it = i4set.iterator(); it.hasNext(); ) {
+                batch.clear();
+                while (it.hasNext() && batch.size() < batchSize) {
+                    batch.add(it.next());
+                }
+                if (loadItems) {
+                    if (lock == null && LC.imap_throttle_fetch.booleanValue()) {
+                        lock = commandThrottle.lock(credentials.getAccountId());
                     }
+                    prefetchItems(mbox, batch, prefetched);
+                }
+                for (ImapMessage i4msg : batch) {
+                    boolean respond = true;
+                    try {
+                        result.print("* " + i4msg.sequence + " FETCH (");
 
-                    boolean markMessage = markRead && (i4msg.flags & Flag.BITMASK_UNREAD) != 0;
-                    boolean empty = true;
-                    MailItem item = null;
-                    MimeMessage mm;
-                    if (!fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) || (attributes & ~FETCH_FROM_CACHE) != 0) {
-                        if (lock == null && LC.imap_throttle_fetch.booleanValue()) {
-                            lock = commandThrottle.lock(credentials.getAccountId());
-                        }
-                        try {
-                            item = mbox.getItemById(getContext(), i4msg.msgId, i4msg.getType());
-                        } catch (NoSuchItemException nsie) {
-                            // just in case we're out of sync, force this message back into sync
-                            i4folder.markMessageExpunged(i4msg);
+                        if (i4msg.isExpunged()) {
                             fetchStub(i4msg, i4folder, attributes, parts, fullMessage, result);
                             continue;
                         }
-                    }
 
-                    if ((attributes & FETCH_UID) != 0) {
-                        result.print((empty ? "" : " ") + "UID " + i4msg.imapUid);
-                        empty = false;
-                    }
-                    if ((attributes & FETCH_INTERNALDATE) != 0) {
-                        result.print((empty ? "" : " ") + "INTERNALDATE \"" +
-                                DateUtil.toImapDateTime(new Date(item.getDate())) + '"');
-                        empty = false;
-                    }
-                    if ((attributes & FETCH_RFC822_SIZE) != 0) {
-                        result.print((empty ? "" : " ") + "RFC822.SIZE " + i4msg.getSize(item));
-                        empty = false;
-                    }
-                    if ((attributes & FETCH_BINARY_SIZE) != 0) {
-                        result.print((empty ? "" : " ") + "BINARY.SIZE[] " + i4msg.getSize(item));
-                        empty = false;
-                    }
+                        boolean markMessage = markRead && (i4msg.flags & Flag.BITMASK_UNREAD) != 0;
+                        boolean empty = true;
+                        MailItem item = null;
+                        MimeMessage mm;
+                        if (loadItems) {
+                            item = prefetched.get(i4msg.msgId);
+                            if (item == null || !MailItem.isAcceptableType(i4msg.getType(), item.getType())) {
+                                try {
+                                    item = mbox.getItemById(getContext(), i4msg.msgId, i4msg.getType());
+                                } catch (NoSuchItemException nsie) {
+                                    // just in case we're out of sync, force this message back into sync
+                                    i4folder.markMessageExpunged(i4msg);
+                                    fetchStub(i4msg, i4folder, attributes, parts, fullMessage, result);
+                                    continue;
+                                }
+                            }
+                        }
 
-                    if (!fullMessage.isEmpty()) {
-                        for (ImapPartSpecifier pspec : fullMessage) {
-                            result.print(empty ? "" : " ");
-                            pspec.write(result, output, item);
+                        if ((attributes & FETCH_UID) != 0) {
+                            result.print((empty ? "" : " ") + "UID " + i4msg.imapUid);
                             empty = false;
                         }
-                    }
-
-                    if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
-                        mm = ImapMessage.getMimeMessage(item);
-                        if ((attributes & FETCH_BODY) != 0) {
-                            result.print(empty ? "" : " ");
-                            result.print("BODY ");
-                            ImapMessage.serializeStructure(result, mm, false);
+                        if ((attributes & FETCH_INTERNALDATE) != 0) {
+                            result.print((empty ? "" : " ") + "INTERNALDATE \"" +
+                                    DateUtil.toImapDateTime(new Date(item.getDate())) + '"');
                             empty = false;
                         }
-                        if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
-                            result.print(empty ? "" : " ");
-                            result.print("BODYSTRUCTURE ");
-                            ImapMessage.serializeStructure(result, mm, true);
+                        if ((attributes & FETCH_RFC822_SIZE) != 0) {
+                            result.print((empty ? "" : " ") + "RFC822.SIZE " + i4msg.getSize(item));
                             empty = false;
                         }
-                        if ((attributes & FETCH_ENVELOPE) != 0) {
-                            result.print(empty ? "" : " ");
-                            result.print("ENVELOPE ");
-                            ImapMessage.serializeEnvelope(result, mm);
+                        if ((attributes & FETCH_BINARY_SIZE) != 0) {
+                            result.print((empty ? "" : " ") + "BINARY.SIZE[] " + i4msg.getSize(item));
                             empty = false;
                         }
-                        if (parts != null) {
-                            for (ImapPartSpecifier pspec : parts) {
+
+                        if (!fullMessage.isEmpty()) {
+                            for (ImapPartSpecifier pspec : fullMessage) {
                                 result.print(empty ? "" : " ");
-                                pspec.write(result, output, mm);
+                                pspec.write(result, output, item);
                                 empty = false;
                             }
                         }
-                    }
 
-                    // 6.4.5: "The \Seen flag is implicitly set; if this causes the flags to
-                    //         change, they SHOULD be included as part of the FETCH responses."
-                    // FIXME: optimize by doing a single mark-read op on multiple messages
-                    if (markMessage) {
-                        mbox.alterTag(getContext(), i4msg.msgId, i4msg.getType(), Flag.FlagInfo.UNREAD, false, null);
-                    }
-                    ImapFolder.DirtyMessage unsolicited = i4folder.undirtyMessage(i4msg);
-                    if ((attributes & FETCH_FLAGS) != 0 || unsolicited != null) {
-                        result.print(empty ? "" : " ");
-                        result.print(i4msg.getFlags(i4folder));
-                        empty = false;
-                    }
+                        if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
+                            // the ENVELOPE and BODYSTRUCTURE of messages are computed at delivery time
+                            String envelope = null, bodyStructure = null;
+                            if (item instanceof Message) {
+                                envelope = ((Message) item).getImapEnvelope();
+                                bodyStructure = ((Message) item).getImapBodyStructure();
+                            }
+                            boolean needMime = (parts != null && !parts.isEmpty()) || (attributes & FETCH_BODY) != 0 ||
+                                    ((attributes & FETCH_BODYSTRUCTURE) != 0 && bodyStructure == null) ||
+                                    ((attributes & FETCH_ENVELOPE) != 0 && envelope == null);
+                            mm = needMime ? ImapMessage.getMimeMessage(item) : null;
+                            if ((attributes & FETCH_BODY) != 0) {
+                                result.print(empty ? "" : " ");
+                                result.print("BODY ");
+                                ImapMessage.serializeStructure(result, mm, false);
+                                empty = false;
+                            }
+                            if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
+                                result.print(empty ? "" : " ");
+                                result.print("BODYSTRUCTURE ");
+                                if (bodyStructure != null) {
+                                    result.print(bodyStructure);
+                                } else {
+                                    ImapMessage.serializeStructure(result, mm, true);
+                                }
+                                empty = false;
+                            }
+                            if ((attributes & FETCH_ENVELOPE) != 0) {
+                                result.print(empty ? "" : " ");
+                                result.print("ENVELOPE ");
+                                if (envelope != null) {
+                                    result.print(envelope);
+                                } else {
+                                    ImapMessage.serializeEnvelope(result, mm);
+                                }
+                                empty = false;
+                            }
+                            if (parts != null) {
+                                for (ImapPartSpecifier pspec : parts) {
+                                    result.print(empty ? "" : " ");
+                                    pspec.write(result, output, mm);
+                                    empty = false;
+                                }
+                            }
+                        }
 
-                    // RFC 4551 3.2: "Once the client specified the MODSEQ message data item in a
-                    //                FETCH request, the server MUST include the MODSEQ fetch response
-                    //                data items in all subsequent unsolicited FETCH responses."
-                    if ((attributes & FETCH_MODSEQ) != 0 || (modseqEnabled && unsolicited != null)) {
-                        int modseq = unsolicited == null ? i4msg.getModseq(item) : unsolicited.modseq;
-                        result.print((empty ? "" : " ") + "MODSEQ (" + modseq + ')');  empty = false;
-                    }
-                } catch (ImapPartSpecifier.BinaryDecodingException e) {
-                    // don't write this response line if we're returning NO
-                    result = null;
-                    throw new ImapParseException(tag, "UNKNOWN-CTE", command + "failed: unknown content-type-encoding", false);
-                } catch (ServiceException e) {
-                    Throwable cause = e.getCause();
-                    if (cause instanceof IOException) {
-                        fetchException(cause);
-                    } else {
+                        // 6.4.5: "The \Seen flag is implicitly set; if this causes the flags to
+                        //         change, they SHOULD be included as part of the FETCH responses."
+                        // FIXME: optimize by doing a single mark-read op on multiple messages
+                        if (markMessage) {
+                            mbox.alterTag(getContext(), i4msg.msgId, i4msg.getType(), Flag.FlagInfo.UNREAD, false, null);
+                        }
+                        ImapFolder.DirtyMessage unsolicited = i4folder.undirtyMessage(i4msg);
+                        if ((attributes & FETCH_FLAGS) != 0 || unsolicited != null) {
+                            result.print(empty ? "" : " ");
+                            result.print(i4msg.getFlags(i4folder));
+                            empty = false;
+                        }
+
+                        // RFC 4551 3.2: "Once the client specified the MODSEQ message data item in a
+                        //                FETCH request, the server MUST include the MODSEQ fetch response
+                        //                data items in all subsequent unsolicited FETCH responses."
+                        if ((attributes & FETCH_MODSEQ) != 0 || (modseqEnabled && unsolicited != null)) {
+                            int modseq = unsolicited == null ? i4msg.getModseq(item) : unsolicited.modseq;
+                            result.print((empty ? "" : " ") + "MODSEQ (" + modseq + ')');  empty = false;
+                        }
+                    } catch (ImapPartSpecifier.BinaryDecodingException e) {
+                        // don't write this response line if we're returning NO
+                        respond = false;
+                        throw new ImapParseException(tag, "UNKNOWN-CTE", command + "failed: unknown content-type-encoding", false);
+                    } catch (ServiceException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) {
+                            fetchException(cause);
+                        } else {
+                            ZimbraLog.imap.warn("ignoring error during " + command + ": ", e);
+                            continue;
+                        }
+                    } catch (MessagingException e) {
                         ZimbraLog.imap.warn("ignoring error during " + command + ": ", e);
                         continue;
+                    } catch (IOException ioe) {
+                        fetchException(ioe);
                     }
-                } catch (MessagingException e) {
-                    ZimbraLog.imap.warn("ignoring error during " + command + ": ", e);
-                    continue;
-                } catch (IOException ioe) {
-                    fetchException(ioe);
-                }
-                finally {
-                    if (result != null) {
-                        result.write(')');
-                        output.write(LINE_SEPARATOR_BYTES, 0, LINE_SEPARATOR_BYTES.length);
-                        output.flush();
+                    finally {
+                        if (respond) {
+                            result.write(')');
+                            output.write(LINE_SEPARATOR_BYTES, 0, LINE_SEPARATOR_BYTES.length);
+                        }
                     }
                 }
+                output.flush();
             }
         } finally {
             if (lock != null) {
@@ -3863,6 +3904,33 @@ abstract class ImapHandler {
         return true;
     }
 
+    /**
+     * Loads the items of the given messages with one multi-id lookup rather than one lookup per message.  Messages
+     * whose items are not in <tt>items</tt> afterwards are looked up one at a time by the caller.
+     */
+    private void prefetchItems(Mailbox mbox, List<ImapMessage> batch, Map<Integer, MailItem> items) {
+        items.clear();
+        List<Integer> ids = new ArrayList<Integer>(batch.size());
+        for (ImapMessage i4msg : batch) {
+            if (!i4msg.isExpunged()) {
+                ids.add(i4msg.msgId);
+            }
+        }
+        if (ids.size() < 2) {
+            return;
+        }
+        try {
+            for (MailItem item : mbox.getItemById(getContext(), ids, MailItem.Type.UNKNOWN)) {
+                if (item != null) {
+                    items.put(item.getId(), item);
+                }
+            }
+        } catch (ServiceException e) {
+            // e.g. one of the messages was deleted since the folder was loaded
+            ZimbraLog.imap.debug("batched item lookup failed, falling back to single lookups", e);
+        }
+    }
+
     private void fetchException(Throwable cause) throws ImapIOException {
         final String msg = "IOException fetching IMAP message (" +
                 (cause != null ? cause.getMessage() : "null") + "), closing connection";
@@ -56,6 +56,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ArrayUtil;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.Pair;
+import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
 import com.zimbra.cs.mailbox.Contact;
 import com.zimbra.cs.mailbox.Flag;
@@ -661,6 +662,37 @@ public class ImapMessage implements Comparable<ImapMessage>, java.io.Serializabl
         }
     }
 
+    /**
+     * Returns the ENVELOPE of the message exactly as it is sent to IMAP clients, or null if it can't be computed.
+     */
+    public static String getEnvelope(MimeMessage mm) {
+        return serialize(mm, true);
+    }
+
+    /**
+     * Returns the BODYSTRUCTURE of the message exactly as it is sent to IMAP clients, or null if it can't be computed.
+     */
+    public static String getBodyStructure(MimeMessage mm) {
+        return serialize(mm, false);
+    }
+
+    private static String serialize(MimeMessage mm, boolean envelope) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+        try {
+            PrintStream ps = new PrintStream(baos, false, MimeConstants.P_CHARSET_UTF8);
+            if (envelope) {
+                serializeEnvelope(ps, mm);
+            } else {
+                serializeStructure(ps, mm, true);
+            }
+            ps.flush();
+            return new String(baos.toByteArray(), MimeConstants.P_CHARSET_UTF8);
+        } catch (Exception e) {
+            ZimbraLog.imap.debug("unable to serialize %s", envelope ? "ENVELOPE" : "BODYSTRUCTURE", e);
+            return null;
+        }
+    }
+
     private static int getLineCount(MimePart mp) {
         // if the MimePart implementation counts lines, use its count
         try {
@@ -0,0 +1,133 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map from a positive item id or IMAP UID to {@link ImapMessage}.  An {@link ImapFolder} uses one to find the messages
+ * whose item id differs from their IMAP UID, typically every message moved into the folder, and one to hold its own
+ * copies of messages of its shared {@link ImapMessageSequence}.
+ * <p>
+ * Keys and values live in two parallel arrays with linear probing, so an entry takes 8 to 16 bytes instead of the
+ * ~50 bytes of a {@code HashMap<Integer, ImapMessage>} entry with its boxed key.  Not thread-safe; the folder
+ * synchronizes access.
+ */
+final class ImapMessageIdIndex implements java.io.Serializable {
+    private static final long serialVersionUID = 6410127930981384562L;
+    private static final int FREE = 0; // item ids and UIDs are always positive
+
+    private int[] keys;
+    private ImapMessage[] values;
+    private int size;
+
+    ImapMessageIdIndex(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        keys = new int[capacity];
+        values = new ImapMessage[capacity];
+    }
+
+    private static int slot(int id, int mask) {
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    int size() {
+        return size;
+    }
+
+    ImapMessage get(int id) {
+        int mask = keys.length - 1;
+        for (int i = slot(id, mask); keys[i] != FREE; i = (i + 1) & mask) {
+            if (keys[i] == id) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /** Returns the messages in no particular order. */
+    List<ImapMessage> values() {
+        List<ImapMessage> result = new ArrayList<ImapMessage>(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                result.add(values[i]);
+            }
+        }
+        return result;
+    }
+
+    void put(int id, ImapMessage i4msg) {
+        if (id == FREE) {
+            throw new IllegalArgumentException("invalid item id " + id);
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int i = slot(id, mask);
+        for (; keys[i] != FREE; i = (i + 1) & mask) {
+            if (keys[i] == id) {
+                values[i] = i4msg;
+                return;
+            }
+        }
+        keys[i] = id;
+        values[i] = i4msg;
+        size++;
+    }
+
+    void remove(int id) {
+        int mask = keys.length - 1;
+        int gap = slot(id, mask);
+        while (keys[gap] != id) {
+            if (keys[gap] == FREE) {
+                return;
+            }
+            gap = (gap + 1) & mask;
+        }
+        // shift back the entries of the probe run that would no longer be found past the freed slot
+        for (int i = (gap + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+            int home = slot(keys[i], mask);
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = FREE;
+        values[gap] = null;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        ImapMessage[] oldValues = values;
+        keys = new int[capacity];
+        values = new ImapMessage[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Immutable list of the messages of an {@link ImapFolder} in UID order, kept as parallel primitive arrays rather than
+ * one {@link ImapMessage} per message, so that every session that has the folder selected can share one copy.
+ * <p>
+ * A message takes 18 bytes (UID, item id, flags, session flags and a reference to its tag names, which are shared
+ * between messages with the same tags), plus 8 for the item id index if its item id differs from its UID.
+ * {@link #get(int)} hands out a new {@link ImapMessage} for a message each time; the folder keeps the ones a session
+ * changes.
+ */
+final class ImapMessageSequence implements java.io.Serializable {
+    private static final long serialVersionUID = -2938400153364585707L;
+
+    static final ImapMessageSequence EMPTY = new ImapMessageSequence(Collections.<ImapMessage>emptyList(), (short) 0);
+
+    private final int[] uids;
+    private final int[] ids;
+    private final int[] flags;
+    private final short[] sflags;
+    private final String[][] tags;
+    // item ids that differ from their message's UID, in ascending order, and the index of the message for each
+    private final int[] movedIds;
+    private final int[] movedIndexes;
+
+    /**
+     * @param messages  the messages, in ascending UID order without duplicates
+     * @param defaultSessionFlags  the session flags every message in the folder starts with; any other session flag
+     *                             of the passed-in messages, except {@link ImapMessage#FLAG_IS_CONTACT}, is dropped
+     */
+    ImapMessageSequence(List<ImapMessage> messages, short defaultSessionFlags) {
+        int size = messages.size();
+        uids = new int[size];
+        ids = new int[size];
+        flags = new int[size];
+        sflags = new short[size];
+        tags = new String[size][];
+
+        Map<List<String>, String[]> tagsets = new HashMap<List<String>, String[]>();
+        int moved = 0;
+        for (int i = 0; i < size; i++) {
+            ImapMessage i4msg = messages.get(i);
+            uids[i] = i4msg.imapUid;
+            ids[i] = i4msg.msgId;
+            flags[i] = i4msg.flags;
+            sflags[i] = (short) ((i4msg.sflags & ImapMessage.FLAG_IS_CONTACT) | defaultSessionFlags);
+            if (i4msg.tags != null) {
+                List<String> key = Arrays.asList(i4msg.tags);
+                String[] shared = tagsets.get(key);
+                if (shared == null) {
+                    tagsets.put(key, shared = i4msg.tags);
+                }
+                tags[i] = shared;
+            }
+            if (i4msg.msgId != i4msg.imapUid) {
+                moved++;
+            }
+        }
+
+        // sort by item id, then by position so that the highest UID wins if an item id appears twice
+        long[] keys = new long[moved];
+        for (int i = 0, k = 0; i < size; i++) {
+            if (ids[i] != uids[i]) {
+                keys[k++] = ((long) ids[i] << 32) | i;
+            }
+        }
+        Arrays.sort(keys);
+        int count = 0;
+        int[] movedIds = new int[moved], movedIndexes = new int[moved];
+        for (long key : keys) {
+            int id = (int) (key >>> 32);
+            if (count == 0 || movedIds[count - 1] != id) {
+                count++;
+            }
+            movedIds[count - 1] = id;
+            movedIndexes[count - 1] = (int) key;
+        }
+        this.movedIds = count == moved ? movedIds : Arrays.copyOf(movedIds, count);
+        this.movedIndexes = count == moved ? movedIndexes : Arrays.copyOf(movedIndexes, count);
+    }
+
+    int size() {
+        return uids.length;
+    }
+
+    int getUid(int index) {
+        return uids[index];
+    }
+
+    /**
+     * Returns the index of the message with the given UID, or <tt>(-(<i>insertion point</i>) - 1)</tt> if there is
+     * none, as {@link Arrays#binarySearch(int[], int)} does.
+     */
+    int search(int uid) {
+        return Arrays.binarySearch(uids, uid);
+    }
+
+    /** Returns the index of the message whose item id is {@code id} but whose UID isn't, or -1 if there is none. */
+    int indexOfMovedId(int id) {
+        int i = Arrays.binarySearch(movedIds, id);
+        return i < 0 ? -1 : movedIndexes[i];
+    }
+
+    /** Returns a new {@link ImapMessage} for the message at the 0-based {@code index}. */
+    ImapMessage get(int index) {
+        ImapMessage i4msg = new ImapMessage(ids[index], MailItem.Type.MESSAGE, uids[index], flags[index], tags[index]);
+        i4msg.sflags = sflags[index];
+        i4msg.sequence = index + 1;
+        return i4msg;
+    }
+
+    /** Returns whether {@code i4msg} is in the same state as the message at {@code index}. */
+    boolean matches(int index, ImapMessage i4msg) {
+        return index >= 0 && index < uids.length && uids[index] == i4msg.imapUid && ids[index] == i4msg.msgId &&
+                flags[index] == i4msg.flags && sflags[index] == i4msg.sflags && Arrays.equals(tags[index], i4msg.tags);
+    }
+
+    /** Returns whether the two sequences hold the same messages in the same state. */
+    boolean contentEquals(ImapMessageSequence other) {
+        if (other == this) {
+            return true;
+        }
+        int size = uids.length;
+        if (other.uids.length != size || (size > 0 && other.uids[size - 1] != uids[size - 1])) {
+            return false;
+        }
+        return Arrays.equals(uids, other.uids) && Arrays.equals(ids, other.ids) && Arrays.equals(flags, other.flags) &&
+                Arrays.equals(sflags, other.sflags) && Arrays.deepEquals(tags, other.tags);
+    }
+}
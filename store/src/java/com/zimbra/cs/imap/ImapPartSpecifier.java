@@ -18,6 +18,9 @@ package com.zimbra.cs.imap;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,7 +40,9 @@ import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.NioOutputStream;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -135,6 +140,15 @@ class ImapPartSpecifier {
     }
 
     void write(PrintStream ps, OutputStream os, Object obj) throws IOException, BinaryDecodingException, ServiceException {
+        // whole messages and byte ranges of them are sent from the blob file without reading it into the heap
+        if (os instanceof NioOutputStream && obj instanceof Message && isEntireMessage() && !command.startsWith("BINARY")) {
+            FileInputStream file = openContentFile((Message) obj);
+            if (file != null) {
+                write(ps, (NioOutputStream) os, file);
+                return;
+            }
+        }
+
         InputStream is = null;
         try {
             Pair<Long, InputStream> contents = getContent(obj);
@@ -179,6 +193,47 @@ class ImapPartSpecifier {
         }
     }
 
+    /**
+     * Opens the message's blob file, or returns <tt>null</tt> if it can't be sent as is or is gone, for instance
+     * because the message was expunged meanwhile.  The file is opened before the literal's length is sent, so the
+     * client is never promised bytes that can't be read.
+     */
+    private static FileInputStream openContentFile(Message msg) throws ServiceException {
+        File file = msg.getContentFile();
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            ZimbraLog.imap.debug("blob file %s is gone; reading the content of message %d instead", file, msg.getId());
+            return null;
+        }
+    }
+
+    private void write(PrintStream ps, NioOutputStream os, FileInputStream file) throws IOException {
+        boolean sending = false;
+        try {
+            long start = 0, length = file.getChannel().size();
+            if (octetStart >= 0) {
+                start = Math.min(octetStart, length);
+                length = Math.max(0, Math.min(length, octetEnd) - octetStart);
+            }
+
+            ps.print(this);
+            ps.print(" {");
+            ps.print(length);
+            ps.write('}');
+            os.write(ImapHandler.LINE_SEPARATOR_BYTES);
+            sending = true;
+            os.write(file, start, length);
+        } finally {
+            if (!sending) {
+                ByteUtil.closeStream(file);
+            }
+        }
+    }
+
     Pair<Long, InputStream> getContent(Object obj) throws IOException, BinaryDecodingException, ServiceException {
         Pair<Long, InputStream> contents;
         if (obj instanceof MimeMessage) {
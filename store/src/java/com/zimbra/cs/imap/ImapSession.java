@@ -41,6 +41,7 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxLock;
 import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mailbox.Tag;
 import com.zimbra.cs.session.PendingModifications;
@@ -76,6 +77,18 @@ public class ImapSession extends Session {
     private ImapFolderData mFolder;
     private ImapHandler handler;
     private final Map<Integer, Integer> renumberCount = new ConcurrentHashMap<Integer, Integer>();
+    // changes that arrived while the mailbox lock couldn't be taken; guarded by this
+    private final List<DeferredChanges> deferred = new ArrayList<DeferredChanges>(1);
+
+    private static final class DeferredChanges {
+        final PendingModifications pns;
+        final int changeId;
+
+        DeferredChanges(PendingModifications pns, int changeId) {
+            this.pns = pns;
+            this.changeId = changeId;
+        }
+    }
 
     ImapSession(ImapFolder i4folder, ImapHandler handler) throws ServiceException {
         super(i4folder.getCredentials().getAccountId(), i4folder.getPath().getOwnerAccountId(), Session.Type.IMAP);
@@ -101,6 +114,22 @@ public class ImapSession extends Session {
         return mPath;
     }
 
+    /** Returns the messages the selected folder shares with other sessions,
+     *  or null if the folder is paged out.  Does not page it back in. */
+    ImapMessageSequence getSharedSequence() {
+        ImapFolderData fdata = mFolder;
+        return fdata instanceof ImapFolder ? ((ImapFolder) fdata).getSharedSequence() : null;
+    }
+
+    /** Lets the selected folder drop its copies of the shared messages the
+     *  last command looked up.  Does nothing if the folder is paged out. */
+    void trimFolder() {
+        ImapFolderData fdata = mFolder;
+        if (fdata instanceof ImapFolder) {
+            ((ImapFolder) fdata).trim();
+        }
+    }
+
     boolean isInteractive() {
         return handler != null;
     }
@@ -317,7 +346,7 @@ public class ImapSession extends Session {
         if (mbox == null) {
             return;
         }
-        // Mailbox.endTransaction() -> ImapSession.notifyPendingChanges() locks in the order of Mailbox -> ImapSession.
+        // ImapSession.notifyPendingChanges() locks in the order of Mailbox -> ImapSession.
         // Need to lock in the same order here, otherwise can result in deadlock.
         mbox.lock.lock(); // serialize() locks Mailbox deep inside of it
         try {
@@ -356,7 +385,7 @@ public class ImapSession extends Session {
         if (mbox == null) {
             throw new ImapSessionClosedException();
         }
-        // Mailbox.endTransaction() -> ImapSession.notifyPendingChanges() locks in the order of Mailbox -> ImapSession.
+        // ImapSession.notifyPendingChanges() locks in the order of Mailbox -> ImapSession.
         // Need to lock in the same order here, otherwise can result in deadlock.
         mbox.lock.lock(); // PagedFolderData.replay() locks Mailbox deep inside of it.
         try {
@@ -393,6 +422,7 @@ public class ImapSession extends Session {
                         i4folder.collapseExpunged(false);
                     }
                 }
+                handleDeferredChanges();
                 return (ImapFolder) mFolder;
             }
         } finally {
@@ -439,36 +469,35 @@ public class ImapSession extends Session {
         }
 
         ImapHandler i4handler = handler;
+        Mailbox mbox = mailbox;
         try {
-            synchronized (this) {
-                AddedItems added = new AddedItems();
-                if (pns.deleted != null) {
-                    for (Map.Entry<ModificationKey, Change> entry : pns.deleted.entrySet()) {
-                        handleDelete(changeId, entry.getKey().getItemId(), entry.getValue());
-                    }
-                }
-                if (pns.created != null) {
-                    for (MailItem item : pns.created.values()) {
-                        handleCreate(changeId, item, added);
-                    }
-                }
-                if (pns.modified != null) {
-                    for (Change chg : pns.modified.values()) {
-                        handleModify(changeId, chg, added);
-                    }
+            // Changes are delivered off the committing thread, and handling them may call back into the Mailbox
+            // (renumbering UIDs, detaching), so lock in the order of Mailbox -> ImapSession like unload() does.
+            if (mbox != null) {
+                mbox.lock.lock();
+            }
+            try {
+                synchronized (this) {
+                    handleDeferredChanges();
+                    handleChanges(pns, changeId);
                 }
-
-                // add new messages to the currently selected mailbox
-                if (!added.isEmpty()) {
-                    mFolder.handleAddedMessages(changeId, added);
+            } finally {
+                if (mbox != null) {
+                    mbox.lock.release();
                 }
-
-                mFolder.finishNotification(changeId);
             }
 
             if (i4handler != null && i4handler.isIdle()) {
                 i4handler.sendNotifications(true, true);
             }
+        } catch (MailboxLock.LockFailedException e) {
+            // hold on to the change; it's applied, in order, before the next one or when the handler next reads the
+            // selected folder, both of which take the mailbox lock
+            ZimbraLog.imap.warn("Failed to lock mailbox for notification, deferring change %d for %s",
+                    changeId, this, e);
+            synchronized (this) {
+                deferred.add(new DeferredChanges(pns, changeId));
+            }
         } catch (IOException e) {
             // ImapHandler.dropConnection clears our mHandler and calls SessionCache.clearSession,
             //   which calls Session.doCleanup, which calls Mailbox.removeListener
@@ -483,6 +512,47 @@ public class ImapSession extends Session {
         }
     }
 
+    /**
+     * Applies the changes that couldn't be applied when they were delivered.  Must be called with the mailbox lock
+     * and this session's monitor held.
+     */
+    private void handleDeferredChanges() {
+        if (deferred.isEmpty()) {
+            return;
+        }
+        List<DeferredChanges> changes = new ArrayList<DeferredChanges>(deferred);
+        deferred.clear();
+        for (DeferredChanges chg : changes) {
+            handleChanges(chg.pns, chg.changeId);
+        }
+    }
+
+    private void handleChanges(PendingModifications pns, int changeId) {
+        AddedItems added = new AddedItems();
+        if (pns.deleted != null) {
+            for (Map.Entry<ModificationKey, Change> entry : pns.deleted.entrySet()) {
+                handleDelete(changeId, entry.getKey().getItemId(), entry.getValue());
+            }
+        }
+        if (pns.created != null) {
+            for (MailItem item : pns.created.values()) {
+                handleCreate(changeId, item, added);
+            }
+        }
+        if (pns.modified != null) {
+            for (Change chg : pns.modified.values()) {
+                handleModify(changeId, chg, added);
+            }
+        }
+
+        // add new messages to the currently selected mailbox
+        if (!added.isEmpty()) {
+            mFolder.handleAddedMessages(changeId, added);
+        }
+
+        mFolder.finishNotification(changeId);
+    }
+
     void handleDelete(int changeId, int id, Change chg) {
         MailItem.Type type = (MailItem.Type) chg.what;
         if (id <= 0) {
@@ -283,10 +283,12 @@ final class ImapSessionManager {
             int recentCutoff = folder.getImapRECENTCutoff();
 
             if (i4list == null) {
-                List<Session> listeners = mbox.getListeners(Session.Type.IMAP);
                 // first option is to duplicate an existing registered session
                 //   (could try to just activate an inactive session, but this logic is simpler for now)
-                i4list = duplicateExistingSession(folderId, listeners);
+                //   unless it may not have been notified of every committed change yet
+                if (!mbox.hasPendingNotifications()) {
+                    i4list = duplicateExistingSession(folderId, mbox.getListeners(Session.Type.IMAP));
+                }
                 // no matching session means we next check for serialized folder data
                 if (i4list == null) {
                     i4list = duplicateSerializedFolder(folder);
@@ -316,10 +318,11 @@ final class ImapSessionManager {
             // can't set these until *after* loading the folder because UID renumbering affects them
             InitialFolderValues initial = new InitialFolderValues(folder);
 
+            i4folder.load(i4list, recentCutoff);
             for (ImapMessage i4msg : i4list) {
-                i4folder.cache(i4msg, i4msg.imapUid > recentCutoff);
-                if (initial.firstUnread == -1 && (i4msg.flags & Flag.BITMASK_UNREAD) != 0) {
+                if ((i4msg.flags & Flag.BITMASK_UNREAD) != 0) {
                     initial.firstUnread = i4msg.sequence;
+                    break;
                 }
             }
             i4folder.setInitialSize();
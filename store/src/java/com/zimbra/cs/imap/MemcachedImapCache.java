@@ -16,13 +16,6 @@
  */
 package com.zimbra.cs.imap;
 
-import java.io.ByteArrayInputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-
-import org.apache.commons.io.output.ByteArrayOutputStream;
-
-import com.google.common.io.Closeables;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.util.memcached.MemcachedKey;
@@ -98,29 +91,15 @@ final class MemcachedImapCache implements ImapSessionManager.Cache {
 
         @Override
         public Object serialize(ImapFolder folder) throws ServiceException {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream();
-            ObjectOutputStream oout = null;
-            try {
-                oout = new ObjectOutputStream(bout);
-                oout.writeObject(folder);
-            } catch (Exception e) {
-                throw ServiceException.FAILURE("Failed to serialize ImapFolder", e);
-            } finally {
-                Closeables.closeQuietly(oout);
-            }
-            return bout.toByteArray();
+            return ImapFolderSerializer.encode(folder);
         }
 
         @Override
         public ImapFolder deserialize(Object obj) throws ServiceException {
-            ObjectInputStream in = null;
             try {
-                in = new ObjectInputStream(new ByteArrayInputStream((byte[]) obj));
-                return (ImapFolder) in.readObject();
+                return ImapFolderSerializer.decode((byte[]) obj);
             } catch (Exception e) {
                 throw ServiceException.FAILURE("Failed to deserialize ImapFolder", e);
-            } finally {
-                Closeables.closeQuietly(in);
             }
         }
 
@@ -135,7 +135,8 @@ public final class LuceneDirectory extends Directory {
 
     @Override
     public IndexOutput createOutput(String name) throws IOException {
-        return new LuceneIndexOutput(directory.createOutput(name));
+        // files created by merge threads are written within the server-wide merge I/O budget
+        return new LuceneIndexOutput(directory.createOutput(name), LuceneMergeExecutor.isThrottled());
     }
 
     @Override
@@ -253,11 +254,24 @@ public final class LuceneDirectory extends Directory {
     }
 
     private static final class LuceneIndexOutput extends IndexOutput {
+        private static final int THROTTLE_CHUNK = 64 * 1024;
+
         private final IndexOutput output;
         private boolean disableCounters = LC.zimbra_index_disable_perf_counters.booleanValue();
+        private final boolean throttled;
+        private int unthrottled = 0; // bytes written since the last throttle
 
-        LuceneIndexOutput(IndexOutput out) {
+        LuceneIndexOutput(IndexOutput out, boolean throttled) {
             output = out;
+            this.throttled = throttled;
+        }
+
+        private void throttle(int len) {
+            unthrottled += len;
+            if (unthrottled >= THROTTLE_CHUNK) {
+                LuceneMergeExecutor.throttle(unthrottled);
+                unthrottled = 0;
+            }
         }
 
         @Override
@@ -265,6 +279,9 @@ public final class LuceneDirectory extends Directory {
             if (!disableCounters) {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(1);
             }
+            if (throttled) {
+                throttle(1);
+            }
             output.writeByte(b);
         }
 
@@ -273,6 +290,9 @@ public final class LuceneDirectory extends Directory {
             if (!disableCounters) {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
             }
+            if (throttled) {
+                throttle(len);
+            }
             output.writeBytes(b, len);
         }
 
@@ -281,6 +301,9 @@ public final class LuceneDirectory extends Directory {
             if (!disableCounters) {
                 ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
             }
+            if (throttled) {
+                throttle(len);
+            }
             output.writeBytes(b, offset, len);
         }
 
@@ -291,6 +314,10 @@ public final class LuceneDirectory extends Directory {
 
         @Override
         public void close() throws IOException {
+            if (unthrottled > 0) {
+                LuceneMergeExecutor.throttle(unthrottled);
+                unthrottled = 0;
+            }
             output.close();
         }
 
@@ -21,8 +21,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -39,7 +40,8 @@ import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.index.LogDocMergePolicy;
-import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.SegmentInfo;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.search.BooleanQuery;
@@ -48,6 +50,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.NoSuchDirectoryException;
 import org.apache.lucene.util.Version;
 
@@ -67,6 +70,8 @@ import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
 
@@ -114,10 +119,22 @@ public final class LuceneIndex extends IndexStore {
         })
         .build();
 
+    /**
+     * Near-real-time mode: the writer of a mailbox being indexed stays open until it has been idle for
+     * {@link LC#zimbra_index_nrt_writer_idle_time}, and searchers are refreshed incrementally from the open writer.
+     * Every indexing batch is still committed before its indexer closes, as the caller records the items as indexed
+     * in the database right after.
+     */
+    private static final boolean NRT_ENABLED = LC.zimbra_index_nrt_enabled.booleanValue();
+    private static final ConcurrentMap<Integer, LuceneIndex> NRT_WRITERS = new ConcurrentHashMap<Integer, LuceneIndex>();
+    private static final AtomicBoolean NRT_TASK_SCHEDULED = new AtomicBoolean(false);
+
     private final Mailbox mailbox;
     private final LuceneDirectory luceneDirectory;
     private final AtomicBoolean pendingDelete = new AtomicBoolean(false);
     private final WriterInfo writerInfo = new WriterInfo();
+    private boolean nrtWriterHeld = false; // holds an extra reference to keep the writer open, guarded by this
+    private volatile long lastWriteTime = 0;
 
     /**
      * Holds information related to writers to the index.
@@ -125,7 +142,7 @@ public final class LuceneIndex extends IndexStore {
      * when there are no more writers.
      */
     private final class WriterInfo {
-        private IndexWriterRef writerRef;
+        private volatile IndexWriterRef writerRef;
         private final Lock lock = new ReentrantLock();
         private final Condition hasNoWriters  = lock.newCondition();
 
@@ -245,6 +262,7 @@ public final class LuceneIndex extends IndexStore {
     @Override
     public void deleteIndex() throws IOException {
         pendingDelete.set(true);
+        releaseNrtWriter();
         writerInfo.getHasNoWritersLock().lock();
         try {
             if (writerInfo.getWriterRef() != null) {
@@ -384,6 +402,10 @@ public final class LuceneIndex extends IndexStore {
         }
         if (searcher != null) {
             ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
+            if (lastWriteTime > searcher.openTime) {
+                // the searcher doesn't see the latest changes to the index
+                ZimbraPerf.STOPWATCH_IDX_STALE_SEARCH.stop(searcher.openTime);
+            }
             searcher.inc();
             return searcher;
         }
@@ -391,7 +413,8 @@ public final class LuceneIndex extends IndexStore {
         READER_THROTTLE.acquireUninterruptibly();
         long start = System.currentTimeMillis();
         try {
-            searcher = new IndexSearcherImpl(openIndexReader(true));
+            IndexReader reader = nrtWriterHeld ? openNrtReader() : null;
+            searcher = new IndexSearcherImpl(reader != null ? reader : openIndexReader(true));
         } catch (IOException e) {
             // Handle the special case of trying to open a not-yet-created index, by opening for write and immediately
             // closing. Index directory should get initialized as a result.
@@ -412,12 +435,68 @@ public final class LuceneIndex extends IndexStore {
 
         ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
         searcher.inc();
+        cacheSearcher(searcher);
+        return searcher;
+    }
+
+    /**
+     * Opens a reader from the writer held in near-real-time mode, or returns <tt>null</tt> if the writer is gone or
+     * was closed, as after a failed merge.
+     */
+    private IndexReader openNrtReader() throws IOException {
+        IndexWriterRef ref = writerInfo.getWriterRef();
+        if (ref == null) {
+            return null;
+        }
+        try {
+            return IndexReader.open(ref.get(), true);
+        } catch (AlreadyClosedException e) {
+            ZimbraLog.index.debug("IndexWriter closed, opening the committed index %s", this);
+            return null;
+        }
+    }
+
+    private void cacheSearcher(IndexSearcherImpl searcher) {
         if (mailbox.isGalSyncMailbox()) {
+            //make sure that we close the previous value associated with the key
             Closeables.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
         } else {
+            // Bug: 69870
+            // No need to close the previous value associated with the key here.
+            // CacheBuilder sends a callback using removalListener onRemoval(..)
+            // which eventually closes IndexSearcher
             SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
         }
-        return searcher;
+    }
+
+    /**
+     * Reopens the cached searcher, if any, so that it sees the latest changes.  Only the segments that changed are
+     * read.
+     *
+     * @param writer if non-null, the searcher is refreshed from this writer and sees uncommitted changes
+     */
+    private void refreshSearcher(IndexWriter writer) throws IOException {
+        IndexSearcherImpl searcher;
+        if (mailbox.isGalSyncMailbox()) {
+            searcher = GAL_SEARCHER_CACHE.get(mailbox.getId());
+        } else {
+            searcher = SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        }
+        if (searcher == null) {
+            return;
+        }
+        long start = ZimbraPerf.STOPWATCH_IDX_REOPEN.start();
+        ZimbraLuceneIndexReader ndxReader = (ZimbraLuceneIndexReader) searcher.getIndexReader();
+        IndexReader newReader;
+        if (writer != null) {
+            newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), writer, true);
+        } else {
+            newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), true);
+        }
+        if (newReader != null) {
+            ZimbraPerf.STOPWATCH_IDX_REOPEN.stop(start);
+            cacheSearcher(new IndexSearcherImpl(newReader));
+        }
     }
 
     /**
@@ -453,19 +532,38 @@ public final class LuceneIndex extends IndexStore {
         return (num <= 0);
     }
 
+    /**
+     * Opens an indexer.  {@link LC#zimbra_index_max_writers} bounds the indexers open at once rather than the open
+     * writers, so that writers held open in near-real-time mode while idle don't hold up the indexing of other
+     * mailboxes.  The throttle is waited on without holding this index's lock.
+     */
     @Override
-    public synchronized Indexer openIndexer() throws IOException {
+    public Indexer openIndexer() throws IOException {
+        WRITER_THROTTLE.acquireUninterruptibly();
+        boolean opened = false;
+        try {
+            Indexer indexer = openIndexerInternal();
+            opened = true;
+            return indexer;
+        } finally {
+            if (!opened) {
+                WRITER_THROTTLE.release();
+            }
+        }
+    }
+
+    private synchronized Indexer openIndexerInternal() throws IOException {
         if (writerInfo.getWriterRef() != null) {
             writerInfo.getWriterRef().inc();
         } else {
-            WRITER_THROTTLE.acquireUninterruptibly();
-            try {
-                writerInfo.setWriterRef(openWriter());
-            } finally {
-                if (writerInfo.getWriterRef() == null) {
-                    WRITER_THROTTLE.release();
-                }
-            }
+            writerInfo.setWriterRef(openWriter());
+        }
+        if (NRT_ENABLED && !nrtWriterHeld) {
+            writerInfo.getWriterRef().inc();
+            nrtWriterHeld = true;
+            lastWriteTime = System.currentTimeMillis();
+            NRT_WRITERS.put(mailbox.getId(), this);
+            scheduleNrtTask();
         }
         return new LuceneIndexerImpl(writerInfo.getWriterRef());
     }
@@ -494,38 +592,83 @@ public final class LuceneIndex extends IndexStore {
     private synchronized void commitWriter() throws IOException {
         assert(writerInfo.getWriterRef() != null);
 
-        ZimbraLog.index.debug("Commit IndexWriter");
-
-        MergeTask task = new MergeTask(writerInfo.getWriterRef());
+        IndexWriterRef ref = writerInfo.getWriterRef();
+        try {
+            commit();
+            ref.get().maybeMerge(); // merges are queued, they run on the merge threads
+        } finally {
+            ref.dec();
+        }
+    }
 
-        boolean success = false;
+    private synchronized void commit() throws IOException {
+        ZimbraLog.index.debug("Commit IndexWriter");
         try {
+            writerInfo.getWriterRef().get().commit();
+        } catch (CorruptIndexException e) {
             try {
-                writerInfo.getWriterRef().get().commit();
-            } catch (CorruptIndexException e) {
-                try {
-                    writerInfo.getWriterRef().get().close(false);
-                } catch (Throwable ignore) {
-                }
-                repair(e);
-                throw e; // fail to commit regardless of the repair
-            } catch (AssertionError e) {
-                try {
-                    writerInfo.getWriterRef().get().close(false);
-                } catch (Throwable ignore) {
-                }
                 writerInfo.getWriterRef().get().close(false);
-                repair(e);
-                throw e; // fail to commit regardless of the repair
+            } catch (Throwable ignore) {
             }
-            mailbox.index.submit(task); // merge must run in background
-            success = true;
-        } catch (RejectedExecutionException e) {
-            ZimbraLog.index.warn("Skipping merge because all index threads are busy");
-        } finally {
-            if (!success) {
-                writerInfo.getWriterRef().dec();
+            repair(e);
+            throw e; // fail to commit regardless of the repair
+        } catch (AssertionError e) {
+            try {
+                writerInfo.getWriterRef().get().close(false);
+            } catch (Throwable ignore) {
             }
+            writerInfo.getWriterRef().get().close(false);
+            repair(e);
+            throw e; // fail to commit regardless of the repair
+        }
+    }
+
+    private static void scheduleNrtTask() {
+        if (NRT_TASK_SCHEDULED.compareAndSet(false, true)) {
+            long period = Math.max(1, LC.zimbra_index_nrt_writer_idle_time.intValue()) * 1000L / 2;
+            Zimbra.sTimer.schedule(new NrtWriterTask(), period, period);
+        }
+    }
+
+    /**
+     * Releases the writers held open in near-real-time mode once they're idle.
+     */
+    private static final class NrtWriterTask extends TimerTask {
+        @Override
+        public void run() {
+            long now = System.currentTimeMillis();
+            for (LuceneIndex index : NRT_WRITERS.values()) {
+                try {
+                    index.maintainNrtWriter(now);
+                } catch (Throwable t) {
+                    ZimbraLog.index.warn("Failed to release IndexWriter %s", index, t);
+                }
+            }
+        }
+    }
+
+    private synchronized void maintainNrtWriter(long now) {
+        if (!nrtWriterHeld) {
+            NRT_WRITERS.remove(mailbox.getId(), this);
+        } else if (now - lastWriteTime >= LC.zimbra_index_nrt_writer_idle_time.intValue() * 1000L) {
+            releaseNrtWriter();
+        }
+    }
+
+    /**
+     * Releases the writer reference held in near-real-time mode, so that the writer closes once the current users
+     * are done with it.  Searchers refreshed from the writer are evicted; the next search opens the committed index.
+     */
+    private synchronized void releaseNrtWriter() {
+        if (!nrtWriterHeld) {
+            return;
+        }
+        nrtWriterHeld = false;
+        NRT_WRITERS.remove(mailbox.getId(), this);
+        IndexWriterRef ref = writerInfo.getWriterRef();
+        evict();
+        if (ref != null) {
+            ref.dec();
         }
     }
 
@@ -552,7 +695,6 @@ public final class LuceneIndex extends IndexStore {
             ZimbraLog.index.error("Failed to close IndexWriter", e);
         } finally {
             unlockIndexWriter();
-            WRITER_THROTTLE.release();
             try {
                 writerInfo.setWriterRef(null);
             } catch (IOException e) {
@@ -582,103 +724,85 @@ public final class LuceneIndex extends IndexStore {
     }
 
     /**
-     * Only one background thread that holds the lock may process a merge for the given writer. Other concurrent
-     * attempts simply skip the merge.
+     * Hands the merges of this index's writer over to {@link LuceneMergeExecutor}, so that they neither block the
+     * thread that triggered them nor compete with the merges of other indexes for more than their share of I/O.
+     * Merges requested while the writer is not (or no longer) the current one run synchronously.
      */
-    private static final class MergeScheduler extends SerialMergeScheduler {
-        private final ReentrantLock lock = new ReentrantLock();
-
-        /**
-         * Acquires the lock.
-         */
-        void lock() {
-            lock.lock();
-        }
-
-        /**
-         * Try to hold the lock.
-         *
-         * @return true if the lock is held, false the lock is currently held by the other thread.
-         */
-        boolean tryLock() {
-            return lock.tryLock();
-        }
-
-        void release() {
-            try {
-                lock.unlock();
-            } catch (IllegalMonitorStateException ignore) {
-            }
-        }
+    private final class MergeScheduler extends org.apache.lucene.index.MergeScheduler {
 
-        /**
-         * Skip the merge unless the lock is held.
-         */
         @Override
         public void merge(IndexWriter writer) throws CorruptIndexException, IOException {
-            if (lock.isHeldByCurrentThread()) {
-                super.merge(writer);
+            MergePolicy.OneMerge merge;
+            while ((merge = writer.getNextMerge()) != null) {
+                IndexWriterRef ref = writerInfo.getWriterRef();
+                if (ref != null && ref.get() == writer) {
+                    ref.inc(); // keep the writer open until the merge is done
+                    LuceneMergeExecutor.execute(new MergeJob(ref, merge));
+                } else {
+                    writer.merge(merge);
+                }
             }
         }
 
-        /**
-         * Removes the Thread-to-IndexWriter reference.
-         */
         @Override
         public void close() {
-            super.close();
-            release();
         }
     }
 
     /**
-     * In order to minimize delay caused by merges, merges are processed only in background threads. Writers triggered
-     * by batch threshold or search commit the changes before processing merges, so that the changes are available to
-     * readers without long delay that merges likely cause. Merge threads don't block other writer threads running in
-     * foreground. Another indexing using the same writer may start even while the merge is in progress.
+     * Runs a single merge on a merge thread. Another indexing using the same writer may start even while the merge is
+     * in progress.
      */
-    private final class MergeTask extends MailboxIndex.IndexTask {
+    private final class MergeJob extends LuceneMergeExecutor.Job {
         private final IndexWriterRef ref;
+        private final MergePolicy.OneMerge merge;
 
-        MergeTask(IndexWriterRef ref) {
-            super(ref.getIndex().mailbox);
+        MergeJob(IndexWriterRef ref, MergePolicy.OneMerge merge) {
+            super(sizeOf(merge));
             this.ref = ref;
+            this.merge = merge;
         }
 
         @Override
-        public void exec() throws IOException {
+        protected void merge() throws IOException {
             IndexWriter writer = ref.get();
-            MergeScheduler scheduler = (MergeScheduler) writer.getConfig().getMergeScheduler();
             try {
-                if (scheduler.tryLock()) {
-                    writer.maybeMerge();
-                } else {
-                    ZimbraLog.index.debug("Merge is in progress by other thread");
-                }
+                writer.merge(merge);
             } catch (CorruptIndexException e) {
                 try {
                     writer.close(false);
                 } catch (Throwable ignore) {
                 }
                 repair(e);
+                throw e; // the merge failed regardless of the repair
             } catch (AssertionError e) {
                 try {
                     writer.close(false);
                 } catch (Throwable ignore) {
                 }
                 repair(e);
-            } catch (IOException e) {
-                ZimbraLog.index.error("Failed to merge IndexWriter", e);
             } finally {
-                scheduler.release();
                 ref.dec();
             }
         }
     }
 
+    private static long sizeOf(MergePolicy.OneMerge merge) {
+        long size = 0;
+        for (SegmentInfo info : merge.segments) {
+            try {
+                size += info.sizeInBytes(true);
+            } catch (IOException ignore) { // only used to order merges
+            }
+        }
+        return size;
+    }
+
     private IndexWriterConfig getWriterConfig() {
         IndexWriterConfig config = new IndexWriterConfig(VERSION, mailbox.index.getAnalyzer());
         config.setMergeScheduler(new MergeScheduler());
+        // for near-real-time readers opened from the writer
+        config.setReaderTermsIndexDivisor(LC.zimbra_index_lucene_term_index_divisor.intValue());
         config.setMaxBufferedDocs(LC.zimbra_index_lucene_max_buffered_docs.intValue());
         config.setRAMBufferSizeMB(LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0);
         if (LC.zimbra_index_lucene_merge_policy.booleanValue()) {
@@ -780,6 +904,9 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void destroy() {
+            for (LuceneIndex index : NRT_WRITERS.values()) {
+                index.releaseNrtWriter();
+            }
             SEARCHER_CACHE.asMap().clear();
 
             for (IndexSearcherImpl searcher : GAL_SEARCHER_CACHE.values()) {
@@ -798,44 +925,34 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void close() throws IOException {
-            writer.index.commitWriter();
-            ZimbraIndexSearcher searcher = null;
-            if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                searcher = GAL_SEARCHER_CACHE.get(writer.getIndex().mailbox.getId());
-            } else {
-                searcher = SEARCHER_CACHE.getIfPresent(writer.getIndex().mailbox.getId());
-            }
-            if (searcher != null) {
-                ZimbraLuceneIndexReader ndxReader = (ZimbraLuceneIndexReader)searcher.getIndexReader();
-                IndexReader newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), true);
-                if (newReader != null) {
-                    if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                        //make sure that we close the previous value associated with the key
-                        Closeables.closeQuietly(GAL_SEARCHER_CACHE.put(writer.getIndex().mailbox.getId(),
-                                new IndexSearcherImpl(newReader)));
-                    } else {
-                        // Bug: 69870
-                        // No need to close the previous value associated with the key here.
-                        // CacheBuilder sends a callback using removalListener onRemoval(..)
-                        // which eventually closes IndexSearcher
-                        SEARCHER_CACHE.asMap().put(writer.getIndex().mailbox.getId(),
-                            new IndexSearcherImpl(newReader));
+            LuceneIndex index = writer.getIndex();
+            try {
+                synchronized (index) {
+                    if (index.nrtWriterHeld) {
+                        // refresh while this indexer still holds its writer reference, and release it
+                        // even if the refresh fails
+                        try {
+                            index.refreshSearcher(writer.get());
+                        } finally {
+                            index.commitWriter();
+                        }
+                        return;
                     }
                 }
+                index.commitWriter();
+                index.refreshSearcher(null);
+            } finally {
+                WRITER_THROTTLE.release();
             }
         }
 
         @Override
         public void compact() {
-            MergeScheduler scheduler = (MergeScheduler) writer.get().getConfig().getMergeScheduler();
-            scheduler.lock();
             try {
                 ZimbraLog.index.info("Force merge deletes %d", writer.get().maxDoc() - writer.get().numDocs());
                 writer.get().forceMergeDeletes(true);
             } catch (IOException e) {
                 ZimbraLog.index.error("Failed to optimize index", e);
-            } finally {
-                scheduler.release();
             }
         }
 
@@ -872,6 +989,7 @@ public final class LuceneIndex extends IndexStore {
                 default:
                     assert false : item.getIndexId();
             }
+            writer.getIndex().lastWriteTime = System.currentTimeMillis();
 
             for (IndexDocument doc : docs) {
                 // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
@@ -895,6 +1013,7 @@ public final class LuceneIndex extends IndexStore {
          */
         @Override
         public void deleteDocument(List<Integer> ids) throws IOException {
+            writer.getIndex().lastWriteTime = System.currentTimeMillis();
             for (Integer id : ids) {
                 Term term = new Term(LuceneFields.L_MAILBOX_BLOB_ID, id.toString());
                 writer.get().deleteDocuments(term);
@@ -945,6 +1064,7 @@ public final class LuceneIndex extends IndexStore {
         private final AtomicInteger count = new AtomicInteger(1);
         private final IndexSearcher luceneSearcher;
         private final ZimbraIndexReader luceneReader;
+        private final long openTime = System.currentTimeMillis();
 
         IndexSearcherImpl(IndexReader reader) {
             luceneSearcher = new IndexSearcher(reader);
@@ -0,0 +1,174 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Server-wide pool that runs the Lucene merges of all mailbox indexes.
+ * <p>
+ * Merges run concurrently on {@link LC#zimbra_index_merge_threads} threads of their own, so they never hold up the
+ * index threads, and smaller pending merges run first, so a large merge in one mailbox doesn't hold up the small merges
+ * of the others.  A merge's size counts for less the longer it waits, so a steady stream of small merges can only
+ * delay a large one for so long.  Bytes written by merges are throttled to {@link LC#zimbra_index_merge_max_kbps}
+ * across the whole server.
+ */
+public final class LuceneMergeExecutor {
+
+    // merge size that a millisecond in the queue makes up for, so a merge of N MB is overtaken by merges queued after
+    // it for no more than about N seconds
+    private static final long AGING_BYTES_PER_MS = 1024;
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+    private static final AtomicLong QUEUED_BYTES = new AtomicLong();
+    private static final AtomicLong ACTIVE_BYTES = new AtomicLong();
+
+    private static final RateLimiter THROTTLE = LC.zimbra_index_merge_max_kbps.intValue() > 0 ?
+            RateLimiter.create(LC.zimbra_index_merge_max_kbps.intValue() * 1024.0) : null;
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            LC.zimbra_index_merge_threads.intValue(), LC.zimbra_index_merge_threads.intValue(),
+            Long.MAX_VALUE, TimeUnit.NANOSECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new MergeThread(r, "IndexMerge-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private LuceneMergeExecutor() {
+    }
+
+    private static final class MergeThread extends Thread {
+        MergeThread(Runnable r, String name) {
+            super(r, name);
+        }
+    }
+
+    /**
+     * A merge waiting for a merge thread.  Merges are ordered by their size less what their time in the queue makes up
+     * for, then by age.  As that is fixed when the merge is queued, the order of queued merges never changes.
+     */
+    abstract static class Job implements Runnable, Comparable<Job> {
+        private final long bytes;
+        private final long priority;
+        private final long sequence = SEQUENCE.getAndIncrement();
+
+        /**
+         * @param bytes estimated size of the segments to merge
+         */
+        Job(long bytes) {
+            this.bytes = bytes;
+            this.priority = bytes + System.currentTimeMillis() * AGING_BYTES_PER_MS;
+        }
+
+        /**
+         * Runs the merge.  Called exactly once, normally on a merge thread.
+         *
+         * @throws IOException if the merge failed
+         */
+        protected abstract void merge() throws IOException;
+
+        @Override
+        public final void run() {
+            try {
+                runMerge();
+            } catch (IOException e) {
+                ZimbraLog.index.error("Failed to merge IndexWriter", e);
+            }
+        }
+
+        final void runMerge() throws IOException {
+            QUEUED_BYTES.addAndGet(-bytes);
+            ACTIVE_BYTES.addAndGet(bytes);
+            long start = ZimbraPerf.STOPWATCH_IDX_MERGE.start();
+            try {
+                merge();
+            } finally {
+                ACTIVE_BYTES.addAndGet(-bytes);
+                ZimbraPerf.STOPWATCH_IDX_MERGE.stop(start);
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Queues the merge.  If the pool rejects it, the merge runs in the calling thread.
+     *
+     * @throws IOException if the merge ran in the calling thread and failed
+     */
+    static void execute(Job job) throws IOException {
+        QUEUED_BYTES.addAndGet(job.bytes);
+        try {
+            EXECUTOR.execute(job);
+        } catch (RejectedExecutionException e) {
+            job.runMerge();
+        }
+    }
+
+    /**
+     * Returns true if merges are throttled and the calling thread is a merge thread.
+     */
+    static boolean isThrottled() {
+        return THROTTLE != null && Thread.currentThread() instanceof MergeThread;
+    }
+
+    /**
+     * Blocks until the merge I/O budget allows the given number of bytes to be written.
+     */
+    static void throttle(int bytes) {
+        if (THROTTLE != null && bytes > 0) {
+            THROTTLE.acquire(bytes);
+        }
+    }
+
+    /**
+     * Returns the estimated size of the merges waiting for a merge thread.
+     */
+    public static long getQueuedBytes() {
+        return QUEUED_BYTES.get();
+    }
+
+    /**
+     * Returns the estimated size of the merges in progress.
+     */
+    public static long getActiveBytes() {
+        return ACTIVE_BYTES.get();
+    }
+}
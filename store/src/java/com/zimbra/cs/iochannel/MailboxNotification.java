@@ -25,6 +25,7 @@ import java.util.Collection;
 import java.util.concurrent.ExecutorService;
 
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.session.PendingModifications;
 import com.zimbra.cs.session.Session;
 import com.zimbra.cs.session.SessionCache;
@@ -122,12 +123,17 @@ public class MailboxNotification extends Message {
                     return;
                 }
 
+                // decoded on first use, and only if a session is still attached to the mailbox
                 PendingModifications pms = null;
                 for (Session session : sessions) {
+                    Mailbox mbox = session.getMailbox();
+                    if (mbox == null) {
+                        continue;
+                    }
                     log.debug("notifying session %s", session.toString());
                     if (pms == null) {
                         try {
-                            pms = PendingModifications.deserialize(session.getMailbox(), message.getPayload());
+                            pms = PendingModifications.deserialize(mbox, message.getPayload());
                         } catch (IOException e) {
                             log.warn("could not deserialize notification", e);
                             return;
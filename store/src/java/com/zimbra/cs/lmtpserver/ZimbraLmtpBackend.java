@@ -22,13 +22,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.mail.MessagingException;
@@ -39,6 +45,7 @@ import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.MapMaker;
 import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.lmtp.LmtpClient;
 import com.zimbra.common.lmtp.LmtpProtocolException;
@@ -84,6 +91,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
     private static List<LmtpCallback> callbacks = new CopyOnWriteArrayList<LmtpCallback>();
     private static Map<String, Set<Integer>> receivedMessageIDs;
     private static final Map<Integer, ReentrantLock> mailboxDeliveryLocks = createMailboxDeliveryLocks();
+    private static final ThreadPoolExecutor DELIVERY_EXECUTOR = createDeliveryExecutor();
 
     private final LmtpConfig config;
 
@@ -120,6 +128,18 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         return new MapMaker().makeComputingMap(lockCreator);
     }
 
+    private static ThreadPoolExecutor createDeliveryExecutor() {
+        int threads = LC.zimbra_lmtp_delivery_threads.intValue();
+        if (threads <= 0) {
+            return null;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("LmtpDelivery-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     @Override public LmtpReply getAddressStatus(LmtpAddress address) {
         String addr = address.getEmailAddress();
 
@@ -183,25 +203,6 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
-    private boolean dedupe(ParsedMessage pm, Mailbox mbox)
-    throws ServiceException {
-        if (pm == null || mbox == null || !mbox.getAccount().isPrefMessageIdDedupingEnabled())
-            return false;
-
-        checkDedupeCacheSize();
-        String msgid = getMessageID(pm);
-        if (msgid == null || msgid.equals(""))
-            return false;
-
-        synchronized (ZimbraLmtpBackend.class) {
-            Set<Integer> mboxIds = receivedMessageIDs.get(msgid);
-            if (mboxIds != null && mboxIds.contains(mbox.getId())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     /**
      * Returns the value of the {@code Message-ID} header, or the most
      * recent {@code Resent-Message-ID} header, if set.
@@ -272,32 +273,20 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
-    private void addToDedupeCache(ParsedMessage pm, Mailbox mbox) {
-        if (pm == null || mbox == null)
-            return;
-        String msgid = getMessageID(pm);
-        if (msgid == null || msgid.equals(""))
-            return;
-
+    /**
+     * Returns the IDs of the mailboxes a message with the given Message-ID was
+     * delivered to, or {@code null} if there's no dedupe cache entry for it and
+     * {@code create} is false.  The set is shared by all the threads delivering
+     * the message, so they don't contend for the dedupe cache for each recipient.
+     */
+    private static Set<Integer> getDeliveredMailboxIds(String msgid, boolean create) {
         synchronized (ZimbraLmtpBackend.class) {
             Set<Integer> mboxIds = receivedMessageIDs.get(msgid);
-            if (mboxIds == null) {
-                mboxIds = new HashSet<Integer>();
+            if (mboxIds == null && create) {
+                mboxIds = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
                 receivedMessageIDs.put(msgid, mboxIds);
             }
-            mboxIds.add(mbox.getId());
-        }
-    }
-
-    private void removeFromDedupeCache(String msgid, Mailbox mbox) {
-        if (mbox == null || Strings.isNullOrEmpty(msgid))
-            return;
-
-        synchronized (ZimbraLmtpBackend.class) {
-            Set<Integer> mboxIds = receivedMessageIDs.get(msgid);
-            if (mboxIds != null) {
-                mboxIds.remove(mbox.getId());
-            }
+            return mboxIds;
         }
     }
 
@@ -323,6 +312,124 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
+    /**
+     * Parses the incoming message on first use, once with and once without
+     * attachment indexing as recipients require.  A ParsedMessage is not
+     * thread-safe, so each thread delivering the message has its own.
+     */
+    private static class MessageParser {
+        private final Blob blob;
+        private final byte[] data;
+        private final MimeMessage mm;
+        private ParsedMessage pmAttachIndex;
+        private ParsedMessage pmNoAttachIndex;
+
+        MessageParser(Blob blob, byte[] data, MimeMessage mm) {
+            this.blob = blob;
+            this.data = data;
+            this.mm = mm;
+        }
+
+        ParsedMessage get(boolean attachmentsIndexingEnabled) throws ServiceException, IOException {
+            if (attachmentsIndexingEnabled ? pmAttachIndex != null : pmNoAttachIndex != null) {
+                return attachmentsIndexingEnabled ? pmAttachIndex : pmNoAttachIndex;
+            }
+            ParsedMessageOptions pmo;
+            if (mm != null) {
+                pmo = new ParsedMessageOptions().setContent(mm).setDigest(blob.getDigest()).setSize(blob.getRawSize());
+            } else {
+                pmo = new ParsedMessageOptions(blob, data);
+            }
+            pmo.setAttachmentIndexing(attachmentsIndexingEnabled);
+            ZimbraLog.lmtp.debug("Creating ParsedMessage from %s with attachment indexing %s",
+                    data == null ? "file" : "memory", attachmentsIndexingEnabled ? "enabled" : "disabled");
+            ParsedMessage pm = new ParsedMessage(pmo);
+            if (attachmentsIndexingEnabled) {
+                pmAttachIndex = pm;
+            } else {
+                pmNoAttachIndex = pm;
+            }
+            return pm;
+        }
+
+        /**
+         * Returns a message parsed so far, or {@code null}.
+         */
+        ParsedMessage getParsed() {
+            return pmAttachIndex != null ? pmAttachIndex : pmNoAttachIndex;
+        }
+    }
+
+    /**
+     * What the delivery to each local recipient of a message needs.
+     */
+    private static class LocalDelivery {
+        final Blob blob;
+        final byte[] data;
+        final String envSender;
+        final boolean shared;
+        final DeliveryContext dctxt;
+        final String messageId; // for dedupe; null if the message has none
+        private volatile Set<Integer> deliveredTo; // dedupe cache entry for messageId, once looked up or created
+
+        LocalDelivery(Blob blob, byte[] data, String envSender, boolean shared, DeliveryContext dctxt,
+                String messageId) {
+            this.blob = blob;
+            this.data = data;
+            this.envSender = envSender;
+            this.shared = shared;
+            this.dctxt = dctxt;
+            this.messageId = messageId;
+        }
+
+        /**
+         * Returns whether the message was already delivered to the mailbox.
+         * Doesn't add an entry to the dedupe cache.
+         */
+        boolean isDuplicate(int mboxId) {
+            if (messageId == null) {
+                return false;
+            }
+            Set<Integer> mboxIds = deliveredTo;
+            if (mboxIds == null) {
+                mboxIds = getDeliveredMailboxIds(messageId, false);
+                if (mboxIds == null) {
+                    return false;
+                }
+                deliveredTo = mboxIds;
+            }
+            return mboxIds.contains(mboxId);
+        }
+
+        /**
+         * Records in the dedupe cache that the message was delivered to the mailbox.
+         */
+        void addDelivered(int mboxId) {
+            if (messageId == null) {
+                return;
+            }
+            Set<Integer> mboxIds = deliveredTo;
+            if (mboxIds == null) {
+                deliveredTo = mboxIds = getDeliveredMailboxIds(messageId, true);
+            }
+            mboxIds.add(mboxId);
+        }
+
+        /**
+         * Removes the mailbox from the dedupe cache entry of the message, if any,
+         * so that an LMTP retry isn't deduped.
+         */
+        void removeDelivered(int mboxId) {
+            if (messageId == null) {
+                return;
+            }
+            Set<Integer> mboxIds = deliveredTo != null ? deliveredTo : getDeliveredMailboxIds(messageId, false);
+            if (mboxIds != null) {
+                mboxIds.remove(mboxId);
+            }
+        }
+    }
+
     @Override
     public void deliver(LmtpEnvelope env, InputStream in, int sizeHint) throws UnrecoverableLmtpException {
         CopyInputStream cis = null;
@@ -427,11 +534,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             // prepare ParsedMessage versions needed.  Parsing is done before
             // attempting delivery to any recipient.  Therefore, parse error
             // will result in non-delivery to all recipients.
-
-            // ParsedMessage for users with attachments indexing
-            ParsedMessage pmAttachIndex = null;
-            // ParsedMessage for users without attachments indexing
-            ParsedMessage pmNoAttachIndex = null;
+            MessageParser parser = new MessageParser(blob, data, mm);
 
             // message id for logging
             String msgId = null;
@@ -465,30 +568,7 @@ public class ZimbraLmtpBackend implements LmtpBackend {
                 }
 
                 if (account != null && mbox != null) {
-                    ParsedMessageOptions pmo;
-                    if (mm != null) {
-                        pmo = new ParsedMessageOptions().setContent(mm).setDigest(blob.getDigest()).setSize(blob.getRawSize());
-                    } else {
-                        pmo = new ParsedMessageOptions(blob, data);
-                    }
-
-                    ParsedMessage pm;
-                    if (attachmentsIndexingEnabled) {
-                        if (pmAttachIndex == null) {
-                            pmo.setAttachmentIndexing(true);
-                            ZimbraLog.lmtp.debug("Creating ParsedMessage from %s with attachment indexing enabled", data == null ? "file" : "memory");
-                            pmAttachIndex = new ParsedMessage(pmo);
-                        }
-                        pm = pmAttachIndex;
-                    } else {
-                        if (pmNoAttachIndex == null) {
-                            pmo.setAttachmentIndexing(false);
-                            ZimbraLog.lmtp.debug("Creating ParsedMessage from %s with attachment indexing disabled", data == null ? "file" : "memory");
-                            pmNoAttachIndex = new ParsedMessage(pmo);
-                        }
-                        pm = pmNoAttachIndex;
-                    }
-
+                    ParsedMessage pm = parser.get(attachmentsIndexingEnabled);
                     msgId = pm.getMessageID();
 
                     if (account.isPrefMailLocalDeliveryDisabled()) {
@@ -528,179 +608,23 @@ public class ZimbraLmtpBackend implements LmtpBackend {
             DeliveryContext sharedDeliveryCtxt = new DeliveryContext(shared, targetMailboxIds);
             sharedDeliveryCtxt.setIncomingBlob(blob);
 
-            // We now know which addresses are valid and which ParsedMessage
-            // version each recipient needs.  Deliver!
-            for (LmtpAddress recipient : recipients) {
-                String rcptEmail = recipient.getEmailAddress();
-                LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
-                RecipientDetail rd = rcptMap.get(recipient);
-                if (rd.account != null)
-                    ZimbraLog.addAccountNameToContext(rd.account.getName());
-                if (rd.mbox != null)
-                    ZimbraLog.addMboxToContext(rd.mbox.getId());
-
-                boolean success = false;
-                try {
-                    if (rd != null) {
-                        switch (rd.action) {
-                        case discard:
-                            ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
-                                    envSender, rcptEmail);
-                            if (rd.account.getPrefMailForwardingAddress() != null) {
-                                // mail forwarding is set up
-                                for (LmtpCallback callback : callbacks) {
-                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                    callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, rd.pm);
-                                }
-                            }
-                            reply = LmtpReply.DELIVERY_OK;
-                            break;
-                        case deliver:
-                            Account account = rd.account;
-                            Mailbox mbox = rd.mbox;
-                            ParsedMessage pm = rd.pm;
-                            List<ItemId> addedMessageIds = null;
-                            ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
-                            boolean acquiredLock;
-                            try {
-                                // Wait for the lock, up to the timeout
-                                acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
-                            } catch (InterruptedException e) {
-                                acquiredLock = false;
-                            }
-                            if (!acquiredLock) {
-                                ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
-                                        envSender, rcptEmail);
-                                reply = LmtpReply.TEMPORARY_FAILURE;
-                                break;
-                            }
-                            try {
-                                if (dedupe(pm, mbox)) {
-                                    // message was already delivered to this mailbox
-                                    ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
-                                } else if (mbox.dedupeForSelfMsg(pm)) {
-                                    ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
-                                        pm.getMessageID());
-
-                                } else if (recipient.getSkipFilters()) {
-                                    msgId = pm.getMessageID();
-                                    int folderId = Mailbox.ID_FOLDER_INBOX;
-                                    if (recipient.getFolder() != null) {
-                                        try {
-                                            Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
-                                            folderId = folder.getId();
-                                        } catch (ServiceException se) {
-                                            if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
-                                                Folder folder = mbox.createFolder(null, recipient.getFolder(),
-                                                        new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
-                                                folderId = folder.getId();
-                                            } else {
-                                                throw se;
-                                            }
-                                        }
-                                    }
-                                    int flags = Flag.BITMASK_UNREAD;
-                                    if (recipient.getFlags() != null) {
-                                        flags = Flag.toBitmask(recipient.getFlags());
-                                    }
-                                    DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
-                                    dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
-                                    Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                    addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                                } else if (!DebugConfig.disableIncomingFilter) {
-                                    // Get msgid first, to avoid having to reopen and reparse the blob
-                                    // file if Mailbox.addMessageInternal() closes it.
-                                    pm.getMessageID();
-                                    addedMessageIds = RuleManager.applyRulesToIncomingMessage(
-                                            null, mbox, pm, (int) blob.getRawSize(), rcptEmail, sharedDeliveryCtxt,
-                                            Mailbox.ID_FOLDER_INBOX, false);
-                                } else {
-                                    pm.getMessageID();
-                                    DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
-                                    dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
-                                    Message msg = mbox.addMessage(null, pm, dopt, sharedDeliveryCtxt);
-                                    addedMessageIds = Lists.newArrayList(new ItemId(msg));
-                                }
-                                success = true;
-                                if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                    addToDedupeCache(pm, mbox);
-                                }
-                            } finally {
-                                lock.unlock();
-                            }
+            ParsedMessage mimeSource = parser.getParsed();
+            String dedupeId = mimeSource == null ? null : getMessageID(mimeSource);
+            LocalDelivery delivery = new LocalDelivery(blob, data, envSender, shared, sharedDeliveryCtxt,
+                    Strings.isNullOrEmpty(dedupeId) ? null : dedupeId);
 
-                            if (addedMessageIds != null && addedMessageIds.size() > 0) {
-                                // Execute callbacks
-                                for (LmtpCallback callback : callbacks) {
-                                    for (ItemId id : addedMessageIds) {
-                                        if (id.belongsTo(mbox)) {
-                                            // Message was added to the local mailbox, as opposed to a mountpoint.
-                                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
-                                            try {
-                                                Message msg = mbox.getMessageById(null, id.getId());
-                                                callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
-                                            } catch (Throwable t) {
-                                                if (t instanceof OutOfMemoryError) {
-                                                    Zimbra.halt("LMTP callback failed", t);
-                                                } else {
-                                                    ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                            reply = LmtpReply.DELIVERY_OK;
-                            break;
-                        case defer:
-                            // Delivery to mailbox skipped.  Let MTA retry again later.
-                            // This case happens for shared delivery to a mailbox in
-                            // backup mode.
-                            ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
-                                    envSender, rcptEmail);
-                            reply = LmtpReply.TEMPORARY_FAILURE;
-                            break;
-                        }
-                    } else {
-                        // Account or mailbox not found.
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
-                                envSender, rcptEmail);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (ServiceException e) {
-                    if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
-                        if (config.isPermanentFailureWhenOverQuota()) {
-                            reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
-                        } else {
-                            reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
-                        }
-                    } else if (e.isReceiversFault()) {
-                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.TEMPORARY_FAILURE;
-                    } else {
-                        ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
-                        reply = LmtpReply.PERMANENT_FAILURE;
-                    }
-                } catch (Exception e) {
-                    reply = LmtpReply.TEMPORARY_FAILURE;
-                    ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
-                } finally {
-                    if (rd.action == DeliveryAction.deliver && !success) {
-                        // Message was not delivered.  Remove it from the dedupe
-                        // cache so we don't dedupe it on LMTP retry.
-                        removeFromDedupeCache(msgId, rd.mbox);
-                    }
-                    recipient.setDeliveryStatus(reply);
-                    if (shared && rd != null && rd.esd) {
-                        rd.mbox.endSharedDelivery();
-                        rd.esd = false;
-                    }
-                }
+            // We now know which addresses are valid and which ParsedMessage
+            // version each recipient needs.  Deliver!  The first delivery
+            // stores the blob and logs it for redo; the ones after it only
+            // link to that blob, so they can go in parallel.
+            int next = 0;
+            while (next < recipients.size() && sharedDeliveryCtxt.isFirst()) {
+                LmtpAddress recipient = recipients.get(next++);
+                deliverMessage(recipient, rcptMap.get(recipient), parser, delivery);
             }
+            deliverInParallel(recipients.subList(next, recipients.size()), rcptMap, parser, delivery);
 
             // If this message is being streamed from disk, cache it
-            ParsedMessage mimeSource = pmAttachIndex != null ? pmAttachIndex : pmNoAttachIndex;
             MailboxBlob mblob = sharedDeliveryCtxt.getMailboxBlob();
             if (mblob != null && mimeSource != null) {
                 if (bis == null) {
@@ -731,6 +655,247 @@ public class ZimbraLmtpBackend implements LmtpBackend {
         }
     }
 
+    /**
+     * Delivers a message to the given local recipients on this thread and up
+     * to {@link LC#zimbra_lmtp_delivery_threads} delivery threads, and returns
+     * once every recipient has its delivery status.  Deliveries to the same
+     * mailbox are still serialized by {@link #mailboxDeliveryLocks}.
+     */
+    private void deliverInParallel(final List<LmtpAddress> recipients, final Map<LmtpAddress, RecipientDetail> rcptMap,
+            MessageParser parser, final LocalDelivery delivery) {
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(recipients.size());
+        if (DELIVERY_EXECUTOR != null && recipients.size() > 1) {
+            Runnable helper = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        deliverMessages(recipients, rcptMap, next, done,
+                                new MessageParser(delivery.blob, delivery.data, null), delivery);
+                    } finally {
+                        ZimbraLog.clearContext();
+                    }
+                }
+            };
+            int helpers = Math.min(DELIVERY_EXECUTOR.getMaximumPoolSize(), recipients.size() - 1);
+            try {
+                for (int i = 0; i < helpers; i++) {
+                    DELIVERY_EXECUTOR.execute(helper);
+                }
+            } catch (RejectedExecutionException e) {
+                // this thread delivers whatever the pool doesn't take
+            }
+        }
+        deliverMessages(recipients, rcptMap, next, done, parser, delivery);
+
+        // wait for the deliveries the pool threads took on
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes recipients off the list and delivers to them until none are left.
+     * A helper thread that starts late finds nothing to do and returns.
+     */
+    private void deliverMessages(List<LmtpAddress> recipients, Map<LmtpAddress, RecipientDetail> rcptMap,
+            AtomicInteger next, CountDownLatch done, MessageParser parser, LocalDelivery delivery) {
+        for (int i = next.getAndIncrement(); i < recipients.size(); i = next.getAndIncrement()) {
+            LmtpAddress recipient = recipients.get(i);
+            try {
+                deliverMessage(recipient, rcptMap.get(recipient), parser, delivery);
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private boolean isDuplicate(Account account, Mailbox mbox, LocalDelivery delivery) {
+        if (!account.isPrefMessageIdDedupingEnabled()) {
+            return false;
+        }
+        checkDedupeCacheSize();
+        return delivery.isDuplicate(mbox.getId());
+    }
+
+    private void deliverMessage(LmtpAddress recipient, RecipientDetail rd, MessageParser parser, LocalDelivery delivery) {
+        String rcptEmail = recipient.getEmailAddress();
+        String envSender = delivery.envSender;
+        LmtpReply reply = LmtpReply.TEMPORARY_FAILURE;
+        if (rd != null && rd.account != null)
+            ZimbraLog.addAccountNameToContext(rd.account.getName());
+        if (rd != null && rd.mbox != null)
+            ZimbraLog.addMboxToContext(rd.mbox.getId());
+
+        boolean success = false;
+        try {
+            if (rd != null) {
+                switch (rd.action) {
+                case discard:
+                    ZimbraLog.lmtp.info("accepted and discarded message from=%s,to=%s: local delivery is disabled",
+                            envSender, rcptEmail);
+                    if (rd.account.getPrefMailForwardingAddress() != null) {
+                        // mail forwarding is set up
+                        ParsedMessage pm = parser.get(rd.pm.isAttachmentIndexingEnabled());
+                        for (LmtpCallback callback : callbacks) {
+                            ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                            callback.forwardWithoutDelivery(rd.account, rd.mbox, envSender, rcptEmail, pm);
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case deliver:
+                    Account account = rd.account;
+                    Mailbox mbox = rd.mbox;
+                    ParsedMessage pm = parser.get(rd.pm.isAttachmentIndexingEnabled());
+                    List<ItemId> addedMessageIds = null;
+                    ReentrantLock lock = mailboxDeliveryLocks.get(mbox.getId());
+                    boolean acquiredLock;
+                    try {
+                        // Wait for the lock, up to the timeout
+                        acquiredLock = lock.tryLock(LC.zimbra_mailbox_lock_timeout.intValue(), TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        acquiredLock = false;
+                    }
+                    if (!acquiredLock) {
+                        ZimbraLog.lmtp.info("try again for message from=%s,to=%s: another mail delivery in progress.",
+                                envSender, rcptEmail);
+                        reply = LmtpReply.TEMPORARY_FAILURE;
+                        break;
+                    }
+                    try {
+                        if (isDuplicate(account, mbox, delivery)) {
+                            // message was already delivered to this mailbox
+                            ZimbraLog.lmtp.info("Not delivering message with duplicate Message-ID %s", pm.getMessageID());
+                        } else if (mbox.dedupeForSelfMsg(pm)) {
+                            ZimbraLog.mailbox.info("not delivering message, because it is a duplicate of sent message %s",
+                                pm.getMessageID());
+
+                        } else if (recipient.getSkipFilters()) {
+                            int folderId = Mailbox.ID_FOLDER_INBOX;
+                            if (recipient.getFolder() != null) {
+                                try {
+                                    Folder folder = mbox.getFolderByPath(null, recipient.getFolder());
+                                    folderId = folder.getId();
+                                } catch (ServiceException se) {
+                                    if (se.getCode().equals(MailServiceException.NO_SUCH_FOLDER)) {
+                                        Folder folder = mbox.createFolder(null, recipient.getFolder(),
+                                                new Folder.FolderOptions().setDefaultView(MailItem.Type.MESSAGE));
+                                        folderId = folder.getId();
+                                    } else {
+                                        throw se;
+                                    }
+                                }
+                            }
+                            int flags = Flag.BITMASK_UNREAD;
+                            if (recipient.getFlags() != null) {
+                                flags = Flag.toBitmask(recipient.getFlags());
+                            }
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(folderId);
+                            dopt.setFlags(flags).setTags(recipient.getTags()).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, delivery.dctxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        } else if (!DebugConfig.disableIncomingFilter) {
+                            // Get msgid first, to avoid having to reopen and reparse the blob
+                            // file if Mailbox.addMessageInternal() closes it.
+                            pm.getMessageID();
+                            addedMessageIds = RuleManager.applyRulesToIncomingMessage(
+                                    null, mbox, pm, (int) delivery.blob.getRawSize(), rcptEmail, delivery.dctxt,
+                                    Mailbox.ID_FOLDER_INBOX, false);
+                        } else {
+                            pm.getMessageID();
+                            DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+                            dopt.setFlags(Flag.BITMASK_UNREAD).setRecipientEmail(rcptEmail);
+                            Message msg = mbox.addMessage(null, pm, dopt, delivery.dctxt);
+                            addedMessageIds = Lists.newArrayList(new ItemId(msg));
+                        }
+                        success = true;
+                        if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                            delivery.addDelivered(mbox.getId());
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+
+                    if (addedMessageIds != null && addedMessageIds.size() > 0) {
+                        // Execute callbacks
+                        for (LmtpCallback callback : callbacks) {
+                            for (ItemId id : addedMessageIds) {
+                                if (id.belongsTo(mbox)) {
+                                    // Message was added to the local mailbox, as opposed to a mountpoint.
+                                    ZimbraLog.lmtp.debug("Executing callback %s", callback.getClass().getName());
+                                    try {
+                                        Message msg = mbox.getMessageById(null, id.getId());
+                                        callback.afterDelivery(account, mbox, envSender, rcptEmail, msg);
+                                    } catch (Throwable t) {
+                                        if (t instanceof OutOfMemoryError) {
+                                            Zimbra.halt("LMTP callback failed", t);
+                                        } else {
+                                            ZimbraLog.lmtp.warn("LMTP callback threw an exception", t);
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    reply = LmtpReply.DELIVERY_OK;
+                    break;
+                case defer:
+                    // Delivery to mailbox skipped.  Let MTA retry again later.
+                    // This case happens for shared delivery to a mailbox in
+                    // backup mode.
+                    ZimbraLog.lmtp.info("try again for message from=%s,to=%s: mailbox skipped",
+                            envSender, rcptEmail);
+                    reply = LmtpReply.TEMPORARY_FAILURE;
+                    break;
+                }
+            } else {
+                // Account or mailbox not found.
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: account or mailbox not found",
+                        envSender, rcptEmail);
+                reply = LmtpReply.PERMANENT_FAILURE;
+            }
+        } catch (ServiceException e) {
+            if (e.getCode().equals(MailServiceException.QUOTA_EXCEEDED)) {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s: overquota", envSender, rcptEmail);
+                if (config.isPermanentFailureWhenOverQuota()) {
+                    reply = LmtpReply.PERMANENT_FAILURE_OVER_QUOTA;
+                } else {
+                    reply = LmtpReply.TEMPORARY_FAILURE_OVER_QUOTA;
+                }
+            } else if (e.isReceiversFault()) {
+                ZimbraLog.lmtp.info("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.TEMPORARY_FAILURE;
+            } else {
+                ZimbraLog.lmtp.info("rejecting message from=%s,to=%s", envSender, rcptEmail, e);
+                reply = LmtpReply.PERMANENT_FAILURE;
+            }
+        } catch (Exception e) {
+            reply = LmtpReply.TEMPORARY_FAILURE;
+            ZimbraLog.lmtp.warn("try again for message from=%s,to=%s", envSender, rcptEmail, e);
+        } finally {
+            if (rd != null && rd.action == DeliveryAction.deliver && !success) {
+                // Message was not delivered.  Remove it from the dedupe
+                // cache so we don't dedupe it on LMTP retry.
+                delivery.removeDelivered(rd.mbox.getId());
+            }
+            recipient.setDeliveryStatus(reply);
+            if (delivery.shared && rd != null && rd.esd) {
+                rd.mbox.endSharedDelivery();
+                rd.esd = false;
+            }
+        }
+    }
+
     private void deliverMessageToRemoteMailboxes(Blob blob, byte[] data, LmtpEnvelope env) {
         Multimap<String, LmtpAddress> serverToRecipientsMap = env.getRemoteServerToRecipientsMap();
         for (String server : serverToRecipientsMap.keySet()) {
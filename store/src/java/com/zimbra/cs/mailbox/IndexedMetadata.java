@@ -0,0 +1,273 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.zimbra.common.util.BEncoding;
+import com.zimbra.common.util.BEncoding.BEncodingException;
+
+/**
+ * Storage encoding of a {@link Metadata} map that is decoded one top-level field at a time.
+ * <p>
+ * It's text, to be stored in the same column as the {@link BEncoding} of the whole map it stands in for, and starts
+ * with a marker and a format version that no older encoding of metadata starts with.  A header lists the keys in
+ * sorted order, each followed by the length of its value, and the {@link BEncoding} of each value follows in turn.
+ * For <tt>{a=1, sz=123456}</tt>:
+ * <pre>
+ *   ~1  1:a 3:  2:sz 8:  |  i1e i123456e
+ * </pre>
+ * without the spaces.  Reading it only parses the header; a value is decoded the first time it's asked for, and
+ * strings and integers are read straight from the encoded text.
+ */
+final class IndexedMetadata {
+
+    static final char MARKER = '~';
+    static final char VERSION = '1';
+    private static final char END_OF_HEADER = '|';
+
+    private final String encoded;
+    private final String[] keys;
+    private final int[] offsets; // the value of keys[i] runs from offsets[i] to offsets[i + 1]
+    private final boolean[] taken;
+    private int remaining;
+
+    /**
+     * Returns true if the metadata was written by {@link #encode} or {@link #transcode}.
+     */
+    static boolean isEncoded(String metadata) {
+        return metadata != null && metadata.length() > 1 && metadata.charAt(0) == MARKER;
+    }
+
+    /**
+     * Parses the header of the encoded metadata, and checks that each value is well formed without decoding it.
+     *
+     * @throws MailServiceException if the header or any value is malformed
+     */
+    IndexedMetadata(String encoded) throws MailServiceException {
+        this.encoded = encoded;
+        if (encoded.charAt(1) != VERSION) {
+            throw MailServiceException.INVALID_METADATA(encoded, null);
+        }
+        String[] keys = new String[16];
+        int[] lengths = new int[16];
+        int count = 0;
+        int pos = 2;
+        try {
+            while (encoded.charAt(pos) != END_OF_HEADER) {
+                int colon = encoded.indexOf(':', pos);
+                int keyEnd = colon + 1 + parseLength(pos, colon);
+                String key = encoded.substring(colon + 1, keyEnd);
+                colon = encoded.indexOf(':', keyEnd);
+                int length = parseLength(keyEnd, colon);
+                if (count > 0 && keys[count - 1].compareTo(key) >= 0) {
+                    throw new IllegalArgumentException("keys out of order at " + pos);
+                }
+                if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                }
+                keys[count] = key;
+                lengths[count++] = length;
+                pos = colon + 1;
+            }
+        } catch (RuntimeException e) {
+            throw MailServiceException.INVALID_METADATA(encoded, e);
+        }
+        this.keys = Arrays.copyOf(keys, count);
+        offsets = new int[count + 1];
+        offsets[0] = pos + 1;
+        for (int i = 0; i < count; i++) {
+            offsets[i + 1] = offsets[i] + lengths[i];
+        }
+        if (offsets[count] != encoded.length()) {
+            throw MailServiceException.INVALID_METADATA(encoded, null);
+        }
+        for (int i = 0; i < count; i++) {
+            try {
+                if (offsets[i + 1] == offsets[i] || BEncoding.skip(encoded, offsets[i]) != offsets[i + 1]) {
+                    throw MailServiceException.INVALID_METADATA(encoded, null);
+                }
+            } catch (BEncodingException e) {
+                throw MailServiceException.INVALID_METADATA(encoded, e);
+            }
+        }
+        taken = new boolean[count];
+        remaining = count;
+    }
+
+    private int parseLength(int start, int colon) {
+        int length = Integer.parseInt(encoded.substring(start, colon));
+        if (length < 0) {
+            throw new IllegalArgumentException("negative length at " + start);
+        }
+        return length;
+    }
+
+    private int indexOf(String key) {
+        int index = Arrays.binarySearch(keys, key);
+        return index >= 0 && !taken[index] ? index : -1;
+    }
+
+    boolean contains(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    boolean isEmpty() {
+        return remaining == 0;
+    }
+
+    /**
+     * Returns the decoded value of the key, which is then no longer held here, or <tt>null</tt> if there's no such key
+     * or its value has already been taken or removed.
+     */
+    Object take(String key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        taken[index] = true;
+        remaining--;
+        return decode(index);
+    }
+
+    void remove(String key) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            taken[index] = true;
+            remaining--;
+        }
+    }
+
+    /**
+     * Decodes all the values not taken yet into the map, except for keys the map already has.
+     */
+    void drainTo(Map<Object, Object> map) {
+        for (int i = 0; i < keys.length; i++) {
+            if (!taken[i]) {
+                taken[i] = true;
+                Object value = decode(i);
+                if (value != null && !map.containsKey(keys[i])) {
+                    map.put(keys[i], value);
+                }
+            }
+        }
+        remaining = 0;
+    }
+
+    /**
+     * Adds the keys not taken yet to the collection.
+     */
+    void addKeys(Collection<String> result) {
+        for (int i = 0; i < keys.length; i++) {
+            if (!taken[i]) {
+                result.add(keys[i]);
+            }
+        }
+    }
+
+    /**
+     * Decodes a value checked by the constructor, which therefore can't fail.
+     */
+    private Object decode(int index) {
+        int start = offsets[index];
+        int end = offsets[index + 1];
+        char c = encoded.charAt(start);
+        if (c == 'i') {
+            return Long.valueOf(encoded.substring(start + 1, end - 1));
+        } else if (c != 'd' && c != 'l') {
+            return encoded.substring(encoded.indexOf(':', start) + 1, end);
+        }
+        try {
+            return BEncoding.decode(encoded.substring(start, end));
+        } catch (BEncodingException e) {
+            throw new IllegalStateException("invalid metadata value for " + keys[index], e);
+        }
+    }
+
+    /**
+     * Encodes the map, skipping <tt>null</tt> keys and values as {@link BEncoding} does.
+     */
+    static String encode(Map<?, ?> map) {
+        SortedMap<?, ?> tree = map instanceof SortedMap ? (SortedMap<?, ?>) map : new TreeMap<Object, Object>(map);
+        StringBuilder header = new StringBuilder(16 + tree.size() * 8).append(MARKER).append(VERSION);
+        StringBuilder values = new StringBuilder(256);
+        for (Map.Entry<?, ?> entry : tree.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                String key = entry.getKey().toString();
+                int start = values.length();
+                BEncoding.encode(values, entry.getValue());
+                header.append(key.length()).append(':').append(key).append(values.length() - start).append(':');
+            }
+        }
+        return header.append(END_OF_HEADER).append(values).toString();
+    }
+
+    /**
+     * Rewrites the {@link BEncoding} of a whole metadata map in this encoding, copying the values as they are rather
+     * than decoding them.
+     *
+     * @return the new encoding, or <tt>null</tt> if the metadata isn't a well-formed {@link BEncoding} of a map
+     */
+    static String transcode(String metadata) {
+        if (metadata == null || metadata.length() < 2 || metadata.charAt(0) != 'd') {
+            return null;
+        }
+        TreeMap<String, int[]> values = new TreeMap<String, int[]>();
+        int length = 0;
+        try {
+            int pos = 1;
+            while (metadata.charAt(pos) != 'e') {
+                int colon = metadata.indexOf(':', pos);
+                if (!Character.isDigit(metadata.charAt(pos)) || colon < 0) {
+                    return null;
+                }
+                int keyEnd = BEncoding.skip(metadata, pos);
+                int valueEnd = BEncoding.skip(metadata, keyEnd);
+                String key = metadata.substring(colon + 1, keyEnd);
+                // the legacy version number is only meant for clients reading the old encoding
+                if (!key.equals(Metadata.FN_MD_VERSION)) {
+                    values.put(key, new int[] { keyEnd, valueEnd });
+                    length += valueEnd - keyEnd;
+                }
+                pos = valueEnd;
+            }
+            if (pos != metadata.length() - 1) {
+                return null;
+            }
+        } catch (BEncodingException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(metadata.length() + values.size() * 4 + 4).append(MARKER).append(VERSION);
+        for (Map.Entry<String, int[]> entry : values.entrySet()) {
+            String key = entry.getKey();
+            int[] range = entry.getValue();
+            sb.append(key.length()).append(':').append(key).append(range[1] - range[0]).append(':');
+        }
+        sb.append(END_OF_HEADER);
+        for (int[] range : values.values()) {
+            sb.append(metadata, range[0], range[1]);
+        }
+        return sb.toString();
+    }
+}
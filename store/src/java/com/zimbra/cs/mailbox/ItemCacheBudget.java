@@ -0,0 +1,151 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.MapMaker;
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Server-wide memory budget shared by the per-mailbox {@link MailItem} caches.
+ * <p>
+ * Each mailbox's item cache is weighted by the estimated heap footprint of its items.  Every cache is guaranteed a
+ * fair share of the budget, and may borrow whatever part of the budget other mailboxes aren't using.  Once the
+ * budget is exhausted, caches above their fair share are shrunk back to it, evicting their least recently used items
+ * a few at a time rather than dropping whole caches.
+ */
+public final class ItemCacheBudget {
+
+    /** Rough fixed cost of a cached item: the object headers, {@link MailItem.UnderlyingData} and the map entries. */
+    private static final int ITEM_OVERHEAD = 512;
+
+    /** How often to re-total the weights of all registered caches. */
+    private static final long RECOMPUTE_INTERVAL_MS = 1000;
+
+    static final Weigher<MailItem> WEIGHER = new Weigher<MailItem>() {
+        @Override
+        public int weightOf(MailItem item) {
+            return weigh(item);
+        }
+    };
+
+    private static long budget;
+    private static long minShare;
+
+    /** Every live item cache.  Weakly held, so a cache disappears from the budget along with its mailbox. */
+    private static final Map<ConcurrentLinkedHashMap<Integer, MailItem>, Boolean> caches =
+        new MapMaker().weakKeys().makeMap();
+
+    private static volatile long totalWeight;
+    private static volatile int cacheCount;
+    private static volatile long lastComputed;
+
+    static {
+        setBudget(Runtime.getRuntime().maxMemory() / 100 * LC.zimbra_mailbox_item_cache_budget_percent.longValue(),
+                LC.zimbra_mailbox_item_cache_min_share_kb.longValue() * 1024);
+    }
+
+    private ItemCacheBudget() {
+    }
+
+    @VisibleForTesting
+    static void setBudget(long bytes, long minShareBytes) {
+        budget = Math.max(bytes, 1);
+        minShare = Math.max(minShareBytes, 1);
+        lastComputed = 0;
+        ZimbraLog.cache.debug("item cache budget is %d bytes, minimum per-mailbox share %d bytes", budget, minShare);
+    }
+
+    /** Returns the estimated heap footprint of the item, in bytes. */
+    static int weigh(MailItem item) {
+        MailItem.UnderlyingData data = item.mData;
+        long weight = ITEM_OVERHEAD;
+        if (data != null) {
+            weight += 2L * (length(data.getSubject()) + length(data.name) + length(data.metadata) +
+                    length(data.locator) + length(data.uuid) + length(data.getBlobDigest()) +
+                    length(data.getPrevFolders()));
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    /** Creates a new weighted item cache and registers it against the budget. */
+    static ConcurrentLinkedHashMap<Integer, MailItem> newCache(EvictionListener<Integer, MailItem> listener) {
+        ConcurrentLinkedHashMap<Integer, MailItem> cache = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>()
+            .maximumWeightedCapacity(initialCapacity())
+            .weigher(WEIGHER)
+            .listener(listener)
+            .build();
+        caches.put(cache, Boolean.TRUE);
+        lastComputed = 0;
+        return cache;
+    }
+
+    private static long initialCapacity() {
+        recomputeIfStale();
+        return Math.max(fairShare(), budget - totalWeight);
+    }
+
+    /**
+     * Resizes the cache to what it may currently hold.  Shrinking a cache evicts its least recently used entries
+     * until it fits.
+     */
+    static void rebalance(ConcurrentLinkedHashMap<Integer, MailItem> cache) {
+        recomputeIfStale();
+        long current = cache.weightedSize();
+        long slack = budget - totalWeight;
+        long capacity = slack > 0 ? Math.max(fairShare(), current + slack) : fairShare();
+        if (capacity != cache.capacity()) {
+            cache.setCapacity(capacity);
+        }
+    }
+
+    private static long fairShare() {
+        return Math.max(minShare, budget / Math.max(cacheCount, 1));
+    }
+
+    private static void recomputeIfStale() {
+        long now = System.currentTimeMillis();
+        if (now - lastComputed < RECOMPUTE_INTERVAL_MS) {
+            return;
+        }
+        lastComputed = now;
+        long total = 0;
+        int count = 0;
+        for (ConcurrentLinkedHashMap<Integer, MailItem> cache : caches.keySet()) {
+            total += cache.weightedSize();
+            count++;
+        }
+        totalWeight = total;
+        cacheCount = count;
+    }
+
+    /** Returns the estimated size of all cached items, in kilobytes. */
+    public static long getSizeKB() {
+        recomputeIfStale();
+        return totalWeight / 1024;
+    }
+}
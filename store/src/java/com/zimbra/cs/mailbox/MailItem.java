@@ -16,6 +16,7 @@
  */
 package com.zimbra.cs.mailbox;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -63,6 +64,7 @@ import com.zimbra.cs.mailbox.util.TypedIdList;
 import com.zimbra.cs.session.PendingModifications;
 import com.zimbra.cs.session.PendingModifications.Change;
 import com.zimbra.cs.session.Session;
+import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StagedBlob;
 import com.zimbra.cs.store.StoreManager;
@@ -1339,6 +1341,28 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         }
     }
 
+    /** Returns the local file holding the raw content of the item's blob,
+     *  or <tt>null</tt> if the item has no blob or the blob is stored
+     *  compressed.  The file can be sent to a client as is, for instance
+     *  with {@link java.nio.channels.FileChannel#transferTo}.
+     *
+     * @throws ServiceException when the message file does not exist.
+     * @see #getContentStream() */
+    public File getContentFile() throws ServiceException {
+        MailboxBlob mblob = getBlob();
+        if (mblob == null) {
+            return null;
+        }
+        try {
+            Blob blob = mblob.getLocalBlob();
+            File file = blob.getFile();
+            return !blob.isCompressed() && file.length() == getSize() ? file : null;
+        } catch (IOException e) {
+            String msg = String.format("Unable to get content for %s %d", getClass().getSimpleName(), getId());
+            throw ServiceException.FAILURE(msg, e);
+        }
+    }
+
     /** Returns the raw, uncompressed content of the item's blob as a byte
      *  array.  For messages, this is the message body as received via SMTP;
      *  no postprocessing has been performed to make opaque attachments
@@ -3429,13 +3453,12 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         mVersion = (int) meta.getLong(Metadata.FN_VERSION, 1);
 
         mExtendedData = null;
-        for (Map.Entry<String, ?> entry : meta.asMap().entrySet()) {
-            String key = entry.getKey();
+        for (String key : meta.keySet()) {
             if (key.startsWith(CUSTOM_META_PREFIX)) {
                 if (mExtendedData == null) {
                     mExtendedData = new CustomMetadataList();
                 }
-                mExtendedData.addSection(key.substring(CUSTOM_META_PREFIX.length()), entry.getValue().toString());
+                mExtendedData.addSection(key.substring(CUSTOM_META_PREFIX.length()), meta.get(key, null));
             }
         }
 
@@ -3475,7 +3498,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
 
 
     protected void saveMetadata() throws ServiceException {
-        saveMetadata(encodeMetadata().toString());
+        saveMetadata(encodeMetadata().toStoredString());
     }
 
     protected void saveMetadata(String metadata) throws ServiceException {
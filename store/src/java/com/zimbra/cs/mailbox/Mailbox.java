@@ -21,7 +21,6 @@ import java.io.InputStream;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -54,6 +53,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.client.ZFolder;
 import com.zimbra.client.ZMailbox;
 import com.zimbra.client.ZMailbox.Options;
@@ -579,16 +579,29 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Per-mailbox cache of non-folder, non-tag items.  Weighted by estimated item footprint and sized against the
+     * server-wide {@link ItemCacheBudget}, so memory pressure evicts the least recently used items rather than the
+     * whole cache.
+     */
     private static class ItemCache {
-        private final Map<Integer /* id */, MailItem> mapById;
+        private final ConcurrentLinkedHashMap<Integer /* id */, MailItem> mapById;
         private final Map<String /* uuid */, Integer /* id */> uuid2id;
         private final Mailbox mbox;
         private boolean isAlwaysOn = false;
 
         public ItemCache(Mailbox mbox) {
-            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
-                            MAX_ITEM_CACHE_WITH_LISTENERS).build();
             uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
+            mapById = ItemCacheBudget.newCache(new EvictionListener<Integer, MailItem>() {
+                @Override
+                public void onEviction(Integer id, MailItem item) {
+                    String uuid = item.getUuid();
+                    if (uuid != null) {
+                        uuid2id.remove(uuid, id);
+                    }
+                    ZimbraPerf.COUNTER_MBOX_ITEM_CACHE_EVICTIONS.increment();
+                }
+            });
             this.mbox = mbox;
             this.isAlwaysOn = Zimbra.isAlwaysOn();
         }
@@ -695,10 +708,32 @@ public class Mailbox {
             }
         }
 
+        /** Returns up to <tt>limit</tt> cached items, least recently used first. */
+        public List<MailItem> coldest(int limit) {
+            if (isAlwaysOn) {
+                return Collections.emptyList();
+            }
+            List<MailItem> items = new ArrayList<MailItem>(limit);
+            for (Integer id : mapById.ascendingKeySetWithLimit(limit)) {
+                MailItem item = mapById.getQuietly(id);
+                if (item != null) {
+                    items.add(item);
+                }
+            }
+            return items;
+        }
+
         public void clear() {
             mapById.clear();
             uuid2id.clear();
         }
+
+        /** Shrinks or grows the cache to its current share of the server-wide item cache budget. */
+        public void rebalance() {
+            if (!isAlwaysOn) {
+                ItemCacheBudget.rebalance(mapById);
+            }
+        }
     }
 
     // This class handles all the indexing internals for the Mailbox
@@ -722,10 +757,11 @@ public class Mailbox {
     private MailboxData mData;
     private final ThreadLocal<MailboxChange> threadChange = new ThreadLocal<MailboxChange>();
     private final List<Session> mListeners = new CopyOnWriteArrayList<Session>();
+    private final NotificationDispatcher notifier = new NotificationDispatcher(this);
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
-    private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
+    private volatile ItemCache mItemCache;
     private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
@@ -1025,6 +1061,13 @@ public class Mailbox {
         return false;
     }
 
+    /** Returns whether committed changes are still waiting to be delivered
+     *  to some of this mailbox's listeners.  Callers holding the mailbox
+     *  lock see no new changes queued until they release it. */
+    public boolean hasPendingNotifications() {
+        return !notifier.isIdle();
+    }
+
     /** Loookup a {@link Session} in the set of listeners on this mailbox. */
     public Session getListener(String sessionId) {
         if (sessionId != null) {
@@ -1088,6 +1131,7 @@ public class Mailbox {
     public void removeListener(Session session) {
         lock.lock();
         mListeners.remove(session);
+        notifier.remove(session);
 
         try {
             if (Zimbra.isAlwaysOn()) {
@@ -1765,11 +1809,10 @@ public class Mailbox {
             recorder.setChangeId(getOperationChangeID());
         }
 
-        // keep a hard reference to the item cache to avoid having it GCed during the op
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         if (cache == null) {
             cache = new ItemCache(this);
-            mItemCache = new SoftReference<ItemCache>(cache);
+            mItemCache = cache;
             ZimbraLog.cache.debug("created a new MailItem cache for mailbox " + getId());
         }
         currentChange().itemCache = cache;
@@ -1929,7 +1972,7 @@ public class Mailbox {
     private void clearItemCache() {
         if (currentChange().isActive()) {
             currentChange().itemCache.clear();
-        } else {
+        } else if (mItemCache != null) {
             mItemCache.clear();
         }
         try {
@@ -2347,6 +2390,24 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Converts the metadata of a batch of items to the indexed encoding, under the mailbox lock so that it can't
+     * overwrite a concurrent change.
+     *
+     * @see DbMailItem#convertMetadata
+     */
+    public int convertMetadata(int afterId, int batchSize) throws ServiceException {
+        boolean success = false;
+        try {
+            beginTransaction("convertMetadata", null);
+            int lastId = DbMailItem.convertMetadata(this, afterId, batchSize);
+            success = true;
+            return lastId;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     public void deleteMailbox() throws ServiceException {
         deleteMailbox(DeleteBlobs.ALWAYS);
     }
@@ -2732,7 +2793,7 @@ public class Mailbox {
         }
         assert (currentChange().depth == 0);
 
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         FolderCache folders = mFolderCache == null || Collections.disjoint(pms.changedTypes, FOLDER_TYPES) ? mFolderCache
                         : snapshotFolders();
 
@@ -9352,6 +9413,10 @@ public class Mailbox {
             }
         } finally {
             lock.release();
+            if (lock.isUnlocked()) {
+                // don't let a writer get too far ahead of the session notifications
+                notifier.throttle();
+            }
 
             // process cleanup deletes outside the lock as we support alternative blob stores for which a delete may
             // entail a blocking network operation
@@ -9621,43 +9686,40 @@ public class Mailbox {
         }
 
         if (notification != null) {
-            for (Session session : mListeners) {
-                try {
-                    session.notifyPendingChanges(notification.mods, notification.lastChangeId, source);
-                } catch (RuntimeException e) {
-                    ZimbraLog.mailbox.error("ignoring error during notification", e);
-                }
-            }
+            // sessions and remote servers are notified by the dispatcher, in commit order
+            notifier.dispatch(notification.mods, notification.lastChangeId, source, mListeners, Zimbra.isAlwaysOn());
+            MailboxListener.notifyListeners(notification);
+        }
+    }
 
-            // send to the message channel
-            DbConnection conn = null;
-            try {
-                if (Zimbra.isAlwaysOn()) {
-                    conn = DbPool.getConnection();
-                    List<String> serverids = DbSession.get(conn, getId());
-                    for (String serverid : serverids) {
-                        Server server = Provisioning.getInstance().getServerById(serverid);
-                        if (server.isLocalServer()) {
-                            continue;
-                        }
-                        MailboxNotification ntfn = MailboxNotification.create(getAccountId(), mData.lastChangeId, dirty.getSerializedBytes());
-                        MessageChannel.getInstance().sendMessage(server, ntfn);
-                    }
+    /** Sends a change to the other servers with sessions on this mailbox.
+     *  Called by the {@link NotificationDispatcher}, outside the mailbox lock. */
+    void notifyRemoteServers(PendingModifications mods, int changeId) {
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection();
+            List<String> serverids = DbSession.get(conn, getId());
+            MailboxNotification ntfn = null; // encoded once and sent to every server
+            for (String serverid : serverids) {
+                Server server = Provisioning.getInstance().getServerById(serverid);
+                if (server.isLocalServer()) {
+                    continue;
                 }
-            } catch (ServiceException e) {
-                ZimbraLog.session.warn("unable to get target server", e);
-            } catch (MessageChannelException e) {
-                ZimbraLog.session.warn("unable to create MailboxNotification", e);
-                return;
-            } catch (IOException e) {
-                ZimbraLog.session.warn("unable to create MailboxNotification", e);
-                return;
-            } finally {
-                if (conn != null) {
-                    conn.closeQuietly();
+                if (ntfn == null) {
+                    ntfn = MailboxNotification.create(getAccountId(), changeId, mods.getSerializedBytes());
                 }
+                MessageChannel.getInstance().sendMessage(server, ntfn);
+            }
+        } catch (ServiceException e) {
+            ZimbraLog.session.warn("unable to get target server", e);
+        } catch (MessageChannelException e) {
+            ZimbraLog.session.warn("unable to create MailboxNotification", e);
+        } catch (IOException e) {
+            ZimbraLog.session.warn("unable to create MailboxNotification", e);
+        } finally {
+            if (conn != null) {
+                conn.closeQuietly();
             }
-            MailboxListener.notifyListeners(notification);
         }
     }
 
@@ -9718,28 +9780,25 @@ public class Mailbox {
                 return;
             }
 
+            // stay within this mailbox's share of the server-wide budget; this evicts by weight, coldest first
+            cache.rebalance();
+
             int excess = cache.size() - sizeTarget;
             if (excess <= 0) {
                 return;
             }
 
-            // cache the overflow to avoid the Iterator's ConcurrentModificationException
-            MailItem[] overflow = new MailItem[excess];
-            int i = 0;
-            for (MailItem item : cache.values()) {
-                overflow[i++] = item;
-                if (i >= excess) {
-                    break;
-                }
-            }
+            // snapshot the overflow, least recently used first, to avoid modifying the cache while iterating over it
+            List<MailItem> overflow = cache.coldest(excess);
             // trim the excess; note that "uncache" can cascade and take out child items
-            while (--i >= 0) {
+            for (MailItem item : overflow) {
                 if (cache.size() <= sizeTarget) {
                     return;
                 }
 
                 try {
-                    uncache(overflow[i]);
+                    uncache(item);
+                    ZimbraPerf.COUNTER_MBOX_ITEM_CACHE_EVICTIONS.increment();
                 } catch (ServiceException e) {
                 }
             }
@@ -9914,6 +9973,38 @@ public class Mailbox {
         }
     }
 
+    /**
+     * Computes and stores the IMAP ENVELOPE and BODYSTRUCTURE of a message added before they were computed at delivery
+     * time.  The blob is read outside the mailbox lock.
+     *
+     * @return false if the message already had them or changed while they were being computed
+     */
+    public boolean addImapSummary(OperationContext octxt, int msgId) throws ServiceException {
+        Message msg = getMessageById(octxt, msgId);
+        if (msg.getImapBodyStructure() != null) {
+            return false;
+        }
+        int savedSequence = msg.getSavedSequence();
+        Pair<String, String> summary = Message.getImapSummary(msg.getMimeMessage(false), getAccount());
+        if (summary.getSecond() == null) {
+            return false;
+        }
+
+        boolean success = false;
+        try {
+            beginTransaction("addImapSummary", octxt);
+            msg = getMessageById(msgId);
+            boolean updated = msg.getSavedSequence() == savedSequence && msg.getImapBodyStructure() == null;
+            if (updated) {
+                msg.setImapSummary(summary.getFirst(), summary.getSecond());
+            }
+            success = true;
+            return updated;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     protected void migrateWikiFolders() throws ServiceException {
         MigrateToDocuments migrate = new MigrateToDocuments();
         try {
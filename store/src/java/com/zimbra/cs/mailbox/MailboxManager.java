@@ -21,15 +21,22 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.Lock;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
 import com.zimbra.common.account.Key.AccountBy;
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
@@ -124,7 +131,7 @@ public class MailboxManager {
     /** Maps account IDs (<code>String</code>s) to mailbox IDs
      *  (<code>Integer</code>s).  <i>Every</i> mailbox in existence on the
      *  server appears in this mapping. */
-    private Map<String, Integer> mailboxIds;
+    private ConcurrentMap<String, Integer> mailboxIds;
 
     /**
      * Maps mailbox IDs ({@link Integer}s) to either
@@ -139,12 +146,23 @@ public class MailboxManager {
      */
     private MailboxMap cache;
 
+    /**
+     * Lookups in {@link #mailboxIds} and {@link #cache} are lock-free.  Changes to the cache entry of a mailbox that
+     * depend on its current entry (caching a freshly loaded mailbox, entering and leaving maintenance, deletion) are
+     * serialized per mailbox id by these locks, so unrelated mailboxes never contend with each other.
+     */
+    private final Striped<Lock> cacheLocks = Striped.lock(256);
+
+    /** Mailboxes currently being loaded from the database, so concurrent requests for the same mailbox share a
+     *  single load. */
+    private final ConcurrentMap<Integer, FutureTask<Mailbox>> loading = new ConcurrentHashMap<Integer, FutureTask<Mailbox>>();
+
     public MailboxManager() throws ServiceException {
         DbConnection conn = null;
         synchronized (this) {
             try {
                 conn = DbPool.getConnection();
-                mailboxIds = DbMailbox.listMailboxes(conn, this);
+                mailboxIds = new ConcurrentHashMap<String, Integer>(DbMailbox.listMailboxes(conn, this));
                 cache = createCache();
             } finally {
                 DbPool.quietClose(conn);
@@ -336,10 +354,7 @@ public class MailboxManager {
         if (accountId == null)
             throw new IllegalArgumentException();
 
-        Integer mailboxKey;
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        Integer mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null) {
             if (DebugConfig.mockMultiserverInstall)
                 lookupAccountWithHostCheck(accountId, skipMailHostCheck);
@@ -350,9 +365,7 @@ public class MailboxManager {
 
         // auto-create the mailbox if this is the right host...
         Account account = lookupAccountWithHostCheck(accountId, skipMailHostCheck);
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null)
             return getMailboxById(mailboxKey, fetchMode, skipMailHostCheck);
         else
@@ -431,13 +444,11 @@ public class MailboxManager {
         long startTime = ZimbraPerf.STOPWATCH_MBOX_GET.start();
 
         Mailbox mbox = null;
-        synchronized (this) {
-            // check to see if the mailbox has already been cached
-            Object cached = retrieveFromCache(mailboxId, true);
-            if (cached instanceof Mailbox) {
-                ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
-                mbox = (Mailbox) cached;
-            }
+        // check to see if the mailbox has already been cached
+        Object cached = retrieveFromCache(mailboxId, true);
+        if (cached instanceof Mailbox) {
+            ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
+            mbox = (Mailbox) cached;
         }
 
         if (fetchMode == FetchMode.ONLY_IF_CACHED && (mbox == null || !mbox.isOpen())) {
@@ -447,22 +458,8 @@ public class MailboxManager {
 
         if (mbox == null) { // not found in cache
             ZimbraPerf.COUNTER_MBOX_CACHE.increment(0);
-            MailboxData data;
-            DbConnection conn = DbPool.getConnection();
-            try {
-                // fetch the Mailbox data from the database
-                data = DbMailbox.getMailboxStats(conn, mailboxId);
-                if (data == null) {
-                    throw MailServiceException.NO_SUCH_MBOX(mailboxId);
-                }
-            } finally {
-                conn.closeQuietly();
-            }
-
-            mbox = instantiateMailbox(data);
+            mbox = loadMailbox(mailboxId);
             Account account = mbox.getAccount();
-            boolean isGalSyncAccount = AccountUtil.isGalSyncAccount(account);
-            mbox.setGalSyncMailbox(isGalSyncAccount);
 
             if (!skipMailHostCheck) {
                 // The host check here makes sure that sessions that were
@@ -475,9 +472,11 @@ public class MailboxManager {
                     throw ServiceException.WRONG_HOST(account.getMailHost(), null);
             }
 
-            synchronized (this) {
+            Lock lock = cacheLocks.get(mailboxId);
+            lock.lock();
+            try {
                 // avoid the race condition by re-checking the cache and using that data (if any)
-                Object cached = retrieveFromCache(mailboxId, false);
+                cached = retrieveFromCache(mailboxId, false);
                 if (cached instanceof Mailbox) {
                     mbox = (Mailbox) cached;
                 } else {
@@ -488,6 +487,8 @@ public class MailboxManager {
                         cacheMailbox(mbox);
                     }
                 }
+            } finally {
+                lock.unlock();
             }
         }
 
@@ -507,8 +508,12 @@ public class MailboxManager {
             MailboxMaintenance maint = null;
             synchronized (mbox) {
                 maint = mbox.beginMaintenance();
-                synchronized (this) {
+                Lock lock = cacheLocks.get(mailboxId);
+                lock.lock();
+                try {
                     cache.put(mailboxId, maint);
+                } finally {
+                    lock.unlock();
                 }
             }
             if (oldMaint.isNestedAllowed()) {
@@ -520,10 +525,66 @@ public class MailboxManager {
         return mbox;
     }
 
+    /**
+     * Fetches the mailbox row and instantiates the {@link Mailbox}, without caching it.  If another thread is already
+     * loading the same mailbox, waits for and returns its result instead of hitting the database again.
+     */
+    private Mailbox loadMailbox(final int mailboxId) throws ServiceException {
+        FutureTask<Mailbox> task = new FutureTask<Mailbox>(new Callable<Mailbox>() {
+            @Override
+            public Mailbox call() throws ServiceException {
+                MailboxData data;
+                DbConnection conn = DbPool.getConnection();
+                try {
+                    // fetch the Mailbox data from the database
+                    data = DbMailbox.getMailboxStats(conn, mailboxId);
+                    if (data == null) {
+                        throw MailServiceException.NO_SUCH_MBOX(mailboxId);
+                    }
+                } finally {
+                    conn.closeQuietly();
+                }
+
+                Mailbox mbox = instantiateMailbox(data);
+                mbox.setGalSyncMailbox(AccountUtil.isGalSyncAccount(mbox.getAccount()));
+                return mbox;
+            }
+        });
+
+        FutureTask<Mailbox> existing = loading.putIfAbsent(mailboxId, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                loading.remove(mailboxId, task);
+            }
+        } else {
+            ZimbraLog.mailbox.debug("waiting for concurrent load of mailbox %d", mailboxId);
+            task = existing;
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.INTERRUPTED("while loading mailbox " + mailboxId);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ServiceException.FAILURE("error loading mailbox " + mailboxId, cause);
+        }
+    }
+
     /** @return A list of *hard references* to all currently-loaded mailboxes which are not
      *     .   in MAINTENANCE mode.  Caller must be careful to not hang onto this list for
      *         very long or else mailboxes will not be purged. */
-    public synchronized List<Mailbox> getAllLoadedMailboxes() {
+    public List<Mailbox> getAllLoadedMailboxes() {
         List<Mailbox> mboxes = new ArrayList<Mailbox>(cache.size());
         for (Object o : cache.values()) {
             if (o instanceof Mailbox) {
@@ -541,7 +602,7 @@ public class MailboxManager {
     /**
      * Returns the number of hard references to currently-loaded mailboxes, either in MAINTENANCE mode or not.
      */
-    public synchronized int getCacheSize() {
+    public int getCacheSize() {
         int count = 0;
         for (Object o : cache.values()) {
             if (o instanceof Mailbox || o instanceof MailboxMaintenance) {
@@ -556,7 +617,7 @@ public class MailboxManager {
      * that one of the {@link Listener} APIs be called for this mailbox at some point in the future, if this mailbox is
      * ever accessed.
      */
-    public synchronized boolean isMailboxLoadedAndAvailable(int mailboxId) {
+    public boolean isMailboxLoadedAndAvailable(int mailboxId) {
         Object cached = cache.get(mailboxId);
         if (cached == null) {
             return false;
@@ -569,24 +630,22 @@ public class MailboxManager {
     }
 
     private Object retrieveFromCache(int mailboxId, boolean trackGC) throws MailServiceException {
-        synchronized (this) {
-            Object cached = cache.get(mailboxId, trackGC);
-            if (cached instanceof MailboxMaintenance) {
-                MailboxMaintenance maintenance = (MailboxMaintenance) cached;
-                if (!maintenance.canAccess()) {
-                    if (isMailboxLockedOut(maintenance.getAccountId())) {
-                        throw MailServiceException.MAINTENANCE(mailboxId, "mailbox locked out for maintenance");
-                    } else {
-                        throw MailServiceException.MAINTENANCE(mailboxId);
-                    }
-                }
-                if (maintenance.getMailbox() != null) {
-                    return maintenance.getMailbox();
+        Object cached = cache.get(mailboxId, trackGC);
+        if (cached instanceof MailboxMaintenance) {
+            MailboxMaintenance maintenance = (MailboxMaintenance) cached;
+            if (!maintenance.canAccess()) {
+                if (isMailboxLockedOut(maintenance.getAccountId())) {
+                    throw MailServiceException.MAINTENANCE(mailboxId, "mailbox locked out for maintenance");
+                } else {
+                    throw MailServiceException.MAINTENANCE(mailboxId);
                 }
             }
-            // if we've retrieved NULL or a Mailbox or an accessible lock, return it
-            return cached;
+            if (maintenance.getMailbox() != null) {
+                return maintenance.getMailbox();
+            }
         }
+        // if we've retrieved NULL or a Mailbox or an accessible lock, return it
+        return cached;
     }
 
     /**
@@ -600,7 +659,7 @@ public class MailboxManager {
         return new ExternalVirtualMailbox(data);
     }
 
-    protected synchronized void cacheAccount(String accountId, int mailboxId) {
+    protected void cacheAccount(String accountId, int mailboxId) {
         mailboxIds.put(accountId.toLowerCase(), Integer.valueOf(mailboxId));
     }
 
@@ -612,12 +671,16 @@ public class MailboxManager {
     public MailboxMaintenance beginMaintenance(String accountId, int mailboxId) throws ServiceException {
         Mailbox mbox = getMailboxByAccountId(accountId, false);
         if (mbox == null) {
-            synchronized (this) {
+            Lock lock = cacheLocks.get(mailboxId);
+            lock.lock();
+            try {
                 if (mailboxIds.get(accountId.toLowerCase()) == null) {
                     MailboxMaintenance maintenance = new MailboxMaintenance(accountId, mailboxId);
                     cache.put(mailboxId, maintenance);
                     return maintenance;
                 }
+            } finally {
+                lock.unlock();
             }
             mbox = getMailboxByAccountId(accountId);
         }
@@ -626,8 +689,12 @@ public class MailboxManager {
         mbox.lock.lock();
         try {
             MailboxMaintenance maintenance = mbox.beginMaintenance();
-            synchronized (this) {
+            Lock lock = cacheLocks.get(mailboxId);
+            lock.lock();
+            try {
                 cache.put(mailboxId, maintenance);
+            } finally {
+                lock.unlock();
             }
             return maintenance;
         } finally {
@@ -641,7 +708,9 @@ public class MailboxManager {
 
         Mailbox availableMailbox = null;
 
-        synchronized (this) {
+        Lock lock = cacheLocks.get(maintenance.getMailboxId());
+        lock.lock();
+        try {
             Object obj = cache.get(maintenance.getMailboxId());
             if (obj != maintenance) {
                 ZimbraLog.mailbox.debug("maintenance ended with wrong object. passed %s; expected %s", maintenance, obj);
@@ -685,6 +754,8 @@ public class MailboxManager {
                 }
                 maintenance.markUnavailable();
             }
+        } finally {
+            lock.unlock();
         }
 
         if (availableMailbox != null)
@@ -697,9 +768,7 @@ public class MailboxManager {
      * @return
      */
     public int getMailboxCount() {
-        synchronized (this) {
-            return mailboxIds.size();
-        }
+        return mailboxIds.size();
     }
 
 
@@ -708,14 +777,12 @@ public class MailboxManager {
      *  not the same as the set of mailboxes for accounts whose
      *  <code>zimbraMailHost</code> LDAP attribute points to this server. */
     public int[] getMailboxIds() {
+        List<Integer> col = new ArrayList<Integer>(mailboxIds.values());
+        int[] ids = new int[col.size()];
         int i = 0;
-        synchronized (this) {
-            Collection<Integer> col = mailboxIds.values();
-            int[] mailboxIds = new int[col.size()];
-            for (int id : col)
-                mailboxIds[i++] = id;
-            return mailboxIds;
-        }
+        for (int id : col)
+            ids[i++] = id;
+        return ids;
     }
 
     public Set<Integer> getPurgePendingMailboxes(long time) throws ServiceException {
@@ -734,14 +801,7 @@ public class MailboxManager {
      *  the same as the set of accounts whose <code>zimbraMailHost</code> LDAP
      *  attribute points to this server.*/
     public String[] getAccountIds() {
-        int i = 0;
-        synchronized (this) {
-            Set<String> set = mailboxIds.keySet();
-            String[] accountIds = new String[set.size()];
-            for (String o : set)
-                accountIds[i++] = o;
-            return accountIds;
-        }
+        return mailboxIds.keySet().toArray(new String[0]);
     }
 
 
@@ -751,10 +811,7 @@ public class MailboxManager {
      * @return
      */
     public int lookupMailboxId(String accountId) {
-        Integer v;
-        synchronized (this) {
-            v = mailboxIds.get(accountId);
-        }
+        Integer v = mailboxIds.get(accountId);
         return v != null ? v.intValue() : -1;
     }
 
@@ -769,16 +826,14 @@ public class MailboxManager {
      *        the database; a SQLException is encapsulated</ul> */
     public Map<String, Long> getMailboxSizes(List<NamedEntry> accounts) throws ServiceException {
         List<Integer> requested;
-        synchronized (this) {
-            if (accounts == null) {
-                requested = new ArrayList<Integer>(mailboxIds.values());
-            } else {
-                requested = new ArrayList<Integer>(accounts.size());
-                for (NamedEntry account : accounts) {
-                    Integer mailboxId = mailboxIds.get(account.getId());
-                    if (mailboxId != null)
-                        requested.add(mailboxId);
-                }
+        if (accounts == null) {
+            requested = new ArrayList<Integer>(mailboxIds.values());
+        } else {
+            requested = new ArrayList<Integer>(accounts.size());
+            for (NamedEntry account : accounts) {
+                Integer mailboxId = mailboxIds.get(account.getId());
+                if (mailboxId != null)
+                    requested.add(mailboxId);
             }
         }
 
@@ -897,9 +952,14 @@ public class MailboxManager {
                 mbox.initialize();
             }
 
-            // cache the accountID-to-mailboxID and mailboxID-to-Mailbox relationships
-            cacheAccount(data.accountId, data.id);
-            cacheMailbox(mbox);
+            // cache the mailboxID-to-Mailbox relationship; the accountID-to-mailboxID one is published below
+            Lock lock = cacheLocks.get(mbox.getId());
+            lock.lock();
+            try {
+                cacheMailbox(mbox);
+            } finally {
+                lock.unlock();
+            }
             redoRecorder.setMailboxId(mbox.getId());
 
             success = true;
@@ -925,15 +985,22 @@ public class MailboxManager {
             }
         }
 
+        // Account lookups don't take the manager lock, so don't publish the accountID-to-mailboxID mapping until the
+        // mailbox has been committed.  Otherwise a concurrent lookup could find an id whose row isn't visible yet.
+        cacheAccount(mbox.getAccountId(), mbox.getId());
         return mbox;
     }
 
     protected void markMailboxDeleted(Mailbox mailbox) {
         String accountId = mailbox.getAccountId().toLowerCase();
-        synchronized (this) {
+        Lock lock = cacheLocks.get(mailbox.getId());
+        lock.lock();
+        try {
             maintenanceLocks.remove(accountId);
             mailboxIds.remove(accountId);
             cache.remove(mailbox.getId());
+        } finally {
+            lock.unlock();
         }
         notifyMailboxDeleted(accountId);
     }
@@ -942,12 +1009,10 @@ public class MailboxManager {
         StringBuilder sb = new StringBuilder();
         sb.append("MAILBOX CACHE DUMPS\n");
         sb.append("----------------------------------------------------------------------\n");
-        synchronized (this) {
-            for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
-                sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
-            for (Map.Entry<Integer, Object> entry : cache.entrySet())
-                sb.append("2) key=" + entry.getKey() + "; val=" + entry.getValue() + "(class= " + entry.getValue().getClass().getName() + ",hash=" + entry.getValue().hashCode() + ")");
-        }
+        for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
+            sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
+        for (Map.Entry<Integer, Object> entry : cache.entrySet())
+            sb.append("2) key=" + entry.getKey() + "; val=" + entry.getValue() + "(class= " + entry.getValue().getClass().getName() + ",hash=" + entry.getValue().hashCode() + ")");
         sb.append("----------------------------------------------------------------------\n");
         ZimbraLog.mailbox.debug(sb.toString());
     }
@@ -1000,27 +1065,24 @@ public class MailboxManager {
         }
     }
 
+    /**
+     * Two-tier mailbox cache, safe for concurrent use without external locking.  Every entry is held in the soft
+     * tier (mailboxes by soft reference, so they can be reclaimed under memory pressure); the most recently used
+     * <code>hardSize</code> of them are additionally pinned by the hard tier.  Falling out of the hard tier just drops
+     * the pin, so there is no demotion step that could race with a concurrent <code>remove</code> and resurrect an
+     * entry that has already been dropped from the cache.
+     */
     protected static class MailboxMap implements Map<Integer, Object> {
         final int mHardSize;
-        final LinkedHashMap<Integer, Object> mHardMap;
-        final HashMap<Integer, Object> mSoftMap;
+        final ConcurrentMap<Integer, Object> mHardMap;
+        final ConcurrentMap<Integer, Object> mSoftMap;
 
-        @SuppressWarnings("serial") MailboxMap(int hardSize) {
+        MailboxMap(int hardSize) {
             hardSize = Math.max(hardSize, 0);
             mHardSize = hardSize;
-            mSoftMap = new HashMap<Integer, Object>();
-            mHardMap = new LinkedHashMap<Integer, Object>(mHardSize / 4, (float) .75, true) {
-                @Override protected boolean removeEldestEntry(Entry<Integer, Object> eldest) {
-                    if (size() <= mHardSize)
-                        return false;
-
-                    Object obj = eldest.getValue();
-                    if (obj instanceof Mailbox)
-                        obj = new SoftReference<Mailbox>((Mailbox) obj);
-                    mSoftMap.put(eldest.getKey(), obj);
-                    return true;
-                }
-            };
+            mSoftMap = new ConcurrentHashMap<Integer, Object>();
+            Cache<Integer, Object> hard = CacheBuilder.newBuilder().maximumSize(mHardSize).build();
+            mHardMap = hard.asMap();
         }
 
         protected MailboxMap() {
@@ -1029,25 +1091,28 @@ public class MailboxManager {
             mSoftMap = null;
         }
 
+        private static Object deref(Object obj) {
+            return obj instanceof SoftReference ? ((SoftReference<?>) obj).get() : obj;
+        }
+
         @Override public void clear() {
-            mHardMap.clear();
             mSoftMap.clear();
+            mHardMap.clear();
         }
 
         @Override public boolean containsKey(Object key) {
-            return mHardMap.containsKey(key) || mSoftMap.containsKey(key);
+            return mSoftMap.containsKey(key);
         }
 
         @Override public boolean containsValue(Object value) {
-            return mHardMap.containsValue(value) || mSoftMap.containsValue(value);
+            return values().contains(value);
         }
 
         @Override public Set<Entry<Integer, Object>> entrySet() {
-            Set<Entry<Integer, Object>> entries = new HashSet<Entry<Integer, Object>>(size());
-            if (mHardSize > 0)
-                entries.addAll(mHardMap.entrySet());
-            entries.addAll(mSoftMap.entrySet());
-            return entries;
+            Map<Integer, Object> entries = new HashMap<Integer, Object>(mSoftMap.size());
+            for (Entry<Integer, Object> entry : mSoftMap.entrySet())
+                entries.put(entry.getKey(), deref(entry.getValue()));
+            return entries.entrySet();
         }
 
         @Override public Object get(Object key) {
@@ -1068,31 +1133,18 @@ public class MailboxManager {
         }
 
         @Override public boolean isEmpty() {
-            return mHardMap.isEmpty() && mSoftMap.isEmpty();
+            return mSoftMap.isEmpty();
         }
 
         @Override public Set<Integer> keySet() {
-            Set<Integer> keys = new HashSet<Integer>(size());
-            if (mHardSize > 0)
-                keys.addAll(mHardMap.keySet());
-            keys.addAll(mSoftMap.keySet());
-            return keys;
+            return new HashSet<Integer>(mSoftMap.keySet());
         }
 
         @Override public Object put(Integer key, Object value) {
-            Object removed;
-            if (mHardSize > 0) {
-                removed = mHardMap.put(key, value);
-                if (removed == null)
-                    removed = mSoftMap.remove(key);
-            } else {
-                if (value instanceof Mailbox)
-                    value = new SoftReference<Object>(value);
-                removed = mSoftMap.put(key, value);
-            }
-            if (removed instanceof SoftReference)
-                removed = ((SoftReference<?>) removed).get();
-            return removed;
+            Object removed = mSoftMap.put(key, value instanceof Mailbox ? new SoftReference<Object>(value) : value);
+            if (mHardSize > 0)
+                mHardMap.put(key, value);
+            return deref(removed);
         }
 
         @Override public void putAll(Map<? extends Integer, ? extends Object> t) {
@@ -1102,27 +1154,18 @@ public class MailboxManager {
 
         @Override public Object remove(Object key) {
             Object removed = mHardSize > 0 ? mHardMap.remove(key) : null;
-            if (removed == null) {
-                removed = mSoftMap.remove(key);
-                if (removed instanceof SoftReference)
-                    removed = ((SoftReference<?>) removed).get();
-            }
-            return removed;
+            Object soft = deref(mSoftMap.remove(key));
+            return removed != null ? removed : soft;
         }
 
         @Override public int size() {
-            return mHardMap.size() + mSoftMap.size();
+            return mSoftMap.size();
         }
 
         @Override public Collection<Object> values() {
-            List<Object> values = new ArrayList<Object>(size());
-            if (mHardSize > 0)
-                values.addAll(mHardMap.values());
-            for (Object o : mSoftMap.values()) {
-                if (o instanceof SoftReference)
-                    o = ((SoftReference<?>) o).get();
-                values.add(o);
-            }
+            List<Object> values = new ArrayList<Object>(mSoftMap.size());
+            for (Object o : mSoftMap.values())
+                values.add(deref(o));
             return values;
         }
 
@@ -20,16 +20,22 @@ import java.security.SecureRandom;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.mailbox.Color;
 import com.zimbra.common.service.ServiceException;
@@ -239,6 +245,80 @@ public final class MailboxUpgrade {
         }
     }
 
+    /**
+     * Stores the IMAP ENVELOPE and BODYSTRUCTURE of the messages that were added before they were computed at delivery
+     * time, so that IMAP FETCH doesn't have to read and parse their blobs.
+     */
+    /** Runs the IMAP summary backfills started by the admin, one mailbox at a time. */
+    private static final ExecutorService IMAP_SUMMARY_BACKFILL = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("ImapSummaryBackfill").setDaemon(true).build());
+    /** Mailboxes whose IMAP summary backfill is queued or running. */
+    private static final Set<Integer> IMAP_SUMMARY_BACKFILLS =
+            Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    /**
+     * Queues {@link #backfillImapSummaries} of the mailbox on the shared backfill thread.
+     *
+     * @return <tt>false</tt> if a backfill of the mailbox is already queued or running
+     */
+    public static boolean startImapSummaryBackfill(final Mailbox mbox) throws ServiceException {
+        if (!IMAP_SUMMARY_BACKFILLS.add(mbox.getId())) {
+            return false;
+        }
+        try {
+            IMAP_SUMMARY_BACKFILL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        backfillImapSummaries(mbox);
+                    } catch (ServiceException e) {
+                        ZimbraLog.mailbox.error("IMAP summary backfill failed for mailbox %d", mbox.getId(), e);
+                    } finally {
+                        IMAP_SUMMARY_BACKFILLS.remove(mbox.getId());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            IMAP_SUMMARY_BACKFILLS.remove(mbox.getId());
+            throw ServiceException.FAILURE("IMAP summary backfill is shut down", e);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the running IMAP summary backfill after its current message, and drops the queued ones.
+     */
+    public static void shutdownImapSummaryBackfill() {
+        IMAP_SUMMARY_BACKFILL.shutdownNow();
+    }
+
+    public static void backfillImapSummaries(Mailbox mbox) throws ServiceException {
+        OperationContext octxt = new OperationContext(mbox);
+        ZimbraLog.mailbox.info("IMAP summary backfill started for mailbox %d", mbox.getId());
+        int count = 0, checked = 0;
+        for (Folder folder : mbox.getFolderList(octxt, SortBy.NONE)) {
+            for (int id : mbox.listItemIds(octxt, MailItem.Type.MESSAGE, folder.getId())) {
+                if (Thread.currentThread().isInterrupted()) {
+                    ZimbraLog.mailbox.info("IMAP summary backfill stopped for mailbox %d: %d checked, %d updated",
+                            mbox.getId(), checked, count);
+                    return;
+                }
+                try {
+                    if (mbox.addImapSummary(octxt, id)) {
+                        count++;
+                    }
+                } catch (ServiceException e) {
+                    ZimbraLog.mailbox.warn("failed to compute IMAP summary of message %d", id, e);
+                }
+                if (++checked % 1000 == 0) {
+                    ZimbraLog.mailbox.info("IMAP summary backfill progress for mailbox %d: %d checked, %d updated",
+                            mbox.getId(), checked, count);
+                }
+            }
+        }
+        ZimbraLog.mailbox.info("IMAP summary backfill finished for mailbox %d: %d messages updated", mbox.getId(), count);
+    }
+
     public static void upgradeTo2_1(Mailbox mbox) throws ServiceException {
         DbConnection conn = DbPool.getConnection(mbox);
         try {
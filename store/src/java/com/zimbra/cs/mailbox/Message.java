@@ -42,6 +42,7 @@ import com.zimbra.common.mime.InternetAddress;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
+import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.common.zmime.ZMimeMessage;
@@ -51,6 +52,7 @@ import com.zimbra.cs.account.CalendarResource;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.Rights.User;
 import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.imap.ImapMessage;
 import com.zimbra.cs.index.IndexDocument;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.mailbox.MailItem.CustomMetadata.CustomMetadataList;
@@ -208,6 +210,8 @@ public class Message extends MailItem {
     private String recipients;
     private String fragment;
     private String rawSubject;
+    private String imapEnvelope;
+    private String imapBodyStructure;
 
     private DraftInfo draftInfo;
     private ArrayList<CalendarItemInfo> calendarItemInfos;
@@ -253,6 +257,50 @@ public class Message extends MailItem {
         return Strings.nullToEmpty(fragment);
     }
 
+    /**
+     * Returns the IMAP ENVELOPE of the message as it is sent to clients, or null if it was not computed when the
+     * message was added.
+     */
+    public String getImapEnvelope() {
+        return imapEnvelope;
+    }
+
+    /**
+     * Returns the IMAP BODYSTRUCTURE of the message as it is sent to clients, or null if it was not computed when the
+     * message was added.
+     */
+    public String getImapBodyStructure() {
+        return imapBodyStructure;
+    }
+
+    /**
+     * Stores the IMAP summary of a message that was added before summaries were computed at delivery time.  This is
+     * not a change visible to clients, so the modification sequence is left alone.
+     */
+    void setImapSummary(String envelope, String bodyStructure) throws ServiceException {
+        imapEnvelope = envelope;
+        imapBodyStructure = bodyStructure;
+        DbMailItem.persistMetadata(this, encodeMetadata());
+    }
+
+    /**
+     * Computes the IMAP ENVELOPE and BODYSTRUCTURE from the unconverted message, presented the same way as by
+     * {@link #getMimeMessage(boolean)}, so that the stored values match what would be computed from the blob.
+     */
+    static Pair<String, String> getImapSummary(MimeMessage mm, Account acct) {
+        if (mm == null) {
+            return new Pair<String, String>(null, null);
+        }
+        if (mm instanceof ZMimeMessage && ZMimeMessage.usingZimbraParser()) {
+            try {
+                mm = new Mime.FixedMimeMessage(mm, acct);
+            } catch (MessagingException e) {
+                ZimbraLog.mailbox.info("could not copy MimeMessage; using original", e);
+            }
+        }
+        return new Pair<String, String>(ImapMessage.getEnvelope(mm), ImapMessage.getBodyStructure(mm));
+    }
+
     /**
      * Returns the normalized subject of the message.  This is done by taking the {@code Subject:} header and removing
      * prefixes (e.g. {@code "Re:"}) and suffixes (e.g. {@code "(fwd)"}) and the like.
@@ -592,7 +640,8 @@ public class Message extends MailItem {
         data.setFlags(flags & (Flag.FLAGS_MESSAGE | Flag.FLAGS_GENERIC));
         data.setTags(ntags);
         data.setSubject(pm.getNormalizedSubject());
-        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null).toString();
+        data.metadata = encodeMetadata(DEFAULT_COLOR_RGB, 1, 1, extended, pm, pm.getFragment(acct.getLocale()), dinfo, null, null,
+                getImapSummary(pm.getOriginalMessage(), acct)).toString();
         data.unreadCount = unread ? 1 : 0;
         data.contentChanged(mbox);
 
@@ -1435,6 +1484,11 @@ public class Message extends MailItem {
         // the fragment may have changed
         fragment = pm.getFragment(acct.getLocale());
 
+        // and so may have the IMAP summary
+        Pair<String, String> imapSummary = getImapSummary(pm.getOriginalMessage(), acct);
+        imapEnvelope = imapSummary.getFirst();
+        imapBodyStructure = imapSummary.getSecond();
+
         // make sure the "attachments" FLAG is correct
         boolean hadAttachment = mData.isSet(Flag.FlagInfo.ATTACHED);
         mData.unsetFlag(Flag.FlagInfo.ATTACHED);
@@ -1472,7 +1526,7 @@ public class Message extends MailItem {
 
         // rewrite the DB row to reflect our new view
         saveData(new DbMailItem(mMailbox), encodeMetadata(mRGBColor, mMetaVersion, mVersion, mExtendedData, pm, fragment,
-                draftInfo, calendarItemInfos, calendarIntendedFor));
+                draftInfo, calendarItemInfos, calendarIntendedFor, imapSummary));
 
         if (parent instanceof VirtualConversation) {
             ((VirtualConversation) parent).recalculateMetadata(Collections.singletonList(this));
@@ -1516,6 +1570,8 @@ public class Message extends MailItem {
         sender = meta.get(Metadata.FN_SENDER, null);
         recipients = meta.get(Metadata.FN_RECIPIENTS, null);
         fragment = meta.get(Metadata.FN_FRAGMENT, null);
+        imapEnvelope = meta.get(Metadata.FN_IMAP_ENVELOPE, null);
+        imapBodyStructure = meta.get(Metadata.FN_IMAP_BODYSTRUCTURE, null);
 
         if (meta.containsKey(Metadata.FN_CALITEM_IDS)) {
             calendarItemInfos = new ArrayList<CalendarItemInfo>();
@@ -1547,19 +1603,21 @@ public class Message extends MailItem {
     @Override
     Metadata encodeMetadata(Metadata meta) {
         return encodeMetadata(meta, mRGBColor, mMetaVersion, mVersion, mExtendedData, sender, recipients, fragment,
-                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor);
+                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor, imapEnvelope,
+                imapBodyStructure);
     }
 
     private static Metadata encodeMetadata(Color color, int metaVersion, int version, CustomMetadataList extended, ParsedMessage pm,
-            String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor,
+            Pair<String, String> imapSummary) {
         return encodeMetadata(new Metadata(), color, metaVersion, version, extended, pm.getSender(), pm.getRecipients(),
                 fragment, pm.getNormalizedSubject(), pm.getSubject(), dinfo,
-                calItemInfos, calIntendedFor);
+                calItemInfos, calIntendedFor, imapSummary.getFirst(), imapSummary.getSecond());
     }
 
     static Metadata encodeMetadata(Metadata meta, Color color, int metaVersion, int version, CustomMetadataList extended, String sender,
             String recipients, String fragment, String subject, String rawSubj, DraftInfo dinfo,
-            List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            List<CalendarItemInfo> calItemInfos, String calIntendedFor, String imapEnvelope, String imapBodyStructure) {
         // try to figure out a simple way to make the raw subject from the normalized one
         String prefix = null;
         if (rawSubj == null || rawSubj.equals(subject)) {
@@ -1574,6 +1632,8 @@ public class Message extends MailItem {
         meta.put(Metadata.FN_FRAGMENT, fragment);
         meta.put(Metadata.FN_PREFIX, prefix);
         meta.put(Metadata.FN_RAW_SUBJ, rawSubj);
+        meta.put(Metadata.FN_IMAP_ENVELOPE, imapEnvelope);
+        meta.put(Metadata.FN_IMAP_BODYSTRUCTURE, imapBodyStructure);
 
         if (calItemInfos != null) {
             MetadataList mdList = new MetadataList();
@@ -19,13 +19,20 @@ package com.zimbra.cs.mailbox;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+import com.googlecode.concurrentlinkedhashmap.EvictionListener;
+import com.googlecode.concurrentlinkedhashmap.Weigher;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -46,21 +53,44 @@ public class MessageCache {
 
     private static final Log sLog = LogFactory.getLog(MessageCache.class);
 
+    /** A cached message.  Expansion and the S/MIME state are guarded by the node's own monitor, so threads working
+     *  on different messages never contend. */
     private static final class CacheNode {
         CacheNode()  { }
-        MimeMessage message;
+        volatile MimeMessage message;
         MimeMessage expanded;
         Map<Integer, String> smimeAccessInfo = new HashMap<Integer, String>();
-        long size = 0;
+        /** Bytes of message data held in memory; messages streamed from disk don't count.  The cache weighs the
+         *  node by this value when it is inserted, so after changing it the node has to be re-put. */
+        volatile long size = 0;
     }
 
-    /** Cache mapping message digest to the corresponding message structure. */
-    private static Map<String, CacheNode> sCache = new LinkedHashMap<String, CacheNode>(150, (float) 0.75, true);
-    /** Maximum number of items in {@link #sCache}. */
-    private static int sMaxCacheSize;
-    /** Number of bytes of message data stored in the cache.  This value includes only
-     * messages that are read into memory, not streamed from disk. */
-    private volatile static long sDataSize = 0;
+    /** Cache mapping message digest to the corresponding message structure, in LRU order.  Entries are weighed by
+     *  the bytes of message data they hold in memory, and the capacity is the maximum number of such bytes; the
+     *  maximum number of messages is enforced separately in {@link #cacheItem}. */
+    private static final ConcurrentLinkedHashMap<String, CacheNode> sCache =
+        new ConcurrentLinkedHashMap.Builder<String, CacheNode>()
+            .maximumWeightedCapacity(LC.zimbra_message_cache_max_data_kb.longValue() * 1024)
+            .weigher(new Weigher<CacheNode>() {
+                @Override
+                public int weightOf(CacheNode node) {
+                    return (int) Math.min(Math.max(node.size, 1), Integer.MAX_VALUE);
+                }
+            })
+            .listener(new EvictionListener<String, CacheNode>() {
+                @Override
+                public void onEviction(String digest, CacheNode node) {
+                    sLog.debug("Pruning digest %s from the cache.", digest);
+                    ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EVICTIONS.increment();
+                }
+            }).build();
+
+    /** Maximum number of messages in the cache. */
+    private static volatile int sMaxMessages;
+
+    /** Messages currently being loaded, keyed by digest, so that only one thread parses a given blob. */
+    private static final ConcurrentMap<String, FutureTask<CacheNode>> sLoading =
+        new ConcurrentHashMap<String, FutureTask<CacheNode>>();
 
     static {
         try {
@@ -71,25 +101,25 @@ public class MessageCache {
     }
 
     public static void loadSettings() throws ServiceException {
-        sMaxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
-        ZimbraLog.cache.info("setting message cache size to " + sMaxCacheSize);
+        int maxCacheSize = Provisioning.getInstance().getLocalServer().getMessageCacheSize();
+        ZimbraLog.cache.info("setting message cache size to " + maxCacheSize);
+        sMaxMessages = Math.max(maxCacheSize, 0);
+        trim();
     }
 
     /** Returns the number of messages in the cache. */
     public static int getSize() {
-        synchronized (sCache) {
-            return sCache.size();
-        }
+        return sCache.size();
     }
 
     public static boolean contains(String digest) {
-        synchronized (sCache) {
-            return sCache.containsKey(digest);
-        }
+        return digest != null && sCache.containsKey(digest);
     }
 
+    /** Returns the number of bytes of message data held in memory by the cache.  Messages streamed from disk are
+     *  counted as one byte each. */
     public static long getDataSize() {
-        return sDataSize;
+        return sCache.weightedSize();
     }
 
     /** Uncaches any data associated with the given item.  This must be done
@@ -124,12 +154,8 @@ public class MessageCache {
      *  stale data. */
     public static void purge(String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.remove(digest);
-                if (node != null) {
-                    sLog.debug("Purged digest %s from the message cache.", digest);
-                    sDataSize -= node.size;
-                }
+            if (sCache.remove(digest) != null) {
+                sLog.debug("Purged digest %s from the message cache.", digest);
             }
         }
     }
@@ -150,40 +176,16 @@ public class MessageCache {
      * @see com.zimbra.cs.mime.UUEncodeConverter */
     static MimeMessage getMimeMessage(MailItem item, boolean expand) throws ServiceException {
         String digest = item.getDigest();
-        CacheNode cnode = null;
-        boolean cacheHit = true;
-        boolean newNode = false;
-        InputStream in = null;
         int mboxId = item.getMailboxId();
         boolean isEncrypted = false;
 
-        synchronized (sCache) {
-            cnode = sCache.get(digest);
-            if (cnode == null) {
-                newNode = true;
-                cnode = new CacheNode();
-            }
+        CacheNode cnode = digest == null ? null : sCache.get(digest);
+        boolean cacheHit = cnode != null && cnode.message != null;
+        if (!cacheHit) {
+            cnode = loadNode(item, digest);
         }
 
-        try {
-            if (cnode.message == null) {
-                sLog.debug("Loading MimeMessage for item %d.", item.getId());
-                cacheHit = false;
-                try {
-                    in = fetchFromStore(item);
-                    cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
-                    if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
-                        cnode.size = item.getSize();
-                        // Not the best place to increment the data size, but cacheItem()
-                        // won't get called if we're expanding a message for an existing
-                        // node.
-                        sDataSize += cnode.size;
-                    }
-                } finally {
-                    ByteUtil.closeStream(in);
-                }
-            }
-
+        synchronized (cnode) {
             if (expand) {
                 sLog.debug("Expanding MimeMessage for item %d.", item.getId());
                 try {
@@ -218,33 +220,90 @@ public class MessageCache {
                 }
             }
 
-            if (newNode) {
-                cacheItem(digest, cnode);
+            if (cacheHit) {
+                sLog.debug("Cache hit for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
+                ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(100);
+            } else {
+                sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
+                ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
+            }
+
+            if (expand) {
+                if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
+                    || cnode.smimeAccessInfo.get(mboxId) != null)) {
+                    return cnode.message;
+                }
+                return cnode.expanded;
+            } else {
+                return cnode.message;
             }
-        } catch (IOException e) {
-            throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), e);
-        } catch (MessagingException e) {
-            throw ServiceException.FAILURE("MessagingException while creating MimeMessage for item " + item.getId(), e);
-        } finally {
-            ByteUtil.closeStream(in);
         }
+    }
 
-        if (cacheHit) {
-            sLog.debug("Cache hit for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
-            ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(100);
-        } else {
-            sLog.debug("Cache miss for item %d: digest=%s, expand=%b.", item.getId(), item.getDigest(), expand);
-            ZimbraPerf.COUNTER_MBOX_MSG_CACHE.increment(0);
+    /**
+     * Parses the item's message and caches it.  If another thread is already parsing the same blob, waits for its
+     * result instead of parsing it again.
+     */
+    private static CacheNode loadNode(final MailItem item, final String digest) throws ServiceException {
+        FutureTask<CacheNode> task = new FutureTask<CacheNode>(new Callable<CacheNode>() {
+            @Override
+            public CacheNode call() throws IOException, MessagingException, ServiceException {
+                sLog.debug("Loading MimeMessage for item %d.", item.getId());
+                CacheNode cnode = new CacheNode();
+                InputStream in = null;
+                try {
+                    in = fetchFromStore(item);
+                    cnode.message = new Mime.FixedMimeMessage(JMSession.getSession(), in);
+                    if (item.getSize() < MESSAGE_CACHE_DISK_STREAMING_THRESHOLD) {
+                        cnode.size = item.getSize();
+                    }
+                } finally {
+                    ByteUtil.closeStream(in);
+                }
+                if (digest != null) {
+                    cacheItem(digest, cnode);
+                }
+                return cnode;
+            }
+        });
+
+        if (digest != null) {
+            FutureTask<CacheNode> existing = sLoading.putIfAbsent(digest, task);
+            if (existing != null) {
+                sLog.debug("Waiting for concurrent load of digest %s for item %d.", digest, item.getId());
+                return getLoaded(existing, item);
+            }
         }
+        try {
+            task.run();
+        } finally {
+            if (digest != null) {
+                sLoading.remove(digest, task);
+            }
+        }
+        return getLoaded(task, item);
+    }
 
-        if (expand) {
-            if (isEncrypted && (!cnode.smimeAccessInfo.containsKey(mboxId)
-                || cnode.smimeAccessInfo.get(mboxId) != null)) {
-                return cnode.message;
+    private static CacheNode getLoaded(FutureTask<CacheNode> task, MailItem item) throws ServiceException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw ServiceException.INTERRUPTED("while loading content for item " + item.getId());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) {
+                throw (ServiceException) cause;
+            } else if (cause instanceof IOException) {
+                throw ServiceException.FAILURE("IOException while retrieving content for item " + item.getId(), cause);
+            } else if (cause instanceof MessagingException) {
+                throw ServiceException.FAILURE("MessagingException while creating MimeMessage for item " + item.getId(), cause);
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
-            return cnode.expanded;
-        } else {
-            return cnode.message;
+            throw ServiceException.FAILURE("error while retrieving content for item " + item.getId(), cause);
         }
     }
 
@@ -285,9 +344,13 @@ public class MessageCache {
             decodedMimeMessage != null ? decodedMimeMessage : mimeToExpand);
         expander.expand();
         cnode.expanded = expander.getExpanded();
-        if (cnode.expanded != cnode.message) {
-            sDataSize += cnode.size;
+        if (cnode.expanded != cnode.message && cnode.size > 0) {
             cnode.size *= 2;
+            // re-weigh the node, but only if it is still the cached one; a purged or evicted node stays out
+            String digest = item.getDigest();
+            if (digest != null) {
+                sCache.replace(digest, cnode, cnode);
+            }
         }
     }
 
@@ -362,30 +425,33 @@ public class MessageCache {
 
     private static void cacheItem(String digest, CacheNode cnode) {
         sLog.debug("Caching MimeMessage for digest %s.", digest);
-        synchronized (sCache) {
-            sCache.put(digest, cnode);
-            // Cache data size was incremented in getMimeMessage().
-
-            // trim the cache if needed
-            if (sCache.size() > sMaxCacheSize) {
-                Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-                while (sCache.size() > sMaxCacheSize && it.hasNext()) {
-                    Map.Entry<String, CacheNode> entry = it.next();
-                    sLog.debug("Pruning digest %s from the cache.", entry.getKey());
-                    it.remove();
-                    sDataSize -= entry.getValue().size;
+        sCache.put(digest, cnode);
+        trim();
+    }
+
+    /** The byte limit is enforced by the map itself; trims the coldest messages while there are too many. */
+    private static void trim() {
+        while (sCache.size() > sMaxMessages) {
+            int excess = sCache.size() - sMaxMessages;
+            boolean removed = false;
+            for (String coldest : sCache.ascendingKeySetWithLimit(excess)) {
+                if (sCache.remove(coldest) != null) {
+                    sLog.debug("Pruning digest %s from the cache.", coldest);
+                    ZimbraPerf.COUNTER_MBOX_MSG_CACHE_EVICTIONS.increment();
+                    removed = true;
                 }
             }
+            if (!removed) {
+                break;
+            }
         }
     }
 
     public static void removeDecryptedMessages(int mboxId) {
         sLog.debug("Start removing decrypted messages for mboxId=%d", mboxId);
-        synchronized (sCache) {
-            Iterator<Map.Entry<String, CacheNode>> it = sCache.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, CacheNode> entry = it.next();
-                CacheNode cacheNode = entry.getValue();
+        for (Map.Entry<String, CacheNode> entry : sCache.entrySet()) {
+            CacheNode cacheNode = entry.getValue();
+            synchronized (cacheNode) {
                 try {
                     if (Mime.isEncrypted(cacheNode.message.getContentType())
                         && cacheNode.smimeAccessInfo.containsKey(mboxId)) {
@@ -402,9 +468,9 @@ public class MessageCache {
 
     public static String getDecryptionError(int id, String digest) {
         if (digest != null) {
-            synchronized (sCache) {
-                CacheNode node = sCache.get(digest);
-                if (node != null) {
+            CacheNode node = sCache.getQuietly(digest);
+            if (node != null) {
+                synchronized (node) {
                     return node.smimeAccessInfo.get(id);
                 }
             }
@@ -18,14 +18,17 @@
 package com.zimbra.cs.mailbox;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
 import org.apache.commons.codec.Charsets;
 
 import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.util.BEncoding;
@@ -76,6 +79,8 @@ public final class Metadata {
     public static final String FN_DELETED_UNREAD   = "i4du";
     public static final String FN_RECENT           = "i4l";
     public static final String FN_RECENT_CUTOFF    = "i4r";
+    public static final String FN_IMAP_ENVELOPE    = "i4env";
+    public static final String FN_IMAP_BODYSTRUCTURE = "i4bs";
     public static final String FN_REMOTE_ID        = "id";
     public static final String FN_IDENTITY_ID      = "idnt";
     public static final String FN_INV              = "inv";
@@ -125,7 +130,10 @@ public final class Metadata {
 
     private final Integer associatedItemId;
 
-    Map<Object, Object> map;
+    private Map<Object, Object> map;
+
+    /** top-level values of {@link IndexedMetadata} not decoded into {@link #map} yet, if any */
+    private IndexedMetadata lazy;
 
     public Metadata() {
         associatedItemId = null;
@@ -147,6 +155,21 @@ public final class Metadata {
             map = new HashMap<Object, Object>();
             return;
         }
+        if (IndexedMetadata.isEncoded(encoded)) {
+            map = new HashMap<Object, Object>();
+            try {
+                lazy = new IndexedMetadata(encoded);
+            } catch (MailServiceException e) {
+                // Bug 87718: the same fix-up as for the legacy encoding below
+                try {
+                    lazy = new IndexedMetadata(new String(encoded.getBytes(Charsets.ISO_8859_1), Charsets.UTF_8));
+                } catch (MailServiceException e1) {
+                    throw e;
+                }
+            }
+            lazy.remove(FN_MD_VERSION);
+            return;
+        }
         try {
             try {
                 map = (Map) BEncoding.decode(encoded);
@@ -183,28 +206,66 @@ public final class Metadata {
         }
     }
 
+    /**
+     * Decodes the values still held by {@link #lazy}.
+     */
+    Map<Object, Object> map() {
+        if (lazy != null) {
+            lazy.drainTo(map);
+            lazy = null;
+        }
+        return map;
+    }
+
+    private Object value(String key) {
+        Object value = map.get(key);
+        if (value == null && lazy != null) {
+            value = lazy.take(key);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return value;
+    }
+
     public boolean containsKey(String key) {
-        return map.containsKey(key);
+        return map.containsKey(key) || (lazy != null && lazy.contains(key));
     }
 
     public int size() {
-        return map.size();
+        return map().size();
     }
 
     public boolean isEmpty() {
-        return map.isEmpty();
+        return map.isEmpty() && (lazy == null || lazy.isEmpty());
+    }
+
+    /**
+     * Returns the top-level keys, without decoding the values.
+     */
+    public Set<String> keySet() {
+        Set<String> result = new HashSet<String>();
+        for (Object key : map.keySet()) {
+            if (key != null) {
+                result.add(key.toString());
+            }
+        }
+        if (lazy != null) {
+            lazy.addKeys(result);
+        }
+        return result;
     }
 
     public Metadata copy(Metadata source) {
         if (source != null) {
-            map.putAll(source.map);
+            map().putAll(source.map());
         }
         return this;
     }
 
     public Map<String, ?> asMap()  {
         Map<String, Object> result = new HashMap<String, Object>();
-        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        for (Map.Entry<Object, Object> entry : map().entrySet()) {
             Object key = entry.getKey();
             Object value = entry.getValue();
             if (key == null || value == null) {
@@ -222,6 +283,9 @@ public final class Metadata {
 
     public Metadata remove(String key) {
         map.remove(key);
+        if (lazy != null) {
+            lazy.remove(key);
+        }
         return this;
     }
 
@@ -255,7 +319,7 @@ public final class Metadata {
 
     public Metadata put(String key, Metadata value) {
         if (key != null && value != null) {
-            map.put(key, value.map);
+            map.put(key, value.map());
         }
         return this;
     }
@@ -284,7 +348,7 @@ public final class Metadata {
     }
 
     public String get(String key, String defaultValue) {
-        Object value = map.get(key);
+        Object value = value(key);
         return value == null ? defaultValue : value.toString();
     }
 
@@ -318,7 +382,7 @@ public final class Metadata {
     }
 
     public MetadataList getList(String key, boolean nullOK) throws ServiceException {
-        Object value = map.get(key);
+        Object value = value(key);
         if (nullOK && value == null) {
             return null;
         }
@@ -335,7 +399,7 @@ public final class Metadata {
     }
 
     public Metadata getMap(String key, boolean nullable) throws ServiceException {
-        Object value = map.get(key);
+        Object value = value(key);
         if (nullable && value == null) {
             return null;
         }
@@ -347,17 +411,42 @@ public final class Metadata {
         throw ServiceException.INVALID_REQUEST("invalid/missing value for attribute: " + key, null);
     }
 
+    /**
+     * Returns metadata encoded by {@link #toString} in the storage encoding of {@link IndexedMetadata}, whose values
+     * are only decoded when they're read.  Metadata that's already in that encoding, or that isn't the encoding of a
+     * map, is returned as it is.
+     */
+    public static String toIndexed(String encoded) {
+        if (encoded == null || IndexedMetadata.isEncoded(encoded)) {
+            return encoded;
+        }
+        String indexed = IndexedMetadata.transcode(encoded);
+        return indexed != null ? indexed : encoded;
+    }
+
+    /**
+     * Returns the encoding stored in the metadata column of the item tables: the indexed encoding of
+     * {@link #toIndexed} if {@link LC#zimbra_mailbox_indexed_metadata} is set, else the same as {@link #toString}.
+     * The indexed encoding is written directly, not transcoded.
+     */
+    public String toStoredString() {
+        if (LC.zimbra_mailbox_indexed_metadata.booleanValue()) {
+            return IndexedMetadata.encode(map());
+        }
+        return toString();
+    }
+
     @Override
     public String toString() {
         put(FN_MD_VERSION, LEGACY_METADATA_VERSION);
-        String result = BEncoding.encode(map);
+        String result = BEncoding.encode(map());
         map.remove(FN_MD_VERSION);
         return result;
     }
 
     public String prettyPrint() {
         StringBuilder sb = new StringBuilder(2048);
-        prettyEncode(sb, map, 0);
+        prettyEncode(sb, map(), 0);
         sb.setLength(sb.length() - 1);  // Remove the last newline.
         return sb.toString();
     }
@@ -0,0 +1,280 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.session.PendingModifications;
+import com.zimbra.cs.session.Session;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Delivers the committed changes of a {@link Mailbox} to its listening {@link Session}s and, in always-on mode, to
+ * the other servers with sessions on the mailbox, off the committing thread.
+ * <p>
+ * Changes are queued in commit order while the mailbox write lock is held, and delivered on a server-wide pool of
+ * {@link LC#zimbra_mailbox_notify_threads} threads, by at most one thread per mailbox at a time, so every session
+ * sees them in changeId order.  The session that made a change is the exception: it is brought up to date on the
+ * committing thread, as callers such as IMAP STORE read back their own session's state right after the write.
+ * <p>
+ * Once a mailbox has more than {@link LC#zimbra_mailbox_notify_max_queued} changes queued, writers wait for the
+ * backlog to drain after releasing the mailbox lock.  With no notify threads, changes are delivered on the committing
+ * thread as before.
+ */
+public final class NotificationDispatcher {
+    private static final int MAX_QUEUED = LC.zimbra_mailbox_notify_max_queued.intValue();
+    // changes delivered by a pool thread before it yields to other mailboxes
+    private static final int BATCHES_PER_RUN = 16;
+
+    private static final ThreadPoolExecutor EXECUTOR;
+    static {
+        int threads = LC.zimbra_mailbox_notify_threads.intValue();
+        if (threads > 0) {
+            EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("MailboxNotify-%d").setDaemon(true).build());
+            EXECUTOR.allowCoreThreadTimeOut(true);
+        } else {
+            EXECUTOR = null;
+        }
+    }
+
+    private static final AtomicInteger QUEUED = new AtomicInteger();
+    // the dispatcher whose changes the current thread is delivering
+    private static final ThreadLocal<NotificationDispatcher> DELIVERING = new ThreadLocal<NotificationDispatcher>();
+
+    private final Mailbox mbox;
+    private final ArrayDeque<Batch> batches = new ArrayDeque<Batch>(); // guarded by this
+    private Session delivering; // guarded by this; the session a pool thread is notifying
+    private boolean scheduled; // guarded by this
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * The changes of one transaction, and who has yet to be notified of them.
+     */
+    private static final class Batch {
+        final PendingModifications mods;
+        final int changeId;
+        final Session source;
+        final ArrayDeque<Session> sessions;
+        boolean remote;
+        final long start = ZimbraPerf.STOPWATCH_MBOX_NTFN.start();
+
+        Batch(PendingModifications mods, int changeId, Session source, Collection<Session> sessions, boolean remote) {
+            this.mods = mods;
+            this.changeId = changeId;
+            this.source = source;
+            this.sessions = new ArrayDeque<Session>(sessions);
+            this.remote = remote;
+        }
+    }
+
+    NotificationDispatcher(Mailbox mbox) {
+        this.mbox = mbox;
+    }
+
+    /**
+     * Queues the changes of a transaction.  Must be called with the mailbox write lock held, so that the changes are
+     * queued in changeId order.
+     *
+     * @param sessions the sessions listening on the mailbox at commit time
+     * @param remote whether to notify the other servers with sessions on the mailbox
+     */
+    void dispatch(PendingModifications mods, int changeId, Session source, Collection<Session> sessions,
+            boolean remote) {
+        if (sessions.isEmpty() && !remote) {
+            return;
+        }
+        Batch batch = new Batch(mods, changeId, source, sessions, remote);
+        List<Batch> catchUp = Collections.emptyList();
+        boolean run = false;
+        synchronized (this) {
+            batches.add(batch);
+            QUEUED.incrementAndGet();
+            if (source != null && source != delivering && batch.sessions.contains(source)) {
+                catchUp = new ArrayList<Batch>();
+                for (Batch b : batches) {
+                    if (b.sessions.remove(source)) {
+                        catchUp.add(b);
+                    }
+                }
+            }
+            if (!scheduled) {
+                scheduled = true;
+                run = true;
+            }
+        }
+        for (Batch b : catchUp) {
+            notify(source, b);
+        }
+        if (run) {
+            if (EXECUTOR == null) {
+                drain();
+            } else {
+                try {
+                    EXECUTOR.execute(drain);
+                } catch (RejectedExecutionException e) {
+                    drain();
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        NotificationDispatcher outer = DELIVERING.get();
+        DELIVERING.set(this);
+        boolean done = false;
+        try {
+            for (int budget = BATCHES_PER_RUN; ; ) {
+                Batch batch;
+                Session session = null;
+                synchronized (this) {
+                    batch = batches.peek();
+                    if (batch == null) {
+                        scheduled = false;
+                        done = true;
+                        return;
+                    }
+                    if (batch.remote) {
+                        batch.remote = false;
+                    } else if ((session = batch.sessions.poll()) == null) {
+                        batches.poll();
+                        QUEUED.decrementAndGet();
+                        ZimbraPerf.STOPWATCH_MBOX_NTFN.stop(batch.start);
+                        notifyAll();
+                        if (--budget == 0 && EXECUTOR != null && !batches.isEmpty()) {
+                            // let the other mailboxes' changes through, then carry on
+                            done = true;
+                            resubmit();
+                            return;
+                        }
+                        continue;
+                    }
+                    delivering = session;
+                }
+                try {
+                    if (session != null) {
+                        notify(session, batch);
+                    } else {
+                        mbox.notifyRemoteServers(batch.mods, batch.changeId);
+                    }
+                } finally {
+                    synchronized (this) {
+                        delivering = null;
+                    }
+                }
+            }
+        } finally {
+            DELIVERING.set(outer);
+            if (!done) { // an Error escaped; don't leave the queue stranded
+                synchronized (this) {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+
+    private void resubmit() {
+        try {
+            EXECUTOR.execute(drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                scheduled = false;
+            }
+        }
+    }
+
+    private static void notify(Session session, Batch batch) {
+        try {
+            session.notifyPendingChanges(batch.mods, batch.changeId, batch.source);
+        } catch (RuntimeException e) {
+            ZimbraLog.mailbox.error("ignoring error during notification", e);
+        }
+    }
+
+    /**
+     * Drops a session that stopped listening from the changes it has yet to be notified of.
+     */
+    synchronized void remove(Session session) {
+        for (Batch batch : batches) {
+            batch.sessions.remove(session);
+        }
+    }
+
+    /**
+     * Returns true if every queued change has been delivered.
+     */
+    synchronized boolean isIdle() {
+        return batches.isEmpty();
+    }
+
+    /**
+     * Waits for the mailbox's queued changes to drop to {@link LC#zimbra_mailbox_notify_max_queued}.  Must not be
+     * called with the mailbox lock held, as notifying a session may need the lock.  Gives up after
+     * {@link LC#zimbra_mailbox_lock_timeout}.
+     */
+    void throttle() {
+        if (EXECUTOR == null || DELIVERING.get() != null) {
+            return;
+        }
+        synchronized (this) {
+            if (batches.size() <= MAX_QUEUED) {
+                return;
+            }
+            ZimbraPerf.COUNTER_MBOX_NTFN_THROTTLED.increment();
+            long deadline = System.currentTimeMillis() + LC.zimbra_mailbox_lock_timeout.intValue() * 1000L;
+            try {
+                while (batches.size() > MAX_QUEUED) {
+                    long timeout = deadline - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        ZimbraLog.mailbox.warn("%d change notifications still queued for mailbox %d",
+                                batches.size(), mbox.getId());
+                        return;
+                    }
+                    wait(timeout);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of changes waiting to be delivered, across all mailboxes.
+     */
+    public static int getQueuedCount() {
+        return QUEUED.get();
+    }
+}
@@ -18,23 +18,49 @@ package com.zimbra.cs.mailbox;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
-import com.zimbra.cs.util.Config;
+import com.zimbra.cs.db.DbMailbox;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.Zimbra;
 
 /**
- * Iterates all the mailboxes in the system, purges them one at a time
- * and sleeps between purges for a time interval specified by
+ * Iterates all the mailboxes in the system and purges them on
+ * {@link LC#purge_threads} worker threads, each of which sleeps between
+ * purges for a time interval specified by
  * {@link Provisioning#A_zimbraMailPurgeSleepInterval}.
+ * <p>
+ * Each cycle purges the largest mailboxes first, as estimated by their
+ * size checkpoint, since they have the most to purge.  Mailboxes that have
+ * not been purged since the previous cycle started go before all others,
+ * so that those a cycle didn't get to are not passed over again by larger
+ * ones.  The purge times are kept in the database, so this carries over
+ * restarts.  While SOAP requests
+ * take longer than {@link LC#purge_max_soap_latency_ms} on average, the
+ * workers back off, up to {@link LC#purge_max_backoff_ms} between purges.
  *
  * @author bburtin
  */
@@ -43,9 +69,13 @@ extends Thread {
 
     private static volatile PurgeThread sPurgeThread = null;
     private static Object THREAD_CONTROL_LOCK = new Object();
-    private boolean mShutdownRequested = false;
+    private volatile boolean mShutdownRequested = false;
+    private final SoapLatencyThrottle mThrottle = new SoapLatencyThrottle();
+    /** id of the last item whose metadata was converted, per mailbox, or -1 once they all are */
+    private final Map<Integer, Integer> mMetadataConverted = new ConcurrentHashMap<Integer, Integer>();
 
-    private PurgeThread() {
+    @VisibleForTesting
+    PurgeThread() {
         setName("MailboxPurge");
     }
 
@@ -111,12 +141,10 @@ extends Thread {
     }
 
     /**
-     * Iterates all mailboxes, purging one at a time and sleeping
-     * between purges.
+     * Runs purge cycles over all mailboxes until shut down.
      */
     @Override public void run() {
-        // Sleep before doing work, to give the server time to warm up.  Also limits the amount
-        // of random effect when determining the next mailbox id.
+        // Sleep before doing work, to give the server time to warm up.
         long sleepTime = LC.purge_initial_sleep_ms.longValue();
         ZimbraLog.purge.info("Purge thread sleeping for %dms before doing work.", sleepTime);
 
@@ -128,78 +156,245 @@ extends Thread {
             return;
         }
 
+        int threads = Math.max(1, LC.purge_threads.intValue());
+        ExecutorService workers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("MailboxPurge-%d").setDaemon(true).build());
         Set<Integer> purgePendingMailboxes = new HashSet<Integer>();
-        while (true) {
-            List<Integer> mailboxIds = getMailboxIds();
-            boolean slept = false;
-
-            for (int i = 0; i < mailboxIds.size(); i++) {
-                int mailboxId = mailboxIds.get(i);
+        // Before the first cycle, there is no previous one; start with the mailboxes whose purge is overdue.
+        long staleBefore = 0;
+        try {
+            staleBefore = System.currentTimeMillis() - Provisioning.getInstance().getLocalServer().getLastPurgeMaxDuration();
+        } catch (ServiceException e) {
+            ZimbraLog.purge.warn("Unable to get %s", Provisioning.A_zimbraLastPurgeMaxDuration, e);
+        }
+        try {
+            while (!mShutdownRequested) {
+                Cycle cycle = new Cycle(getMailboxIds(purgePendingMailboxes, staleBefore), purgePendingMailboxes);
+                runCycle(cycle, workers, threads);
                 if (mShutdownRequested) {
-                    ZimbraLog.purge.info("Shutting down purge thread.");
-                    sPurgeThread = null;
-                    return;
+                    break;
+                }
+                // last_purge_at is stored in seconds
+                staleBefore = cycle.start / 1000 * 1000;
+
+                // If nothing's getting purged, sleep to avoid a tight loop
+                if (cycle.attempted.get() == 0) {
+                    sleep();
                 }
-                ZimbraLog.addMboxToContext(mailboxId);
 
-                // Purge the next mailbox
-                boolean attemptedPurge = false;
                 try {
-                    MailboxManager mm = MailboxManager.getInstance();
-                    if (mm.isMailboxLoadedAndAvailable(mailboxId) || purgePendingMailboxes.contains(mailboxId)) {
-                        attemptedPurge = true;
-                        Mailbox mbox = mm.getMailboxById(mailboxId);
-                        Account account = mbox.getAccount();
-                        Provisioning prov = Provisioning.getInstance();
-                        if (!Provisioning.ACCOUNT_STATUS_MAINTENANCE.equals(account.getAccountStatus(prov)) &&
-                                !account.isIsExternalVirtualAccount()) {
-                            ZimbraLog.addAccountNameToContext(account.getName());
-                            boolean purgedAll = mbox.purgeMessages(null);
-                            if (!purgedAll) {
-                                ZimbraLog.purge.info("Not all messages were purged.  Scheduling mailbox to be purged again.");
-                                mailboxIds.add(mailboxId);
+                    long lastPurgeMaxDuration = Provisioning.getInstance().getLocalServer().getLastPurgeMaxDuration();
+                    purgePendingMailboxes = MailboxManager.getInstance().getPurgePendingMailboxes(System.currentTimeMillis() - lastPurgeMaxDuration);
+                } catch (ServiceException e) {
+                    ZimbraLog.purge.warn("Unable to get purge pending mailboxes ", e);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        ZimbraLog.purge.info("Shutting down purge thread.");
+        sPurgeThread = null;
+    }
+
+    /**
+     * The mailboxes left to purge in a cycle, and how the purges went.
+     */
+    static final class Cycle {
+        final Queue<Integer> mailboxIds;
+        final Set<Integer> purgePending;
+        final int scheduled;
+        final long start = System.currentTimeMillis();
+        final AtomicInteger attempted = new AtomicInteger();
+        final AtomicInteger purged = new AtomicInteger();
+        final AtomicInteger rescheduled = new AtomicInteger();
+        final AtomicInteger moved = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+
+        Cycle(List<Integer> mailboxIds, Set<Integer> purgePending) {
+            this.mailboxIds = new ConcurrentLinkedQueue<Integer>(mailboxIds);
+            this.purgePending = purgePending;
+            this.scheduled = mailboxIds.size();
+        }
+    }
+
+    /**
+     * Purges the mailboxes of the cycle on <tt>threads</tt> of the given
+     * workers, and waits for them to be done or for the purge thread to be
+     * shut down.
+     */
+    @VisibleForTesting
+    void runCycle(final Cycle cycle, ExecutorService workers, int threads) {
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Integer mailboxId;
+                        while (!mShutdownRequested && (mailboxId = cycle.mailboxIds.poll()) != null) {
+                            if (purge(mailboxId, cycle)) {
+                                // Sleep after every purge attempt.
+                                sleep();
                             }
-                            Config.setInt(Config.KEY_PURGE_LAST_MAILBOX_ID, mbox.getId());
-                        } else {
-                            ZimbraLog.purge.debug("Skipping mailbox %d because the account is in maintenance status or is an external virtual account.", mailboxId);
                         }
-                    } else {
-                        ZimbraLog.purge.debug("Skipping mailbox %d because it is not loaded into memory.", mailboxId);
+                    } finally {
+                        done.countDown();
                     }
-                } catch (ServiceException se) {
-                    if (ServiceException.WRONG_HOST.equals(se.getCode())) {
-                        if (ZimbraLog.purge.isDebugEnabled()) {
-                            ZimbraLog.purge.debug("not purging mailbox moved to other host ", se);
-                        } else {
-                            ZimbraLog.purge.info("not purging mailbox %d; account moved to another host", mailboxId);
-                        }
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            ZimbraLog.purge.debug("Purge thread was interrupted.");
+            mShutdownRequested = true;
+            workers.shutdownNow();
+            Uninterruptibles.awaitUninterruptibly(done);
+        }
+        ZimbraLog.purge.info("Purge cycle done in %dms: %d of %d mailboxes attempted, %d purged, %d rescheduled, %d moved, %d failed.",
+            System.currentTimeMillis() - cycle.start, cycle.attempted.get(), cycle.scheduled, cycle.purged.get(),
+            cycle.rescheduled.get(), cycle.moved.get(), cycle.failed.get());
+    }
+
+    /**
+     * Purges a mailbox if it is loaded or its purge is overdue.
+     *
+     * @return <tt>true</tt> if a purge was attempted
+     */
+    private boolean purge(int mailboxId, Cycle cycle) {
+        ZimbraLog.addMboxToContext(mailboxId);
+
+        boolean attemptedPurge = false;
+        try {
+            MailboxManager mm = MailboxManager.getInstance();
+            if (mm.isMailboxLoadedAndAvailable(mailboxId) || cycle.purgePending.contains(mailboxId)) {
+                attemptedPurge = true;
+                cycle.attempted.incrementAndGet();
+                mThrottle.backOff();
+                Mailbox mbox = mm.getMailboxById(mailboxId);
+                Account account = mbox.getAccount();
+                Provisioning prov = Provisioning.getInstance();
+                if (!Provisioning.ACCOUNT_STATUS_MAINTENANCE.equals(account.getAccountStatus(prov)) &&
+                        !account.isIsExternalVirtualAccount()) {
+                    ZimbraLog.addAccountNameToContext(account.getName());
+                    boolean purgedAll = mbox.purgeMessages(null);
+                    if (!purgedAll) {
+                        ZimbraLog.purge.info("Not all messages were purged.  Scheduling mailbox to be purged again.");
+                        cycle.mailboxIds.add(mailboxId);
+                        cycle.rescheduled.incrementAndGet();
                     } else {
-                        ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, se);
+                        cycle.purged.incrementAndGet();
                     }
-                } catch (OutOfMemoryError oome) {
-                    Zimbra.halt("Ran out of memory while purging mailboxes", oome);
-                } catch (Throwable t) {
-                    ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, t);
+                    convertMetadata(mbox);
+                } else {
+                    ZimbraLog.purge.debug("Skipping mailbox %d because the account is in maintenance status or is an external virtual account.", mailboxId);
                 }
-
-                ZimbraLog.clearContext();
-                if (attemptedPurge) {
-                    // Sleep after every purge attempt.
-                    sleep();
-                    slept = true;
+            } else {
+                ZimbraLog.purge.debug("Skipping mailbox %d because it is not loaded into memory.", mailboxId);
+            }
+        } catch (ServiceException se) {
+            if (ServiceException.WRONG_HOST.equals(se.getCode())) {
+                cycle.moved.incrementAndGet();
+                if (ZimbraLog.purge.isDebugEnabled()) {
+                    ZimbraLog.purge.debug("not purging mailbox moved to other host ", se);
+                } else {
+                    ZimbraLog.purge.info("not purging mailbox %d; account moved to another host", mailboxId);
                 }
-           }
+            } else {
+                cycle.failed.incrementAndGet();
+                ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, se);
+            }
+        } catch (InterruptedException e) {
+            ZimbraLog.purge.debug("Purge thread was interrupted.");
+            mShutdownRequested = true;
+        } catch (OutOfMemoryError oome) {
+            Zimbra.halt("Ran out of memory while purging mailboxes", oome);
+        } catch (Throwable t) {
+            cycle.failed.incrementAndGet();
+            ZimbraLog.purge.warn("Unable to purge mailbox %d", mailboxId, t);
+        } finally {
+            ZimbraLog.clearContext();
+        }
+        return attemptedPurge;
+    }
 
-            // If nothing's getting purged, sleep to avoid a tight loop
-            if (!slept) {
-                sleep();
+    /**
+     * Converts the metadata of the next batch of the mailbox's items to the indexed encoding when
+     * {@link LC#zimbra_mailbox_indexed_metadata} is set, picking up after the items converted in earlier cycles.
+     * The position is kept in memory only; after a restart the items already converted are just read again.
+     */
+    private void convertMetadata(Mailbox mbox) {
+        int batchSize = LC.zimbra_mailbox_indexed_metadata_batch_size.intValue();
+        if (!LC.zimbra_mailbox_indexed_metadata.booleanValue() || batchSize <= 0) {
+            return;
+        }
+        Integer lastId = mMetadataConverted.get(mbox.getId());
+        if (lastId != null && lastId < 0) {
+            return; // all converted, and new metadata is written indexed
+        }
+        try {
+            mMetadataConverted.put(mbox.getId(),
+                    mbox.convertMetadata(lastId == null ? 0 : lastId, batchSize));
+        } catch (ServiceException e) {
+            ZimbraLog.purge.warn("Unable to convert metadata of mailbox %d", mbox.getId(), e);
+        }
+    }
+
+    /**
+     * Keeps purges from competing with users while the server is busy.  Tracks the
+     * average time of the SOAP requests completed since it last looked, and makes
+     * the workers wait before each purge while it is above
+     * {@link LC#purge_max_soap_latency_ms}, twice as long each time up to
+     * {@link LC#purge_max_backoff_ms}.
+     */
+    static final class SoapLatencyThrottle {
+        static final long SAMPLE_INTERVAL = 1000;
+
+        private long mLastSample;
+        private long mLastCount;
+        private long mLastTotal;
+        private long mBackOff = 0;
+
+        SoapLatencyThrottle() {
+            this(System.currentTimeMillis(), ZimbraPerf.STOPWATCH_SOAP.getCount(), ZimbraPerf.STOPWATCH_SOAP.getTotal());
+        }
+
+        @VisibleForTesting
+        SoapLatencyThrottle(long now, long count, long total) {
+            mLastSample = now;
+            mLastCount = count;
+            mLastTotal = total;
+        }
+
+        /**
+         * Returns how long to wait before the next purge, given the current
+         * time and the count and total time of the SOAP requests so far.
+         */
+        @VisibleForTesting
+        synchronized long getBackOff(long now, long count, long total) {
+            long maxLatency = LC.purge_max_soap_latency_ms.longValue();
+            if (maxLatency <= 0) {
+                return 0;
             }
+            if (now - mLastSample >= SAMPLE_INTERVAL) {
+                if (count > mLastCount && (total - mLastTotal) / (count - mLastCount) > maxLatency) {
+                    mBackOff = Math.min(Math.max(mBackOff * 2, SAMPLE_INTERVAL), LC.purge_max_backoff_ms.longValue());
+                } else {
+                    mBackOff /= 2;
+                }
+                mLastSample = now;
+                mLastCount = count;
+                mLastTotal = total;
+            }
+            return mBackOff;
+        }
 
-            try {
-                long lastPurgeMaxDuration = Provisioning.getInstance().getLocalServer().getLastPurgeMaxDuration();
-                purgePendingMailboxes = MailboxManager.getInstance().getPurgePendingMailboxes(System.currentTimeMillis() - lastPurgeMaxDuration);
-            } catch (ServiceException e) {
-                ZimbraLog.purge.warn("Unable to get purge pending mailboxes ", e);
+        void backOff() throws InterruptedException {
+            long backOff = getBackOff(System.currentTimeMillis(),
+                    ZimbraPerf.STOPWATCH_SOAP.getCount(), ZimbraPerf.STOPWATCH_SOAP.getTotal());
+            if (backOff > 0) {
+                ZimbraLog.purge.debug("SOAP requests are slow, backing off for %dms.", backOff);
+                Thread.sleep(backOff);
             }
         }
     }
@@ -252,10 +447,13 @@ extends Thread {
     }
 
     /**
-     * Returns all the mailbox id's in purge order, starting with the one
-     * after {@link Config#KEY_PURGE_LAST_MAILBOX_ID}.
+     * Returns the id's of the mailboxes to purge in purge order: loaded
+     * mailboxes and the ones whose purge is overdue.  The ones last purged
+     * before <tt>staleBefore</tt> come first.  Within each group, the largest
+     * come first, then they are in mailbox id order.
      */
-    private List<Integer> getMailboxIds() {
+    @VisibleForTesting
+    List<Integer> getMailboxIds(Set<Integer> purgePendingMailboxes, long staleBefore) {
         List<Integer> mailboxIds = new ArrayList<Integer>();
 
         try {
@@ -264,21 +462,76 @@ extends Thread {
                 mailboxIds.add(id);
             }
             Collections.sort(mailboxIds);
+        } catch (ServiceException e) {
+            ZimbraLog.purge.warn("Unable to get mailbox id's", e);
+            return Collections.emptyList();
+        }
 
-            // Reorder id's so that we start with the one after the last purged
-            int lastId = Config.getInt(Config.KEY_PURGE_LAST_MAILBOX_ID, 0);
-            for (int i = 0; i < mailboxIds.size(); i++) {
-                if (mailboxIds.get(i) > lastId) {
-                    Collections.rotate(mailboxIds, -i);
-                    break;
+        MailboxManager mm = MailboxManager.getInstance();
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (int id : mailboxIds) {
+            if (mm.isMailboxLoadedAndAvailable(id) || purgePendingMailboxes.contains(id)) {
+                candidates.add(id);
+            }
+        }
+        final Map<Integer, Long> sizes = getMailboxSizes(candidates);
+        final Set<Integer> stale = getStaleMailboxes(candidates, staleBefore);
+        Collections.sort(candidates, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer id1, Integer id2) {
+                boolean stale1 = stale.contains(id1);
+                if (stale1 != stale.contains(id2)) {
+                    return stale1 ? -1 : 1;
                 }
+                Long size1 = sizes.get(id1);
+                Long size2 = sizes.get(id2);
+                long s1 = size1 == null ? 0 : size1;
+                long s2 = size2 == null ? 0 : size2;
+                return s1 > s2 ? -1 : (s1 == s2 ? 0 : 1);
             }
+        });
+        return candidates;
+    }
 
+    /**
+     * Returns the id's of the given mailboxes that were last purged before the given time.
+     */
+    private static Set<Integer> getStaleMailboxes(List<Integer> mailboxIds, long staleBefore) {
+        if (mailboxIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        try {
+            return MailboxManager.getInstance().getPurgePendingMailboxes(staleBefore);
         } catch (ServiceException e) {
-            ZimbraLog.purge.warn("Unable to get mailbox id's", e);
-            return Collections.emptyList();
+            ZimbraLog.purge.warn("Unable to get mailbox purge times; purging largest first.", e);
+            return Collections.emptySet();
         }
+    }
 
-        return mailboxIds;
+    /**
+     * Returns the size checkpoints of the given mailboxes, by mailbox id.
+     * Mailboxes whose size is unknown are left out.
+     */
+    private static Map<Integer, Long> getMailboxSizes(List<Integer> mailboxIds) {
+        Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+        if (mailboxIds.isEmpty()) {
+            return sizes;
+        }
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection();
+            MailboxManager mm = MailboxManager.getInstance();
+            for (Map.Entry<String, Long> entry : DbMailbox.getMailboxSizes(conn, mailboxIds).entrySet()) {
+                int id = mm.lookupMailboxId(entry.getKey());
+                if (id > 0) {
+                    sizes.put(id, entry.getValue());
+                }
+            }
+        } catch (ServiceException e) {
+            ZimbraLog.purge.warn("Unable to get mailbox sizes; purging in mailbox id order.", e);
+        } finally {
+            DbPool.quietClose(conn);
+        }
+        return sizes;
     }
 }
@@ -17,12 +17,17 @@
 
 package com.zimbra.cs.pop3;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PushbackInputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.commons.codec.binary.Base64;
 
@@ -42,6 +47,7 @@ import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.security.sasl.Authenticator;
 import com.zimbra.cs.security.sasl.AuthenticatorUser;
 import com.zimbra.cs.security.sasl.PlainAuthenticator;
+import com.zimbra.cs.server.NioOutputStream;
 import com.zimbra.cs.server.ServerThrottle;
 import com.zimbra.cs.stats.ZimbraPerf;
 
@@ -420,6 +426,58 @@ abstract class Pop3Handler {
         output.flush();
     }
 
+    /**
+     * Opens the message's blob file if {@link #sendMessage} would send it unchanged, or returns <tt>null</tt>.  The
+     * file is opened before the +OK is sent, so that a message expunged meanwhile is read some other way instead of
+     * being cut short after the client was told it follows.
+     */
+    private static FileInputStream openContentFile(Message m) throws IOException, ServiceException {
+        File file = m.getContentFile();
+        if (file == null) {
+            return null;
+        }
+        FileInputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            ZimbraLog.pop.debug("blob file %s is gone; reading the content of message %d instead", file, m.getId());
+            return null;
+        }
+        boolean transparent = false;
+        try {
+            transparent = isTransparent(in.getChannel());
+        } finally {
+            if (!transparent) {
+                ByteUtil.closeStream(in);
+            }
+        }
+        return transparent ? in : null;
+    }
+
+    /**
+     * Returns true if {@link #sendMessage} would send the file unchanged: every line ends in CRLF, including the last
+     * one, and no line starts with the terminator.
+     */
+    static boolean isTransparent(FileChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        long position = 0;
+        int prev = '\n', n;
+        boolean cr = false;
+        while ((n = channel.read(buf, position)) >= 0) {
+            for (int i = 0; i < n; i++) {
+                int c = buf.get(i);
+                if (cr != (c == '\n') || (c == TERMINATOR_C && prev == '\n')) {
+                    return false;
+                }
+                cr = c == '\r';
+                prev = c;
+            }
+            position += n;
+            buf.clear();
+        }
+        return prev == '\n';
+    }
+
     private void doQUIT() throws IOException, ServiceException, Pop3CmdException {
         dropConnection = true;
         if (mailbox != null) {
@@ -681,13 +739,30 @@ abstract class Pop3Handler {
             throw new Pop3CmdException("please specify a message");
         }
         Message m = mailbox.getMessage(msg);
-        InputStream is = null;
-        try {
-            is = m.getContentStream();
-            sendOK("message follows", false);
-            sendMessage(is, Integer.MAX_VALUE);
-        } finally {
-            ByteUtil.closeStream(is);
+        FileInputStream file = output instanceof NioOutputStream ? openContentFile(m) : null;
+        if (file != null) {
+            boolean sending = false;
+            try {
+                sendOK("message follows", false);
+                sending = true;
+                ((NioOutputStream) output).write(file, 0, file.getChannel().size());
+            } finally {
+                if (!sending) {
+                    ByteUtil.closeStream(file);
+                }
+            }
+            output.write(TERMINATOR_BYTE);
+            output.write(LINE_SEPARATOR);
+            output.flush();
+        } else {
+            InputStream is = null;
+            try {
+                is = m.getContentStream();
+                sendOK("message follows", false);
+                sendMessage(is, Integer.MAX_VALUE);
+            } finally {
+                ByteUtil.closeStream(is);
+            }
         }
         mailbox.getPop3Msg(msg).setRetrieved(true);
     }
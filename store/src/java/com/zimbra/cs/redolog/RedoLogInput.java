@@ -18,9 +18,12 @@ package com.zimbra.cs.redolog;
 
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 import com.zimbra.common.util.ByteUtil;
 
@@ -46,6 +49,16 @@ public class RedoLogInput {
         mIN = raf;
     }
 
+    /**
+     * Reads from a (typically memory-mapped) buffer holding part of the redo
+     * log file at <tt>path</tt>.  Reading starts at the buffer's current
+     * position, and <tt>baseOffset</tt> is the file offset of buffer index 0.
+     */
+    public RedoLogInput(ByteBuffer buf, String path, long baseOffset) {
+        mPath = path;
+        mIN = new ByteBufferInput(buf, baseOffset);
+    }
+
     /**
      * Returns the path to the redo log file, or <tt>null</tt> if this object
      * reads from an <tt>InputStream</tt>. 
@@ -63,6 +76,8 @@ public class RedoLogInput {
         if (mIN instanceof RandomAccessFile) {
             RandomAccessFile file = (RandomAccessFile) mIN;
             return file.getFilePointer();
+        } else if (mIN instanceof ByteBufferInput) {
+            return ((ByteBufferInput) mIN).getFilePointer();
         }
         return -1;
     }
@@ -79,12 +94,33 @@ public class RedoLogInput {
     public long readLong() throws IOException { return mIN.readLong(); }
     public double readDouble() throws IOException { return mIN.readDouble(); }
 
+    /**
+     * Reads an element count or byte length.  When reading from a buffer,
+     * also makes sure the rest of the buffer is long enough to hold that many
+     * elements of at least <tt>minElementSize</tt> bytes each, so that a
+     * corrupt count fails with {@link EOFException} (just as reading the
+     * elements would) instead of first allocating a huge array.  Deserializers
+     * should use this for any value they size an allocation by.  Negative
+     * values are returned as is.
+     */
+    public int readCount(int minElementSize) throws IOException {
+        int count = readInt();
+        if (count > 0 && mIN instanceof ByteBufferInput) {
+            ((ByteBufferInput) mIN).require((long) count * minElementSize);
+        }
+        return count;
+    }
+
     public String readUTF() throws IOException {
+        if (mIN instanceof ByteBufferInput) {
+            // check the length prefix before ByteUtil allocates a buffer for it
+            ((ByteBufferInput) mIN).checkLengthPrefix();
+        }
         return ByteUtil.readUTF8(mIN);
     }
 
     public String[] readUTFArray() throws IOException {
-        int count = readInt();
+        int count = readCount(4);
         if (count < 0) {
             return null;
         }
@@ -102,4 +138,130 @@ public class RedoLogInput {
     //public String readLine() throws IOException { return mIN.readLine(); }
     //public char readChar(int v) throws IOException { return mIN.readChar(); }
     //public float readFloat() throws IOException { return mIN.readFloat(); }
+
+    /**
+     * {@link DataInput} over a {@link ByteBuffer}.  Reading past the end of
+     * the buffer throws {@link EOFException}, just like reading past the end
+     * of a file.
+     */
+    private static class ByteBufferInput implements DataInput {
+        private final ByteBuffer mBuf;
+        private final long mBaseOffset;
+
+        ByteBufferInput(ByteBuffer buf, long baseOffset) {
+            mBuf = buf;
+            mBaseOffset = baseOffset;
+        }
+
+        long getFilePointer() {
+            return mBaseOffset + mBuf.position();
+        }
+
+        void checkLengthPrefix() throws EOFException {
+            if (mBuf.remaining() >= 4) {
+                int len = mBuf.getInt(mBuf.position());
+                if (len > 0) {
+                    require(4L + len);
+                }
+            }
+        }
+
+        void require(long n) throws EOFException {
+            if (mBuf.remaining() < n) {
+                throw new EOFException("Unexpected end of data at offset " + getFilePointer());
+            }
+        }
+
+        @Override public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        @Override public void readFully(byte[] b, int off, int len) throws IOException {
+            require(len);
+            mBuf.get(b, off, len);
+        }
+
+        @Override public int skipBytes(int n) {
+            int skip = Math.max(Math.min(n, mBuf.remaining()), 0);
+            mBuf.position(mBuf.position() + skip);
+            return skip;
+        }
+
+        @Override public boolean readBoolean() throws IOException {
+            return readByte() != 0;
+        }
+
+        @Override public byte readByte() throws IOException {
+            try {
+                return mBuf.get();
+            } catch (BufferUnderflowException e) {
+                throw new EOFException("Unexpected end of data at offset " + getFilePointer());
+            }
+        }
+
+        @Override public int readUnsignedByte() throws IOException {
+            return readByte() & 0xff;
+        }
+
+        @Override public short readShort() throws IOException {
+            require(2);
+            return mBuf.getShort();
+        }
+
+        @Override public int readUnsignedShort() throws IOException {
+            return readShort() & 0xffff;
+        }
+
+        @Override public char readChar() throws IOException {
+            require(2);
+            return mBuf.getChar();
+        }
+
+        @Override public int readInt() throws IOException {
+            require(4);
+            return mBuf.getInt();
+        }
+
+        @Override public long readLong() throws IOException {
+            require(8);
+            return mBuf.getLong();
+        }
+
+        @Override public float readFloat() throws IOException {
+            require(4);
+            return mBuf.getFloat();
+        }
+
+        @Override public double readDouble() throws IOException {
+            require(8);
+            return mBuf.getDouble();
+        }
+
+        /**
+         * Reads a line of ISO-8859-1 text the way {@link DataInputStream#readLine()} does.
+         */
+        @Override public String readLine() {
+            if (!mBuf.hasRemaining()) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder();
+            while (mBuf.hasRemaining()) {
+                int c = mBuf.get() & 0xff;
+                if (c == '\n') {
+                    break;
+                } else if (c == '\r') {
+                    if (mBuf.hasRemaining() && mBuf.get(mBuf.position()) == '\n') {
+                        mBuf.get();
+                    }
+                    break;
+                }
+                line.append((char) c);
+            }
+            return line.toString();
+        }
+
+        @Override public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+    }
 }
@@ -29,11 +29,15 @@ import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.redolog.logger.FileLogReader;
+import com.zimbra.cs.redolog.logger.LogReader;
 import com.zimbra.cs.redolog.logger.LogWriter;
+import com.zimbra.cs.redolog.logger.MappedFileLogReader;
 import com.zimbra.cs.redolog.op.AbortTxn;
 import com.zimbra.cs.redolog.op.Checkpoint;
 import com.zimbra.cs.redolog.op.CommitTxn;
@@ -61,6 +65,7 @@ public class RedoPlayer {
     private boolean mSkipDeleteOps;
     protected boolean handleMailboxConflict;
     protected ConcurrentMap<Integer, Integer> mailboxConflicts = new ConcurrentHashMap<Integer, Integer>();
+    private ExecutorService mDecoders;
 
     public RedoPlayer(boolean writable) {
         this(writable, false, false, false, false);
@@ -78,6 +83,12 @@ public class RedoPlayer {
 
     public void shutdown() {
         mOpsMap.clear();
+        synchronized (this) {
+            if (mDecoders != null) {
+                mDecoders.shutdownNow();
+                mDecoders = null;
+            }
+        }
     }
 
     public void scanLog(File logfile, boolean redoCommitted, Map<Integer, Integer> mboxIDsMap,
@@ -114,7 +125,7 @@ public class RedoPlayer {
     private void scanLog(File logfile, boolean redoCommitted, Map<Integer, Integer> mboxIDsMap,
             long startTime, long endTime, long ignoreCommitsAtOrAfter)
     throws IOException, ServiceException {
-        FileLogReader logReader = new FileLogReader(logfile, mWritable);
+        LogReader logReader = newLogReader(logfile);
         logReader.open();
         long lastPosition = 0;
 
@@ -165,6 +176,19 @@ public class RedoPlayer {
         }
     }
 
+    private synchronized LogReader newLogReader(File logfile) {
+        int decodeThreads = LC.redolog_reader_decode_threads.intValue();
+        if (decodeThreads > 0) {
+            // one decoder pool for every log file in the replay
+            if (mDecoders == null && decodeThreads > 1) {
+                mDecoders = MappedFileLogReader.newDecoderPool(decodeThreads);
+            }
+            return new MappedFileLogReader(logfile, mWritable, mDecoders, decodeThreads,
+                    LC.redolog_reader_chunk_size_kb.intValue() * 1024);
+        }
+        return new FileLogReader(logfile, mWritable);
+    }
+
     // used to detect/track if a commit/abort record is played back
     // before its change record
     private boolean mHasOrphanOps = false;
@@ -38,7 +38,7 @@ import com.zimbra.cs.redolog.op.RedoableOp;
  * TODO To change the template for this generated type comment go to
  * Window - Preferences - Java - Code Generation - Code and Comments
  */
-public class FileLogReader {
+public class FileLogReader implements LogReader {
 
     private FileHeader mHeader;
     private boolean mHeaderRead;
@@ -62,6 +62,7 @@ public class FileLogReader {
         mReadOnly = !writable;
     }
 
+    @Override
     public synchronized void open() throws IOException {
         try {
             mRAF = new RandomAccessFile(mFile, mReadOnly ? "r" : "rw");
@@ -74,6 +75,7 @@ public class FileLogReader {
         }
     }
 
+    @Override
     public synchronized void close() throws IOException {
         try {
             mRAF.close();
@@ -82,6 +84,7 @@ public class FileLogReader {
         }
     }
 
+    @Override
     public synchronized FileHeader getHeader() throws IOException {
         if (mHeaderRead)
             return mHeader;
@@ -91,6 +94,7 @@ public class FileLogReader {
         return mHeader;
     }
 
+    @Override
     public synchronized RedoableOp getNextOp() throws IOException {
         long pos = mRAF.getFilePointer();
         if (pos == mFileSizeAtOpen) {
@@ -135,14 +139,17 @@ public class FileLogReader {
         }
     }
 
+    @Override
     public synchronized long getSize() throws IOException {
         return mRAF.length();
     }
 
+    @Override
     public synchronized long position() throws IOException {
         return mRAF.getFilePointer();
     }
 
+    @Override
     public synchronized long getLastOpStartOffset() throws IOException {
         return mLastOpStartOffset;
     }
@@ -153,6 +160,7 @@ public class FileLogReader {
      * @param size
      * @throws IOException
      */
+    @Override
     public synchronized void truncate(long size) throws IOException {
         if (size < mRAF.length()) {
             mRAF.setLength(size);
@@ -0,0 +1,595 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.redolog.CommitId;
+import com.zimbra.cs.redolog.RedoCommitCallback;
+import com.zimbra.cs.redolog.RedoConfig;
+import com.zimbra.cs.redolog.RedoLogManager;
+import com.zimbra.cs.redolog.RolloverManager;
+import com.zimbra.cs.redolog.op.CommitTxn;
+import com.zimbra.cs.redolog.op.RedoableOp;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * File-based {@link LogWriter} that coalesces concurrent synchronous commits
+ * into a single write and fsync.
+ * <p>
+ * Ops are appended to a preallocated direct buffer while holding the append
+ * lock only for as long as it takes to copy the bytes.  The buffer is drained
+ * to the {@link FileChannel} and forced to disk outside the append lock, so
+ * new ops keep being appended while the previous batch is on its way to disk.
+ * Synchronous callers block on a future that is completed once an fsync
+ * covering their op has finished.
+ * <p>
+ * If the fsync interval is positive, a dedicated sync thread performs the
+ * fsyncs.  It holds each batch open for up to the interval after its first
+ * synchronous caller, or until half the write buffer is filled, and also
+ * fsyncs ops logged asynchronously once per interval.  Otherwise the first
+ * synchronous caller performs the fsync on behalf of everyone who logged
+ * before it, and later callers whose ops were covered return without
+ * touching the disk.
+ * <p>
+ * The on-disk format is identical to {@link FileLogWriter}.
+ */
+public class GroupCommitLogWriter implements LogWriter {
+
+    private static String sServerId;
+    static {
+        try {
+            sServerId = Provisioning.getInstance().getLocalServer().getId();
+        } catch (ServiceException e) {
+            ZimbraLog.redolog.error("Unable to get local server ID", e);
+            sServerId = "unknown";
+        }
+    }
+
+    protected RedoLogManager mRedoLogMgr;
+
+    // Synchronizes access to mRAF, mChannel, mBuffer, mHeader, mFileSize, mLogSeq and mPendingNotifs.
+    private final Object mLock = new Object();
+
+    // Serializes fsyncs and commit callbacks.  Always acquired before mLock, never after.
+    private final Object mSyncLock = new Object();
+
+    private FileHeader mHeader;
+    private long mFirstOpTstamp;
+    private long mLastOpTstamp;
+    private long mCreateTime;
+
+    private File mFile;
+    private RandomAccessFile mRAF;
+    private FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final byte[] mCopyBuf = new byte[8192];
+    private long mFileSize;
+    private long mLastLogTime;
+
+    private final long mFsyncIntervalMS;
+    private final boolean mFsyncDisabled;
+
+    private volatile SyncThread mSyncer;
+
+    private long mLogSeq;                   // last item appended
+    private volatile long mSyncedSeq;       // last item known to be on disk
+
+    // commit callbacks waiting for the next fsync, in commit order
+    private List<Notif> mPendingNotifs = new ArrayList<Notif>();
+
+    // for gathering some stats; nonessential for functionality
+    private long mLogCount;                 // how many times log was called
+    private volatile long mFsyncCount;      // how many times fsync was called
+
+    public GroupCommitLogWriter(RedoLogManager redoLogMgr, File logfile, long fsyncIntervalMS) {
+        mRedoLogMgr = redoLogMgr;
+
+        mHeader = new FileHeader(sServerId);
+        mFile = logfile;
+        mFileSize = mFile.length();
+        mLastLogTime = mFile.lastModified();
+
+        mFsyncIntervalMS = fsyncIntervalMS;
+        mFsyncDisabled = DebugConfig.disableRedoLogFsync;
+
+        int bufSize = Math.max(LC.redolog_group_commit_buffer_size_kb.intValue(), 4) * 1024;
+        mBuffer = ByteBuffer.allocateDirect(bufSize);
+    }
+
+    @Override public long getSequence() {
+        synchronized (mLock) {
+            return mHeader.getSequence();
+        }
+    }
+
+    @Override public long getSize() {
+        synchronized (mLock) {
+            return mFileSize;
+        }
+    }
+
+    @Override public long getCreateTime() {
+        synchronized (mLock) {
+            return mCreateTime;
+        }
+    }
+
+    @Override public long getLastLogTime() {
+        synchronized (mLock) {
+            return mLastLogTime;
+        }
+    }
+
+    @Override public boolean isEmpty() throws IOException {
+        return getSize() <= FileHeader.HEADER_LEN;
+    }
+
+    @Override public boolean exists() {
+        return mFile.exists();
+    }
+
+    @Override public String getAbsolutePath() {
+        return mFile.getAbsolutePath();
+    }
+
+    @Override public boolean renameTo(File dest) {
+        return mFile.renameTo(dest);
+    }
+
+    @Override public boolean delete() {
+        return mFile.delete();
+    }
+
+    /**
+     * Returns the number of ops logged since the log was opened.
+     */
+    public long getLogCount() {
+        synchronized (mLock) {
+            return mLogCount;
+        }
+    }
+
+    /**
+     * Returns the number of fsyncs performed since the log was opened.
+     */
+    public long getFsyncCount() {
+        return mFsyncCount;
+    }
+
+    @Override public synchronized void open() throws IOException {
+        synchronized (mLock) {
+            if (mRAF != null) return;  // already open
+
+            mRAF = new RandomAccessFile(mFile, "rw");
+            mChannel = mRAF.getChannel();
+
+            if (mRAF.length() >= FileHeader.HEADER_LEN) {
+                mHeader.read(mRAF);
+                mCreateTime = mHeader.getCreateTime();
+                if (mCreateTime == 0) {
+                    mCreateTime = System.currentTimeMillis();
+                    mHeader.setCreateTime(mCreateTime);
+                }
+                mFirstOpTstamp = mHeader.getFirstOpTstamp();
+                mLastOpTstamp = mHeader.getLastOpTstamp();
+            } else {
+                mCreateTime = System.currentTimeMillis();
+                mHeader.setCreateTime(mCreateTime);
+                mHeader.setSequence(mRedoLogMgr.getCurrentLogSequence());
+            }
+            mHeader.setOpen(true);
+            mHeader.write(mRAF);
+
+            // go to the end of file, so we can append
+            long len = mRAF.length();
+            mChannel.position(len);
+            mFileSize = len;
+            mBuffer.clear();
+
+            mLogSeq = mSyncedSeq = 0;
+            mLogCount = mFsyncCount = 0;
+        }
+
+        if (mFsyncIntervalMS > 0) {
+            mSyncer = new SyncThread();
+            mSyncer.start();
+        }
+    }
+
+    @Override public synchronized void close() throws IOException {
+        if (mSyncer != null) {
+            mSyncer.stopThread();
+            mSyncer = null;
+        }
+
+        long logCount, fsyncCount;
+        synchronized (mSyncLock) {
+            sync();
+            synchronized (mLock) {
+                if (mRAF == null)
+                    return;
+                drainBuffer();
+                if (mLastOpTstamp != 0)
+                    mHeader.setLastOpTstamp(mLastOpTstamp);
+                mHeader.setOpen(false);
+                mHeader.setFileSize(mRAF.length());
+                mHeader.write(mRAF);
+
+                mChannel.force(true);
+                mRAF.close();
+                mRAF = null;
+                mChannel = null;
+                logCount = mLogCount;
+                fsyncCount = mFsyncCount;
+            }
+        }
+
+        // Write some stats, so we can see how many commits were coalesced per fsync.
+        if (logCount > 0 && ZimbraLog.redolog.isDebugEnabled())
+            ZimbraLog.redolog.debug("Logged: " + logCount + " items, " + fsyncCount + " fsyncs");
+    }
+
+    /**
+     * Appends the op to the write buffer.  If <tt>synchronous</tt> is true,
+     * waits until an fsync covering the op has completed.  The fsync is done
+     * by the sync thread if one is running, or else by the calling thread
+     * unless another thread's fsync already covered this op.
+     */
+    @Override public void log(RedoableOp op, InputStream data, boolean synchronous) throws IOException {
+        long seq;
+        boolean hasCallback = false;
+        boolean batchFull;
+
+        synchronized (mLock) {
+            if (mRAF == null)
+                throw new IOException("Redolog file closed");
+
+            // Record first transaction in header.
+            long tstamp = op.getTimestamp();
+            mLastOpTstamp = Math.max(tstamp, mLastOpTstamp);
+            if (mFirstOpTstamp == 0) {
+                mFirstOpTstamp = tstamp;
+                mHeader.setFirstOpTstamp(mFirstOpTstamp);
+                mHeader.setLastOpTstamp(mLastOpTstamp);
+                drainBuffer();
+                long pos = mChannel.position();
+                mHeader.write(mRAF);
+                mChannel.position(pos);
+            }
+
+            try {
+                append(data);
+            } finally {
+                data.close();
+            }
+            mLogSeq++;
+            mLogCount++;
+            seq = mLogSeq;
+
+            // We do this with log writer lock held, so the commits and any
+            // callbacks made on their behalf are truly in the correct order.
+            if (op instanceof CommitTxn) {
+                CommitTxn cmt = (CommitTxn) op;
+                RedoCommitCallback cb = cmt.getCallback();
+                if (cb != null) {
+                    long redoSeq = mRedoLogMgr.getRolloverManager().getCurrentSequence();
+                    CommitId cid = new CommitId(redoSeq, cmt);
+                    // Call it only after the commit record has been fsynced.
+                    mPendingNotifs.add(new Notif(cb, cid));
+                    hasCallback = true;
+                }
+            }
+
+            mLastLogTime = System.currentTimeMillis();
+            batchFull = mBuffer.position() >= mBuffer.capacity() / 2;
+        }
+
+        SyncThread syncer = mSyncer;
+        if (batchFull && syncer != null)
+            syncer.batchFull();
+        if (synchronous) {
+            awaitSync(seq);
+        } else if (hasCallback) {
+            // Nobody is waiting for this commit, but its callback still has to
+            // fire once it's on disk.
+            if (syncer == null || syncer.requestSync(seq) == null)
+                sync();
+        }
+    }
+
+    @Override public void flush() throws IOException {
+        long seq;
+        synchronized (mLock) {
+            seq = mLogSeq;
+        }
+        awaitSync(seq);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override public synchronized File rollover(LinkedHashMap /*<TxnId, RedoableOp>*/ activeOps)
+    throws IOException {
+        RolloverManager romgr = mRedoLogMgr.getRolloverManager();
+
+        long lastSeq = getSequence();
+
+        // Close current log, so it's impossible for its content to change.
+        close();
+
+        romgr.incrementSequence();
+
+        String currentPath = mFile.getAbsolutePath();
+
+        // Open a temporary logger.
+        File tempLogfile = new File(mFile.getParentFile(), romgr.getTempFilename(lastSeq + 1));
+        GroupCommitLogWriter tempLogger = new GroupCommitLogWriter(mRedoLogMgr, tempLogfile, 0);
+        tempLogger.open();
+
+        // Rewrite change entries for all active operations, maintaining
+        // their order of occurrence.  (LinkedHashMap ensures ordering.)
+        for (Map.Entry<Object, RedoableOp> entry : ((Map<Object, RedoableOp>) activeOps).entrySet()) {
+            RedoableOp op = entry.getValue();
+            tempLogger.log(op, op.getInputStream(), false);
+        }
+        tempLogger.close();
+
+        // Rename the current log to rolled-over name.
+        File rolloverFile = romgr.getRolloverFile(lastSeq);
+        if (RedoConfig.redoLogDeleteOnRollover()) {
+            // Delete the current log.  We don't need to hold on to the
+            // indexing-only log files after rollover.
+            if (!mFile.delete())
+                throw new IOException("Unable to delete current redo log " + mFile.getAbsolutePath());
+        } else {
+            File destDir = rolloverFile.getParentFile();
+            if (destDir != null && !destDir.exists())
+                destDir.mkdirs();
+            if (!mFile.renameTo(rolloverFile))
+                throw new IOException("Unable to rename current redo log to " + rolloverFile.getAbsolutePath());
+        }
+
+        // Rename the temporary logger to current logfile name.
+        String tempPath = tempLogfile.getAbsolutePath();
+        mFile = new File(currentPath);
+        if (!tempLogfile.renameTo(mFile))
+            throw new IOException("Unable to rename " + tempPath + " to " + currentPath);
+
+        // Reopen current log.
+        open();
+
+        return rolloverFile;
+    }
+
+    // Copies the op data into the write buffer, draining the buffer to the
+    // channel whenever it fills up.  Caller must hold mLock.
+    private void append(InputStream data) throws IOException {
+        while (true) {
+            if (!mBuffer.hasRemaining())
+                drainBuffer();
+            int numRead = data.read(mCopyBuf, 0, Math.min(mCopyBuf.length, mBuffer.remaining()));
+            if (numRead < 0)
+                break;
+            mBuffer.put(mCopyBuf, 0, numRead);
+            mFileSize += numRead;
+        }
+    }
+
+    // Writes buffered bytes to the channel.  Caller must hold mLock.
+    private void drainBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    // Blocks until an fsync covering the op with the given sequence has completed.
+    private void awaitSync(long seq) throws IOException {
+        if (mSyncedSeq >= seq)
+            return;
+        SyncThread syncer = mSyncer;
+        Future<Void> future = syncer != null ? syncer.requestSync(seq) : null;
+        if (future == null) {
+            sync();
+            return;
+        }
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            ZimbraLog.redolog.info("Thread interrupted during fsync");
+            Thread.currentThread().interrupt();
+            sync();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Error while fsyncing " + mFile.getAbsolutePath(), cause);
+        }
+    }
+
+    // Writes out everything appended so far, fsyncs it, and makes the commit
+    // callbacks for the commits covered by the fsync.  The fsync is done
+    // without holding mLock, so other threads can keep appending meanwhile.
+    private void sync() throws IOException {
+        synchronized (mSyncLock) {
+            long seq;
+            FileChannel channel;
+            List<Notif> notifs;
+            synchronized (mLock) {
+                if (mLogSeq <= mSyncedSeq)
+                    return;
+                if (mRAF == null)
+                    throw new IOException("Redolog file closed");
+                drainBuffer();
+                seq = mLogSeq;
+                channel = mChannel;
+                notifs = mPendingNotifs;
+                mPendingNotifs = new ArrayList<Notif>();
+            }
+            if (!mFsyncDisabled) {
+                channel.force(false);
+                mFsyncCount++;
+            }
+            mSyncedSeq = seq;
+
+            for (Notif notif : notifs) {
+                try {
+                    notif.getCallback().callback(notif.getCommitId());
+                } catch (OutOfMemoryError e) {
+                    Zimbra.halt("out of memory", e);
+                } catch (Throwable t) {
+                    ZimbraLog.misc.error("Error while making commit callback", t);
+                }
+            }
+        }
+    }
+
+
+    // Thread that performs fsyncs on behalf of waiting logger threads.  A
+    // batch starts with the first request and takes in every request made
+    // until the fsync interval has passed since, or until the write buffer is
+    // half full; requests arriving during the fsync form the next batch.  With
+    // no requests, it still fsyncs once per interval whatever was logged
+    // asynchronously.
+    private class SyncThread extends Thread {
+        private static final long MIN_INTERVAL_MILLIS = 1;
+        private static final long MAX_INTERVAL_MILLIS = 1000;  // same bounds as FileLogWriter
+
+        private final long mIntervalMS;
+        private final List<SettableFuture<Void>> mWaiters = new ArrayList<SettableFuture<Void>>();
+        private long mBatchStart;       // when the first request of the current batch was made
+        private long mBatchSeq;         // last item the current batch has to cover
+        private boolean mBatchFull;
+        private boolean mRunning = true;
+
+        SyncThread() {
+            super("GroupCommitLogWriter.SyncThread-" + System.currentTimeMillis());
+            mIntervalMS = Math.min(Math.max(mFsyncIntervalMS, MIN_INTERVAL_MILLIS), MAX_INTERVAL_MILLIS);
+        }
+
+        // Requests an fsync covering the item with the given sequence.
+        // Returns null if the thread is no longer accepting requests.
+        synchronized Future<Void> requestSync(long seq) {
+            if (!mRunning)
+                return null;
+            SettableFuture<Void> future = SettableFuture.create();
+            if (mWaiters.isEmpty())
+                mBatchStart = System.currentTimeMillis();
+            mBatchSeq = Math.max(mBatchSeq, seq);
+            mWaiters.add(future);
+            notifyAll();
+            return future;
+        }
+
+        // Ends the current batch early, as the write buffer is filling up.
+        synchronized void batchFull() {
+            mBatchFull = true;
+            notifyAll();
+        }
+
+        @Override public void run() {
+            ZimbraLog.redolog.info("Starting group commit sync thread with interval %d", mIntervalMS);
+            boolean running = true;
+            while (running) {
+                List<SettableFuture<Void>> batch;
+                synchronized (this) {
+                    try {
+                        // Wait for the first request, but no longer than an interval, so that ops logged
+                        // asynchronously make it to disk.
+                        if (mRunning && mWaiters.isEmpty() && !mBatchFull)
+                            wait(mIntervalMS);
+                        // Let other committers join the batch, unless the previous fsync already covered it.
+                        while (mRunning && !mWaiters.isEmpty() && !mBatchFull && mSyncedSeq < mBatchSeq) {
+                            long remaining = mBatchStart + mIntervalMS - System.currentTimeMillis();
+                            if (remaining <= 0)
+                                break;
+                            wait(remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        ZimbraLog.redolog.warn("Sync thread interrupted", e);
+                    }
+                    running = mRunning;
+                    batch = new ArrayList<SettableFuture<Void>>(mWaiters);
+                    mWaiters.clear();
+                    mBatchFull = false;
+                }
+
+                try {
+                    sync();
+                    for (SettableFuture<Void> waiter : batch) {
+                        waiter.set(null);
+                    }
+                } catch (IOException e) {
+                    for (SettableFuture<Void> waiter : batch) {
+                        waiter.setException(e);
+                    }
+                    String message = "Error while fsyncing " + mFile.getAbsolutePath() + "; Aborting.";
+                    Zimbra.halt(message, e);
+                }
+            }
+            ZimbraLog.redolog.info("group commit sync thread exiting");
+        }
+
+        // Stop the thread after it has served all pending requests.  Wait until the thread really stops.
+        void stopThread() {
+            synchronized (this) {
+                mRunning = false;
+                notifyAll();
+            }
+            try {
+                while (isAlive()) {
+                    ZimbraLog.redolog.info("waiting for %s to finish.", getName());
+                    join(Constants.MILLIS_PER_MINUTE);
+                }
+                ZimbraLog.redolog.info("%s finished", getName());
+            } catch (InterruptedException e) {
+                ZimbraLog.redolog.warn("InterruptedException while stopping SyncThread", e);
+            }
+        }
+    }
+
+
+    private static class Notif {
+        private final RedoCommitCallback mCallback;
+        private final CommitId mCommitId;
+
+        Notif(RedoCommitCallback callback, CommitId cid) {
+            mCallback = callback;
+            mCommitId = cid;
+        }
+        RedoCommitCallback getCallback() { return mCallback; }
+        CommitId getCommitId() { return mCommitId; }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.IOException;
+
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * Sequential reader of a redo log file.
+ */
+public interface LogReader {
+
+    /**
+     * Opens the log.
+     * @throws IOException
+     */
+    public void open() throws IOException;
+
+    /**
+     * Closes the log.
+     * @throws IOException
+     */
+    public void close() throws IOException;
+
+    public FileHeader getHeader() throws IOException;
+
+    /**
+     * Returns the next op in the log, or null at end of file.  Bad bytes
+     * between ops are skipped with a warning.
+     * @throws java.io.EOFException if the log ends in the middle of an op
+     * @throws IOException
+     */
+    public RedoableOp getNextOp() throws IOException;
+
+    /**
+     * Returns the current size of the log file.
+     * @throws IOException
+     */
+    public long getSize() throws IOException;
+
+    /**
+     * Returns the file offset just past the last op returned by
+     * {@link #getNextOp()}.
+     * @throws IOException
+     */
+    public long position() throws IOException;
+
+    /**
+     * Returns the file offset where the last op returned by
+     * {@link #getNextOp()} started.
+     * @throws IOException
+     */
+    public long getLastOpStartOffset() throws IOException;
+
+    /**
+     * Truncates the log file to the given size.  The reader must have been
+     * created as writable.
+     * @throws IOException
+     */
+    public void truncate(long size) throws IOException;
+}
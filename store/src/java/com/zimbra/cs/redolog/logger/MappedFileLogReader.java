@@ -0,0 +1,474 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.redolog.logger;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.redolog.RedoLogInput;
+import com.zimbra.cs.redolog.op.RedoableOp;
+
+/**
+ * {@link LogReader} that memory-maps the redo log and decodes ops on several
+ * threads.
+ * <p>
+ * Redo ops carry no length prefix, so op boundaries are only known for sure
+ * by decoding from a known boundary.  The file is processed in windows that
+ * are split into one chunk per thread.  The first chunk starts at a known
+ * boundary; every other chunk speculatively starts at the first op magic
+ * marker inside it.  Chunk results are then stitched together in file order:
+ * a chunk is only accepted from the op that starts exactly where the previous
+ * accepted op ended, so a marker that happens to appear inside op data is
+ * detected and the rest of the window is decoded again.  Ops are returned in
+ * file order, exactly as {@link FileLogReader} would return them.
+ * <p>
+ * Junk data and truncated ops are handled by falling back to sequential
+ * decoding with the same recovery behavior as {@link FileLogReader}.
+ */
+public class MappedFileLogReader implements LogReader {
+
+    // Largest region mapped at once; a single MappedByteBuffer is limited to 2GB.
+    private static final long MAX_MAP_SIZE = Integer.MAX_VALUE;
+
+    private static final byte[] MAGIC = RedoableOp.REDO_MAGIC.getBytes();
+
+    private FileHeader mHeader;
+    private boolean mHeaderRead;
+
+    private final File mFile;
+    private final boolean mReadOnly;
+    private final int mNumThreads;
+    private final int mChunkSize;
+
+    private RandomAccessFile mRAF;
+    private FileChannel mChannel;
+    private long mFileSizeAtOpen;
+    private ExecutorService mDecoders;
+    private final boolean mOwnsDecoders;
+
+    private MappedByteBuffer mMap;
+    private long mMapBase;
+
+    private final Deque<DecodedOp> mDecoded = new ArrayDeque<DecodedOp>();
+    private long mPosition;
+    private long mLastOpStartOffset;
+
+    /**
+     * @param logfile the redo log file
+     * @param writable true if the log may be truncated after junk is found
+     * @param numThreads number of decoder threads
+     * @param chunkSize number of bytes of the file each thread decodes at a time
+     */
+    public MappedFileLogReader(File logfile, boolean writable, int numThreads, int chunkSize) {
+        this(logfile, writable, null, numThreads, chunkSize);
+    }
+
+    /**
+     * @param logfile the redo log file
+     * @param writable true if the log may be truncated after junk is found
+     * @param decoders pool to decode on, shared by the caller across log files; if <tt>null</tt>, the reader
+     *        creates its own pool of <tt>numThreads</tt> threads on open and shuts it down on close
+     * @param numThreads number of chunks decoded at a time
+     * @param chunkSize number of bytes of the file each thread decodes at a time
+     * @see #newDecoderPool(int)
+     */
+    public MappedFileLogReader(File logfile, boolean writable, ExecutorService decoders, int numThreads,
+            int chunkSize) {
+        mHeader = new FileHeader();
+        mHeaderRead = false;
+        mFile = logfile;
+        mReadOnly = !writable;
+        mNumThreads = Math.max(numThreads, 1);
+        mChunkSize = Math.max(chunkSize, 64 * 1024);
+        mDecoders = decoders;
+        mOwnsDecoders = decoders == null;
+    }
+
+    /**
+     * Returns a pool of daemon decoder threads that can be shared by the readers of all the log files in a replay.
+     */
+    public static ExecutorService newDecoderPool(int numThreads) {
+        return Executors.newFixedThreadPool(Math.max(numThreads, 1), new DecoderThreadFactory());
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        try {
+            mRAF = new RandomAccessFile(mFile, "r");
+            mChannel = mRAF.getChannel();
+            mHeader.read(mRAF);
+            mHeaderRead = true;
+            mFileSizeAtOpen = mRAF.length();
+        } catch (IOException e) {
+            throw new IOException("Error opening " + mFile.getAbsolutePath(), e);
+        }
+        mPosition = FileHeader.HEADER_LEN;
+        mLastOpStartOffset = 0;
+        mDecoded.clear();
+        if (mOwnsDecoders && mNumThreads > 1) {
+            mDecoders = newDecoderPool(mNumThreads);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mOwnsDecoders && mDecoders != null) {
+            mDecoders.shutdownNow();
+            mDecoders = null;
+        }
+        mDecoded.clear();
+        mMap = null;
+        try {
+            mRAF.close();
+        } catch (IOException e) {
+            throw new IOException("Error closing " + mFile.getAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public synchronized FileHeader getHeader() throws IOException {
+        if (mHeaderRead)
+            return mHeader;
+
+        open();
+        close();
+        return mHeader;
+    }
+
+    @Override
+    public synchronized RedoableOp getNextOp() throws IOException {
+        if (mDecoded.isEmpty()) {
+            if (mPosition >= mFileSizeAtOpen) {
+                // EOF reached.
+                return null;
+            }
+            if (mDecoders != null && mNumThreads > 1) {
+                decodeWindow();
+            }
+            if (mDecoded.isEmpty()) {
+                // Either there's a single decoder thread, or the window
+                // starts with something parallel decoding can't handle.
+                return getNextOpSequential();
+            }
+        }
+        DecodedOp decoded = mDecoded.poll();
+        mLastOpStartOffset = decoded.start;
+        mPosition = decoded.end;
+        return decoded.op;
+    }
+
+    @Override
+    public synchronized long getSize() throws IOException {
+        return mRAF.length();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        return mPosition;
+    }
+
+    @Override
+    public synchronized long getLastOpStartOffset() throws IOException {
+        return mLastOpStartOffset;
+    }
+
+    @Override
+    public synchronized void truncate(long size) throws IOException {
+        if (mReadOnly)
+            throw new IOException("Redolog " + mFile.getAbsolutePath() + " was opened read-only");
+        // Don't write through the mapping; let FileLogReader do the truncation and header update.
+        mMap = null;
+        FileLogReader writer = new FileLogReader(mFile, true);
+        writer.open();
+        try {
+            writer.truncate(size);
+        } finally {
+            writer.close();
+        }
+        mFileSizeAtOpen = Math.min(mFileSizeAtOpen, size);
+    }
+
+    /**
+     * Decodes the next window of the file in parallel and queues the ops that
+     * could be stitched together, starting from the current position.
+     */
+    private void decodeWindow() throws IOException {
+        long windowStart = mPosition;
+        ByteBuffer map = mapAt(windowStart);
+        long mapBase = mMapBase;
+        long mapEnd = mapBase + map.capacity();
+        long windowEnd = Math.min(mapEnd, windowStart + (long) mNumThreads * mChunkSize);
+
+        List<Future<ChunkResult>> futures = new ArrayList<Future<ChunkResult>>(mNumThreads);
+        long chunkStart = windowStart;
+        while (chunkStart < windowEnd) {
+            long chunkEnd = Math.min(windowEnd, chunkStart + mChunkSize);
+            // An op starting in the chunk may run into the next one, but no further; longer ops are left to
+            // sequential decoding.  This also bounds what a speculative decode of garbage can ask to allocate.
+            ByteBuffer chunkMap = map.duplicate();
+            chunkMap.limit((int) (Math.min(mapEnd, chunkEnd + mChunkSize) - mapBase));
+            futures.add(mDecoders.submit(
+                    new ChunkDecoder(chunkMap, mapBase, chunkStart, chunkEnd, chunkStart == windowStart)));
+            chunkStart = chunkEnd;
+        }
+
+        long pos = windowStart;
+        boolean stitching = true;
+        for (Future<ChunkResult> future : futures) {
+            ChunkResult result;
+            try {
+                result = future.get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while decoding " + mFile.getAbsolutePath(), e);
+            } catch (ExecutionException e) {
+                // Leave the rest of the window to sequential decoding.
+                ZimbraLog.redolog.debug("parallel decoding of %s failed", mFile.getAbsolutePath(), e.getCause());
+                stitching = false;
+                continue;
+            }
+            if (!stitching || pos >= result.end) {
+                continue;
+            }
+            int i = 0;
+            while (i < result.ops.size() && result.ops.get(i).start < pos) {
+                i++;
+            }
+            if (i == result.ops.size() || result.ops.get(i).start != pos) {
+                // Speculative start never synced up with the real op boundary, or
+                // the chunk failed before reaching it.  Pick up from pos next time.
+                stitching = false;
+                continue;
+            }
+            for (; i < result.ops.size(); i++) {
+                DecodedOp decoded = result.ops.get(i);
+                mDecoded.add(decoded);
+                pos = decoded.end;
+            }
+            if (result.failed) {
+                stitching = false;
+            }
+        }
+    }
+
+    /**
+     * Decodes one op starting at the current position, skipping bad bytes
+     * exactly as {@link FileLogReader#getNextOp()} does.
+     */
+    private RedoableOp getNextOpSequential() throws IOException {
+        long pos = mPosition;
+        boolean first = true;
+        long currPos = pos;
+        while (true) {
+            try {
+                DecodedOp decoded = decodeAt(currPos);
+                mLastOpStartOffset = currPos;
+                mPosition = decoded.end;
+                if (!first) {
+                    String msg = String.format(
+                            "Skipped bad bytes in redolog %s; resuming at offset 0x%08x after skipping %d bytes",
+                            mFile.getAbsolutePath(), currPos, currPos - pos);
+                    ZimbraLog.redolog.warn(msg);
+                }
+                return decoded.op;
+            } catch (IOException e) {
+                if (e instanceof EOFException)
+                    throw e;
+                if (first) {
+                    String msg = String.format(
+                            "Error while parsing redolog %s, offset=0x%08x; bad bytes will be skipped",
+                            mFile.getAbsolutePath(), pos);
+                    ZimbraLog.redolog.warn(msg, e);
+                }
+            }
+            first = false;
+            // Skip over bad bytes by looking for the next occurrence of "ZMREDO" redo op marker.
+            long next = findMagic(currPos + 1, mFileSizeAtOpen);
+            if (next < 0) {
+                String msg = String.format(
+                        "Found %d junk bytes from offset 0x%08x to end of file, in redolog %s",
+                        mFileSizeAtOpen - pos, pos, mFile.getAbsolutePath());
+                throw new IOException(msg);
+            }
+            currPos = next;
+        }
+    }
+
+    private DecodedOp decodeAt(long offset) throws IOException {
+        ByteBuffer map = mapAt(offset);
+        try {
+            return decode(map, mMapBase, offset);
+        } catch (EOFException e) {
+            if (mMapBase + map.capacity() >= mFileSizeAtOpen || mMapBase == offset)
+                throw e;
+            // The op runs past the end of the current mapping.  Map again starting at the op.
+            mMap = null;
+            return decode(mapAt(offset), mMapBase, offset);
+        }
+    }
+
+    private DecodedOp decode(ByteBuffer map, long mapBase, long offset) throws IOException {
+        ByteBuffer buf = map.duplicate();
+        buf.position((int) (offset - mapBase));
+        RedoLogInput in = new RedoLogInput(buf, mFile.getPath(), mapBase);
+        RedoableOp op = RedoableOp.deserializeOp(in);
+        return new DecodedOp(op, offset, in.getFilePointer());
+    }
+
+    /**
+     * Returns a mapping that covers the given offset, reusing the current one if possible.
+     */
+    private ByteBuffer mapAt(long offset) throws IOException {
+        if (mMap == null || offset < mMapBase || offset >= mMapBase + mMap.capacity()) {
+            long size = Math.min(mFileSizeAtOpen - offset, MAX_MAP_SIZE);
+            mMap = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            mMapBase = offset;
+        }
+        return mMap;
+    }
+
+    /**
+     * Returns the file offset of the first op magic marker in the range, or
+     * -1 if there is none.
+     */
+    private long findMagic(long from, long to) throws IOException {
+        while (from < to) {
+            ByteBuffer map = mapAt(from);
+            long mapEnd = Math.min(to, mMapBase + map.capacity());
+            long found = findMagic(map, mMapBase, from, mapEnd);
+            if (found >= 0 || mapEnd >= to)
+                return found;
+            // Continue in the next mapping; back up so a marker straddling the boundary is found.
+            from = mapEnd - MAGIC.length + 1;
+            mMap = null;
+        }
+        return -1;
+    }
+
+    private static long findMagic(ByteBuffer map, long mapBase, long from, long to) {
+        int start = (int) (from - mapBase);
+        int last = (int) (to - mapBase) - MAGIC.length;
+        for (int i = start; i <= last; i++) {
+            if (map.get(i) != MAGIC[0])
+                continue;
+            boolean matches = true;
+            for (int j = 1; j < MAGIC.length; j++) {
+                if (map.get(i + j) != MAGIC[j]) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches)
+                return mapBase + i;
+        }
+        return -1;
+    }
+
+
+    private static final class DecodedOp {
+        final RedoableOp op;
+        final long start;
+        final long end;
+
+        DecodedOp(RedoableOp op, long start, long end) {
+            this.op = op;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static final class ChunkResult {
+        final List<DecodedOp> ops = new ArrayList<DecodedOp>();
+        final long end;
+        boolean failed;
+
+        ChunkResult(long end) {
+            this.end = end;
+        }
+    }
+
+    /**
+     * Decodes every op that starts in [start, end).  Ops may extend past the
+     * end of the chunk, up to the limit of the buffer.  Stops at the first op
+     * that fails to decode.
+     */
+    private final class ChunkDecoder implements Callable<ChunkResult> {
+        private final ByteBuffer mChunkMap;
+        private final long mChunkMapBase;
+        private final long mStart;
+        private final long mEnd;
+        private final boolean mAtBoundary;
+
+        ChunkDecoder(ByteBuffer map, long mapBase, long start, long end, boolean atBoundary) {
+            mChunkMap = map;
+            mChunkMapBase = mapBase;
+            mStart = start;
+            mEnd = end;
+            mAtBoundary = atBoundary;
+        }
+
+        @Override
+        public ChunkResult call() {
+            ChunkResult result = new ChunkResult(mEnd);
+            long offset = mAtBoundary ? mStart : findMagic(mChunkMap, mChunkMapBase, mStart, Math.min(
+                    mChunkMapBase + mChunkMap.limit(), mEnd + MAGIC.length - 1));
+            if (offset < 0) {
+                return result;
+            }
+            while (offset < mEnd) {
+                try {
+                    DecodedOp decoded = decode(mChunkMap, mChunkMapBase, offset);
+                    result.ops.add(decoded);
+                    offset = decoded.end;
+                } catch (Throwable t) {
+                    // Speculative starts can land on garbage, so any failure here (even an allocation failure
+                    // on a bogus length) just means sequential decoding has to sort it out.
+                    result.failed = true;
+                    break;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class DecoderThreadFactory implements ThreadFactory {
+        private static final AtomicInteger sCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "RedoLogDecoder-" + sCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
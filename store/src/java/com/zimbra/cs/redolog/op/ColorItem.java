@@ -79,7 +79,7 @@ public class ColorItem extends RedoableOp {
         else
             mColor = in.readByte();
         if (id <= 0) {
-            mIds = new int[in.readInt()];
+            mIds = new int[in.readCount(4)];
             for (int i = 0; i < mIds.length; i++)
                 mIds[i] = in.readInt();
         }
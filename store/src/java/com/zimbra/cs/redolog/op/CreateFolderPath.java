@@ -159,7 +159,7 @@ public class CreateFolderPath extends RedoableOp {
             }
         }
 
-        int numParentIds = in.readInt();
+        int numParentIds = in.readCount(4);
         if (numParentIds > 0) {
             this.folderIds = new int[numParentIds];
             this.folderUuids = new String[numParentIds];
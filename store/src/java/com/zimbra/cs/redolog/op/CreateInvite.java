@@ -112,7 +112,7 @@ public class CreateInvite extends RedoableOp implements CreateCalendarItemRecord
         in.readBoolean();  // keep this for backward compatibility when there was mForce field
                            // in this class
         
-        int dataLen = in.readInt();
+        int dataLen = in.readCount(1);
         if (dataLen > 0) {
             mData = new byte[dataLen];
             in.readFully(mData);
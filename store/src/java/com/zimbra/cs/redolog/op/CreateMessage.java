@@ -404,7 +404,7 @@ implements CreateCalendarItemPlayer, CreateCalendarItemRecorder {
             mConvFirstMsgId = in.readInt();
         }
         if (getVersion().atLeast(1, 32)) {
-            int mergeCount = in.readInt();
+            int mergeCount = in.readCount(4);
             mMergedConvIds = new ArrayList<Integer>(mergeCount);
             for (int i = 0; i < mergeCount; i++) {
                 mMergedConvIds.add(in.readInt());
@@ -436,7 +436,7 @@ implements CreateCalendarItemPlayer, CreateCalendarItemRecorder {
 
         mMsgBodyType = in.readByte();
         if (mMsgBodyType == MSGBODY_INLINE) {
-            int dataLength = in.readInt();
+            int dataLength = in.readCount(1);
             boolean inMemory = false;
             try {
                 inMemory = dataLength <= StoreManager.getDiskStreamingThreshold();
@@ -54,7 +54,7 @@ public class DeleteItemFromDumpster extends RedoableOp {
     }
 
     @Override protected void deserializeData(RedoLogInput in) throws IOException {
-        mIds = new int[in.readInt()];
+        mIds = new int[in.readCount(4)];
         for (int i = 0; i < mIds.length; i++)
             mIds[i] = in.readInt();
     }
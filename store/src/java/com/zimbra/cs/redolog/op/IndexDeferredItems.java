@@ -52,7 +52,7 @@ public class IndexDeferredItems extends RedoableOp {
     
     @Override
     protected void deserializeData(RedoLogInput in) throws IOException {
-        int count = in.readInt();
+        int count = in.readCount(5);
         mItemIds = new int[count];
         mItemTypes = new byte[count];
         for (int i = 0; i < count; i++)
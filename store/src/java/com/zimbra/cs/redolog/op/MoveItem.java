@@ -110,7 +110,7 @@ public class MoveItem extends RedoableOp {
             mConstraint = in.readUTF();
         }
         if (id <= 0) {
-            mIds = new int[in.readInt()];
+            mIds = new int[in.readCount(4)];
             for (int i = 0; i < mIds.length; i++) {
                 mIds[i] = in.readInt();
             }
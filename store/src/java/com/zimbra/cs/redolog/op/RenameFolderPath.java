@@ -57,7 +57,7 @@ public class RenameFolderPath extends RenameItemPath {
     protected void deserializeData(RedoLogInput in) throws IOException {
         mId = in.readInt();
         mPath = in.readUTF();
-        int numParentIds = in.readInt();
+        int numParentIds = in.readCount(4);
         if (numParentIds > 0) {
             mParentIds = new int[numParentIds];
             for (int i = 0; i < numParentIds; i++) {
@@ -102,7 +102,7 @@ public class RenameItemPath extends RedoableOp {
     protected void deserializeData(RedoLogInput in) throws IOException {
         mId = in.readInt();
         mPath = in.readUTF();
-        int numParentIds = in.readInt();
+        int numParentIds = in.readCount(4);
         if (numParentIds > 0) {
             mParentIds = new int[numParentIds];
             mParentUuids = new String[numParentIds];
@@ -108,7 +108,7 @@ public class SetCalendarItem extends RedoableOp implements CreateCalendarItemRec
             // If version is earlier than 1.24, we always have ParsedMessage array.
             if (hasPm) {
                 long receivedDate = in.readLong();
-                int dataLen = in.readInt();
+                int dataLen = in.readCount(1);
                 byte[] rawPmData = new byte[dataLen];
                 in.readFully(rawPmData, 0, dataLen);
 
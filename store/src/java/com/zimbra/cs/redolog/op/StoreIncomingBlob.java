@@ -125,7 +125,7 @@ public class StoreIncomingBlob extends RedoableOp {
 
     @Override protected void deserializeData(RedoLogInput in) throws IOException {
         if (getVersion().atLeast(1, 0)) {
-            int listLen = in.readInt();
+            int listLen = in.readCount(4);
             if (listLen > MAX_MAILBOX_LIST_LENGTH) {
                 throw new IOException("Deserialized mailbox list too large (" + listLen + ")");
             }
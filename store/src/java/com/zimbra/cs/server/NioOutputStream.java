@@ -17,17 +17,30 @@
 
 package com.zimbra.cs.server;
 
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Set;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
 
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.ZimbraLog;
 
 public final class NioOutputStream extends OutputStream {
+    /** Filters installed by {@link NioServer} that pass outgoing bytes through unchanged. */
+    private static final Set<String> TRANSPARENT_FILTERS = ImmutableSet.of("executer", "logger", "codec");
+
     private final IoSession session;
     private IoBuffer buf;
     private int maxScheduledBytes;
@@ -88,7 +101,64 @@ public final class NioOutputStream extends OutputStream {
         }
     }
 
-    private synchronized void writeToSession(Object output) throws IOException {
+    /**
+     * Writes {@code count} bytes of the open file starting at {@code position}, after anything written so far, and
+     * closes it once they are sent.  Callers open the file before they announce its length to the client, so that a
+     * file that is gone by then can still be sent some other way.
+     * <p>
+     * If nothing on the session rewrites outgoing bytes (no TLS, SASL or custom filter), the file is queued as a
+     * {@link DefaultFileRegion} and the I/O processor sends it with {@link FileChannel#transferTo}, straight from the
+     * page cache to the socket.  Otherwise the file is read in chunks directly into the buffers handed to the
+     * session, skipping the copy through the write buffer.
+     */
+    public synchronized void write(final FileInputStream in, long position, long count) throws IOException {
+        FileChannel channel = in.getChannel();
+        boolean queued = false;
+        try {
+            flush();
+            if (count > 0 && isTransparent()) {
+                WriteFuture future = writeToSession(new DefaultFileRegion(channel, position, count));
+                future.addListener(new IoFutureListener<WriteFuture>() {
+                    @Override
+                    public void operationComplete(WriteFuture future) {
+                        ByteUtil.closeStream(in);
+                    }
+                });
+                queued = true;
+            } else {
+                long end = position + count;
+                while (position < end) {
+                    IoBuffer chunk = IoBuffer.allocate((int) Math.min(buf.capacity(), end - position));
+                    while (chunk.hasRemaining()) {
+                        int read = channel.read(chunk.buf(), position);
+                        if (read < 0) {
+                            throw new EOFException("unexpected end of file");
+                        }
+                        position += read;
+                    }
+                    writeToSession(chunk.flip());
+                }
+            }
+        } finally {
+            if (!queued) {
+                ByteUtil.closeStream(in);
+            }
+        }
+    }
+
+    private boolean isTransparent() {
+        if (!LC.nio_zero_copy_enabled.booleanValue()) {
+            return false;
+        }
+        for (IoFilterChain.Entry entry : session.getFilterChain().getAll()) {
+            if (!TRANSPARENT_FILTERS.contains(entry.getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized WriteFuture writeToSession(Object output) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
         if (writeBytes > maxScheduledBytes) {
@@ -107,6 +177,7 @@ public final class NioOutputStream extends OutputStream {
                 ZimbraLog.nio.debug("now have %d scheduled bytes, %d messages; %d written bytes %d messages", session.getScheduledWriteBytes(), session.getScheduledWriteMessages(), session.getWrittenBytes(), session.getWrittenMessages());
             }
         }
+        return future;
     }
 
     @Override
@@ -22,6 +22,7 @@ import java.util.Map;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.AdminConstants;
 import com.zimbra.common.soap.Element;
+import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AccountServiceException;
 import com.zimbra.cs.account.Provisioning;
@@ -47,6 +48,7 @@ public class MigrateAccount extends AdminDocumentHandler {
         bug72174,
         bug78254,
         contactGroup,
+        imapSummary,
         wiki;
         
         private static Action fromString(String str) throws ServiceException{
@@ -92,6 +94,9 @@ public class MigrateAccount extends AdminDocumentHandler {
             case bug78254:
                 migrateFlagsAndTags(account);
                 break;
+            case imapSummary:
+                backfillImapSummaries(account);
+                break;
             default: 
                 throw ServiceException.INVALID_REQUEST("unsupported action " + action.name(), null);
         }
@@ -116,6 +121,17 @@ public class MigrateAccount extends AdminDocumentHandler {
         MailboxUpgrade.migrateFlagsAndTags(mbox);
     }
     
+    private void backfillImapSummaries(Account account) throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(account, false);
+        if (mbox == null) {
+            throw ServiceException.INVALID_REQUEST("no mailbox", null);
+        }
+        // reads and parses every message, so don't hold up the request; progress is logged
+        if (!MailboxUpgrade.startImapSummaryBackfill(mbox)) {
+            ZimbraLog.mailbox.info("IMAP summary backfill of mailbox %d is already in progress", mbox.getId());
+        }
+    }
+    
     private void migrateWiki(Account account) throws ServiceException {
         MigrateToDocuments toDoc = new MigrateToDocuments();
         toDoc.handleAccount(account);
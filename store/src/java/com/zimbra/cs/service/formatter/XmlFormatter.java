@@ -23,6 +23,7 @@ import java.util.Set;
 
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
+import com.zimbra.common.util.ZimbraServletOutputStream;
 import com.zimbra.cs.mailbox.CalendarItem;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.CalendarItem.Instance;
@@ -67,7 +68,9 @@ public class XmlFormatter extends Formatter {
                 ToXML.encodeItem(elt, ifmt, context.opContext, item, ToXML.NOTIFY_FIELDS);
             }
 
-            context.resp.getOutputStream().write(elt.toUTF8());
+            ZimbraServletOutputStream out = new ZimbraServletOutputStream(context.resp.getOutputStream());
+            elt.output(out);
+            out.flush();
         } finally {
             if (iterator instanceof QueryResultIterator)
                 ((QueryResultIterator) iterator).finished();
@@ -29,6 +29,7 @@ import com.zimbra.common.soap.MailConstants;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.fb.FreeBusyQuery;
+import com.zimbra.cs.fb.FreeBusySlots;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.soap.SoapServlet;
 import com.zimbra.soap.ZimbraSoapContext;
@@ -36,7 +37,7 @@ import com.zimbra.soap.ZimbraSoapContext;
 public class GetFreeBusy extends MailDocumentHandler {
 
 
-//    <GetFreeBusyRequest s="date" e="date" [uid="id,..."]/>
+//    <GetFreeBusyRequest s="date" e="date" [uid="id,..."] [minFree="msecs"]/>
 //    <GetFreeBusyResponse>
 //      <usr id="id">
 //        <f s="date" e="date"/>*
@@ -44,6 +45,9 @@ public class GetFreeBusy extends MailDocumentHandler {
 //        <t s="date" e="date"/>*
 //        <o s="date" e="date"/>*
 //      </usr>
+//      [<commonFree>
+//        <f s="date" e="date"/>*
+//      </commonFree>]
 //    <GetFreeBusyResponse>
 //
 //    (f)ree (b)usy (t)entative and (o)ut-of-office
@@ -90,6 +94,7 @@ public class GetFreeBusy extends MailDocumentHandler {
         String idParam = request.getAttribute(MailConstants.A_ID, null);    // comma-separated list of account zimbraId GUIDs
         String nameParam = request.getAttribute(MailConstants.A_NAME, null); // comma-separated list of account emails
         String exApptUid = request.getAttribute(MailConstants.A_APPT_FREEBUSY_EXCLUDE_UID, null);
+        long minFree = request.getAttributeLong(MailConstants.A_APPT_FREEBUSY_MIN_FREE, -1);
 
         Account requestor = Provisioning.getInstance().get(Key.AccountBy.id, zc.getAuthtokenAccountId());
     	FreeBusyQuery fbQuery = new FreeBusyQuery((HttpServletRequest) context.get(SoapServlet.SERVLET_REQUEST), zc, requestor, rangeStart, rangeEnd, exApptUid);
@@ -126,7 +131,11 @@ public class GetFreeBusy extends MailDocumentHandler {
     	        fbQuery.addEmailAddress(name, folderId);
     	}
 
-    	fbQuery.getResults(response);
+    	if (minFree >= 0) {
+    	    fbQuery.getResults(response, FreeBusySlots.DEFAULT_SLOT_MILLIS, minFree);
+    	} else {
+    	    fbQuery.getResults(response);
+    	}
         return response;
     }
 }
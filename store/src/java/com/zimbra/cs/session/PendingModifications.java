@@ -35,6 +35,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
@@ -439,7 +440,19 @@ public final class PendingModifications {
         return ret;
     }
 
+    /**
+     * Encodes the change set for the other servers with sessions on the mailbox, with
+     * {@link PendingModificationsSerializer} if {@link LC#zimbra_mailbox_notify_binary_encoding} is set, else with Java
+     * serialization, which every server can decode.
+     */
     public byte[] getSerializedBytes() throws IOException {
+        if (LC.zimbra_mailbox_notify_binary_encoding.booleanValue()) {
+            return PendingModificationsSerializer.encode(this);
+        }
+        return getJavaSerializedBytes();
+    }
+
+    private byte[] getJavaSerializedBytes() throws IOException {
         // assemble temporary created, modified, deleted with Metadata
         LinkedHashMap<ModificationKeyMeta, String> metaCreated = null;
         Map<ModificationKeyMeta, ChangeMeta> metaModified = null;
@@ -470,7 +483,6 @@ public final class PendingModifications {
         return bos.toByteArray();
     }
 
-
     private static Map<ModificationKey, Change> getOriginal(Mailbox mbox, Map<ModificationKeyMeta, ChangeMeta> map) throws ServiceException {
         if (map == null) {
             return null;
@@ -525,8 +537,14 @@ public final class PendingModifications {
         return ret;
     }
 
+    /**
+     * Decodes a change set from {@link #getSerializedBytes()} in either encoding.
+     */
     @SuppressWarnings("unchecked")
     public static PendingModifications deserialize(Mailbox mbox, byte[] data) throws IOException, ClassNotFoundException, ServiceException {
+        if (PendingModificationsSerializer.isEncoded(data)) {
+            return PendingModificationsSerializer.decode(mbox, data);
+        }
         ByteArrayInputStream bis = new ByteArrayInputStream(data);
         ObjectInputStream ois = new ObjectInputStream(bis);
         PendingModifications pms = new PendingModifications();
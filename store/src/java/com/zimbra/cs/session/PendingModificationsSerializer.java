@@ -0,0 +1,334 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Charsets;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Metadata;
+import com.zimbra.cs.session.PendingModifications.Change;
+import com.zimbra.cs.session.PendingModifications.ModificationKey;
+
+/**
+ * Binary encoding of the {@link PendingModifications} sent to the other servers with sessions on a mailbox, replacing
+ * Java serialization of {@link PendingModifications.ModificationKeyMeta} and {@link PendingModifications.ChangeMeta}
+ * maps.
+ * <p>
+ * Counts, account indexes, item ids and change bitmasks are written as varints, the same way
+ * {@link com.zimbra.cs.imap.ImapFolderSerializer} writes them, so most take a byte or two.  Account IDs are written
+ * once and referred to by index, item types as their byte value, and items as their serialized
+ * {@link MailItem.UnderlyingData}.  The first byte is a format version, which can't be mistaken for the first byte of
+ * a Java serialization stream, so a change set from a server still writing the old format is recognized and decoded
+ * the old way.
+ * <p>
+ * Change sets are only sent in this encoding when {@link LC#zimbra_mailbox_notify_binary_encoding} is set, as servers
+ * predating it can't decode them; set it once every server in the cluster has been upgraded.
+ */
+final class PendingModificationsSerializer {
+
+    static final byte VERSION = 1;
+
+    // what a Change refers to
+    private static final byte NONE = 0;
+    private static final byte MAILBOX = 1;
+    private static final byte ITEM = 2;
+    private static final byte TYPE = 3;
+
+    private PendingModificationsSerializer() {
+    }
+
+    /**
+     * Returns true if the data was written by {@link #encode}, rather than Java serialization.
+     */
+    static boolean isEncoded(byte[] data) {
+        return data.length > 0 && data[0] == VERSION;
+    }
+
+    static byte[] encode(PendingModifications pms) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(VERSION);
+        writeVarInt(out, pms.changedTypes.size());
+        for (MailItem.Type type : pms.changedTypes) {
+            out.writeByte(type.toByte());
+        }
+
+        // nearly every key has the mailbox's own account ID, so write each one once
+        List<Map<ModificationKey, ?>> maps = new ArrayList<Map<ModificationKey, ?>>(3);
+        maps.add(pms.created);
+        maps.add(pms.modified);
+        maps.add(pms.deleted);
+        Map<String, Integer> accounts = new HashMap<String, Integer>();
+        List<String> accountIds = new ArrayList<String>();
+        for (Map<ModificationKey, ?> map : maps) {
+            if (map != null) {
+                for (ModificationKey key : map.keySet()) {
+                    if (!accounts.containsKey(key.getAccountId())) {
+                        accounts.put(key.getAccountId(), accountIds.size());
+                        accountIds.add(key.getAccountId());
+                    }
+                }
+            }
+        }
+        writeVarInt(out, accountIds.size());
+        for (String accountId : accountIds) {
+            writeString(out, accountId);
+        }
+
+        if (pms.created == null) {
+            writeVarInt(out, 0);
+        } else {
+            writeVarInt(out, pms.created.size() + 1);
+            for (Map.Entry<ModificationKey, MailItem> entry : pms.created.entrySet()) {
+                writeKey(out, accounts, entry.getKey());
+                writeString(out, entry.getValue().serializeUnderlyingData().toString());
+            }
+        }
+        writeChanges(out, accounts, pms.modified);
+        writeChanges(out, accounts, pms.deleted);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeKey(DataOutput out, Map<String, Integer> accounts, ModificationKey key)
+            throws IOException {
+        writeVarInt(out, accounts.get(key.getAccountId()));
+        writeSignedVarInt(out, key.getItemId());
+    }
+
+    /** Writes 0 for null, or 1 + the number of changes followed by the changes. */
+    private static void writeChanges(DataOutput out, Map<String, Integer> accounts,
+            Map<ModificationKey, Change> changes) throws IOException {
+        if (changes == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        List<Map.Entry<ModificationKey, Change>> entries = new ArrayList<Map.Entry<ModificationKey, Change>>();
+        for (Map.Entry<ModificationKey, Change> entry : changes.entrySet()) {
+            if (kind(entry.getValue().what) == NONE) {
+                ZimbraLog.session.warn("Unexpected mailbox change : " + entry.getValue().what);
+            } else {
+                entries.add(entry);
+            }
+        }
+        writeVarInt(out, entries.size() + 1);
+        for (Map.Entry<ModificationKey, Change> entry : entries) {
+            Change change = entry.getValue();
+            writeKey(out, accounts, entry.getKey());
+            writeObject(out, change.what);
+            writeVarInt(out, change.why);
+            writeObject(out, change.preModifyObj);
+        }
+    }
+
+    private static byte kind(Object obj) {
+        if (obj instanceof MailItem) {
+            return ITEM;
+        } else if (obj instanceof MailItem.Type) {
+            return TYPE;
+        } else if (obj instanceof Mailbox) {
+            return MAILBOX;
+        } else {
+            return NONE;
+        }
+    }
+
+    private static void writeObject(DataOutput out, Object obj) throws IOException {
+        byte kind = kind(obj);
+        out.writeByte(kind);
+        if (kind == ITEM) {
+            writeString(out, ((MailItem) obj).serializeUnderlyingData().toString());
+        } else if (kind == TYPE) {
+            out.writeByte(((MailItem.Type) obj).toByte());
+        }
+        // the other server reloads the mailbox itself
+    }
+
+    private static void writeVarInt(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static void writeSignedVarInt(DataOutput out, int v) throws IOException {
+        writeVarInt(out, (v << 1) ^ (v >> 31));
+    }
+
+    /** Writes the length of the UTF-8 bytes followed by the bytes. */
+    private static void writeString(DataOutput out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(Charsets.UTF_8);
+        writeVarInt(out, utf8.length);
+        out.write(utf8);
+    }
+
+    /**
+     * Decodes a change set written by {@link #encode}, constructing its items in the given mailbox.
+     *
+     * @throws IOException if the data is truncated, corrupt or of another format version
+     */
+    static PendingModifications decode(Mailbox mbox, byte[] data) throws IOException, ServiceException {
+        Decoder decoder = new Decoder(mbox, data);
+        byte version = decoder.in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unknown PendingModifications encoding version " + version);
+        }
+        PendingModifications pms = new PendingModifications();
+        Set<MailItem.Type> changedTypes = EnumSet.noneOf(MailItem.Type.class);
+        for (int i = decoder.readCount(); i > 0; i--) {
+            changedTypes.add(MailItem.Type.of(decoder.in.readByte()));
+        }
+        pms.changedTypes = changedTypes;
+
+        decoder.accountIds = new String[decoder.readCount()];
+        for (int i = 0; i < decoder.accountIds.length; i++) {
+            decoder.accountIds[i] = decoder.readString();
+        }
+
+        int count = decoder.readCount() - 1;
+        if (count >= 0) {
+            pms.created = new LinkedHashMap<ModificationKey, MailItem>();
+            for (int i = 0; i < count; i++) {
+                ModificationKey key = decoder.readKey();
+                pms.created.put(key, decoder.readItem());
+            }
+        }
+        pms.modified = decoder.readChanges();
+        pms.deleted = decoder.readChanges();
+        return pms;
+    }
+
+    private static final class Decoder {
+        private final Mailbox mbox;
+        private final int length;
+        final DataInput in;
+        String[] accountIds;
+        private boolean refreshed;
+
+        Decoder(Mailbox mbox, byte[] data) {
+            this.mbox = mbox;
+            this.length = data.length;
+            this.in = new DataInputStream(new ByteArrayInputStream(data));
+        }
+
+        int readVarInt() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = in.readByte();
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IOException("malformed varint in PendingModifications data");
+        }
+
+        int readSignedVarInt() throws IOException {
+            int v = readVarInt();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        /** Reads a count or length, which can't be more than the bytes the data has. */
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count < 0 || count > length) {
+                throw new IOException("invalid count " + count + " in PendingModifications data");
+            }
+            return count;
+        }
+
+        String readString() throws IOException {
+            byte[] utf8 = new byte[readCount()];
+            in.readFully(utf8);
+            return new String(utf8, Charsets.UTF_8);
+        }
+
+        ModificationKey readKey() throws IOException {
+            int index = readVarInt();
+            if (index < 0 || index >= accountIds.length) {
+                throw new IOException("invalid account index " + index);
+            }
+            return new ModificationKey(accountIds[index], readSignedVarInt());
+        }
+
+        MailItem readItem() throws IOException, ServiceException {
+            MailItem.UnderlyingData ud = new MailItem.UnderlyingData();
+            ud.deserialize(new Metadata(readString()));
+            MailItem item = MailItem.constructItem(mbox, ud, true);
+            if (item instanceof Folder) {
+                Folder folder = (Folder) item;
+                folder.setParent(mbox.getFolderById(null, folder.getFolderId()));
+            }
+            return item;
+        }
+
+        Object readObject() throws IOException, ServiceException {
+            byte kind = in.readByte();
+            switch (kind) {
+                case NONE:
+                    return null;
+                case ITEM:
+                    return readItem();
+                case TYPE:
+                    return MailItem.Type.of(in.readByte());
+                case MAILBOX:
+                    if (!refreshed) {
+                        mbox.refreshMailbox(null);
+                        refreshed = true;
+                    }
+                    return mbox;
+                default:
+                    throw new IOException("invalid change object " + kind);
+            }
+        }
+
+        Map<ModificationKey, Change> readChanges() throws IOException, ServiceException {
+            int count = readCount() - 1;
+            if (count < 0) {
+                return null;
+            }
+            Map<ModificationKey, Change> changes = new LinkedHashMap<ModificationKey, Change>();
+            for (int i = 0; i < count; i++) {
+                ModificationKey key = readKey();
+                Object what = readObject();
+                int why = readVarInt();
+                changes.put(key, new Change(what, why, readObject()));
+            }
+            return changes;
+        }
+    }
+}
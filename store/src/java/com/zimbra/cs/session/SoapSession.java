@@ -845,9 +845,9 @@ public class SoapSession extends Session {
     /** Handles the set of changes from a single Mailbox transaction.
      *  <p>
      *  Takes a set of new mailbox changes and caches it locally.  This is
-     *  currently initiated from inside the Mailbox transaction commit, but we
-     *  still shouldn't assume that execution of this method is synchronized
-     *  on the Mailbox.
+     *  initiated by the Mailbox's notification dispatcher, usually outside
+     *  the Mailbox lock, so we can't assume that execution of this method is
+     *  synchronized on the Mailbox.
      *  <p>
      *  *All* changes are currently cached, regardless of the client's state/views.
      * @param pms       A set of new change notifications from our Mailbox.
@@ -22,22 +22,31 @@ import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.zimbra.common.stats.Counter;
+import com.zimbra.common.stats.Histogram;
 import com.zimbra.common.stats.StatsDumperDataSource;
+import com.zimbra.common.stats.StopWatch;
 
 
 /**
  * ActivityTrackers get their own output file (e.g. soap.csv) and track a set of "commands" and their "total elapsed time" 
- * for each counter stat period, one on a line.
+ * for each counter stat period, one on a line.  Trackers created with <tt>trackPercentiles</tt> also report the 50th,
+ * 95th and 99th percentile and the maximum elapsed time of each command.
  */
 public class ActivityTracker
 implements StatsDumperDataSource {
 
     private String mFilename;
+    private final boolean mTrackPercentiles;
     private ConcurrentHashMap<String, Counter> mCounterMap =
         new ConcurrentHashMap<String, Counter>();
     
     public ActivityTracker(String filename) {
+        this(filename, false);
+    }
+
+    public ActivityTracker(String filename, boolean trackPercentiles) {
         mFilename = filename;
+        mTrackPercentiles = trackPercentiles;
     }
     
     public void addStat(String commandName, long startTime) {
@@ -48,7 +57,8 @@ implements StatsDumperDataSource {
     private Counter getCounter(String commandName) {
         Counter counter = mCounterMap.get(commandName);
         if (counter == null) {
-            counter = new Counter();
+            // a StopWatch keeps a histogram of the elapsed times as well
+            counter = mTrackPercentiles ? new StopWatch() : new Counter();
             
             Counter previousCounter = mCounterMap.putIfAbsent(commandName, counter);
             if (previousCounter != null) {
@@ -76,7 +86,14 @@ implements StatsDumperDataSource {
                 long count = counter.getCount();
                 long avg = (long) counter.getAverage();
                 counter.reset();
-                dataLines.add(String.format("%s,%d,%d", command, count, avg)); 
+                if (counter instanceof StopWatch) {
+                    Histogram.Snapshot snapshot = ((StopWatch) counter).getHistogram().snapshotAndReset();
+                    dataLines.add(String.format("%s,%d,%d,%d,%d,%d,%d", command, count, avg,
+                            snapshot.getValueAtPercentile(50), snapshot.getValueAtPercentile(95),
+                            snapshot.getValueAtPercentile(99), snapshot.getMax()));
+                } else {
+                    dataLines.add(String.format("%s,%d,%d", command, count, avg));
+                }
             }
         }
         return dataLines;
@@ -87,6 +104,9 @@ implements StatsDumperDataSource {
     }
 
     public String getHeader() {
+        if (mTrackPercentiles) {
+            return "command,exec_count,exec_ms_avg,exec_ms_p50,exec_ms_p95,exec_ms_p99,exec_ms_max";
+        }
         return "command,exec_count,exec_ms_avg";
     }
 
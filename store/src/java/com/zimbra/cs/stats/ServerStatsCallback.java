@@ -24,7 +24,10 @@ import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.accesscontrol.PermissionCache;
 import com.zimbra.cs.account.ldap.LdapProv;
+import com.zimbra.cs.index.LuceneMergeExecutor;
+import com.zimbra.cs.mailbox.ItemCacheBudget;
 import com.zimbra.cs.mailbox.MessageCache;
+import com.zimbra.cs.mailbox.NotificationDispatcher;
 import com.zimbra.cs.store.BlobInputStream;
 import com.zimbra.cs.store.FileDescriptorCache;
 
@@ -35,22 +38,32 @@ public class ServerStatsCallback implements RealtimeStatsCallback {
         Map<String, Object> data = new HashMap<String, Object>();
         data.put(ZimbraPerf.RTS_MBOX_CACHE_SIZE, ZimbraPerf.getMailboxCacheSize());
         data.put(ZimbraPerf.RTS_MSG_CACHE_SIZE, MessageCache.getSize());
+        data.put(ZimbraPerf.RTS_MSG_CACHE_DATA_SIZE, MessageCache.getDataSize() / 1024);
+        data.put(ZimbraPerf.RTS_ITEM_CACHE_SIZE, ItemCacheBudget.getSizeKB());
         
         FileDescriptorCache fdc = BlobInputStream.getFileDescriptorCache();
         data.put(ZimbraPerf.RTS_FD_CACHE_SIZE, fdc.getSize());
         data.put(ZimbraPerf.RTS_FD_CACHE_HIT_RATE, fdc.getHitRate());
+        data.put(ZimbraPerf.RTS_FD_CACHE_MAPPED_SIZE, fdc.getMappedSize() / 1024);
         
         data.put(ZimbraPerf.RTS_ACL_CACHE_HIT_RATE, PermissionCache.getHitRate());
+
+        data.put(ZimbraPerf.RTS_IDX_MERGE_QUEUED_KB, LuceneMergeExecutor.getQueuedBytes() / 1024);
+        data.put(ZimbraPerf.RTS_IDX_MERGE_ACTIVE_KB, LuceneMergeExecutor.getActiveBytes() / 1024);
+        data.put(ZimbraPerf.RTS_MBOX_NTFN_QUEUED, NotificationDispatcher.getQueuedCount());
         
         Provisioning prov = Provisioning.getInstance();
         if (prov instanceof LdapProv) {
             LdapProv ldap = (LdapProv) prov;
             data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_SIZE, ldap.getAccountCacheSize());
             data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_HIT_RATE, ldap.getAccountCacheHitRate());
+            data.put(ZimbraPerf.RTS_ACCOUNT_CACHE_REFRESHES, ldap.getAccountCacheRefreshCount());
             data.put(ZimbraPerf.RTS_COS_CACHE_SIZE, ldap.getCosCacheSize());
             data.put(ZimbraPerf.RTS_COS_CACHE_HIT_RATE, ldap.getCosCacheHitRate());
+            data.put(ZimbraPerf.RTS_COS_CACHE_REFRESHES, ldap.getCosCacheRefreshCount());
             data.put(ZimbraPerf.RTS_DOMAIN_CACHE_SIZE, ldap.getDomainCacheSize());
             data.put(ZimbraPerf.RTS_DOMAIN_CACHE_HIT_RATE, ldap.getDomainCacheHitRate());
+            data.put(ZimbraPerf.RTS_DOMAIN_CACHE_REFRESHES, ldap.getDomainCacheRefreshCount());
             data.put(ZimbraPerf.RTS_SERVER_CACHE_SIZE, ldap.getServerCacheSize());
             data.put(ZimbraPerf.RTS_SERVER_CACHE_HIT_RATE, ldap.getServerCacheHitRate());
             data.put(ZimbraPerf.RTS_UCSERVICE_CACHE_SIZE, ldap.getUCServiceCacheSize());
@@ -40,6 +40,7 @@ import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Accumulator;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.stats.DeltaCalculator;
+import com.zimbra.common.stats.HistogramCalculator;
 import com.zimbra.common.stats.RealtimeStats;
 import com.zimbra.common.stats.RealtimeStatsCallback;
 import com.zimbra.common.stats.StatsDumper;
@@ -118,12 +119,21 @@ public class ZimbraPerf {
     @Description("Number of message structures cached in memory")
     public static final String RTS_MSG_CACHE_SIZE = "msg_cache_size";
 
+    @Description("Size (KB) of message data held in memory by the message cache")
+    public static final String RTS_MSG_CACHE_DATA_SIZE = "msg_cache_kb";
+
+    @Description("Estimated size (KB) of the mail items cached in memory")
+    public static final String RTS_ITEM_CACHE_SIZE = "item_cache_kb";
+
     @Description("Number of open file descriptors that reference message content")
     public static final String RTS_FD_CACHE_SIZE = "fd_cache_size";
 
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Size (KB) of the message content memory-mapped by the file descriptor cache")
+    public static final String RTS_FD_CACHE_MAPPED_SIZE = "fd_cache_mapped_kb";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -134,18 +144,27 @@ public class ZimbraPerf {
     @Description("LDAP account cache hit rate")
     public static final String RTS_ACCOUNT_CACHE_HIT_RATE = "account_cache_hit_rate";
 
+    @Description("LDAP account cache entries reloaded after expiring")
+    public static final String RTS_ACCOUNT_CACHE_REFRESHES = "account_cache_refreshes";
+
     @Description("LDAP COS cache size")
     public static final String RTS_COS_CACHE_SIZE = "cos_cache_size";
 
     @Description("LDAP COS cache hit rate")
     public static final String RTS_COS_CACHE_HIT_RATE = "cos_cache_hit_rate";
 
+    @Description("LDAP COS cache entries reloaded after expiring")
+    public static final String RTS_COS_CACHE_REFRESHES = "cos_cache_refreshes";
+
     @Description("LDAP domain cache size")
     public static final String RTS_DOMAIN_CACHE_SIZE = "domain_cache_size";
 
     @Description("LDAP domain cache hit rate")
     public static final String RTS_DOMAIN_CACHE_HIT_RATE = "domain_cache_hit_rate";
 
+    @Description("LDAP domain cache entries reloaded after expiring")
+    public static final String RTS_DOMAIN_CACHE_REFRESHES = "domain_cache_refreshes";
+
     @Description("LDAP server cache size")
     public static final String RTS_SERVER_CACHE_SIZE = "server_cache_size";
 
@@ -176,6 +195,15 @@ public class ZimbraPerf {
     @Description("LDAP XMPP cache hit rate")
     public static final String RTS_XMPP_CACHE_HIT_RATE = "xmpp_cache_hit_rate";
 
+    @Description("Estimated size (KB) of the index merges waiting for a merge thread")
+    public static final String RTS_IDX_MERGE_QUEUED_KB = "idx_merge_queued_kb";
+
+    @Description("Estimated size (KB) of the index merges in progress")
+    public static final String RTS_IDX_MERGE_ACTIVE_KB = "idx_merge_active_kb";
+
+    @Description("Number of mailbox change notifications waiting to be delivered to sessions")
+    public static final String RTS_MBOX_NTFN_QUEUED = "mbox_ntfn_queued";
+
     // Accumulators.  To add a new accumulator, create a static instance here and
     // add it to sAccumulators.
     public static final Counter COUNTER_LMTP_RCVD_MSGS = new Counter();
@@ -189,7 +217,9 @@ public class ZimbraPerf {
     public static final StopWatch STOPWATCH_MBOX_GET = new StopWatch();         // Mailbox accessor response time
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_MSG_CACHE_EVICTIONS = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_ITEM_CACHE_EVICTIONS = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
@@ -203,11 +233,18 @@ public class ZimbraPerf {
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final Counter COUNTER_BLOB_MAPPED_READ = new Counter();
+    public static final Counter COUNTER_BLOB_MAPPED_HIT_RATE = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
-
-    public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
-    public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
-    public static final ActivityTracker POP_TRACKER = new ActivityTracker("pop3.csv");
+    public static final StopWatch STOPWATCH_IDX_REOPEN = new StopWatch();
+    public static final StopWatch STOPWATCH_IDX_STALE_SEARCH = new StopWatch();
+    public static final StopWatch STOPWATCH_IDX_MERGE = new StopWatch();
+    public static final StopWatch STOPWATCH_MBOX_NTFN = new StopWatch();
+    public static final Counter COUNTER_MBOX_NTFN_THROTTLED = new Counter();
+
+    public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv", true);
+    public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv", true);
+    public static final ActivityTracker POP_TRACKER = new ActivityTracker("pop3.csv", true);
     public static final ActivityTracker LDAP_TRACKER = new ActivityTracker("ldap.csv");
     public static final ActivityTracker SYNC_TRACKER = new ActivityTracker("sync.csv");
     public static final ActivityTracker SQL_TRACKER  = new ActivityTracker("sql.csv");
@@ -228,17 +265,19 @@ public class ZimbraPerf {
             RTS_POP_CONN, RTS_POP_THREADS, RTS_POP_SSL_CONN, RTS_POP_SSL_THREADS,
             RTS_IMAP_CONN, RTS_IMAP_THREADS, RTS_IMAP_SSL_CONN, RTS_IMAP_SSL_THREADS,
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
-            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
-            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE, RTS_MSG_CACHE_DATA_SIZE, RTS_ITEM_CACHE_SIZE,
+            RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE, RTS_FD_CACHE_MAPPED_SIZE,
             RTS_ACL_CACHE_HIT_RATE,
-            RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
-            RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
-            RTS_DOMAIN_CACHE_SIZE, RTS_DOMAIN_CACHE_HIT_RATE,
+            RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE, RTS_ACCOUNT_CACHE_REFRESHES,
+            RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE, RTS_COS_CACHE_REFRESHES,
+            RTS_DOMAIN_CACHE_SIZE, RTS_DOMAIN_CACHE_HIT_RATE, RTS_DOMAIN_CACHE_REFRESHES,
             RTS_SERVER_CACHE_SIZE, RTS_SERVER_CACHE_HIT_RATE,
             RTS_UCSERVICE_CACHE_SIZE, RTS_UCSERVICE_CACHE_HIT_RATE,
             RTS_ZIMLET_CACHE_SIZE, RTS_ZIMLET_CACHE_HIT_RATE,
             RTS_GROUP_CACHE_SIZE, RTS_GROUP_CACHE_HIT_RATE,
             RTS_XMPP_CACHE_SIZE, RTS_XMPP_CACHE_HIT_RATE,
+            RTS_IDX_MERGE_QUEUED_KB, RTS_IDX_MERGE_ACTIVE_KB,
+            RTS_MBOX_NTFN_QUEUED,
             }
         );
 
@@ -287,9 +326,18 @@ public class ZimbraPerf {
     @Description("Message cache hit rate")
     private static final String DC_MBOX_MSG_CACHE = "mbox_msg_cache";
 
+    @Description("Number of messages evicted from the message cache")
+    private static final String DC_MBOX_MSG_CACHE_EVICTIONS = "mbox_msg_cache_evictions";
+
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Number of item cache lookups")
+    private static final String DC_MBOX_ITEM_CACHE_LOOKUPS = "mbox_item_cache_lookups";
+
+    @Description("Number of items evicted from the item cache")
+    private static final String DC_MBOX_ITEM_CACHE_EVICTIONS = "mbox_item_cache_evictions";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -308,12 +356,45 @@ public class ZimbraPerf {
     @Description("Average processing time (ms) of POP3 requests")
     private static final String DC_POP_MS_AVG = "pop_ms_avg";
 
+    @Description("Number of times that an index searcher was reopened to see new changes")
+    private static final String DC_IDX_REOPEN_COUNT = "idx_reopen_count";
+
+    @Description("Average latency (ms) of reopening an index searcher")
+    private static final String DC_IDX_REOPEN_MS_AVG = "idx_reopen_ms_avg";
+
+    @Description("Number of searches that used an index searcher missing the latest index changes")
+    private static final String DC_IDX_STALE_SEARCH_COUNT = "idx_stale_search_count";
+
+    @Description("Average age (ms) of index searchers that were missing the latest index changes")
+    private static final String DC_IDX_STALE_SEARCH_MS_AVG = "idx_stale_search_ms_avg";
+
+    @Description("Number of index merges")
+    private static final String DC_IDX_MERGE_COUNT = "idx_merge_count";
+
+    @Description("Average time (ms) of an index merge")
+    private static final String DC_IDX_MERGE_MS_AVG = "idx_merge_ms_avg";
+
+    @Description("Number of mailbox change notifications delivered to sessions")
+    private static final String DC_MBOX_NTFN_COUNT = "mbox_ntfn_count";
+
+    @Description("Average time (ms) from a mailbox commit until its change notification was delivered to all sessions")
+    private static final String DC_MBOX_NTFN_MS_AVG = "mbox_ntfn_ms_avg";
+
+    @Description("Number of mailbox writers that waited for queued change notifications to drain")
+    private static final String DC_MBOX_NTFN_THROTTLED = "mbox_ntfn_throttled";
+
     @Description("Number of times that the file descriptor cache read message data from disk")
     private static final String DC_BIS_READ = "bis_read";
 
     @Description("Percentage of file descriptor cache disk reads that required a seek")
     private static final String DC_BIS_SEEK_RATE = "bis_seek_rate";
 
+    @Description("Number of times that a blob input stream read message data from a memory-mapped blob")
+    private static final String DC_BIS_MAPPED_READ = "bis_mapped_read";
+
+    @Description("Percentage of blob input streams that read from a memory-mapped blob")
+    private static final String DC_BIS_MAPPED_HIT_RATE = "bis_mapped_hit_rate";
+
     @Description("Average number of concurrent index writers")
     private static final String DC_IDX_WRT_AVG = "idx_wrt_avg";
 
@@ -344,6 +425,37 @@ public class ZimbraPerf {
     @Description("Number of calendars (folders) in the calendar summary cache LRU in Java heap")
     private static final String DC_CALCACHE_LRU_SIZE = "calcache_lru_size";
 
+    // Latency histograms.  Each one is reported as <name>_p50, <name>_p95, <name>_p99 and <name>_max.
+    @Description("Latency (ms) of getting a database connection from the pool")
+    private static final String HC_DB_CONN_MS = "db_conn_ms";
+
+    @Description("Latency (ms) of getting an LDAP directory context")
+    private static final String HC_LDAP_DC_MS = "ldap_dc_ms";
+
+    @Description("Latency (ms) of adding a message to a mailbox")
+    private static final String HC_MBOX_ADD_MSG_MS = "mbox_add_msg_ms";
+
+    @Description("Latency (ms) of getting a mailbox from the cache")
+    private static final String HC_MBOX_GET_MS = "mbox_get_ms";
+
+    @Description("Processing time (ms) of SOAP requests")
+    private static final String HC_SOAP_MS = "soap_ms";
+
+    @Description("Processing time (ms) of IMAP requests")
+    private static final String HC_IMAP_MS = "imap_ms";
+
+    @Description("Processing time (ms) of POP3 requests")
+    private static final String HC_POP_MS = "pop_ms";
+
+    @Description("Latency (ms) of reopening an index searcher")
+    private static final String HC_IDX_REOPEN_MS = "idx_reopen_ms";
+
+    @Description("Time (ms) of an index merge")
+    private static final String HC_IDX_MERGE_MS = "idx_merge_ms";
+
+    @Description("Time (ms) from a mailbox commit until its change notification was delivered to all sessions")
+    private static final String HC_MBOX_NTFN_MS = "mbox_ntfn_ms";
+
     private static CopyOnWriteArrayList<Accumulator> sAccumulators =
         new CopyOnWriteArrayList<Accumulator>(
                     new Accumulator[] {
@@ -358,7 +470,9 @@ public class ZimbraPerf {
                         new DeltaCalculator(STOPWATCH_MBOX_GET).setCountName(DC_MBOX_GET_COUNT).setAverageName(DC_MBOX_GET_MS_AVG),
                         new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                         new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
-                        new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                        new DeltaCalculator(COUNTER_MBOX_MSG_CACHE_EVICTIONS).setTotalName(DC_MBOX_MSG_CACHE_EVICTIONS),
+                        new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setCountName(DC_MBOX_ITEM_CACHE_LOOKUPS).setAverageName(DC_MBOX_ITEM_CACHE),
+                        new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE_EVICTIONS).setTotalName(DC_MBOX_ITEM_CACHE_EVICTIONS),
                         new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT).setAverageName(DC_SOAP_MS_AVG),
                         new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
                         new DeltaCalculator(STOPWATCH_POP).setCountName(DC_POP_COUNT).setAverageName(DC_POP_MS_AVG),
@@ -372,6 +486,23 @@ public class ZimbraPerf {
                         new DeltaCalculator(COUNTER_IDX_BYTES_READ).setTotalName(DC_IDX_BYTES_READ).setAverageName(DC_IDX_BYTES_READ_AVG),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                         new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE).setAverageName(DC_BIS_SEEK_RATE),
+                        new DeltaCalculator(COUNTER_BLOB_MAPPED_READ).setTotalName(DC_BIS_MAPPED_READ),
+                        new DeltaCalculator(COUNTER_BLOB_MAPPED_HIT_RATE).setAverageName(DC_BIS_MAPPED_HIT_RATE),
+                        new DeltaCalculator(STOPWATCH_IDX_REOPEN).setCountName(DC_IDX_REOPEN_COUNT).setAverageName(DC_IDX_REOPEN_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_IDX_STALE_SEARCH).setCountName(DC_IDX_STALE_SEARCH_COUNT).setAverageName(DC_IDX_STALE_SEARCH_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_IDX_MERGE).setCountName(DC_IDX_MERGE_COUNT).setAverageName(DC_IDX_MERGE_MS_AVG),
+                        new DeltaCalculator(STOPWATCH_MBOX_NTFN).setCountName(DC_MBOX_NTFN_COUNT).setAverageName(DC_MBOX_NTFN_MS_AVG),
+                        new DeltaCalculator(COUNTER_MBOX_NTFN_THROTTLED).setTotalName(DC_MBOX_NTFN_THROTTLED),
+                        new HistogramCalculator(STOPWATCH_DB_CONN, HC_DB_CONN_MS),
+                        new HistogramCalculator(STOPWATCH_LDAP_DC, HC_LDAP_DC_MS),
+                        new HistogramCalculator(STOPWATCH_MBOX_ADD_MSG, HC_MBOX_ADD_MSG_MS),
+                        new HistogramCalculator(STOPWATCH_MBOX_GET, HC_MBOX_GET_MS),
+                        new HistogramCalculator(STOPWATCH_SOAP, HC_SOAP_MS),
+                        new HistogramCalculator(STOPWATCH_IMAP, HC_IMAP_MS),
+                        new HistogramCalculator(STOPWATCH_POP, HC_POP_MS),
+                        new HistogramCalculator(STOPWATCH_IDX_REOPEN, HC_IDX_REOPEN_MS),
+                        new HistogramCalculator(STOPWATCH_IDX_MERGE, HC_IDX_MERGE_MS),
+                        new HistogramCalculator(STOPWATCH_MBOX_NTFN, HC_MBOX_NTFN_MS),
                         realtimeStats
                     }
         );
@@ -392,6 +523,21 @@ public class ZimbraPerf {
                 }
             }
         }
+
+        // histogram annotations describe the prefix of the stat names
+        for (Accumulator a : sAccumulators) {
+            if (a instanceof HistogramCalculator) {
+                HistogramCalculator hc = (HistogramCalculator) a;
+                String description = descriptions.remove(hc.getPrefix());
+                if (description != null) {
+                    List<String> names = hc.getNames();
+                    List<String> histogramDescriptions = hc.getDescriptions(description);
+                    for (int i = 0; i < names.size(); i++) {
+                        descriptions.put(names.get(i), histogramDescriptions.get(i));
+                    }
+                }
+            }
+        }
     }
 
     /**
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import javax.mail.internet.SharedInputStream;
 
@@ -28,6 +29,7 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimePart.InputStreamSource;
 import com.zimbra.common.util.Log;
 import com.zimbra.common.util.LogFactory;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 public class BlobInputStream extends InputStream
 implements SharedInputStream, InputStreamSource {
@@ -93,6 +95,18 @@ implements SharedInputStream, InputStreamSource {
      */
     private int mBufSize = 0;
 
+    /**
+     * This stream's view of the memory-mapped blob, or <tt>null</tt> if it
+     * reads through the {@link FileDescriptorCache}.  Positions in the view
+     * are relative to the file, like {@link #mPos}.
+     */
+    private ByteBuffer mMapped;
+
+    /**
+     * Whether the {@link FileDescriptorCache} was asked for a mapped buffer.
+     */
+    private boolean mMappedChecked = false;
+
     /**
      * Constructs a <tt>BlobInputStream</tt> that reads an entire blob.
      */
@@ -143,8 +157,12 @@ implements SharedInputStream, InputStreamSource {
             // New stream.  Get settings from the parent and add this stream to the group.
             setMailboxLocator(parent);
             mRoot = parent.mRoot;
+            if (parent.mMappedChecked) {
+                mMappedChecked = true;
+                mMapped = parent.mMapped == null ? null : parent.mMapped.duplicate();
+            }
             file = parent.getRootFile();
-            if (!file.exists() && !getFileDescriptorCache().contains(file.getPath())) {
+            if (mMapped == null && !file.exists() && !getFileDescriptorCache().contains(file.getPath())) {
                 throw new FileNotFoundException(file.getPath() + " does not exist");
             }
         }
@@ -254,11 +272,34 @@ implements SharedInputStream, InputStreamSource {
         return true;
     }
 
+    /**
+     * Returns this stream's view of the memory-mapped blob, asking the
+     * {@link FileDescriptorCache} for it on the first read.  Streams over a
+     * blob that wasn't mapped at that point keep reading through the cache.
+     */
+    private ByteBuffer getMapped() throws IOException {
+        if (!mMappedChecked) {
+            mMappedChecked = true;
+            ByteBuffer mapped = getFileDescriptorCache().getMappedBuffer(getRootFile().getPath(), mRawSize);
+            if (mapped != null) {
+                mMapped = mapped.duplicate();
+                ZimbraPerf.COUNTER_BLOB_MAPPED_HIT_RATE.increment(100);
+            } else {
+                ZimbraPerf.COUNTER_BLOB_MAPPED_HIT_RATE.increment(0);
+            }
+        }
+        return mMapped;
+    }
+
     @Override
     public int read() throws IOException {
         if (mPos >= mEnd) {
             return -1;
         }
+        ByteBuffer mapped = getMapped();
+        if (mapped != null) {
+            return mapped.get((int) mPos++) & 0xff;
+        }
         if (mPos < mBufPos || mPos >= (mBufPos + mBufSize)) {
             // Tried to read outside buffer bounds.
             int numRead = fillBuffer(mPos);
@@ -300,6 +341,15 @@ implements SharedInputStream, InputStreamSource {
         len = (int) Math.min(len, mEnd - mPos);
         int numRead = 0;
 
+        ByteBuffer mapped = getMapped();
+        if (mapped != null) {
+            mapped.position((int) mPos);
+            mapped.get(b, off, len);
+            mPos += len;
+            ZimbraPerf.COUNTER_BLOB_MAPPED_READ.increment();
+            return len;
+        }
+
         if (mPos >= mBufPos && mPos < (mBufPos + mBufSize)) {
             // Current position is inside the buffer.  Read from the buffer.
             numRead = (int) Math.min(len, mBufPos + mBufSize - mPos); // Don't read past the end of the buffer.
@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -29,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Counter;
 import com.zimbra.common.util.FileCache;
@@ -44,6 +46,10 @@ import com.zimbra.cs.account.Server;
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * Blobs read again while their file descriptor is cached are memory-mapped
+ * by a {@link MappedBlobCache}, so that streams can read them without going
+ * through this cache.
  */
 public class FileDescriptorCache
 {
@@ -56,6 +62,7 @@ public class FileDescriptorCache
     private int mMaxSize = 1000;
     private final FileCache<String> mUncompressedFileCache;
     private final Counter mHitRate = new Counter();
+    private final MappedBlobCache mMappedCache;
 
     private class SharedFileInfo {
         public String path;
@@ -69,6 +76,9 @@ public class FileDescriptorCache
 
     public FileDescriptorCache(FileCache<String> uncompressedCache) {
         mUncompressedFileCache = uncompressedCache;
+        long mappedCacheSize = LC.zimbra_blob_mapped_cache_size_mb.longValue() * 1024 * 1024;
+        mMappedCache = mappedCacheSize > 0 ?
+                new MappedBlobCache(mappedCacheSize, LC.zimbra_blob_mapped_max_blob_size_kb.longValue() * 1024) : null;
     }
 
     public synchronized FileDescriptorCache setMaxSize(int maxSize) {
@@ -112,6 +122,9 @@ public class FileDescriptorCache
                 sLog.warn("Unable to close %s", file, e);
             }
         }
+        if (mMappedCache != null) {
+            mMappedCache.clear();
+        }
     }
 
     /**
@@ -135,10 +148,49 @@ public class FileDescriptorCache
         return numRead;
     }
 
+    /**
+     * Returns the memory-mapped content of the specified file, or <tt>null</tt>
+     * if it isn't mapped.  A file is mapped once it's read again while its file
+     * descriptor is still cached.  The buffer must not be modified; callers
+     * read from a {@link ByteBuffer#duplicate} of it.
+     */
+    public ByteBuffer getMappedBuffer(String path, long rawSize) {
+        if (mMappedCache == null) {
+            return null;
+        }
+        ByteBuffer buf = mMappedCache.get(path);
+        if (buf != null) {
+            return buf;
+        }
+        SharedFile file;
+        synchronized (this) {
+            file = mCache.get(path);
+        }
+        if (file == null) {
+            // not read before, or not recently
+            return null;
+        }
+        // map outside the lock, then publish only if the file wasn't removed in the meantime; remove() drops the
+        // mapping under the same lock, so a mapping of a rewritten blob can't be cached after it
+        buf = mMappedCache.map(file.getFile(), rawSize);
+        if (buf == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (mCache.get(path) != file) {
+                return null;
+            }
+            return mMappedCache.put(path, buf);
+        }
+    }
+
     boolean contains(String path) {
         synchronized (this) {
-            return mCache.containsKey(path);
+            if (mCache.containsKey(path)) {
+                return true;
+            }
         }
+        return mMappedCache != null && mMappedCache.get(path) != null;
     }
 
     /**
@@ -207,6 +259,9 @@ public class FileDescriptorCache
 
         synchronized (this) {
             file = mCache.remove(path);
+            if (mMappedCache != null) {
+                mMappedCache.remove(path);
+            }
         }
 
         if (file != null) {
@@ -273,6 +328,13 @@ public class FileDescriptorCache
         return mHitRate.getAverage();
     }
 
+    /**
+     * Returns the total size of the memory-mapped blobs.
+     */
+    public long getMappedSize() {
+        return mMappedCache != null ? mMappedCache.getMappedBytes() : 0;
+    }
+
     private void pruneIfNecessary() {
          if (getSize() <= mMaxSize)
             return;
@@ -0,0 +1,139 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.zimbra.common.util.Log;
+import com.zimbra.common.util.LogFactory;
+
+/**
+ * Memory-mapped content of blobs, keyed by blob path, for {@link FileDescriptorCache}.  The files mapped are
+ * uncompressed: either the blob itself or its copy in the uncompressed file cache.
+ * <p>
+ * The total size of the mappings held by the cache is bounded, least recently used mappings being dropped first.
+ * This does not bound the address space mapped by the process: a mapping can't be unmapped while a stream may still
+ * read from it, so dropping one only removes it from the cache, and it stays mapped until the cache and every stream
+ * reading it no longer reference it and the buffer is garbage collected.  Keep the limits small enough that the
+ * mappings dropped between collections fit comfortably.  Blobs are never modified in place, so a mapping stays valid
+ * after the blob is deleted or moved.
+ */
+public class MappedBlobCache {
+
+    private static final Log sLog = LogFactory.getLog(MappedBlobCache.class);
+
+    private final LinkedHashMap<String, ByteBuffer> mMapped = new LinkedHashMap<String, ByteBuffer>(16, 0.75f, true);
+    private final long mMaxBytes;
+    private final long mMaxBlobBytes;
+    private long mMappedBytes; // guarded by this
+
+    /**
+     * @param maxBytes maximum total size of the mapped blobs
+     * @param maxBlobBytes size of the largest blob to map
+     */
+    public MappedBlobCache(long maxBytes, long maxBlobBytes) {
+        mMaxBytes = maxBytes;
+        mMaxBlobBytes = Math.min(Math.min(maxBytes, maxBlobBytes), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the mapped content of the blob at the given path, or <tt>null</tt> if it's not mapped.
+     */
+    public synchronized ByteBuffer get(String path) {
+        return mMapped.get(path);
+    }
+
+    /**
+     * Maps the file holding the uncompressed content of a blob, if it isn't too large.  The mapping is not added to
+     * the cache; see {@link #put}.
+     *
+     * @param file the blob file, or its uncompressed copy
+     * @param rawSize size of the blob before any compression
+     * @return the read-only mapped content, or <tt>null</tt> if the blob can't be mapped
+     */
+    public ByteBuffer map(File file, long rawSize) {
+        if (rawSize <= 0 || rawSize > mMaxBlobBytes || file.length() != rawSize) {
+            return null;
+        }
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, rawSize);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            sLog.debug("Unable to map %s", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Caches the mapped content of the blob at the given path, unless it's cached already.
+     *
+     * @return the cached mapping, which is <tt>buf</tt> unless another one was cached first
+     */
+    public synchronized ByteBuffer put(String path, ByteBuffer buf) {
+        ByteBuffer existing = mMapped.get(path);
+        if (existing != null) {
+            return existing;
+        }
+        sLog.debug("Mapped %s, %d bytes.", path, buf.capacity());
+        mMapped.put(path, buf);
+        mMappedBytes += buf.capacity();
+
+        Iterator<Map.Entry<String, ByteBuffer>> iEntries = mMapped.entrySet().iterator();
+        while (mMappedBytes > mMaxBytes && iEntries.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = iEntries.next();
+            if (entry.getValue() != buf) {
+                iEntries.remove();
+                mMappedBytes -= entry.getValue().capacity();
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Drops the mapping of the blob at the given path, if any.
+     */
+    public synchronized void remove(String path) {
+        ByteBuffer buf = mMapped.remove(path);
+        if (buf != null) {
+            mMappedBytes -= buf.capacity();
+        }
+    }
+
+    public synchronized void clear() {
+        mMapped.clear();
+        mMappedBytes = 0;
+    }
+
+    /**
+     * Returns the total size of the mapped blobs held by the cache.  Mappings dropped from the cache but not yet
+     * garbage collected are not included.
+     */
+    public synchronized long getMappedBytes() {
+        return mMappedBytes;
+    }
+}
@@ -65,6 +65,10 @@ public class SharedFile {
         openIfNecessary();
     }
 
+    File getFile() {
+        return mFile;
+    }
+
     synchronized long getLength() {
         return mLength;
     }
@@ -23,15 +23,26 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.collections.MultiMap;
 import org.apache.commons.collections.map.MultiValueMap;
 
+import com.google.common.hash.BloomFilter;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.Pair;
 import com.zimbra.common.util.ZimbraLog;
@@ -48,15 +59,28 @@ import com.zimbra.cs.volume.Volume.VolumeMetadata;
 import com.zimbra.cs.volume.VolumeManager;
 import com.zimbra.znative.IO;
 
+/**
+ * Replaces blobs with the same digest on a volume by hard links to a single file.
+ * <p>
+ * Volumes are processed concurrently on {@link LC#zimbra_blob_dedupe_volume_threads} threads.  A Bloom filter over
+ * the digests of each volume tells the digests with a single blob, which are marked as processed in batches without
+ * querying their blobs; the others are linked concurrently on {@link LC#zimbra_blob_dedupe_link_threads} threads,
+ * shared by all the volumes, at no more than {@link LC#zimbra_blob_dedupe_max_links_per_sec} links per second.
+ */
 public class BlobDeduper {
-    
+
+    private static final int UNIQUE_BATCH_SIZE = 500;
+
     private boolean inProgress = false;
     private boolean stopProcessing = false;
     private int totalLinksCreated = 0;
     private long totalSizeSaved = 0;
-    private Map<Short, String> volumeBlobsProgress = new LinkedHashMap<Short, String>();
-    private Map<Short, String> blobDigestsProgress = new LinkedHashMap<Short, String>();
-    
+    private final Map<Short, String> volumeBlobsProgress = new ConcurrentSkipListMap<Short, String>();
+    private final Map<Short, String> blobDigestsProgress = new ConcurrentSkipListMap<Short, String>();
+
+    private final RateLimiter linkThrottle = LC.zimbra_blob_dedupe_max_links_per_sec.intValue() > 0 ?
+            RateLimiter.create(LC.zimbra_blob_dedupe_max_links_per_sec.intValue()) : null;
+
     private final static BlobDeduper SINGLETON = new BlobDeduper();
 
     private BlobDeduper() {
@@ -178,6 +202,9 @@ public class BlobDeduper {
                 String tempPath = path + "_TEMP";
                 File tempFile = new File(tempPath);
                 try {
+                    if (linkThrottle != null) {
+                        linkThrottle.acquire();
+                    }
                     IO.link(holdPath, tempPath);
                     File destFile = new File(path);
                     tempFile.renameTo(destFile);
@@ -212,6 +239,17 @@ public class BlobDeduper {
             DbPool.quietClose(conn);
         }
     }
+
+    private void markBlobsAsProcessed(Volume volume, List<String> digests) throws ServiceException {
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection();
+            DbVolumeBlobs.updateProcessed(conn, volume, digests);
+            conn.commit();
+        } finally {
+            DbPool.quietClose(conn);
+        }
+    }
     
     public synchronized void stopProcessing() {
         if (inProgress) {
@@ -242,19 +280,19 @@ public class BlobDeduper {
         return new Pair<Integer,Long>(totalLinksCreated, totalSizeSaved);
     }
     
-    public synchronized Map<Short, String> getVolumeBlobsProgress() {
+    public Map<Short, String> getVolumeBlobsProgress() {
         return volumeBlobsProgress;
     }
-    
-    public synchronized void setVolumeBlobsProgress(short volumeId, String str) {
+
+    public void setVolumeBlobsProgress(short volumeId, String str) {
         volumeBlobsProgress.put(volumeId, str);
     }
 
-    public synchronized Map<Short, String> getBlobDigestsProgress() {
+    public Map<Short, String> getBlobDigestsProgress() {
         return blobDigestsProgress;
     }
-    
-    public synchronized void setBlobDigestsProgress(short volumeId, String str) {
+
+    public void setBlobDigestsProgress(short volumeId, String str) {
         blobDigestsProgress.put(volumeId, str);
     }
 
@@ -402,41 +440,152 @@ public class BlobDeduper {
             }
         }
         
-        public void run() {   
-            for (short volumeId : volumeIds) {
+        public void run() {
+            int volumeThreads = Math.max(1, Math.min(LC.zimbra_blob_dedupe_volume_threads.intValue(), volumeIds.size()));
+            ExecutorService volumePool = Executors.newFixedThreadPool(volumeThreads,
+                    new ThreadFactoryBuilder().setNameFormat("BlobDeduper-%d").setDaemon(true).build());
+            int linkThreads = LC.zimbra_blob_dedupe_link_threads.intValue();
+            final ExecutorService linkPool = linkThreads > 0 ? Executors.newFixedThreadPool(linkThreads,
+                    new ThreadFactoryBuilder().setNameFormat("BlobDeduperLink-%d").setDaemon(true).build()) : null;
+            final int maxPending = Math.max(linkThreads, 1) * 4;
+            final CountDownLatch volumesDone = new CountDownLatch(volumeIds.size());
+            try {
+                for (final short volumeId : volumeIds) {
+                    volumePool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                new VolumeDeduper(volumeId, linkPool, maxPending).run();
+                            } finally {
+                                volumesDone.countDown();
+                            }
+                        }
+                    });
+                }
+                Uninterruptibles.awaitUninterruptibly(volumesDone);
+            } finally {
+                volumePool.shutdown();
+                if (linkPool != null) {
+                    linkPool.shutdown();
+                }
+                resetProgress();
+            }
+            Pair<Integer, Long> total = getCountAndSize();
+            ZimbraLog.misc.info("Deduping done. Total of " + total.getFirst()
+                    + " links created and saved approximately " + total.getSecond() + " bytes.");
+        }
+
+
+        /**
+         * Dedupes the blobs of one volume.  The digests with more than one blob are handed to the link pool, no more than
+         * {@code maxPending} at a time, and the volume is done once they all are.
+         */
+        private class VolumeDeduper {
+            private final short volumeId;
+            private final ExecutorService linkPool;
+            private final int maxPending;
+            private final Semaphore pending;
+            private final AtomicInteger digestsDone = new AtomicInteger();
+            private final AtomicInteger linksCreated = new AtomicInteger();
+            private final AtomicLong sizeSaved = new AtomicLong();
+            private volatile Throwable failure;
+            private int digestCount;
+
+            VolumeDeduper(short volumeId, ExecutorService linkPool, int maxPending) {
+                this.volumeId = volumeId;
+                this.linkPool = linkPool;
+                this.maxPending = maxPending;
+                this.pending = new Semaphore(maxPending);
+            }
+
+            private void digestsDone(int count) {
+                setBlobDigestsProgress(volumeId, digestsDone.addAndGet(count) + "/" + digestCount);
+            }
+
+            private void dedupe(String digest, Volume vol) {
+                try {
+                    Pair<Integer, Long> pair = processDigest(digest, vol);
+                    incrementCountAndSize(pair.getFirst(), pair.getSecond());
+                    linksCreated.addAndGet(pair.getFirst());
+                    sizeSaved.addAndGet(pair.getSecond());
+                    digestsDone(1);
+                } catch (Throwable t) {
+                    failure = t;
+                }
+            }
+
+            void run() {
+                long start = System.currentTimeMillis();
+                int duplicateCount = 0;
                 try {
                     ZimbraLog.misc.info("Running deduper for volume %d", volumeId);
-                    Volume vol = VolumeManager.getInstance().getVolume(volumeId);
+                    final Volume vol = VolumeManager.getInstance().getVolume(volumeId);
                     // populate the volume_blox table first;
                     populateVolumeBlobs(vol);
                     SpoolingCache<String> digests;
+                    BloomFilter<CharSequence> duplicates;
                     DbConnection conn = null;
                     try {
                         conn = DbPool.getConnection();
                         digests = DbVolumeBlobs.getUniqueDigests(conn, vol);
+                        duplicates = DbVolumeBlobs.getDuplicateDigests(conn, vol);
                     } finally {
                         DbPool.quietClose(conn);
                     }
-                    int count = 0;
-                    setBlobDigestsProgress(volumeId, count + "/" + digests.size());
-                    for (String digest : digests) {
-                        Pair<Integer, Long> pair = processDigest(digest, vol);
-                        incrementCountAndSize(pair.getFirst(), pair.getSecond());
-                        count++;
-                        setBlobDigestsProgress(volumeId, count + "/" + digests.size());
+                    digestCount = digests.size();
+                    setBlobDigestsProgress(volumeId, "0/" + digestCount);
+                    List<String> unique = new ArrayList<String>(UNIQUE_BATCH_SIZE);
+                    for (final String digest : digests) {
                         if (isStopProcessing()) {
                             ZimbraLog.misc.info("Recieved the stop signal. Stopping the deduplication process.");
                             break;
+                        } else if (failure != null) {
+                            break;
+                        }
+                        if (!duplicates.mightContain(digest)) {
+                            // the only blob with this digest; mark it as processed without looking it up
+                            unique.add(digest);
+                            if (unique.size() >= UNIQUE_BATCH_SIZE) {
+                                markBlobsAsProcessed(vol, unique);
+                                digestsDone(unique.size());
+                                unique.clear();
+                            }
+                            continue;
                         }
+                        duplicateCount++;
+                        if (linkPool == null) {
+                            dedupe(digest, vol);
+                            continue;
+                        }
+                        pending.acquireUninterruptibly();
+                        linkPool.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    dedupe(digest, vol);
+                                } finally {
+                                    pending.release();
+                                }
+                            }
+                        });
                     }
+                    markBlobsAsProcessed(vol, unique);
+                    digestsDone(unique.size());
                 } catch (Throwable t) {
-                    ZimbraLog.misc.error("error while performing deduplication", t);
+                    failure = t;
                 } finally {
-                    resetProgress();
+                    // wait for the digests still being linked
+                    pending.acquireUninterruptibly(maxPending);
+                    pending.release(maxPending);
+                }
+                if (failure != null) {
+                    ZimbraLog.misc.error("error while performing deduplication of volume " + volumeId, failure);
                 }
+                long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+                ZimbraLog.misc.info("Deduped volume %d in %d ms: %d of %d digests (%d with duplicates), %d digests/s, " +
+                        "%d links created, %d bytes saved.", volumeId, elapsed, digestsDone.get(), digestCount,
+                        duplicateCount, digestsDone.get() * 1000L / elapsed, linksCreated.get(), sizeSaved.get());
             }
-            ZimbraLog.misc.info("Deduping done. Total of " + totalLinksCreated
-                    + " links created and saved approximately " + totalSizeSaved + " bytes.");
         }
     }
 }
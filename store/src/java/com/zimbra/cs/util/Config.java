@@ -34,8 +34,6 @@ import com.zimbra.cs.db.DbPool.DbConnection;
  */
 public final class Config {
 
-    public static final String KEY_PURGE_LAST_MAILBOX_ID = "purge.lastMailboxId";
-
     public static final int D_LMTP_THREADS = 10;
 
     public static final int D_LMTP_BIND_PORT = 7025;
@@ -53,6 +53,7 @@ import com.zimbra.cs.extension.ExtensionUtil;
 import com.zimbra.cs.iochannel.MessageChannel;
 import com.zimbra.cs.mailbox.MailboxIndex;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxUpgrade;
 import com.zimbra.cs.mailbox.PurgeThread;
 import com.zimbra.cs.mailbox.ScheduledTaskManager;
 import com.zimbra.cs.mailbox.acl.AclPushTask;
@@ -405,6 +406,7 @@ public final class Zimbra {
         if (sIsMailboxd) {
             PurgeThread.shutdown();
             AutoProvisionThread.shutdown();
+            MailboxUpgrade.shutdownImapSummaryBackfill();
         }
 
         ZimbraApplication app = ZimbraApplication.getInstance();
@@ -0,0 +1,98 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.qa.unittest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+
+/**
+ * Measures {@link MailboxManager} lookup throughput when many threads resolve
+ * already-loaded mailboxes at the same time.
+ */
+public class TestMailboxManagerContention extends TestCase {
+
+    private static final String[] USERS = { "user1", "user2", "user3", "user4", "user5" };
+    private static final int NUM_THREADS = 32;
+    private static final int LOOKUPS_PER_THREAD = 100000;
+
+    private String[] accountIds;
+
+    @Override
+    public void setUp() throws Exception {
+        accountIds = new String[USERS.length];
+        for (int i = 0; i < USERS.length; i++) {
+            Account account = TestUtil.getAccount(USERS[i]);
+            accountIds[i] = account.getId();
+            // make sure the mailbox is loaded before timing lookups
+            MailboxManager.getInstance().getMailboxByAccount(account);
+        }
+    }
+
+    public void testConcurrentLookups() throws Exception {
+        final MailboxManager mgr = MailboxManager.getInstance();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[NUM_THREADS];
+
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int offset = i;
+            threads[i] = new Thread("TestMailboxManagerContention-" + i) {
+                @Override public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; n < LOOKUPS_PER_THREAD; n++) {
+                            String accountId = accountIds[(n + offset) % accountIds.length];
+                            Mailbox mbox = mgr.getMailboxByAccountId(accountId);
+                            if (!accountId.equals(mbox.getAccountId())) {
+                                throw new IllegalStateException("got mailbox " + mbox.getId() + " for " + accountId);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        error.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        long elapsed = System.nanoTime() - startTime;
+        if (error.get() != null) {
+            throw new Exception("lookup failed", error.get());
+        }
+
+        long total = (long) NUM_THREADS * LOOKUPS_PER_THREAD;
+        ZimbraLog.test.info("%d threads performed %d mailbox lookups in %dms (%.0f lookups/sec)",
+                NUM_THREADS, total, elapsed / 1000000, total * 1e9 / elapsed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        TestUtil.cliSetup();
+        TestUtil.runTest(TestMailboxManagerContention.class);
+    }
+}
@@ -39,6 +39,7 @@ import com.zimbra.common.soap.SoapFaultException;
 import com.zimbra.common.soap.SoapParseException;
 import com.zimbra.common.soap.SoapProtocol;
 import com.zimbra.common.soap.SoapTransport;
+import com.zimbra.common.soap.StaxElementParser;
 import com.zimbra.common.soap.XmlParseException;
 import com.zimbra.common.soap.ZimbraNamespace;
 import com.zimbra.common.util.Constants;
@@ -257,7 +258,9 @@ public class SoapEngine {
         Element document = null;
         try {
             if (soapMessage[0] == '<') {
-                document = Element.parseXML(in);
+                // build the Element tree straight from the parser events rather than via an intermediate DOM
+                document = LC.soap_request_stax_parser_enabled.booleanValue() ?
+                        StaxElementParser.parseXML(in) : Element.parseXML(in);
             } else {
                 document = Element.parseJSON(in);
             }
@@ -371,11 +371,22 @@ public class SoapServlet extends ZimbraServlet {
             envelope.output(out);
             out.flush();
         } else {
-            // serialize the envelope to a byte array and send the response with Content-Length header.
-            byte[] soapBytes = envelope.toUTF8();
-            resp.setContentLength(soapBytes.length);
-            resp.getOutputStream().write(soapBytes);
-            resp.getOutputStream().flush();
+            // serialize the envelope straight to UTF-8, spooling large responses to disk, and send the response
+            // with Content-Length header.
+            BufferStream bs = new BufferStream(0, LC.soap_response_spool_threshold_kb.intValue() * 1024);
+            try {
+                ZimbraServletOutputStream out = new ZimbraServletOutputStream(bs);
+                envelope.output(out);
+                out.flush();
+                if (bs.isPartial()) {
+                    throw new IOException("unable to spool SOAP response of " + bs.getSize() + " bytes");
+                }
+                resp.setContentLength((int) out.getBytesWritten());
+                bs.copyTo(resp.getOutputStream());
+                resp.getOutputStream().flush();
+            } finally {
+                ByteUtil.closeStream(bs);
+            }
         }
         envelope.destroy();
     }